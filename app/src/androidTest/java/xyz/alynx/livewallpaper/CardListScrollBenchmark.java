@@ -0,0 +1,98 @@
+package xyz.alynx.livewallpaper;
+
+import android.net.Uri;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.rule.ActivityTestRule;
+import android.support.test.runner.AndroidJUnit4;
+import android.support.v7.widget.RecyclerView;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Frame time benchmark of scrolling a large card list, which will execute on an Android device.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class CardListScrollBenchmark {
+    private static final String TAG = "CardListScrollBenchmark";
+    private static final int CARD_COUNT = 5000;
+    private static final int FLINGS = 30;
+    private final List<WallpaperCard> cards = new ArrayList<>();
+
+    @Rule
+    public final ActivityTestRule<MainActivity> activityRule = new ActivityTestRule<>(
+        MainActivity.class, false, false
+    );
+
+    @Before
+    public void setUp() {
+        // Bundled thumbnail keeps cards cheap, but every path is decoded on its own.
+        for (int i = 0; i < CARD_COUNT; ++i) {
+            final String path = "content://benchmark/video-" + i + ".mp4";
+            cards.add(new WallpaperCard(
+                "Benchmark " + i, path, Uri.parse(path), WallpaperCard.Type.EXTERNAL,
+                "wallpapers/fire-rain/fire-rain-512x384.webp"
+            ));
+        }
+        LWApplication.getCatalog().edit().addAll(cards).commit();
+    }
+
+    @After
+    public void tearDown() {
+        // Before activity finishes, so these cards are not written into data.json.
+        final CardCatalog.Batch batch = LWApplication.getCatalog().edit();
+        for (WallpaperCard card : cards) {
+            batch.remove(card);
+            ThumbnailCache.getInstance().remove(card);
+        }
+        batch.commit();
+    }
+
+    @Test
+    public void scrollLargeLibrary() throws Throwable {
+        final MainActivity activity = activityRule.launchActivity(null);
+        final RecyclerView recyclerView = activity.findViewById(R.id.recycler_view);
+        final FrameTimeMonitor monitor = new FrameTimeMonitor(activity);
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync();
+        assertTrue(recyclerView.getAdapter().getItemCount() >= CARD_COUNT);
+        activityRule.runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                monitor.start();
+            }
+        });
+        for (int i = 0; i < FLINGS; ++i) {
+            activityRule.runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    recyclerView.smoothScrollBy(0, recyclerView.getHeight() * 3);
+                }
+            });
+            Thread.sleep(300);
+        }
+        final FrameStats[] result = new FrameStats[1];
+        activityRule.runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                result[0] = monitor.stop();
+            }
+        });
+        final FrameStats stats = result[0];
+        Log.i(TAG, "Scrolled " + CARD_COUNT + " cards: " + stats);
+        assertTrue(stats.getFrameCount() > 0);
+        // Allow a few janky frames when pages of thumbnails arrive, not a stuttering list.
+        assertTrue(stats.toString(), stats.getJankRatio() < 0.05f);
+        assertTrue(stats.toString(), stats.getPercentileNs(90) <= stats.getFrameBudgetNs() * 3 / 2);
+    }
+}
@@ -0,0 +1,101 @@
+package xyz.alynx.livewallpaper;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Benchmark of fingerprint cost against file size, which will execute on an Android device.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class ContentFingerprintBenchmark {
+    private static final String TAG = "ContentFingerprintBenchmark";
+    private static final long[] SIZES = {
+        256L * 1024, 4L * 1024 * 1024, 64L * 1024 * 1024, 256L * 1024 * 1024
+    };
+    private static final int ROUNDS = 20;
+    private static final int BLOCK_SIZE = 1024 * 1024;
+    // Only a few chunks are read, so even the largest file costs a few reads.
+    private static final long MAX_AVERAGE_MS = 20;
+    private Context context;
+    private File dir;
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getTargetContext();
+        dir = new File(context.getCacheDir(), "fingerprint-benchmark");
+        assertTrue(dir.isDirectory() || dir.mkdirs());
+    }
+
+    @After
+    public void tearDown() {
+        final File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        dir.delete();
+    }
+
+    @Test
+    public void costAgainstSize() throws IOException {
+        for (long size : SIZES) {
+            final File file = write(size);
+            final Uri uri = Uri.fromFile(file);
+            // First one opens a cold file, like an import does.
+            long startMs = SystemClock.elapsedRealtime();
+            final String fingerprint = ContentFingerprint.compute(context, uri);
+            final long firstMs = SystemClock.elapsedRealtime() - startMs;
+            assertNotNull(fingerprint);
+            startMs = SystemClock.elapsedRealtime();
+            for (int i = 0; i < ROUNDS; ++i) {
+                assertEquals(fingerprint, ContentFingerprint.compute(context, uri));
+            }
+            final float averageMs = (float)(SystemClock.elapsedRealtime() - startMs) / ROUNDS;
+            Log.i(TAG, String.format(
+                Locale.US, "Fingerprint of %d KB file: first %d ms, average %.2f ms",
+                size / 1024, firstMs, averageMs
+            ));
+            assertTrue(String.valueOf(averageMs), averageMs < MAX_AVERAGE_MS);
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+
+    /**
+     * Real bytes instead of a sparse file, so sampled chunks come from storage.
+     */
+    private File write(final long size) throws IOException {
+        final File file = new File(dir, size + ".mp4");
+        final byte[] block = new byte[BLOCK_SIZE];
+        final Random random = new Random(size);
+        try (FileOutputStream stream = new FileOutputStream(file)) {
+            for (long written = 0; written < size; written += block.length) {
+                random.nextBytes(block);
+                stream.write(block, 0, (int)Math.min(block.length, size - written));
+            }
+        }
+        return file;
+    }
+}
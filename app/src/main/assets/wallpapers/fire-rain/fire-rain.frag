@@ -0,0 +1,36 @@
+// Fire Rain, drawn instead of decoded.
+//
+// Columns of falling embers over a dark red glow, close to the bundled video.
+// u_time, u_resolution, u_offset and tex_coord are declared by the app.
+
+float hash(float n) {
+    return fract(sin(n) * 43758.5453);
+}
+
+// One layer of falling streaks, each column has its own speed and phase.
+float rain(vec2 uv, float columns, float speed, float seed) {
+    float column = floor(uv.x * columns);
+    float x = fract(uv.x * columns) - 0.5;
+    float phase = hash(column + seed);
+    float y = fract(uv.y + u_time * speed * (0.6 + phase) + phase * 7.0);
+    // Bright head at the bottom of a fading tail.
+    float tail = smoothstep(0.0, 0.25, y) * (1.0 - smoothstep(0.25, 0.27, y));
+    float width = 0.06 + 0.06 * phase;
+    return tail * (1.0 - smoothstep(0.0, width, abs(x))) * step(0.35, hash(column * 1.7 + seed));
+}
+
+void main() {
+    float aspect = u_resolution.x / max(u_resolution.y, 1.0);
+    // Slide a little with home screen pages, like the video does.
+    vec2 uv = vec2((tex_coord.x - 0.5) * aspect + u_offset.x * 0.3, tex_coord.y + u_offset.y * 0.3);
+    float heat = 0.0;
+    heat += rain(uv, 18.0, 0.35, 1.0);
+    heat += 0.6 * rain(uv * 1.3 + 0.2, 30.0, 0.25, 11.0);
+    heat += 0.35 * rain(uv * 1.7 + 0.5, 46.0, 0.18, 23.0);
+    // Glow rising from the bottom, flickering slowly.
+    float glow = (1.0 - tex_coord.y) * (0.25 + 0.05 * sin(u_time * 1.3 + uv.x * 4.0));
+    vec3 color = vec3(1.0, 0.45, 0.1) * heat + vec3(0.5, 0.08, 0.02) * glow;
+    // Hot heads turn yellow.
+    color += vec3(0.3, 0.25, 0.0) * smoothstep(0.8, 1.2, heat);
+    gl_FragColor = vec4(min(color, vec3(1.0)), 1.0);
+}
@@ -42,5 +42,16 @@ public class AboutActivity extends AppCompatActivity {
             getResources().getString(R.string.app_version),
             BuildConfig.VERSION_NAME, BuildConfig.VERSION_CODE, BuildConfig.BUILD_TYPE
         ));
+        // Saved when the last engine stops, so a running wallpaper is not counted yet.
+        final long[] tierTimesMs = QualityGovernor.loadTierTimesMs(this);
+        final float hourMs = 60 * 60 * 1000;
+        final TextView qualityStats = findViewById(R.id.quality_stats);
+        qualityStats.setText(String.format(
+            getResources().getString(R.string.quality_stats),
+            tierTimesMs[QualityPolicy.Tier.FULL.ordinal()] / hourMs,
+            tierTimesMs[QualityPolicy.Tier.REDUCED_FPS.ordinal()] / hourMs,
+            tierTimesMs[QualityPolicy.Tier.REDUCED_RESOLUTION.ordinal()] / hourMs,
+            tierTimesMs[QualityPolicy.Tier.STATIC.ordinal()] / hourMs
+        ));
     }
 }
@@ -16,13 +16,13 @@
 
 package xyz.alynx.livewallpaper;
 
-import android.content.Intent;
 import android.graphics.Bitmap;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.support.annotation.NonNull;
 import android.support.v7.app.AppCompatActivity;
 
+import java.io.IOException;
 import java.lang.ref.WeakReference;
 
 class AddCardTask extends AsyncTask<String, Void, WallpaperCard> {
@@ -57,43 +57,88 @@ class AddCardTask extends AsyncTask<String, Void, WallpaperCard> {
         }
         String path = strings[1];
         Uri uri = Uri.parse(path);
-        try {
-            if (activityRef.get() != null) {
-                // Ask for persistable permission.
-                activityRef.get().getContentResolver().takePersistableUriPermission(
-                    uri, Intent.FLAG_GRANT_READ_URI_PERMISSION
-                );
-            }
-        } catch (SecurityException e) {
-            e.printStackTrace();
-            if (activityRef.get() != null) {
-                message = String.format(
-                    activityRef.get().getResources().getString(R.string.removed_invalid_card),
-                    name
-                );
-            }
+        // Ask for persistable permission.
+        final AppCompatActivity activity = activityRef.get();
+        if (activity != null && !Utils.takeReadPermission(activity, uri)) {
+            message = String.format(
+                activity.getResources().getString(R.string.removed_invalid_card),
+                name
+            );
+            cancel(true);
+            return null;
+        }
+        if (activity == null) {
             cancel(true);
             return null;
         }
-        Bitmap thumbnail = null;
-        if (activityRef.get() != null) {
-            thumbnail = Utils.createVideoThumbnailFromUri(
-                activityRef.get().getApplicationContext(), uri
+        // Picker gives videos and images together, a new card is told by its content.
+        final WallpaperCard.Kind kind = FrameSourcePlayer.detectKind(
+            activity.getApplicationContext(), uri
+        );
+        final WallpaperCard card = new WallpaperCard(
+            name, uri.toString(), uri, WallpaperCard.Type.EXTERNAL, kind, null
+        );
+        // The same video may be picked from another uri, don't extract it again.
+        card.setFingerprint(ContentFingerprint.compute(activity.getApplicationContext(), uri));
+        final WallpaperCard sameCard = LWApplication.getCatalog().getSnapshot().findSameContent(card);
+        if (sameCard != null) {
+            message = String.format(
+                activity.getResources().getString(R.string.same_content),
+                sameCard.getName(), name
             );
+            cancel(true);
+            return null;
         }
-        if (thumbnail == null) {
-            if (activityRef.get() != null) {
+        if (kind == WallpaperCard.Kind.SHADER) {
+            // Compiler log tells user what is wrong, a missing thumbnail does not.
+            final String error = probeShader(activity, card);
+            if (error != null) {
                 message = String.format(
-                    activityRef.get().getResources().getString(R.string.no_thumbnail),
-                    name
+                    activity.getResources().getString(R.string.shader_invalid), name, error
                 );
+                cancel(true);
+                return null;
             }
+        }
+        final Bitmap thumbnail = ThumbnailCache.getInstance().load(
+            activity.getApplicationContext(), card
+        );
+        if (thumbnail == null) {
+            message = String.format(
+                activity.getResources().getString(R.string.no_thumbnail),
+                name
+            );
             cancel(true);
             return null;
         }
-        return new WallpaperCard(
-            name, uri.toString(), uri, WallpaperCard.Type.EXTERNAL, thumbnail
+        // Playing it would burn CPU, user should know before applying it.
+        card.setSoftwareDecode(DecoderProbe.isSoftwareOnly(activity.getApplicationContext(), card));
+        // We have decoded it for validating, cache keeps it so UI does not decode again.
+        return card;
+    }
+
+    /**
+     * @return String Problem of shader, or null if it compiled and its frame is cached.
+     */
+    private static String probeShader(
+        @NonNull final AppCompatActivity activity,
+        @NonNull final WallpaperCard card
+    ) {
+        final String source;
+        try {
+            source = ShaderProbe.loadSource(activity.getApplicationContext(), card);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return e.getMessage();
+        }
+        final ShaderProbe.Result result = ShaderProbe.probe(
+            source, ThumbnailExtractor.THUMBNAIL_SIZE, ThumbnailExtractor.THUMBNAIL_SIZE * 3 / 4
         );
+        if (result.error != null) {
+            return result.error;
+        }
+        ThumbnailCache.getInstance().put(card, result.frame);
+        return null;
     }
 
     @Override
@@ -17,8 +17,11 @@
 package xyz.alynx.livewallpaper;
 
 import android.content.Context;
-import android.content.Intent;
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.annotation.NonNull;
+import android.support.v7.util.DiffUtil;
 import android.support.v7.widget.RecyclerView;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -27,14 +30,50 @@ import android.widget.Button;
 import android.widget.ImageView;
 import android.widget.TextView;
 
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
-class CardAdapter extends RecyclerView.Adapter<CardViewHolder> {
+/**
+ *
+ * CardAdapter: show catalog snapshots in a RecyclerView.
+ *
+ * Adapter listens to catalog, so whoever commits a change, list follows it. Diffs between
+ * snapshots are computed on a background thread and only changed rows are notified,
+ * changes of current card or removable mode only rebind badges via payloads.
+ *
+ * Thumbnails are loaded by pages around the bound position on worker threads, newest
+ * requests first, so flinging a long list does not wait for rows already scrolled away.
+ *
+ */
+class CardAdapter extends RecyclerView.Adapter<CardViewHolder>
+    implements CardCatalog.OnCatalogChangedListener {
     @SuppressWarnings("unused")
     private static final String TAG = "CardAdapter";
+    static final int PAGE_SIZE = 24;
+    private static final int THUMBNAIL_THREADS = 2;
+    private static final Object PAYLOAD_BADGES = "badges";
+    private static final Object PAYLOAD_THUMBNAIL = "thumbnail";
     private final Context context;
-    private final List<WallpaperCard> cards;
+    private final CardCatalog catalog;
     private final OnCardClickedListener listener;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private ExecutorService diffExecutor = null;
+    private ThreadPoolExecutor thumbnailExecutor = null;
+    // Displayed snapshot, only touched on main thread.
+    private CardCatalog.Snapshot snapshot;
+    private boolean diffing = false;
+    // Cache keys of thumbnails being loaded.
+    private final Set<String> loadingKeys = new HashSet<>();
+    private int prefetchedPage = -1;
+    // Worker threads skip loads far from it.
+    private volatile int boundPosition = 0;
     private boolean removable = false;
 
     public interface OnCardClickedListener {
@@ -45,15 +84,64 @@ class CardAdapter extends RecyclerView.Adapter<CardViewHolder> {
 
     CardAdapter(
         @NonNull final Context context,
-        @NonNull final List<WallpaperCard> cards,
+        @NonNull final CardCatalog catalog,
         @NonNull final OnCardClickedListener listener
     ) {
         super();
         this.context = context;
-        this.cards = cards;
+        this.catalog = catalog;
+        this.snapshot = catalog.getSnapshot();
         this.listener = listener;
     }
 
+    @Override
+    public void onAttachedToRecyclerView(@NonNull final RecyclerView recyclerView) {
+        super.onAttachedToRecyclerView(recyclerView);
+        diffExecutor = Executors.newSingleThreadExecutor();
+        // A deque used as stack, newest request runs first.
+        thumbnailExecutor = new ThreadPoolExecutor(
+            THUMBNAIL_THREADS, THUMBNAIL_THREADS, 0, TimeUnit.MILLISECONDS,
+            new LinkedBlockingDeque<Runnable>() {
+                @Override
+                public boolean offer(@NonNull final Runnable runnable) {
+                    return offerFirst(runnable);
+                }
+            }
+        );
+        catalog.addListener(this);
+        // Catch up with changes committed while detached.
+        scheduleDiff();
+    }
+
+    @Override
+    public void onDetachedFromRecyclerView(@NonNull final RecyclerView recyclerView) {
+        super.onDetachedFromRecyclerView(recyclerView);
+        catalog.removeListener(this);
+        handler.removeCallbacksAndMessages(null);
+        diffExecutor.shutdownNow();
+        thumbnailExecutor.shutdownNow();
+        diffing = false;
+        loadingKeys.clear();
+    }
+
+    @Override
+    public void onCatalogChanged(
+        @NonNull final CardCatalog.Snapshot oldSnapshot,
+        @NonNull final CardCatalog.Snapshot newSnapshot
+    ) {
+        // May be called on any thread.
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                // Already displayed or diffed past it.
+                if (newSnapshot.getVersion() <= snapshot.getVersion()) {
+                    return;
+                }
+                scheduleDiff();
+            }
+        });
+    }
+
     @NonNull
     @Override
     public CardViewHolder onCreateViewHolder(@NonNull ViewGroup viewGroup, int i) {
@@ -63,12 +151,33 @@ class CardAdapter extends RecyclerView.Adapter<CardViewHolder> {
         return new CardViewHolder(itemView);
     }
 
+    @Override
+    public void onBindViewHolder(
+        @NonNull final CardViewHolder cardViewHolder,
+        int i,
+        @NonNull List<Object> payloads
+    ) {
+        if (payloads.isEmpty()) {
+            onBindViewHolder(cardViewHolder, i);
+            return;
+        }
+        final WallpaperCard card = snapshot.getCards().get(i);
+        for (Object payload : payloads) {
+            if (payload == PAYLOAD_BADGES) {
+                bindBadges(cardViewHolder, card);
+            } else if (payload == PAYLOAD_THUMBNAIL) {
+                bindThumbnail(cardViewHolder, card, i);
+            }
+        }
+    }
+
     @Override
     public void onBindViewHolder(@NonNull final CardViewHolder cardViewHolder, int i) {
-        final WallpaperCard card = cards.get(cardViewHolder.getLayoutPosition());
+        final WallpaperCard card = snapshot.getCards().get(i);
         if (!card.isValid()) {
             listener.onCardInvalid(card);
-            removeCard(cardViewHolder.getLayoutPosition());
+            // Row goes away when diff of this commit arrives.
+            removeCard(card);
             return;
         }
         cardViewHolder.name.setText(card.getName());
@@ -78,67 +187,271 @@ class CardAdapter extends RecyclerView.Adapter<CardViewHolder> {
         } else {
             cardViewHolder.internal.setVisibility(View.GONE);
         }
-        if (card.isCurrent()) {
-            cardViewHolder.current.setVisibility(View.VISIBLE);
-            cardViewHolder.applyButton.setVisibility(View.GONE);
-        } else {
-            cardViewHolder.current.setVisibility(View.GONE);
-            cardViewHolder.applyButton.setVisibility(View.VISIBLE);
-        }
-        cardViewHolder.thumbnail.setImageBitmap(card.getThumbnail());
-        if (removable && card.isRemovable() && !card.isCurrent()) {
-            cardViewHolder.removeButton.setVisibility(View.VISIBLE);
-        } else {
-            cardViewHolder.removeButton.setVisibility(View.GONE);
-        }
+        cardViewHolder.softwareDecode.setVisibility(
+            card.isSoftwareDecode() ? View.VISIBLE : View.GONE
+        );
+        bindBadges(cardViewHolder, card);
+        bindThumbnail(cardViewHolder, card, i);
+        // Listeners look up position when clicked, rows may move without rebinding.
         cardViewHolder.removeButton.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View view) {
-                removeCard(cardViewHolder.getLayoutPosition());
+                final WallpaperCard clicked = getCard(cardViewHolder);
+                if (clicked != null) {
+                    removeCard(clicked);
+                }
             }
         });
         cardViewHolder.applyButton.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View view) {
-                listener.onApplyButtonClicked(card);
+                final WallpaperCard clicked = getCard(cardViewHolder);
+                if (clicked != null) {
+                    listener.onApplyButtonClicked(clicked);
+                }
             }
         });
         cardViewHolder.thumbnail.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View view) {
-                listener.onCardClicked(card);
+                final WallpaperCard clicked = getCard(cardViewHolder);
+                if (clicked != null) {
+                    listener.onCardClicked(clicked);
+                }
             }
         });
     }
 
     @Override
     public int getItemCount() {
-        return cards.size();
+        return snapshot.getCards().size();
     }
 
     void addCard(@NonNull final WallpaperCard wallpaperCard) {
-        final int position = cards.size();
-        cards.add(position, wallpaperCard);
-        notifyItemInserted(position);
+        // Row is inserted when diff arrives.
+        catalog.edit().add(wallpaperCard).commit();
     }
 
-    private void removeCard(final int position) {
-        notifyItemRemoved(position);
-        context.getContentResolver().releasePersistableUriPermission(
-            cards.get(position).getUri(),
-            Intent.FLAG_GRANT_READ_URI_PERMISSION
-        );
-        cards.remove(position);
+    private void removeCard(@NonNull final WallpaperCard wallpaperCard) {
+        catalog.edit().remove(wallpaperCard).commit();
+        ThumbnailCache.getInstance().remove(wallpaperCard);
+        Utils.releaseReadPermission(context, wallpaperCard.getUri());
+        // Several renditions may be deleted, don't hold the swipe for storage.
+        final Context appContext = context.getApplicationContext();
+        ThreadTopology.getInstance().getImportExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                PosterCache.getInstance().remove(appContext, wallpaperCard);
+                FlipbookEncodeTask.deleteFile(wallpaperCard);
+                RenditionTask.deleteFiles(appContext, wallpaperCard);
+                Utils.releaseUnusedTreePermissions(appContext);
+            }
+        });
     }
 
     void setRemovable(final boolean removable) {
+        if (this.removable == removable) {
+            return;
+        }
         this.removable = removable;
-        notifyDataSetChanged();
+        // Only remove buttons change, don't touch thumbnails.
+        notifyItemRangeChanged(0, getItemCount(), PAYLOAD_BADGES);
     }
 
     boolean isRemovable() {
         return removable;
     }
+
+    private WallpaperCard getCard(@NonNull final CardViewHolder cardViewHolder) {
+        final int position = cardViewHolder.getAdapterPosition();
+        if (position == RecyclerView.NO_POSITION || position >= getItemCount()) {
+            return null;
+        }
+        return snapshot.getCards().get(position);
+    }
+
+    private void bindBadges(
+        @NonNull final CardViewHolder cardViewHolder,
+        @NonNull final WallpaperCard card
+    ) {
+        final boolean current = snapshot.isCurrent(card);
+        if (current) {
+            cardViewHolder.current.setVisibility(View.VISIBLE);
+            cardViewHolder.applyButton.setVisibility(View.GONE);
+        } else {
+            cardViewHolder.current.setVisibility(View.GONE);
+            cardViewHolder.applyButton.setVisibility(View.VISIBLE);
+        }
+        if (removable && card.isRemovable() && !current) {
+            cardViewHolder.removeButton.setVisibility(View.VISIBLE);
+        } else {
+            cardViewHolder.removeButton.setVisibility(View.GONE);
+        }
+    }
+
+    private void bindThumbnail(
+        @NonNull final CardViewHolder cardViewHolder,
+        @NonNull final WallpaperCard card,
+        final int position
+    ) {
+        boundPosition = position;
+        final Bitmap thumbnail = ThumbnailCache.getInstance().get(card);
+        // Clear recycled image, real one comes with PAYLOAD_THUMBNAIL.
+        cardViewHolder.thumbnail.setImageBitmap(thumbnail);
+        if (thumbnail == null) {
+            loadThumbnail(card, position);
+        }
+        prefetch(position);
+    }
+
+    /**
+     * Request thumbnails of the page of position and the next page, once per page.
+     */
+    private void prefetch(final int position) {
+        final int page = position / PAGE_SIZE;
+        if (page == prefetchedPage) {
+            return;
+        }
+        prefetchedPage = page;
+        final List<WallpaperCard> cards = snapshot.getCards();
+        final int end = Math.min(cards.size(), (page + 2) * PAGE_SIZE);
+        for (int i = page * PAGE_SIZE; i < end; ++i) {
+            final WallpaperCard card = cards.get(i);
+            if (ThumbnailCache.getInstance().get(card) == null) {
+                loadThumbnail(card, i);
+            }
+        }
+    }
+
+    private void loadThumbnail(@NonNull final WallpaperCard card, final int position) {
+        final String key = card.getCacheKey();
+        if (thumbnailExecutor == null || !loadingKeys.add(key)) {
+            return;
+        }
+        final Context appContext = context.getApplicationContext();
+        thumbnailExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                // Scrolled away before we got a thread, it will be requested again if needed.
+                final boolean near = Math.abs(position - boundPosition) <= PAGE_SIZE * 2;
+                final Bitmap thumbnail = near ?
+                    ThumbnailCache.getInstance().load(appContext, card) : null;
+                // Restored cards are not probed, permission may be gone since last launch.
+                if (near && thumbnail == null && card.isRemovable() &&
+                    !Utils.takeReadPermission(appContext, card.getUri())) {
+                    card.setInvalid();
+                }
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        loadingKeys.remove(key);
+                        final int index = snapshot.indexOf(card);
+                        if (index == -1) {
+                            return;
+                        }
+                        if (!card.isValid()) {
+                            // Full bind removes it.
+                            notifyItemChanged(index);
+                        } else if (thumbnail != null) {
+                            notifyItemChanged(index, PAYLOAD_THUMBNAIL);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Diff displayed snapshot against latest one off main thread.
+     *
+     * Only one diff runs at a time, commits during it are picked up by another round.
+     */
+    private void scheduleDiff() {
+        if (diffing || diffExecutor == null) {
+            return;
+        }
+        final CardCatalog.Snapshot oldSnapshot = snapshot;
+        final CardCatalog.Snapshot newSnapshot = catalog.getSnapshot();
+        if (newSnapshot.getVersion() <= oldSnapshot.getVersion()) {
+            return;
+        }
+        diffing = true;
+        diffExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final long startTime = System.nanoTime();
+                final DiffUtil.DiffResult result = DiffUtil.calculateDiff(
+                    new SnapshotDiffCallback(oldSnapshot, newSnapshot), false
+                );
+                Utils.debug(TAG, String.format(
+                    Locale.US, "Diffed %d and %d cards in %.2f ms",
+                    oldSnapshot.getCards().size(), newSnapshot.getCards().size(),
+                    (System.nanoTime() - startTime) / 1e6
+                ));
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        diffing = false;
+                        if (snapshot != oldSnapshot) {
+                            scheduleDiff();
+                            return;
+                        }
+                        snapshot = newSnapshot;
+                        prefetchedPage = -1;
+                        result.dispatchUpdatesTo(CardAdapter.this);
+                        // Catalog may have changed again while diffing.
+                        scheduleDiff();
+                    }
+                });
+            }
+        });
+    }
+
+    private static class SnapshotDiffCallback extends DiffUtil.Callback {
+        private final CardCatalog.Snapshot oldSnapshot;
+        private final CardCatalog.Snapshot newSnapshot;
+
+        SnapshotDiffCallback(
+            @NonNull final CardCatalog.Snapshot oldSnapshot,
+            @NonNull final CardCatalog.Snapshot newSnapshot
+        ) {
+            this.oldSnapshot = oldSnapshot;
+            this.newSnapshot = newSnapshot;
+        }
+
+        @Override
+        public int getOldListSize() {
+            return oldSnapshot.getCards().size();
+        }
+
+        @Override
+        public int getNewListSize() {
+            return newSnapshot.getCards().size();
+        }
+
+        @Override
+        public boolean areItemsTheSame(final int oldPosition, final int newPosition) {
+            return oldSnapshot.getCards().get(oldPosition).equals(
+                newSnapshot.getCards().get(newPosition)
+            );
+        }
+
+        @Override
+        public boolean areContentsTheSame(final int oldPosition, final int newPosition) {
+            final WallpaperCard oldCard = oldSnapshot.getCards().get(oldPosition);
+            final WallpaperCard newCard = newSnapshot.getCards().get(newPosition);
+            // Cards are immutable except validity, only current badge follows catalog.
+            return oldCard == newCard &&
+                oldSnapshot.isCurrent(oldCard) == newSnapshot.isCurrent(newCard);
+        }
+
+        @Override
+        public Object getChangePayload(final int oldPosition, final int newPosition) {
+            final WallpaperCard oldCard = oldSnapshot.getCards().get(oldPosition);
+            final WallpaperCard newCard = newSnapshot.getCards().get(newPosition);
+            return oldCard == newCard ? PAYLOAD_BADGES : null;
+        }
+    }
 }
 
 class CardViewHolder extends RecyclerView.ViewHolder {
@@ -148,6 +461,7 @@ class CardViewHolder extends RecyclerView.ViewHolder {
     final TextView name;
     final TextView path;
     final Button internal;
+    final Button softwareDecode;
     final Button current;
     final Button removeButton;
     final Button applyButton;
@@ -158,6 +472,7 @@ class CardViewHolder extends RecyclerView.ViewHolder {
         name = view.findViewById(R.id.name);
         path = view.findViewById(R.id.path);
         internal = view.findViewById(R.id.internal);
+        softwareDecode = view.findViewById(R.id.software_decode);
         current = view.findViewById(R.id.current);
         removeButton = view.findViewById(R.id.remove_button);
         applyButton = view.findViewById(R.id.apply_button);
@@ -0,0 +1,309 @@
+/*
+ * Copyright 2019 Alynx Zhou
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.alynx.livewallpaper;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ *
+ * CardCatalog: a copy-on-write holder of WallpaperCards.
+ *
+ * Cards are written by AsyncTask callbacks, CardAdapter and MainActivity,
+ * and read by GLWallpaperService on engine thread. Instead of locking, every change builds
+ * a new immutable Snapshot and publishes it through an AtomicReference, so readers always
+ * get a complete list and never block.
+ *
+ * Changes are grouped in a Batch, which is applied as a whole with one version bump.
+ *
+ * Listeners get snapshots in version order, even if two threads commit at the same time,
+ * and oldSnapshot is always the one they got last time.
+ *
+ */
+class CardCatalog {
+    @SuppressWarnings("unused")
+    private static final String TAG = "CardCatalog";
+    private final AtomicReference<Snapshot> snapshotRef;
+    private final List<OnCatalogChangedListener> listeners;
+    private final Object notifyLock = new Object();
+    // Last snapshot listeners got, guarded by notifyLock.
+    private Snapshot notifiedSnapshot;
+
+    public interface OnCatalogChangedListener {
+        /**
+         * Called on the thread which commits the batch, so listeners that touch UI or
+         * engine state should post to their own thread. Calls are serialized and versions
+         * only grow, posting keeps that order, but listeners reading catalog on their own
+         * thread may already have a newer snapshot and should drop older ones.
+         */
+        void onCatalogChanged(@NonNull final Snapshot oldSnapshot, @NonNull final Snapshot newSnapshot);
+    }
+
+    static final class Snapshot {
+        private final long version;
+        private final List<WallpaperCard> cards;
+        private final WallpaperCard currentCard;
+        private final WallpaperCard previewCard;
+
+        private Snapshot(
+            final long version,
+            @NonNull final List<WallpaperCard> cards,
+            final WallpaperCard currentCard,
+            final WallpaperCard previewCard
+        ) {
+            this.version = version;
+            this.cards = Collections.unmodifiableList(cards);
+            this.currentCard = currentCard;
+            this.previewCard = previewCard;
+        }
+
+        long getVersion() {
+            return version;
+        }
+
+        @NonNull
+        List<WallpaperCard> getCards() {
+            return cards;
+        }
+
+        WallpaperCard getCurrentCard() {
+            return currentCard;
+        }
+
+        WallpaperCard getPreviewCard() {
+            return previewCard;
+        }
+
+        int indexOf(@NonNull final WallpaperCard card) {
+            return CardCatalog.indexOf(cards, card);
+        }
+
+        boolean contains(@NonNull final WallpaperCard card) {
+            return indexOf(card) != -1;
+        }
+
+        /**
+         * @return WallpaperCard in catalog with the same content but maybe another path, or null.
+         */
+        WallpaperCard findSameContent(@NonNull final WallpaperCard card) {
+            return CardCatalog.findSameContent(cards, card);
+        }
+
+        boolean isCurrent(@NonNull final WallpaperCard card) {
+            return currentCard != null && card.equals(currentCard);
+        }
+    }
+
+    /**
+     * Batch: collects changes and applies them to the latest snapshot on commit().
+     *
+     * A Batch is not thread safe, create one per thread, it is cheap.
+     */
+    final class Batch {
+        private static final int ADD = 0;
+        private static final int REMOVE = 1;
+        private static final int SET_CURRENT = 2;
+        private static final int SET_PREVIEW = 3;
+        private final List<Operation> operations = new ArrayList<>();
+
+        private Batch() {
+        }
+
+        /**
+         * Adding a card whose path or content is already in catalog does nothing.
+         */
+        @NonNull
+        Batch add(@NonNull final WallpaperCard card) {
+            operations.add(new Operation(ADD, card));
+            return this;
+        }
+
+        @NonNull
+        Batch addAll(@NonNull final List<WallpaperCard> cards) {
+            for (WallpaperCard card : cards) {
+                add(card);
+            }
+            return this;
+        }
+
+        @NonNull
+        Batch remove(@NonNull final WallpaperCard card) {
+            operations.add(new Operation(REMOVE, card));
+            return this;
+        }
+
+        @NonNull
+        Batch setCurrent(final WallpaperCard card) {
+            operations.add(new Operation(SET_CURRENT, card));
+            return this;
+        }
+
+        @NonNull
+        Batch setPreview(final WallpaperCard card) {
+            operations.add(new Operation(SET_PREVIEW, card));
+            return this;
+        }
+
+        /**
+         * @return Snapshot the published snapshot.
+         *
+         * If another thread published between our read and write, we retry on top of it,
+         * so no change is lost.
+         */
+        @NonNull
+        Snapshot commit() {
+            Snapshot oldSnapshot;
+            Snapshot newSnapshot;
+            do {
+                oldSnapshot = snapshotRef.get();
+                newSnapshot = apply(oldSnapshot);
+                if (newSnapshot == oldSnapshot) {
+                    return oldSnapshot;
+                }
+            } while (!snapshotRef.compareAndSet(oldSnapshot, newSnapshot));
+            Utils.debug(TAG, "Published catalog version " + newSnapshot.getVersion());
+            notifyListeners(newSnapshot);
+            return newSnapshot;
+        }
+
+        @NonNull
+        private Snapshot apply(@NonNull final Snapshot base) {
+            final List<WallpaperCard> cards = new ArrayList<>(base.getCards());
+            WallpaperCard currentCard = base.getCurrentCard();
+            WallpaperCard previewCard = base.getPreviewCard();
+            boolean changed = false;
+            for (Operation operation : operations) {
+                switch (operation.type) {
+                case ADD:
+                    if (indexOf(cards, operation.card) == -1 &&
+                        findSameContent(cards, operation.card) == null) {
+                        cards.add(operation.card);
+                        changed = true;
+                    }
+                    break;
+                case REMOVE:
+                    final int index = indexOf(cards, operation.card);
+                    if (index != -1) {
+                        cards.remove(index);
+                        changed = true;
+                    }
+                    break;
+                case SET_CURRENT:
+                    if (currentCard != operation.card) {
+                        currentCard = operation.card;
+                        changed = true;
+                    }
+                    break;
+                case SET_PREVIEW:
+                    if (previewCard != operation.card) {
+                        previewCard = operation.card;
+                        changed = true;
+                    }
+                    break;
+                }
+            }
+            if (!changed) {
+                return base;
+            }
+            return new Snapshot(base.getVersion() + 1, cards, currentCard, previewCard);
+        }
+    }
+
+    private static final class Operation {
+        private final int type;
+        private final WallpaperCard card;
+
+        private Operation(final int type, final WallpaperCard card) {
+            this.type = type;
+            this.card = card;
+        }
+    }
+
+    CardCatalog() {
+        notifiedSnapshot = new Snapshot(0, new ArrayList<WallpaperCard>(), null, null);
+        snapshotRef = new AtomicReference<>(notifiedSnapshot);
+        listeners = new CopyOnWriteArrayList<>();
+    }
+
+    /**
+     * Threads may reach here in another order than they published. A thread that comes
+     * late finds a newer snapshot already sent and sends nothing, the newer one contains
+     * its change.
+     */
+    private void notifyListeners(@NonNull final Snapshot snapshot) {
+        synchronized (notifyLock) {
+            if (snapshot.getVersion() <= notifiedSnapshot.getVersion()) {
+                return;
+            }
+            final Snapshot oldSnapshot = notifiedSnapshot;
+            notifiedSnapshot = snapshot;
+            for (OnCatalogChangedListener listener : listeners) {
+                listener.onCatalogChanged(oldSnapshot, snapshot);
+            }
+        }
+    }
+
+    @NonNull
+    Snapshot getSnapshot() {
+        return snapshotRef.get();
+    }
+
+    @NonNull
+    Batch edit() {
+        return new Batch();
+    }
+
+    void addListener(@NonNull final OnCatalogChangedListener listener) {
+        listeners.add(listener);
+    }
+
+    void removeListener(@NonNull final OnCatalogChangedListener listener) {
+        listeners.remove(listener);
+    }
+
+    private static int indexOf(
+        @NonNull final List<WallpaperCard> cards,
+        @NonNull final WallpaperCard card
+    ) {
+        for (int i = 0; i < cards.size(); ++i) {
+            if (cards.get(i).equals(card)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static WallpaperCard findSameContent(
+        @NonNull final List<WallpaperCard> cards,
+        @NonNull final WallpaperCard card
+    ) {
+        if (card.getFingerprint() == null) {
+            return null;
+        }
+        for (WallpaperCard c : cards) {
+            if (card.isSameContent(c)) {
+                return c;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2019 Alynx Zhou
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.alynx.livewallpaper;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.support.annotation.NonNull;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+
+/**
+ *
+ * ContentFingerprint: identify a video by its content instead of its uri.
+ *
+ * The same file picked from Downloads, media provider or file uri has different paths,
+ * so we hash file size and a few sampled chunks. Reading is positional on the file
+ * descriptor and never reads the whole file, cost does not grow with file size.
+ *
+ */
+class ContentFingerprint {
+    @SuppressWarnings("unused")
+    private static final String TAG = "ContentFingerprint";
+    static final int CHUNK_SIZE = 64 * 1024;
+    // Head, tail and evenly spaced chunks between them.
+    static final int CHUNK_COUNT = 4;
+
+    private ContentFingerprint() {
+    }
+
+    /**
+     * @param channel Channel of the file.
+     * @param offset Start of content in channel, assets are stored inside APK.
+     * @param length Length of content.
+     * @return String fingerprint like "size-crc32adler32".
+     */
+    @NonNull
+    static String compute(
+        @NonNull final FileChannel channel,
+        final long offset,
+        final long length
+    ) throws IOException {
+        final CRC32 crc32 = new CRC32();
+        final Adler32 adler32 = new Adler32();
+        final ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+        if (length <= (long)CHUNK_SIZE * CHUNK_COUNT) {
+            for (long position = 0; position < length; position += CHUNK_SIZE) {
+                readChunk(channel, buffer, offset + position, Math.min(CHUNK_SIZE, length - position));
+                update(crc32, adler32, buffer);
+            }
+        } else {
+            final long step = (length - CHUNK_SIZE) / (CHUNK_COUNT - 1);
+            for (int i = 0; i < CHUNK_COUNT; ++i) {
+                readChunk(channel, buffer, offset + step * i, CHUNK_SIZE);
+                update(crc32, adler32, buffer);
+            }
+        }
+        return String.format(
+            Locale.US, "%x-%08x%08x", length, crc32.getValue(), adler32.getValue()
+        );
+    }
+
+    /**
+     * @return String fingerprint, or null if we cannot read it.
+     */
+    static String compute(@NonNull final Context context, @NonNull final WallpaperCard card) {
+        try {
+            switch (card.getType()) {
+            case INTERNAL:
+                final AssetFileDescriptor afd = context.getAssets().openFd(card.getPath());
+                try {
+                    final FileInputStream fis = afd.createInputStream();
+                    return compute(fis.getChannel(), afd.getStartOffset(), afd.getDeclaredLength());
+                } finally {
+                    afd.close();
+                }
+            case EXTERNAL:
+                return compute(context, card.getUri());
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * @return String fingerprint, or null if we cannot read it.
+     */
+    static String compute(@NonNull final Context context, @NonNull final Uri uri) {
+        try {
+            final ParcelFileDescriptor pfd = context.getContentResolver().openFileDescriptor(
+                uri, "r"
+            );
+            if (pfd == null) {
+                return null;
+            }
+            try {
+                final FileChannel channel = new FileInputStream(pfd.getFileDescriptor()).getChannel();
+                long length = pfd.getStatSize();
+                if (length < 0) {
+                    length = channel.size();
+                }
+                return compute(channel, 0, length);
+            } finally {
+                pfd.close();
+            }
+        } catch (IOException | SecurityException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private static void readChunk(
+        @NonNull final FileChannel channel,
+        @NonNull final ByteBuffer buffer,
+        final long position,
+        final long size
+    ) throws IOException {
+        buffer.clear();
+        buffer.limit((int)size);
+        while (buffer.hasRemaining()) {
+            final int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+        }
+        buffer.flip();
+    }
+
+    private static void update(
+        @NonNull final CRC32 crc32,
+        @NonNull final Adler32 adler32,
+        @NonNull final ByteBuffer buffer
+    ) {
+        final byte[] array = buffer.array();
+        crc32.update(array, buffer.arrayOffset(), buffer.limit());
+        adler32.update(array, buffer.arrayOffset(), buffer.limit());
+    }
+}
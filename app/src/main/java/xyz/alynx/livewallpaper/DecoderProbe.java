@@ -0,0 +1,209 @@
+/*
+ * Copyright 2019 Alynx Zhou
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.alynx.livewallpaper;
+
+import android.content.Context;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ *
+ * DecoderProbe: fills DecoderRegistry from MediaCodecList and keeps it in app storage,
+ * and tells whether a card only plays with a software decoder.
+ *
+ * Listing codecs loads every codec plugin and takes a few hundred ms on old devices,
+ * so it only happens on first use after install or system update.
+ *
+ */
+final class DecoderProbe {
+    @SuppressWarnings("unused")
+    private static final String TAG = "DecoderProbe";
+    private static final String FILE_NAME = "decoders.bin";
+    private static DecoderRegistry registry = null;
+
+    private DecoderProbe() {}
+
+    @NonNull
+    static synchronized DecoderRegistry getRegistry(@NonNull final Context context) {
+        if (registry != null) {
+            return registry;
+        }
+        final File file = new File(context.getFilesDir(), FILE_NAME);
+        registry = DecoderRegistry.load(file, Build.FINGERPRINT);
+        if (registry != null) {
+            return registry;
+        }
+        final long startMs = SystemClock.elapsedRealtime();
+        registry = new DecoderRegistry(Build.FINGERPRINT, probeDecoders());
+        Utils.debug(TAG, String.format(
+            Locale.US, "Probed %d video decoders in %d ms",
+            registry.getDecoders().size(), SystemClock.elapsedRealtime() - startMs
+        ));
+        for (DecoderRegistry.Decoder decoder : registry.getDecoders()) {
+            Utils.debug(TAG, decoder.toString());
+        }
+        try {
+            registry.save(file);
+        } catch (IOException e) {
+            // Probing again next time is only slower.
+            e.printStackTrace();
+        }
+        return registry;
+    }
+
+    /**
+     * Called when a decoder fails while playing, failures are saved at once because
+     * a failing decoder may take the process with it next time.
+     */
+    static void recordFailure(@NonNull final Context context, @NonNull final String name) {
+        final DecoderRegistry registry = getRegistry(context);
+        if (registry.recordFailure(name)) {
+            Utils.debug(TAG, "Decoder failed too often, not preferred any more: " + name);
+        }
+        try {
+            registry.save(new File(context.getFilesDir(), FILE_NAME));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return boolean true if no working hardware decoder plays this card, false if one does
+     *         or if we cannot tell.
+     */
+    static boolean isSoftwareOnly(
+        @NonNull final Context context,
+        @NonNull final WallpaperCard wallpaperCard
+    ) {
+        if (wallpaperCard.getKind() != WallpaperCard.Kind.VIDEO) {
+            return false;
+        }
+        final MediaExtractor extractor = new MediaExtractor();
+        try {
+            switch (wallpaperCard.getType()) {
+            case INTERNAL:
+                // Bundled videos are made to play everywhere.
+                return false;
+            case EXTERNAL:
+                extractor.setDataSource(context, wallpaperCard.getUri(), null);
+                break;
+            }
+            for (int i = 0; i < extractor.getTrackCount(); ++i) {
+                final MediaFormat format = extractor.getTrackFormat(i);
+                final String mime = format.getString(MediaFormat.KEY_MIME);
+                if (mime == null || !mime.startsWith("video/")) {
+                    continue;
+                }
+                // Containers often do not say frame rate as the same type, metadata does.
+                final float frameRate = VideoMetadata.obtain(
+                    context, wallpaperCard
+                ).getFrameRate();
+                return !getRegistry(context).decodesInHardware(
+                    mime, getInteger(format, MediaFormat.KEY_PROFILE),
+                    getInteger(format, MediaFormat.KEY_LEVEL),
+                    format.getInteger(MediaFormat.KEY_WIDTH),
+                    format.getInteger(MediaFormat.KEY_HEIGHT), frameRate
+                );
+            }
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+        } finally {
+            extractor.release();
+        }
+        return false;
+    }
+
+    private static int getInteger(@NonNull final MediaFormat format, @NonNull final String key) {
+        try {
+            return format.containsKey(key) ? format.getInteger(key) : DecoderRegistry.UNKNOWN;
+        } catch (ClassCastException e) {
+            return DecoderRegistry.UNKNOWN;
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    @NonNull
+    private static List<DecoderRegistry.Decoder> probeDecoders() {
+        final MediaCodecInfo[] infos;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            infos = new MediaCodecList(MediaCodecList.REGULAR_CODECS).getCodecInfos();
+        } else {
+            infos = new MediaCodecInfo[MediaCodecList.getCodecCount()];
+            for (int i = 0; i < infos.length; ++i) {
+                infos[i] = MediaCodecList.getCodecInfoAt(i);
+            }
+        }
+        final List<DecoderRegistry.Decoder> decoders = new ArrayList<>();
+        for (MediaCodecInfo info : infos) {
+            if (info.isEncoder()) {
+                continue;
+            }
+            for (String type : info.getSupportedTypes()) {
+                if (!type.toLowerCase(Locale.US).startsWith("video/")) {
+                    continue;
+                }
+                try {
+                    decoders.add(probeDecoder(info, type));
+                } catch (RuntimeException e) {
+                    // Some vendors throw for types they list.
+                    e.printStackTrace();
+                }
+            }
+        }
+        return decoders;
+    }
+
+    @NonNull
+    private static DecoderRegistry.Decoder probeDecoder(
+        @NonNull final MediaCodecInfo info,
+        @NonNull final String type
+    ) {
+        final MediaCodecInfo.CodecCapabilities capabilities = info.getCapabilitiesForType(type);
+        final int[] profileLevels = new int[capabilities.profileLevels.length * 2];
+        for (int i = 0; i < capabilities.profileLevels.length; ++i) {
+            profileLevels[i * 2] = capabilities.profileLevels[i].profile;
+            profileLevels[i * 2 + 1] = capabilities.profileLevels[i].level;
+        }
+        int maxWidth = 0;
+        int maxHeight = 0;
+        float maxFrameRate = 0;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            final MediaCodecInfo.VideoCapabilities videoCapabilities =
+                capabilities.getVideoCapabilities();
+            if (videoCapabilities != null) {
+                maxWidth = videoCapabilities.getSupportedWidths().getUpper();
+                maxHeight = videoCapabilities.getSupportedHeights().getUpper();
+                maxFrameRate = videoCapabilities.getSupportedFrameRates().getUpper();
+            }
+        }
+        return new DecoderRegistry.Decoder(
+            info.getName(), type, !DecoderRegistry.isSoftwareName(info.getName()),
+            maxWidth, maxHeight, maxFrameRate, profileLevels
+        );
+    }
+}
@@ -0,0 +1,319 @@
+/*
+ * Copyright 2019 Alynx Zhou
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.alynx.livewallpaper;
+
+import android.support.annotation.NonNull;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ *
+ * DecoderRegistry: video decoders of this device and what they can play, probed once per
+ * OS build, and decoders which failed while playing.
+ *
+ * Default codec selector takes the first decoder the system lists, which may be a software
+ * one, or a hardware one that dies on some files. Here hardware decoders come first, and
+ * a decoder which failed MAX_FAILURES times goes last, behind software ones.
+ *
+ * Everything is saved in one file with the OS build it was probed on, a system update
+ * changes decoders, so it probes again and forgets failures.
+ *
+ * It is plain Java, so it can be tested without MediaCodecList.
+ *
+ */
+class DecoderRegistry {
+    @SuppressWarnings("unused")
+    private static final String TAG = "DecoderRegistry";
+    private static final int MAGIC = 0x4c574452;
+    // Bump it when file layout changes.
+    private static final int VERSION = 1;
+    // One failure may be a broken file, two on the same decoder are not luck.
+    static final int MAX_FAILURES = 2;
+    static final int UNKNOWN = -1;
+    private final String build;
+    private final List<Decoder> decoders;
+    private final Map<String, Integer> failures = new HashMap<>();
+
+    static class Decoder {
+        final String name;
+        final String mimeType;
+        final boolean hardware;
+        // 0 if system does not tell, before API 21.
+        final int maxWidth;
+        final int maxHeight;
+        final float maxFrameRate;
+        // Pairs of profile and its highest level.
+        final int[] profileLevels;
+
+        Decoder(
+            @NonNull final String name,
+            @NonNull final String mimeType,
+            final boolean hardware,
+            final int maxWidth,
+            final int maxHeight,
+            final float maxFrameRate,
+            @NonNull final int[] profileLevels
+        ) {
+            this.name = name;
+            this.mimeType = mimeType;
+            this.hardware = hardware;
+            this.maxWidth = maxWidth;
+            this.maxHeight = maxHeight;
+            this.maxFrameRate = maxFrameRate;
+            this.profileLevels = profileLevels;
+        }
+
+        /**
+         * @param profile UNKNOWN if container does not tell.
+         * @param level UNKNOWN if container does not tell.
+         * @param frameRate 0 if unknown.
+         */
+        boolean supports(
+            final int profile,
+            final int level,
+            final int width,
+            final int height,
+            final float frameRate
+        ) {
+            // Decoders take rotated sizes, a portrait video is stored like that sometimes.
+            if (maxWidth > 0 && maxHeight > 0 &&
+                !(width <= maxWidth && height <= maxHeight) &&
+                !(height <= maxWidth && width <= maxHeight)) {
+                return false;
+            }
+            if (maxFrameRate > 0 && frameRate > maxFrameRate) {
+                return false;
+            }
+            if (profile == UNKNOWN || profileLevels.length == 0) {
+                return true;
+            }
+            for (int i = 0; i + 1 < profileLevels.length; i += 2) {
+                if (profileLevels[i] == profile &&
+                    (level == UNKNOWN || profileLevels[i + 1] >= level)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return String.format(
+                Locale.US, "%s %s %s %dx%d %.0f fps", name, mimeType,
+                hardware ? "hardware" : "software", maxWidth, maxHeight, maxFrameRate
+            );
+        }
+    }
+
+    /**
+     * @param build OS build the decoders are probed on.
+     */
+    DecoderRegistry(@NonNull final String build, @NonNull final List<Decoder> decoders) {
+        this.build = build;
+        this.decoders = Collections.unmodifiableList(new ArrayList<>(decoders));
+    }
+
+    /**
+     * Software decoders in AOSP and most vendors are named like this, system only says it
+     * itself since API 29.
+     */
+    static boolean isSoftwareName(@NonNull final String name) {
+        final String lowerName = name.toLowerCase(Locale.US);
+        return lowerName.startsWith("omx.google.") || lowerName.startsWith("c2.android.") ||
+            lowerName.startsWith("c2.google.") || lowerName.startsWith("omx.ffmpeg.") ||
+            lowerName.contains(".sw.") || lowerName.endsWith(".sw");
+    }
+
+    @NonNull
+    String getBuild() {
+        return build;
+    }
+
+    @NonNull
+    List<Decoder> getDecoders() {
+        return decoders;
+    }
+
+    /**
+     * @param names Decoder names as the system lists them.
+     * @return Names with working hardware decoders first, then software ones,
+     *         and failed ones last, each group in the order of the system.
+     */
+    @NonNull
+    synchronized List<String> rank(@NonNull final List<String> names) {
+        final List<String> hardware = new ArrayList<>();
+        final List<String> software = new ArrayList<>();
+        final List<String> failed = new ArrayList<>();
+        for (String name : names) {
+            if (isFailed(name)) {
+                failed.add(name);
+            } else if (isHardware(name)) {
+                hardware.add(name);
+            } else {
+                software.add(name);
+            }
+        }
+        // A failed decoder is still better than no video.
+        hardware.addAll(software);
+        hardware.addAll(failed);
+        return hardware;
+    }
+
+    /**
+     * @return boolean Whether a working hardware decoder plays video like this.
+     */
+    synchronized boolean decodesInHardware(
+        @NonNull final String mimeType,
+        final int profile,
+        final int level,
+        final int width,
+        final int height,
+        final float frameRate
+    ) {
+        for (Decoder decoder : decoders) {
+            if (decoder.hardware && decoder.mimeType.equalsIgnoreCase(mimeType) &&
+                !isFailed(decoder.name) &&
+                decoder.supports(profile, level, width, height, frameRate)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return boolean true if this failure puts decoder behind the others.
+     */
+    synchronized boolean recordFailure(@NonNull final String name) {
+        final Integer count = failures.get(name);
+        final int newCount = count == null ? 1 : count + 1;
+        failures.put(name, newCount);
+        return newCount == MAX_FAILURES;
+    }
+
+    synchronized boolean isFailed(@NonNull final String name) {
+        final Integer count = failures.get(name);
+        return count != null && count >= MAX_FAILURES;
+    }
+
+    private boolean isHardware(@NonNull final String name) {
+        for (Decoder decoder : decoders) {
+            if (decoder.name.equals(name)) {
+                return decoder.hardware;
+            }
+        }
+        return !isSoftwareName(name);
+    }
+
+    /**
+     * @return DecoderRegistry, or null if file is missing, broken or from another build.
+     */
+    static DecoderRegistry load(@NonNull final File file, @NonNull final String build) {
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            final DataInputStream input = new DataInputStream(new FileInputStream(file));
+            try {
+                if (input.readInt() != MAGIC || input.readInt() != VERSION ||
+                    !input.readUTF().equals(build)) {
+                    return null;
+                }
+                final int decoderCount = input.readInt();
+                final List<Decoder> decoders = new ArrayList<>();
+                for (int i = 0; i < decoderCount; ++i) {
+                    final String name = input.readUTF();
+                    final String mimeType = input.readUTF();
+                    final boolean hardware = input.readBoolean();
+                    final int maxWidth = input.readInt();
+                    final int maxHeight = input.readInt();
+                    final float maxFrameRate = input.readFloat();
+                    final int[] profileLevels = new int[input.readInt()];
+                    for (int j = 0; j < profileLevels.length; ++j) {
+                        profileLevels[j] = input.readInt();
+                    }
+                    decoders.add(new Decoder(
+                        name, mimeType, hardware, maxWidth, maxHeight, maxFrameRate,
+                        profileLevels
+                    ));
+                }
+                final DecoderRegistry registry = new DecoderRegistry(build, decoders);
+                final int failureCount = input.readInt();
+                for (int i = 0; i < failureCount; ++i) {
+                    registry.failures.put(input.readUTF(), input.readInt());
+                }
+                return registry;
+            } finally {
+                input.close();
+            }
+        } catch (IOException | RuntimeException e) {
+            // Negative array size and such, file is broken.
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    synchronized void save(@NonNull final File file) throws IOException {
+        final File tmpFile = new File(file.getPath() + ".tmp");
+        try {
+            final DataOutputStream output = new DataOutputStream(new FileOutputStream(tmpFile));
+            try {
+                output.writeInt(MAGIC);
+                output.writeInt(VERSION);
+                output.writeUTF(build);
+                output.writeInt(decoders.size());
+                for (Decoder decoder : decoders) {
+                    output.writeUTF(decoder.name);
+                    output.writeUTF(decoder.mimeType);
+                    output.writeBoolean(decoder.hardware);
+                    output.writeInt(decoder.maxWidth);
+                    output.writeInt(decoder.maxHeight);
+                    output.writeFloat(decoder.maxFrameRate);
+                    output.writeInt(decoder.profileLevels.length);
+                    for (int value : decoder.profileLevels) {
+                        output.writeInt(value);
+                    }
+                }
+                output.writeInt(failures.size());
+                for (Map.Entry<String, Integer> entry : failures.entrySet()) {
+                    output.writeUTF(entry.getKey());
+                    output.writeInt(entry.getValue());
+                }
+            } finally {
+                output.close();
+            }
+            if (!tmpFile.renameTo(file)) {
+                throw new IOException("Failed to rename " + tmpFile);
+            }
+        } catch (IOException e) {
+            //noinspection ResultOfMethodCallIgnored
+            tmpFile.delete();
+            throw e;
+        }
+    }
+}
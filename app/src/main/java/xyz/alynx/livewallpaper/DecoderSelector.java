@@ -0,0 +1,121 @@
+/*
+ * Copyright 2019 Alynx Zhou
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.alynx.livewallpaper;
+
+import android.content.Context;
+import android.os.Handler;
+import android.support.annotation.NonNull;
+
+import com.google.android.exoplayer2.Renderer;
+import com.google.android.exoplayer2.RenderersFactory;
+import com.google.android.exoplayer2.audio.AudioRendererEventListener;
+import com.google.android.exoplayer2.drm.DrmSessionManager;
+import com.google.android.exoplayer2.drm.FrameworkMediaCrypto;
+import com.google.android.exoplayer2.mediacodec.MediaCodecInfo;
+import com.google.android.exoplayer2.mediacodec.MediaCodecSelector;
+import com.google.android.exoplayer2.mediacodec.MediaCodecUtil;
+import com.google.android.exoplayer2.metadata.MetadataOutput;
+import com.google.android.exoplayer2.text.TextOutput;
+import com.google.android.exoplayer2.video.MediaCodecVideoRenderer;
+import com.google.android.exoplayer2.video.VideoRendererEventListener;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *
+ * DecoderSelector: gives ExoPlayer decoders in DecoderRegistry order, and remembers
+ * which one it gave first, that is the one the player uses.
+ *
+ * One for each player, engine asks it which decoder to blame when playing fails.
+ *
+ */
+class DecoderSelector implements MediaCodecSelector {
+    @SuppressWarnings("unused")
+    private static final String TAG = "DecoderSelector";
+    // Same as DefaultRenderersFactory.
+    private static final long ALLOWED_VIDEO_JOINING_TIME_MS = 5000;
+    private static final int MAX_DROPPED_VIDEO_FRAME_COUNT_TO_NOTIFY = 50;
+    private final DecoderRegistry registry;
+    private volatile String selectedName = null;
+
+    DecoderSelector(@NonNull final DecoderRegistry registry) {
+        this.registry = registry;
+    }
+
+    /**
+     * Wallpaper never plays sound or subtitles, so players only get a video renderer.
+     */
+    @NonNull
+    RenderersFactory createRenderersFactory(@NonNull final Context context) {
+        return new RenderersFactory() {
+            @Override
+            public Renderer[] createRenderers(
+                Handler eventHandler,
+                VideoRendererEventListener videoRendererEventListener,
+                AudioRendererEventListener audioRendererEventListener,
+                TextOutput textRendererOutput,
+                MetadataOutput metadataRendererOutput,
+                DrmSessionManager<FrameworkMediaCrypto> drmSessionManager
+            ) {
+                return new Renderer[] {
+                    new MediaCodecVideoRenderer(
+                        context, DecoderSelector.this, ALLOWED_VIDEO_JOINING_TIME_MS,
+                        drmSessionManager, false, eventHandler, videoRendererEventListener,
+                        MAX_DROPPED_VIDEO_FRAME_COUNT_TO_NOTIFY
+                    )
+                };
+            }
+        };
+    }
+
+    @Override
+    public List<MediaCodecInfo> getDecoderInfos(
+        String mimeType,
+        boolean requiresSecureDecoder
+    ) throws MediaCodecUtil.DecoderQueryException {
+        final List<MediaCodecInfo> infos = MediaCodecUtil.getDecoderInfos(
+            mimeType, requiresSecureDecoder
+        );
+        final List<String> names = new ArrayList<>();
+        for (MediaCodecInfo info : infos) {
+            names.add(info.name);
+        }
+        final List<MediaCodecInfo> ranked = new ArrayList<>();
+        for (String name : registry.rank(names)) {
+            ranked.add(infos.get(names.indexOf(name)));
+        }
+        if (!ranked.isEmpty()) {
+            selectedName = ranked.get(0).name;
+            Utils.debug(TAG, "Selected decoder " + selectedName);
+        }
+        return ranked;
+    }
+
+    @Override
+    public MediaCodecInfo getPassthroughDecoderInfo()
+        throws MediaCodecUtil.DecoderQueryException {
+        return MediaCodecUtil.getPassthroughDecoderInfo();
+    }
+
+    /**
+     * @return String Name of decoder player uses, or null if it has not asked yet.
+     */
+    String getSelectedName() {
+        return selectedName;
+    }
+}
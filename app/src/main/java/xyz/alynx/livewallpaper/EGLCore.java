@@ -0,0 +1,186 @@
+/*
+ * Copyright 2019 Alynx Zhou
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.alynx.livewallpaper;
+
+import android.opengl.EGL14;
+import android.opengl.EGLConfig;
+import android.opengl.EGLContext;
+import android.opengl.EGLDisplay;
+import android.opengl.EGLExt;
+import android.opengl.EGLSurface;
+import android.support.annotation.NonNull;
+import android.view.Surface;
+
+/**
+ *
+ * EGLCore: owns an EGL display and context, and creates surfaces for it.
+ *
+ * GLSurfaceView hides those, but offscreen work like frame grabbing needs
+ * a context on its own thread, and RenderThread needs to control swap interval
+ * and presentation time of window surfaces.
+ *
+ */
+class EGLCore {
+    @SuppressWarnings("unused")
+    private static final String TAG = "EGLCore";
+    private EGLDisplay display = EGL14.EGL_NO_DISPLAY;
+    private EGLContext context = EGL14.EGL_NO_CONTEXT;
+    private EGLConfig config = null;
+    private final int version;
+
+    /**
+     * @param version GLES major version, 2 or 3.
+     */
+    EGLCore(final int version) throws RuntimeException {
+        this(version, false);
+    }
+
+    /**
+     * @param version GLES major version, 2 or 3.
+     * @param recordable Whether window surfaces may be MediaCodec input surfaces.
+     */
+    EGLCore(final int version, final boolean recordable) throws RuntimeException {
+        this.version = version;
+        display = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
+        if (display == EGL14.EGL_NO_DISPLAY) {
+            throw new RuntimeException("Failed to get EGL display");
+        }
+        final int[] versions = new int[2];
+        if (!EGL14.eglInitialize(display, versions, 0, versions, 1)) {
+            display = EGL14.EGL_NO_DISPLAY;
+            throw new RuntimeException("Failed to initialize EGL");
+        }
+        // EGL_OPENGL_ES3_BIT_KHR, EGL14 does not have it.
+        final int renderableType = version >= 3 ? 0x40 : EGL14.EGL_OPENGL_ES2_BIT;
+        final int[] configAttribs = {
+            EGL14.EGL_RED_SIZE, 8,
+            EGL14.EGL_GREEN_SIZE, 8,
+            EGL14.EGL_BLUE_SIZE, 8,
+            EGL14.EGL_ALPHA_SIZE, 8,
+            EGL14.EGL_RENDERABLE_TYPE, renderableType,
+            EGL14.EGL_SURFACE_TYPE, EGL14.EGL_WINDOW_BIT | EGL14.EGL_PBUFFER_BIT,
+            // EGL_RECORDABLE_ANDROID, encoders may not take other configs.
+            recordable ? 0x3142 : EGL14.EGL_NONE, 1,
+            EGL14.EGL_NONE
+        };
+        final EGLConfig[] configs = new EGLConfig[1];
+        final int[] numConfigs = new int[1];
+        if (!EGL14.eglChooseConfig(
+            display, configAttribs, 0, configs, 0, configs.length, numConfigs, 0
+        ) || numConfigs[0] == 0) {
+            release();
+            throw new RuntimeException("Failed to choose EGL config");
+        }
+        config = configs[0];
+        final int[] contextAttribs = {
+            EGL14.EGL_CONTEXT_CLIENT_VERSION, version,
+            EGL14.EGL_NONE
+        };
+        context = EGL14.eglCreateContext(
+            display, config, EGL14.EGL_NO_CONTEXT, contextAttribs, 0
+        );
+        if (context == EGL14.EGL_NO_CONTEXT) {
+            release();
+            throw new RuntimeException("Failed to create EGL context");
+        }
+    }
+
+    int getVersion() {
+        return version;
+    }
+
+    @NonNull
+    EGLSurface createPbufferSurface(final int width, final int height) throws RuntimeException {
+        final int[] surfaceAttribs = {
+            EGL14.EGL_WIDTH, width,
+            EGL14.EGL_HEIGHT, height,
+            EGL14.EGL_NONE
+        };
+        final EGLSurface surface = EGL14.eglCreatePbufferSurface(
+            display, config, surfaceAttribs, 0
+        );
+        if (surface == EGL14.EGL_NO_SURFACE) {
+            throw new RuntimeException("Failed to create EGL pbuffer surface");
+        }
+        return surface;
+    }
+
+    /**
+     * Context is not bound to any surface, so it outlives window surfaces.
+     */
+    @NonNull
+    EGLSurface createWindowSurface(@NonNull final Surface surface) throws RuntimeException {
+        final int[] surfaceAttribs = {
+            EGL14.EGL_NONE
+        };
+        final EGLSurface eglSurface = EGL14.eglCreateWindowSurface(
+            display, config, surface, surfaceAttribs, 0
+        );
+        if (eglSurface == EGL14.EGL_NO_SURFACE) {
+            throw new RuntimeException("Failed to create EGL window surface");
+        }
+        return eglSurface;
+    }
+
+    /**
+     * Set how many vsyncs a swap waits at least, for surface which is current.
+     */
+    boolean setSwapInterval(final int interval) {
+        return EGL14.eglSwapInterval(display, interval);
+    }
+
+    /**
+     * @param nsecs Time compositor should show next swapped frame, in System.nanoTime() base.
+     */
+    boolean setPresentationTime(@NonNull final EGLSurface surface, final long nsecs) {
+        return EGLExt.eglPresentationTimeANDROID(display, surface, nsecs);
+    }
+
+    void makeCurrent(@NonNull final EGLSurface surface) throws RuntimeException {
+        if (!EGL14.eglMakeCurrent(display, surface, surface, context)) {
+            throw new RuntimeException("Failed to make EGL context current");
+        }
+    }
+
+    void makeNothingCurrent() {
+        EGL14.eglMakeCurrent(
+            display, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_CONTEXT
+        );
+    }
+
+    boolean swapBuffers(@NonNull final EGLSurface surface) {
+        return EGL14.eglSwapBuffers(display, surface);
+    }
+
+    void releaseSurface(@NonNull final EGLSurface surface) {
+        EGL14.eglDestroySurface(display, surface);
+    }
+
+    void release() {
+        if (display != EGL14.EGL_NO_DISPLAY) {
+            makeNothingCurrent();
+            if (context != EGL14.EGL_NO_CONTEXT) {
+                EGL14.eglDestroyContext(display, context);
+            }
+            EGL14.eglReleaseThread();
+            EGL14.eglTerminate(display);
+        }
+        display = EGL14.EGL_NO_DISPLAY;
+        context = EGL14.EGL_NO_CONTEXT;
+        config = null;
+    }
+}
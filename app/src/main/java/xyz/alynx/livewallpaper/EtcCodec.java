@@ -0,0 +1,309 @@
+/*
+ * Copyright 2019 Alynx Zhou
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.alynx.livewallpaper;
+
+import android.support.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+
+/**
+ *
+ * EtcCodec: encode and decode ETC1 blocks, which are also valid ETC2 RGB8 blocks.
+ *
+ * Every 4x4 block is 8 bytes, split into two 2x4 or 4x2 halves, each with a base color and
+ * a table of four offsets added to it. Encoder takes the average of every half as base color,
+ * and tries both split directions, individual and differential base colors and all tables.
+ * It never writes differential colors out of range, because ETC2 reads those as its new
+ * modes, so the output looks the same with GL_ETC1_RGB8_OES and GL_COMPRESSED_RGB8_ETC2.
+ *
+ * Decoder only knows ETC1 modes, it is used for thumbnails and for GPUs which have neither.
+ *
+ * It is plain Java, so it can be tested with synthetic images.
+ *
+ */
+class EtcCodec {
+    @SuppressWarnings("unused")
+    private static final String TAG = "EtcCodec";
+    static final int BLOCK_SIZE = 4;
+    static final int BLOCK_BYTES = 8;
+    private static final int[][] MODIFIERS = {
+        {2, 8}, {5, 17}, {9, 29}, {13, 42}, {18, 60}, {24, 80}, {33, 106}, {47, 183}
+    };
+
+    private EtcCodec() {
+    }
+
+    /**
+     * @return int Bytes of an encoded image, edges are padded to whole blocks.
+     */
+    static int getEncodedSize(final int width, final int height) {
+        return ((width + BLOCK_SIZE - 1) / BLOCK_SIZE) *
+            ((height + BLOCK_SIZE - 1) / BLOCK_SIZE) * BLOCK_BYTES;
+    }
+
+    /**
+     * @param argb Pixels in rows from top, alpha is ignored.
+     * @param output Receives getEncodedSize() bytes at its position, which is advanced.
+     */
+    static void encode(
+        @NonNull final int[] argb,
+        final int width,
+        final int height,
+        @NonNull final ByteBuffer output
+    ) {
+        final int[] block = new int[BLOCK_SIZE * BLOCK_SIZE * 3];
+        final Candidate best = new Candidate();
+        final Candidate candidate = new Candidate();
+        for (int by = 0; by < height; by += BLOCK_SIZE) {
+            for (int bx = 0; bx < width; bx += BLOCK_SIZE) {
+                // Edge blocks repeat last column and row.
+                for (int y = 0; y < BLOCK_SIZE; ++y) {
+                    final int row = Math.min(by + y, height - 1) * width;
+                    for (int x = 0; x < BLOCK_SIZE; ++x) {
+                        final int pixel = argb[row + Math.min(bx + x, width - 1)];
+                        final int i = (y * BLOCK_SIZE + x) * 3;
+                        block[i] = (pixel >> 16) & 0xff;
+                        block[i + 1] = (pixel >> 8) & 0xff;
+                        block[i + 2] = pixel & 0xff;
+                    }
+                }
+                best.error = Long.MAX_VALUE;
+                for (int flip = 0; flip < 2; ++flip) {
+                    encodeBlock(block, flip == 1, true, candidate);
+                    if (candidate.error < best.error) {
+                        best.copy(candidate);
+                    }
+                    encodeBlock(block, flip == 1, false, candidate);
+                    if (candidate.error < best.error) {
+                        best.copy(candidate);
+                    }
+                }
+                output.putLong(best.bits);
+            }
+        }
+    }
+
+    /**
+     * @param input Encoded blocks at its position, which is advanced.
+     * @param argb Receives opaque pixels in rows from top.
+     */
+    static void decode(
+        @NonNull final ByteBuffer input,
+        final int width,
+        final int height,
+        @NonNull final int[] argb
+    ) {
+        final int[] base = new int[6];
+        for (int by = 0; by < height; by += BLOCK_SIZE) {
+            for (int bx = 0; bx < width; bx += BLOCK_SIZE) {
+                final long bits = input.getLong();
+                final boolean diff = ((bits >>> 33) & 1) != 0;
+                final boolean flip = ((bits >>> 32) & 1) != 0;
+                unpackBaseColors(bits, diff, base);
+                for (int y = 0; y < BLOCK_SIZE; ++y) {
+                    if (by + y >= height) {
+                        break;
+                    }
+                    for (int x = 0; x < BLOCK_SIZE; ++x) {
+                        if (bx + x >= width) {
+                            break;
+                        }
+                        final int half = flip ? y / 2 : x / 2;
+                        final int table = (int)(bits >>> (half == 0 ? 37 : 34)) & 0x7;
+                        final int offset = getOffset(table, getPixelIndex(bits, x, y));
+                        argb[(by + y) * width + bx + x] = 0xff000000 |
+                            clamp(base[half * 3] + offset) << 16 |
+                            clamp(base[half * 3 + 1] + offset) << 8 |
+                            clamp(base[half * 3 + 2] + offset);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Decode to RGB565 shorts in native order, which glTexImage2D() takes with
+     * GL_UNSIGNED_SHORT_5_6_5.
+     *
+     * @param argb Scratch of width * height pixels, so nothing is allocated per frame.
+     */
+    static void decodeToRgb565(
+        @NonNull final ByteBuffer input,
+        final int width,
+        final int height,
+        @NonNull final int[] argb,
+        @NonNull final ByteBuffer output
+    ) {
+        decode(input, width, height, argb);
+        for (int i = 0; i < width * height; ++i) {
+            output.putShort(toRgb565(argb[i]));
+        }
+    }
+
+    static short toRgb565(final int argb) {
+        return (short)(((argb >> 8) & 0xf800) | ((argb >> 5) & 0x07e0) | ((argb >> 3) & 0x001f));
+    }
+
+    private static void encodeBlock(
+        @NonNull final int[] block,
+        final boolean flip,
+        final boolean diff,
+        @NonNull final Candidate result
+    ) {
+        final int[][] quantized = new int[2][3];
+        for (int half = 0; half < 2; ++half) {
+            final int[] sum = new int[3];
+            for (int y = 0; y < BLOCK_SIZE; ++y) {
+                for (int x = 0; x < BLOCK_SIZE; ++x) {
+                    if ((flip ? y / 2 : x / 2) == half) {
+                        final int i = (y * BLOCK_SIZE + x) * 3;
+                        sum[0] += block[i];
+                        sum[1] += block[i + 1];
+                        sum[2] += block[i + 2];
+                    }
+                }
+            }
+            for (int c = 0; c < 3; ++c) {
+                // Halves have 8 pixels, round to the nearest 4 or 5 bits value.
+                quantized[half][c] = diff ?
+                    (sum[c] * 31 + 1020) / 2040 : (sum[c] * 15 + 1020) / 2040;
+            }
+        }
+        long bits = 0;
+        if (diff) {
+            for (int c = 0; c < 3; ++c) {
+                final int delta = quantized[1][c] - quantized[0][c];
+                if (delta < -4 || delta > 3) {
+                    result.error = Long.MAX_VALUE;
+                    return;
+                }
+                bits |= (long)quantized[0][c] << (59 - c * 8);
+                bits |= (long)(delta & 0x7) << (56 - c * 8);
+            }
+            bits |= 1L << 33;
+        } else {
+            for (int c = 0; c < 3; ++c) {
+                bits |= (long)quantized[0][c] << (60 - c * 8);
+                bits |= (long)quantized[1][c] << (56 - c * 8);
+            }
+        }
+        if (flip) {
+            bits |= 1L << 32;
+        }
+        // Encoder and decoder must agree on base colors, so take them from the bits.
+        final int[] base = new int[6];
+        unpackBaseColors(bits, diff, base);
+        long error = 0;
+        for (int half = 0; half < 2; ++half) {
+            long bestHalfError = Long.MAX_VALUE;
+            int bestTable = 0;
+            int bestIndices = 0;
+            for (int table = 0; table < MODIFIERS.length; ++table) {
+                long halfError = 0;
+                int indices = 0;
+                for (int y = 0; y < BLOCK_SIZE; ++y) {
+                    for (int x = 0; x < BLOCK_SIZE; ++x) {
+                        if ((flip ? y / 2 : x / 2) != half) {
+                            continue;
+                        }
+                        final int i = (y * BLOCK_SIZE + x) * 3;
+                        int bestIndex = 0;
+                        long bestPixelError = Long.MAX_VALUE;
+                        for (int index = 0; index < 4; ++index) {
+                            final int offset = getOffset(table, index);
+                            final int dr = clamp(base[half * 3] + offset) - block[i];
+                            final int dg = clamp(base[half * 3 + 1] + offset) - block[i + 1];
+                            final int db = clamp(base[half * 3 + 2] + offset) - block[i + 2];
+                            final long pixelError = dr * dr + dg * dg + db * db;
+                            if (pixelError < bestPixelError) {
+                                bestPixelError = pixelError;
+                                bestIndex = index;
+                            }
+                        }
+                        halfError += bestPixelError;
+                        // Two bits per pixel, kept at its bit position of the block.
+                        final int position = x * BLOCK_SIZE + y;
+                        indices |= ((bestIndex >> 1) << (position + 16)) |
+                            ((bestIndex & 1) << position);
+                    }
+                }
+                if (halfError < bestHalfError) {
+                    bestHalfError = halfError;
+                    bestTable = table;
+                    bestIndices = indices;
+                }
+            }
+            error += bestHalfError;
+            bits |= (long)bestTable << (half == 0 ? 37 : 34);
+            bits |= bestIndices & 0xffffffffL;
+        }
+        result.bits = bits;
+        result.error = error;
+    }
+
+    private static void unpackBaseColors(final long bits, final boolean diff, @NonNull final int[] base) {
+        for (int c = 0; c < 3; ++c) {
+            if (diff) {
+                final int first = (int)(bits >>> (59 - c * 8)) & 0x1f;
+                // Sign extend 3 bits.
+                final int delta = ((int)(bits >>> (56 - c * 8)) & 0x7) << 29 >> 29;
+                base[c] = expand5(first);
+                base[3 + c] = expand5(first + delta);
+            } else {
+                base[c] = expand4((int)(bits >>> (60 - c * 8)) & 0xf);
+                base[3 + c] = expand4((int)(bits >>> (56 - c * 8)) & 0xf);
+            }
+        }
+    }
+
+    private static int getPixelIndex(final long bits, final int x, final int y) {
+        final int position = x * BLOCK_SIZE + y;
+        final int msb = (int)(bits >>> (position + 16)) & 1;
+        final int lsb = (int)(bits >>> position) & 1;
+        return msb << 1 | lsb;
+    }
+
+    /**
+     * Index 0 and 1 are the small and large positive offsets, 2 and 3 the negative ones.
+     */
+    private static int getOffset(final int table, final int index) {
+        final int offset = MODIFIERS[table][index & 1];
+        return index < 2 ? offset : -offset;
+    }
+
+    private static int expand4(final int value) {
+        return value << 4 | value;
+    }
+
+    private static int expand5(final int value) {
+        return value << 3 | value >> 2;
+    }
+
+    private static int clamp(final int value) {
+        return value < 0 ? 0 : value > 255 ? 255 : value;
+    }
+
+    private static final class Candidate {
+        long bits = 0;
+        long error = Long.MAX_VALUE;
+
+        void copy(@NonNull final Candidate candidate) {
+            bits = candidate.bits;
+            error = candidate.error;
+        }
+    }
+}
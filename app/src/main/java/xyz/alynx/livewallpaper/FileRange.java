@@ -0,0 +1,245 @@
+/*
+ * Copyright 2019 Alynx Zhou
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.alynx.livewallpaper;
+
+import android.support.annotation.NonNull;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+
+/**
+ *
+ * FileRange: a range of a file opened once, for example a video stored in APK,
+ * read at any position without opening or seeking it again.
+ *
+ * A mapped range is read by copying from page cache, no system call at all. Otherwise
+ * every read is a single positional read, so readers on different threads do not share
+ * a file position. Loops reading the file again only cost their copies.
+ *
+ * Small ranges can also be loaded into memory by SourceCache, then storage is never read
+ * again, even if page cache dropped the file. Dropping memory goes back to reading file.
+ *
+ * It also counts what reading costs, per loop, as a loop reads from the start again,
+ * and how often storage was read, per hour.
+ *
+ * It is plain Java, so it can be tested with a temporary file.
+ *
+ */
+class FileRange implements Closeable {
+    @SuppressWarnings("unused")
+    private static final String TAG = "FileRange";
+    // Address space is cheap on 64 bit, but not on 32 bit devices.
+    static final long MAX_MAP_BYTES = 64 * 1024 * 1024;
+    private final FileChannel channel;
+    private final long offset;
+    private final long length;
+    private final Closeable owner;
+    private final MappedByteBuffer mapped;
+    private final long openTimeNs;
+    // Whole range, read by many loaders, dropped by SourceCache on any thread.
+    private volatile ByteBuffer memory = null;
+    private volatile boolean memoryDropped = false;
+    // Written by loader threads and read by engine for reports, a count lost when two
+    // loads overlap does not matter there.
+    private volatile long loops = 0;
+    private volatile long reads = 0;
+    private volatile long syscalls = 0;
+    private volatile long bytesCopied = 0;
+    // Reads which may wake storage, mapped reads hidden by page cache are not counted.
+    private volatile long storageReads = 0;
+
+    /**
+     * @param channel Channel of the whole file, its position is never used.
+     * @param owner Closes the file, channel may not own its descriptor.
+     * @param map Whether range may be mapped, only for files nobody truncates.
+     */
+    FileRange(
+        @NonNull final FileChannel channel,
+        final long offset,
+        final long length,
+        @NonNull final Closeable owner,
+        final boolean map
+    ) throws IOException {
+        this.channel = channel;
+        this.offset = offset;
+        this.length = length;
+        this.owner = owner;
+        openTimeNs = System.nanoTime();
+        // Opening already took the open and a stat.
+        syscalls = 2;
+        if (map && length > 0 && length <= MAX_MAP_BYTES) {
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+            ++syscalls;
+        } else {
+            mapped = null;
+        }
+    }
+
+    long getLength() {
+        return length;
+    }
+
+    boolean isMapped() {
+        return mapped != null;
+    }
+
+    boolean isInMemory() {
+        return memory != null;
+    }
+
+    /**
+     * @return boolean Whether memory was dropped, then SourceCache does not load it again.
+     */
+    boolean isMemoryDropped() {
+        return memoryDropped;
+    }
+
+    /**
+     * Called by SourceCache without holding its lock, a slow provider only blocks this loader.
+     *
+     * @return ByteBuffer Whole range, not used by reads until it is published.
+     */
+    @NonNull
+    ByteBuffer readIntoMemory() throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect((int)length);
+        if (mapped != null) {
+            buffer.put(mapped.duplicate());
+        } else {
+            while (buffer.hasRemaining()) {
+                final int result = channel.read(buffer, offset + buffer.position());
+                ++syscalls;
+                ++storageReads;
+                if (result < 0) {
+                    throw new EOFException();
+                }
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Called by SourceCache, which accounts the memory.
+     */
+    void publishMemory(@NonNull final ByteBuffer buffer) {
+        memory = buffer;
+    }
+
+    /**
+     * Readers which already took the buffer finish with it, next reads go to file.
+     */
+    void dropMemory() {
+        memory = null;
+        memoryDropped = true;
+    }
+
+    /**
+     * Called when a reader opens the range, one opening at start is one loop.
+     */
+    void onOpen(final long position) {
+        if (position == 0) {
+            ++loops;
+        }
+    }
+
+    /**
+     * Safe to call from many threads.
+     *
+     * @param position Position in range, not in file.
+     * @return int Bytes read, or -1 at end of range.
+     */
+    int read(
+        final long position,
+        @NonNull final byte[] buffer,
+        final int bufferOffset,
+        final int readLength
+    ) throws IOException {
+        if (position >= length) {
+            return -1;
+        }
+        final int count = (int)Math.min(readLength, length - position);
+        ++reads;
+        final ByteBuffer source = memory != null ? memory : mapped;
+        if (source != null) {
+            // Duplicate has its own position, buffer is shared.
+            final ByteBuffer view = source.duplicate();
+            view.position((int)position);
+            view.get(buffer, bufferOffset, count);
+            bytesCopied += count;
+            return count;
+        }
+        final int result = channel.read(
+            ByteBuffer.wrap(buffer, bufferOffset, count), offset + position
+        );
+        ++syscalls;
+        ++storageReads;
+        if (result > 0) {
+            bytesCopied += result;
+        }
+        return result;
+    }
+
+    long getLoops() {
+        return loops;
+    }
+
+    long getSyscalls() {
+        return syscalls;
+    }
+
+    long getBytesCopied() {
+        return bytesCopied;
+    }
+
+    long getStorageReads() {
+        return storageReads;
+    }
+
+    /**
+     * @return float Storage reads per hour since opened, what wakes flash or SD card.
+     */
+    float getStorageReadsPerHour() {
+        final long elapsedNs = System.nanoTime() - openTimeNs;
+        return elapsedNs > 0 ? storageReads * 3600e9f / elapsedNs : 0.0f;
+    }
+
+    /**
+     * Mapping stays until it is collected, readers still running see no error.
+     */
+    @Override
+    public void close() throws IOException {
+        owner.close();
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        final long loopCount = Math.max(1, loops);
+        return String.format(
+            Locale.US, "%d KB %s, %d loops, %d KB copied, %d reads and %d syscalls per loop, " +
+            "%.1f storage reads per hour",
+            length / 1024, memory != null ? "in memory" : mapped != null ?
+            "mapped" : "read by position", loops, bytesCopied / 1024 / loopCount,
+            reads / loopCount, syscalls / loopCount, getStorageReadsPerHour()
+        );
+    }
+}
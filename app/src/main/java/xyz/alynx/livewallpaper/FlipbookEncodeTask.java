@@ -0,0 +1,295 @@
+/*
+ * Copyright 2019 Alynx Zhou
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.alynx.livewallpaper;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.graphics.Bitmap;
+import android.media.MediaMetadataRetriever;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Build;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ *
+ * FlipbookEncodeTask: convert a short video card into a flipbook card.
+ *
+ * Every frame is taken from MediaMetadataRetriever at the size which covers the screen,
+ * encoded by FlipbookWriter and written to app storage. GLES3 devices get ETC2, others
+ * get RGB565. It is slow, a frame may take a few hundred milliseconds, but it only runs once
+ * and after it the wallpaper plays without a decoder.
+ *
+ */
+class FlipbookEncodeTask extends AsyncTask<WallpaperCard, Void, String> {
+    @SuppressWarnings("unused")
+    private static final String TAG = "FlipbookEncodeTask";
+    private static final String DIRECTORY = "flipbooks";
+    static final long MAX_DURATION_MS = 10 * 1000;
+    private static final float MAX_FRAME_RATE = 30;
+    // Videos without frame rate in container.
+    private static final float FALLBACK_FRAME_RATE = 30;
+    private static final long MAX_FILE_BYTES = 64L * 1024 * 1024;
+    // Smaller than this of screen density looks too blurry, keep the video then.
+    private static final float MIN_SCALE = 0.5f;
+    private static final int MAX_NAME_LENGTH = 30;
+    private final Context context;
+    private final FlipbookEncodeTaskListener listener;
+    private final int screenWidth;
+    private final int screenHeight;
+
+    public interface FlipbookEncodeTaskListener {
+        void onFlipbookEncodeFinished(@NonNull final String message);
+    }
+
+    FlipbookEncodeTask(
+        @NonNull final Context context,
+        final int screenWidth,
+        final int screenHeight,
+        @NonNull final FlipbookEncodeTaskListener listener
+    ) {
+        this.context = context.getApplicationContext();
+        this.screenWidth = screenWidth;
+        this.screenHeight = screenHeight;
+        this.listener = listener;
+    }
+
+    @Override
+    protected String doInBackground(WallpaperCard... cards) {
+        final WallpaperCard source = cards[0];
+        final VideoMetadata metadata;
+        try {
+            metadata = VideoMetadata.obtain(context, source);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return getString(R.string.flipbook_failed, source.getName());
+        }
+        if (metadata.getDurationMs() <= 0 || metadata.getDurationMs() > MAX_DURATION_MS) {
+            return getString(R.string.flipbook_too_long, source.getName(), MAX_DURATION_MS / 1000);
+        }
+        final File file = new File(
+            new File(context.getFilesDir(), DIRECTORY),
+            PosterCache.hash(source.getCacheKey()) + ".flip"
+        );
+        final File parent = file.getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            return getString(R.string.flipbook_failed, source.getName());
+        }
+        final float frameRate = Math.min(
+            MAX_FRAME_RATE, metadata.getFrameRate() > 0 ?
+            metadata.getFrameRate() : FALLBACK_FRAME_RATE
+        );
+        final int frameCount = Math.max(1, (int)(metadata.getDurationMs() * frameRate / 1000));
+        final FlipbookFile.Format format = getFormat();
+        final int[] size = getFrameSize(metadata, format, frameCount);
+        if (size == null) {
+            return getString(R.string.flipbook_too_long, source.getName(), MAX_DURATION_MS / 1000);
+        }
+        final long startTime = SystemClock.elapsedRealtime();
+        final MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+        FlipbookWriter writer = null;
+        try {
+            setDataSource(retriever, source);
+            writer = new FlipbookWriter(file, format, size[0], size[1], frameCount);
+            final int[] argb = new int[size[0] * size[1]];
+            for (int i = 0; i < frameCount && !isCancelled(); ++i) {
+                final long timeUs = (long)(i * 1000000L / frameRate);
+                final Bitmap frame = getFrame(retriever, timeUs, size[0], size[1]);
+                if (frame == null) {
+                    throw new IOException("No frame at " + timeUs + " us");
+                }
+                frame.getPixels(argb, 0, size[0], 0, 0, size[0], size[1]);
+                frame.recycle();
+                // Durations add up to loop length without accumulating rounding.
+                writer.addFrame(argb, Math.round((i + 1) * 1000 / frameRate) -
+                    Math.round(i * 1000 / frameRate));
+            }
+            if (isCancelled()) {
+                writer.abort();
+                return null;
+            }
+            writer.finish();
+        } catch (IOException | RuntimeException e) {
+            // setDataSource() throws unchecked exceptions for broken files.
+            e.printStackTrace();
+            if (writer != null) {
+                writer.abort();
+            }
+            return getString(R.string.flipbook_failed, source.getName());
+        } finally {
+            retriever.release();
+        }
+        final long elapsedMs = SystemClock.elapsedRealtime() - startTime;
+        Utils.debug(TAG, String.format(
+            Locale.US, "Encoded %d frames of %dx%d %s in %d ms, %d ms per frame, %d KB",
+            frameCount, size[0], size[1], format, elapsedMs, elapsedMs / frameCount,
+            file.length() / 1024
+        ));
+        String name = String.format(
+            context.getResources().getString(R.string.flipbook_name), source.getName()
+        );
+        if (name.length() > MAX_NAME_LENGTH) {
+            name = name.substring(0, MAX_NAME_LENGTH);
+        }
+        final Uri uri = Uri.fromFile(file);
+        final WallpaperCard card = new WallpaperCard(
+            name, uri.toString(), uri, WallpaperCard.Type.EXTERNAL,
+            WallpaperCard.Kind.FLIPBOOK, null
+        );
+        if (ThumbnailCache.getInstance().load(context, card) == null) {
+            file.delete();
+            return getString(R.string.flipbook_failed, source.getName());
+        }
+        // Converting the same video again replaces file, catalog ignores the same path.
+        LWApplication.getCatalog().edit().add(card).commit();
+        return String.format(
+            context.getResources().getString(R.string.converted_flipbook),
+            source.getName(), frameCount, file.length() / 1024
+        );
+    }
+
+    @Override
+    protected void onPostExecute(String message) {
+        super.onPostExecute(message);
+        if (message != null) {
+            listener.onFlipbookEncodeFinished(message);
+        }
+    }
+
+    /**
+     * Flipbook files belong to their cards, remove them together.
+     */
+    static void deleteFile(@NonNull final WallpaperCard wallpaperCard) {
+        if (wallpaperCard.getKind() == WallpaperCard.Kind.FLIPBOOK) {
+            new File(wallpaperCard.getUri().getPath()).delete();
+        }
+    }
+
+    /**
+     * ETC2 is core in GLES3, GLES2 may not have ETC1, so it gets uncompressed frames.
+     */
+    @NonNull
+    private FlipbookFile.Format getFormat() {
+        final ActivityManager activityManager = (ActivityManager)context.getSystemService(
+            Context.ACTIVITY_SERVICE
+        );
+        if (activityManager != null &&
+            activityManager.getDeviceConfigurationInfo().reqGlEsVersion >= 0x30000) {
+            return FlipbookFile.Format.ETC2_RGB8;
+        }
+        return FlipbookFile.Format.RGB565;
+    }
+
+    /**
+     * @return int[] Width and height in whole ETC blocks, covering the screen if file
+     *         budget allows, or null if video is too long or large.
+     */
+    private int[] getFrameSize(
+        @NonNull final VideoMetadata metadata,
+        @NonNull final FlipbookFile.Format format,
+        final int frameCount
+    ) {
+        int width = metadata.getWidth();
+        int height = metadata.getHeight();
+        if (metadata.getRotation() % 180 != 0) {
+            final int swap = width;
+            //noinspection SuspiciousNameCombination
+            width = height;
+            height = swap;
+        }
+        final float densityScale = RenderScaleController.getDensityScale(
+            screenWidth, screenHeight, width, height
+        );
+        float scale = densityScale;
+        // File size grows with square of scale.
+        final long bytes = (long)format.getFrameSize(
+            toBlocks(width * scale), toBlocks(height * scale)
+        ) * frameCount;
+        if (bytes > MAX_FILE_BYTES) {
+            scale *= (float)Math.sqrt((double)MAX_FILE_BYTES / bytes);
+        }
+        if (scale < densityScale * MIN_SCALE) {
+            return null;
+        }
+        return new int[] {toBlocks(width * scale), toBlocks(height * scale)};
+    }
+
+    private static int toBlocks(final float size) {
+        return Math.max(
+            EtcCodec.BLOCK_SIZE, (int)(size / EtcCodec.BLOCK_SIZE) * EtcCodec.BLOCK_SIZE
+        );
+    }
+
+    private void setDataSource(
+        @NonNull final MediaMetadataRetriever retriever,
+        @NonNull final WallpaperCard wallpaperCard
+    ) throws IOException {
+        switch (wallpaperCard.getType()) {
+        case INTERNAL:
+            final AssetFileDescriptor afd = context.getAssets().openFd(wallpaperCard.getPath());
+            retriever.setDataSource(
+                afd.getFileDescriptor(),
+                afd.getStartOffset(),
+                afd.getDeclaredLength()
+            );
+            afd.close();
+            break;
+        case EXTERNAL:
+            retriever.setDataSource(context, wallpaperCard.getUri());
+            break;
+        }
+    }
+
+    /**
+     * @return Bitmap of exactly width and height, or null.
+     */
+    private static Bitmap getFrame(
+        @NonNull final MediaMetadataRetriever retriever,
+        final long timeUs,
+        final int width,
+        final int height
+    ) {
+        final Bitmap frame;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O_MR1) {
+            // Decoded straight to a smaller size, it keeps aspect so it may be a bit off.
+            frame = retriever.getScaledFrameAtTime(
+                timeUs, MediaMetadataRetriever.OPTION_CLOSEST, width, height
+            );
+        } else {
+            frame = retriever.getFrameAtTime(timeUs, MediaMetadataRetriever.OPTION_CLOSEST);
+        }
+        if (frame == null || (frame.getWidth() == width && frame.getHeight() == height)) {
+            return frame;
+        }
+        final Bitmap scaled = Bitmap.createScaledBitmap(frame, width, height, true);
+        if (scaled != frame) {
+            frame.recycle();
+        }
+        return scaled;
+    }
+
+    @NonNull
+    private String getString(final int id, final Object... args) {
+        return String.format(context.getResources().getString(id), args);
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright 2019 Alynx Zhou
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.alynx.livewallpaper;
+
+import android.support.annotation.NonNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ *
+ * FlipbookFile: a memory mapped flipbook, frames ready for texture upload.
+ *
+ * Layout, big endian:
+ *
+ *     header  "LWFB", version, format, width, height, frame count, index offset (long)
+ *     frames  texture data of every frame, one after another
+ *     index   offset (long), size, duration in ms of every frame
+ *
+ * Index is at the end, so FlipbookWriter can write frames before knowing how many there are.
+ * ETC2 frames are ETC1 compatible blocks, RGB565 frames are native order shorts, both are
+ * uploaded as they are, with width and height multiples of 4.
+ *
+ * Whole file is mapped once, every frame is a ByteBuffer view of the mapping made on open,
+ * so playing allocates nothing and pages come from page cache instead of a decoder.
+ *
+ * It is plain Java, so reading can be tested with files written by tests.
+ *
+ */
+class FlipbookFile {
+    @SuppressWarnings("unused")
+    private static final String TAG = "FlipbookFile";
+    static final int MAGIC = 0x4c574642;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 32;
+    static final int INDEX_ENTRY_SIZE = 16;
+    private final Format format;
+    private final int width;
+    private final int height;
+    private final ByteBuffer[] frames;
+    // Start of every frame in loop, and the loop length after them.
+    private final long[] startsNs;
+    private final long loopNs;
+    private final long fileBytes;
+
+    enum Format {
+        ETC2_RGB8(1),
+        RGB565(2);
+
+        private final int id;
+
+        Format(final int id) {
+            this.id = id;
+        }
+
+        int getId() {
+            return id;
+        }
+
+        int getFrameSize(final int width, final int height) {
+            return this == ETC2_RGB8 ?
+                EtcCodec.getEncodedSize(width, height) : width * height * 2;
+        }
+
+        static Format fromId(final int id) {
+            for (Format format : values()) {
+                if (format.id == id) {
+                    return format;
+                }
+            }
+            return null;
+        }
+    }
+
+    private FlipbookFile(
+        @NonNull final Format format,
+        final int width,
+        final int height,
+        @NonNull final ByteBuffer[] frames,
+        @NonNull final long[] startsNs,
+        final long loopNs,
+        final long fileBytes
+    ) {
+        this.format = format;
+        this.width = width;
+        this.height = height;
+        this.frames = frames;
+        this.startsNs = startsNs;
+        this.loopNs = loopNs;
+        this.fileBytes = fileBytes;
+    }
+
+    /**
+     * Mapping lives until it is collected, closing channel here does not invalidate it.
+     *
+     * @throws IOException if file cannot be read or is not a valid flipbook.
+     */
+    @NonNull
+    static FlipbookFile open(@NonNull final File file) throws IOException {
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        final MappedByteBuffer buffer;
+        try {
+            final FileChannel channel = randomAccessFile.getChannel();
+            if (channel.size() < HEADER_SIZE || channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Bad flipbook size " + channel.size());
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            randomAccessFile.close();
+        }
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IOException("Not a flipbook of version " + VERSION);
+        }
+        final Format format = Format.fromId(buffer.getInt(8));
+        final int width = buffer.getInt(12);
+        final int height = buffer.getInt(16);
+        final int frameCount = buffer.getInt(20);
+        final long indexOffset = buffer.getLong(24);
+        if (format == null || width <= 0 || height <= 0 || width % EtcCodec.BLOCK_SIZE != 0 ||
+            height % EtcCodec.BLOCK_SIZE != 0 || frameCount <= 0 || indexOffset < HEADER_SIZE ||
+            indexOffset + (long)frameCount * INDEX_ENTRY_SIZE != buffer.capacity()) {
+            throw new IOException(String.format(
+                Locale.US, "Bad flipbook header %s %dx%d, %d frames, index at %d",
+                format, width, height, frameCount, indexOffset
+            ));
+        }
+        final int frameSize = format.getFrameSize(width, height);
+        final ByteBuffer[] frames = new ByteBuffer[frameCount];
+        final long[] startsNs = new long[frameCount];
+        long positionNs = 0;
+        for (int i = 0; i < frameCount; ++i) {
+            final int entry = (int)indexOffset + i * INDEX_ENTRY_SIZE;
+            final long offset = buffer.getLong(entry);
+            final int size = buffer.getInt(entry + 8);
+            final int durationMs = buffer.getInt(entry + 12);
+            if (size != frameSize || offset < HEADER_SIZE || offset + size > indexOffset ||
+                durationMs <= 0) {
+                throw new IOException(String.format(
+                    Locale.US, "Bad flipbook frame %d at %d, %d bytes, %d ms",
+                    i, offset, size, durationMs
+                ));
+            }
+            final ByteBuffer frame = buffer.duplicate();
+            frame.position((int)offset);
+            frame.limit((int)offset + size);
+            frames[i] = frame.slice();
+            startsNs[i] = positionNs;
+            positionNs += durationMs * 1000000L;
+        }
+        return new FlipbookFile(
+            format, width, height, frames, startsNs, positionNs, buffer.capacity()
+        );
+    }
+
+    @NonNull
+    Format getFormat() {
+        return format;
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    int getFrameCount() {
+        return frames.length;
+    }
+
+    long getLoopNs() {
+        return loopNs;
+    }
+
+    long getFileBytes() {
+        return fileBytes;
+    }
+
+    float getFrameRate() {
+        return frames.length * 1e9f / loopNs;
+    }
+
+    /**
+     * @return ByteBuffer Texture data of a frame, from 0 to limit. Callers share it,
+     *         so they must not move its position without rewinding.
+     */
+    @NonNull
+    ByteBuffer getFrame(final int index) {
+        return frames[index];
+    }
+
+    /**
+     * @param positionNs Position in loop, from 0 to getLoopNs().
+     * @return int Index of the frame shown at this position.
+     */
+    int getFrameIndex(final long positionNs) {
+        final int found = Arrays.binarySearch(startsNs, positionNs);
+        return found >= 0 ? found : -found - 2;
+    }
+
+    /**
+     * Drop views of the mapping, so it is unmapped when collected even if this object is
+     * still referenced somewhere. Frames cannot be read after it.
+     */
+    void close() {
+        Arrays.fill(frames, null);
+    }
+
+    /**
+     * @param argb Receives width * height opaque pixels in rows from top.
+     */
+    void decodeFrame(final int index, @NonNull final int[] argb) {
+        final ByteBuffer frame = frames[index].duplicate();
+        if (format == Format.ETC2_RGB8) {
+            EtcCodec.decode(frame, width, height, argb);
+            return;
+        }
+        frame.order(ByteOrder.nativeOrder());
+        for (int i = 0; i < width * height; ++i) {
+            final int rgb565 = frame.getShort() & 0xffff;
+            final int r = (rgb565 >> 11) & 0x1f;
+            final int g = (rgb565 >> 5) & 0x3f;
+            final int b = rgb565 & 0x1f;
+            argb[i] = 0xff000000 | (r << 3 | r >> 2) << 16 | (g << 2 | g >> 4) << 8 |
+                (b << 3 | b >> 2);
+        }
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return String.format(
+            Locale.US, "%d frames of %dx%d %s, %d ms loop, %d KB",
+            frames.length, width, height, format, loopNs / 1000000, fileBytes / 1024
+        );
+    }
+}
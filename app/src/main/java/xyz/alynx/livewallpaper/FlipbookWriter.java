@@ -0,0 +1,161 @@
+/*
+ * Copyright 2019 Alynx Zhou
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.alynx.livewallpaper;
+
+import android.support.annotation.NonNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ *
+ * FlipbookWriter: encode frames into a FlipbookFile.
+ *
+ * Frames go to a temporary file next to target, which is renamed on finish(), so a reader
+ * never sees a half written flipbook and a cancelled encode leaves nothing behind.
+ *
+ * It is plain Java, so encoding can be tested without a video.
+ *
+ */
+class FlipbookWriter {
+    @SuppressWarnings("unused")
+    private static final String TAG = "FlipbookWriter";
+    private final File file;
+    private final File tempFile;
+    private final FlipbookFile.Format format;
+    private final int width;
+    private final int height;
+    private final RandomAccessFile output;
+    private final FileChannel channel;
+    // Reused for every frame.
+    private final ByteBuffer frame;
+    private final ByteBuffer index;
+    private int frameCount = 0;
+    private long position = FlipbookFile.HEADER_SIZE;
+
+    /**
+     * @param width Multiple of 4, scale frames before writing.
+     * @param height Multiple of 4, scale frames before writing.
+     * @param maxFrames Frames the index has room for.
+     */
+    FlipbookWriter(
+        @NonNull final File file,
+        @NonNull final FlipbookFile.Format format,
+        final int width,
+        final int height,
+        final int maxFrames
+    ) throws IOException {
+        if (width <= 0 || height <= 0 || width % EtcCodec.BLOCK_SIZE != 0 ||
+            height % EtcCodec.BLOCK_SIZE != 0 || maxFrames <= 0) {
+            throw new IllegalArgumentException(
+                "Bad flipbook size " + width + "x" + height + ", " + maxFrames + " frames"
+            );
+        }
+        this.file = file;
+        this.tempFile = new File(file.getPath() + ".tmp");
+        this.format = format;
+        this.width = width;
+        this.height = height;
+        frame = ByteBuffer.allocate(format.getFrameSize(width, height));
+        // RGB565 is uploaded as it is, so it is in the order GPU reads shorts.
+        if (format == FlipbookFile.Format.RGB565) {
+            frame.order(ByteOrder.nativeOrder());
+        }
+        index = ByteBuffer.allocate(maxFrames * FlipbookFile.INDEX_ENTRY_SIZE);
+        output = new RandomAccessFile(tempFile, "rw");
+        output.setLength(0);
+        channel = output.getChannel();
+    }
+
+    int getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * @param argb width * height pixels in rows from top.
+     * @param durationMs How long this frame is shown.
+     */
+    void addFrame(@NonNull final int[] argb, final int durationMs) throws IOException {
+        if (!index.hasRemaining()) {
+            throw new IOException("More than " + index.capacity() / FlipbookFile.INDEX_ENTRY_SIZE +
+                " frames");
+        }
+        frame.clear();
+        if (format == FlipbookFile.Format.ETC2_RGB8) {
+            EtcCodec.encode(argb, width, height, frame);
+        } else {
+            for (int i = 0; i < width * height; ++i) {
+                frame.putShort(EtcCodec.toRgb565(argb[i]));
+            }
+        }
+        frame.flip();
+        final int size = frame.remaining();
+        writeFully(frame, position);
+        index.putLong(position);
+        index.putInt(size);
+        index.putInt(Math.max(1, durationMs));
+        position += size;
+        ++frameCount;
+    }
+
+    /**
+     * Write index and header and move flipbook to its place.
+     */
+    void finish() throws IOException {
+        if (frameCount == 0) {
+            abort();
+            throw new IOException("No frames");
+        }
+        index.flip();
+        writeFully(index, position);
+        final ByteBuffer header = ByteBuffer.allocate(FlipbookFile.HEADER_SIZE);
+        header.putInt(FlipbookFile.MAGIC);
+        header.putInt(FlipbookFile.VERSION);
+        header.putInt(format.getId());
+        header.putInt(width);
+        header.putInt(height);
+        header.putInt(frameCount);
+        header.putLong(position);
+        header.flip();
+        writeFully(header, 0);
+        channel.force(false);
+        output.close();
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            throw new IOException("Cannot rename " + tempFile + " to " + file);
+        }
+    }
+
+    void abort() {
+        try {
+            output.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        tempFile.delete();
+    }
+
+    private void writeFully(@NonNull final ByteBuffer buffer, long offset) throws IOException {
+        while (buffer.hasRemaining()) {
+            offset += channel.write(buffer, offset);
+        }
+    }
+}
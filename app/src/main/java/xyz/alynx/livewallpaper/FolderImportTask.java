@@ -0,0 +1,267 @@
+/*
+ * Copyright 2019 Alynx Zhou
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.alynx.livewallpaper;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Build;
+import android.os.SystemClock;
+import android.provider.DocumentsContract;
+import android.support.annotation.NonNull;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *
+ * FolderImportTask: import all videos and animated images under a document tree.
+ *
+ * Directories are walked with DocumentsContract child queries and rows are consumed while
+ * the cursor moves, only ids of directories not visited yet are kept. Every video is probed
+ * (thumbnail extracted) by a small thread pool, and the scanner blocks when too many probes
+ * are waiting, so memory stays bounded for folders with thousands of files.
+ *
+ * Cards land in catalog in batches, because every commit copies the card list.
+ * Copies of a video already in catalog are skipped by content fingerprint.
+ * Renditions are only encoded for them when user allows it in menu.
+ *
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+class FolderImportTask extends AsyncTask<Void, Void, String> {
+    @SuppressWarnings("unused")
+    private static final String TAG = "FolderImportTask";
+    // Probes queued or running, scanner waits when reaching it.
+    private static final int MAX_IN_FLIGHT = ThreadTopology.IMPORT_THREADS * 2;
+    private static final int BATCH_SIZE = 16;
+    private static final int MAX_NAME_LENGTH = 30;
+    // Folders are full of still PNG, only types which are usually animated are imported.
+    private static final String[] ANIMATION_MIME_TYPES = {
+        "image/gif", "image/webp", "image/apng"
+    };
+    private static final String[] PROJECTION = {
+        DocumentsContract.Document.COLUMN_DOCUMENT_ID,
+        DocumentsContract.Document.COLUMN_DISPLAY_NAME,
+        DocumentsContract.Document.COLUMN_MIME_TYPE
+    };
+    // Trees being walked keep their grants, though none of their cards landed yet.
+    private static final Set<Uri> importingTrees = new HashSet<>();
+    private final Context context;
+    private final FolderImportTaskListener listener;
+    private final Uri treeUri;
+    private final boolean enqueueRenditions;
+    private final List<WallpaperCard> pendingCards = new ArrayList<>();
+    private final AtomicInteger importedCount = new AtomicInteger(0);
+    private int videoCount = 0;
+
+    public interface FolderImportTaskListener {
+        void onFolderImportFinished(@NonNull final String message);
+    }
+
+    /**
+     * Create it before taking permission of tree, so removing cards never releases it first.
+     */
+    FolderImportTask(
+        @NonNull final Context context,
+        @NonNull final FolderImportTaskListener listener,
+        @NonNull final Uri treeUri
+    ) {
+        this.context = context.getApplicationContext();
+        this.listener = listener;
+        this.treeUri = treeUri;
+        synchronized (importingTrees) {
+            importingTrees.add(treeUri);
+        }
+        this.enqueueRenditions = context.getSharedPreferences(
+            LWApplication.OPTIONS_PREF, Context.MODE_PRIVATE
+        ).getBoolean(LWApplication.FOLDER_RENDITIONS_KEY, false);
+    }
+
+    static boolean isImporting(@NonNull final Uri treeUri) {
+        synchronized (importingTrees) {
+            return importingTrees.contains(treeUri);
+        }
+    }
+
+    @Override
+    protected String doInBackground(Void... voids) {
+        final long startTime = SystemClock.elapsedRealtime();
+        // Shared with other imports, so two imports do not take twice the cores.
+        final ExecutorService executor = ThreadTopology.getInstance().getImportExecutor();
+        final Semaphore permits = new Semaphore(MAX_IN_FLIGHT);
+        final Deque<String> directories = new ArrayDeque<>();
+        directories.push(DocumentsContract.getTreeDocumentId(treeUri));
+        try {
+            while (!directories.isEmpty() && !isCancelled()) {
+                final Uri childrenUri = DocumentsContract.buildChildDocumentsUriUsingTree(
+                    treeUri, directories.pop()
+                );
+                final Cursor cursor = context.getContentResolver().query(
+                    childrenUri, PROJECTION, null, null, null
+                );
+                if (cursor == null) {
+                    continue;
+                }
+                try {
+                    while (cursor.moveToNext() && !isCancelled()) {
+                        final String documentId = cursor.getString(0);
+                        final String name = cursor.getString(1);
+                        final String mimeType = cursor.getString(2);
+                        if (DocumentsContract.Document.MIME_TYPE_DIR.equals(mimeType)) {
+                            directories.push(documentId);
+                        } else if (mimeType != null && (mimeType.startsWith("video/") ||
+                            isAnimationMimeType(mimeType))) {
+                            final WallpaperCard.Kind kind = isAnimationMimeType(mimeType) ?
+                                WallpaperCard.Kind.ANIMATION : WallpaperCard.Kind.VIDEO;
+                            ++videoCount;
+                            final Uri uri = DocumentsContract.buildDocumentUriUsingTree(
+                                treeUri, documentId
+                            );
+                            // Back-pressure: wait until a probe finishes.
+                            permits.acquire();
+                            executor.execute(new Runnable() {
+                                @Override
+                                public void run() {
+                                    try {
+                                        probe(name, uri, kind);
+                                    } finally {
+                                        permits.release();
+                                    }
+                                }
+                            });
+                        }
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            Thread.currentThread().interrupt();
+        }
+        // Pool is not ours to shut down, holding every permit means all probes finished.
+        permits.acquireUninterruptibly(MAX_IN_FLIGHT);
+        permits.release(MAX_IN_FLIGHT);
+        commitBatch(true);
+        synchronized (importingTrees) {
+            importingTrees.remove(treeUri);
+        }
+        // Nothing new in this folder, don't keep its grant.
+        Utils.releaseUnusedTreePermissions(context);
+        final float seconds = Math.max(1, SystemClock.elapsedRealtime() - startTime) / 1000.0f;
+        final float filesPerSecond = videoCount / seconds;
+        Utils.debug(TAG, String.format(
+            Locale.US, "Imported %d of %d videos in %.1f s, %.1f files/s",
+            importedCount.get(), videoCount, seconds, filesPerSecond
+        ));
+        return String.format(
+            context.getResources().getString(R.string.imported_folder),
+            importedCount.get(), videoCount, filesPerSecond
+        );
+    }
+
+    @Override
+    protected void onPostExecute(String message) {
+        super.onPostExecute(message);
+        listener.onFolderImportFinished(message);
+    }
+
+    private static boolean isAnimationMimeType(@NonNull final String mimeType) {
+        for (String type : ANIMATION_MIME_TYPES) {
+            if (type.equals(mimeType)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void probe(
+        @NonNull String name,
+        @NonNull final Uri uri,
+        @NonNull final WallpaperCard.Kind kind
+    ) {
+        if (name.length() > MAX_NAME_LENGTH) {
+            name = name.substring(0, MAX_NAME_LENGTH);
+        }
+        // A WebP or PNG may still be a still image, which is cheaper as a texture.
+        final WallpaperCard card = new WallpaperCard(
+            name, uri.toString(), uri, WallpaperCard.Type.EXTERNAL,
+            kind == WallpaperCard.Kind.VIDEO ? kind : FrameSourcePlayer.detectKind(context, uri),
+            null
+        );
+        if (LWApplication.getCatalog().getSnapshot().contains(card)) {
+            return;
+        }
+        // Hashing a few chunks is much cheaper than extracting a thumbnail.
+        card.setFingerprint(ContentFingerprint.compute(context, uri));
+        if (LWApplication.getCatalog().getSnapshot().findSameContent(card) != null) {
+            return;
+        }
+        // Cache keeps the thumbnail, so UI does not decode again.
+        final Bitmap thumbnail = ThumbnailCache.getInstance().load(context, card);
+        if (thumbnail == null) {
+            return;
+        }
+        card.setSoftwareDecode(DecoderProbe.isSoftwareOnly(context, card));
+        synchronized (pendingCards) {
+            // Two copies in one folder are probed at the same time, catalog sees neither.
+            for (WallpaperCard pendingCard : pendingCards) {
+                if (pendingCard.isSameContent(card)) {
+                    return;
+                }
+            }
+            pendingCards.add(card);
+        }
+        commitBatch(false);
+    }
+
+    private void commitBatch(final boolean force) {
+        final List<WallpaperCard> batch;
+        synchronized (pendingCards) {
+            if (pendingCards.isEmpty() || (!force && pendingCards.size() < BATCH_SIZE)) {
+                return;
+            }
+            batch = new ArrayList<>(pendingCards);
+            pendingCards.clear();
+        }
+        // Catalog is thread safe, adapter listens to it and diffs on its own.
+        final CardCatalog.Snapshot snapshot = LWApplication.getCatalog().edit()
+            .addAll(batch).commit();
+        for (WallpaperCard card : batch) {
+            // Catalog drops a card if UI or another import added the same one meanwhile.
+            final int index = snapshot.indexOf(card);
+            if (index == -1 || snapshot.getCards().get(index) != card) {
+                continue;
+            }
+            importedCount.incrementAndGet();
+            if (enqueueRenditions) {
+                RenditionTask.enqueue(context, card);
+            }
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2019 Alynx Zhou
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.alynx.livewallpaper;
+
+/**
+ *
+ * FramePacer: decide on every vsync how many decoded frames to latch from SurfaceTexture.
+ *
+ * SurfaceTexture cannot tell the timestamp of a frame before we latch it, so latching
+ * whenever a frame is available shows each frame for a random number of vsyncs, and a
+ * 24 fps video on 60 Hz screen gets 2, 3, 3, 2, 2, 3... instead of a steady 3, 2 pulldown.
+ *
+ * Pacer locks on the vsync where a frame is latched, learns frame interval from timestamps
+ * of latched frames, and asks for frame N only at the vsync where N frame intervals after
+ * lock have passed. Timeline is computed from average interval, so timestamp jitter does
+ * not move frames between vsyncs. It relocks after seeking, looping or pausing.
+ *
+ * It is plain Java, renderer feeds it with Choreographer and SurfaceTexture timestamps.
+ *
+ */
+class FramePacer {
+    @SuppressWarnings("unused")
+    private static final String TAG = "FramePacer";
+    // Larger gap between timestamps is a seek, loop or pause.
+    private static final long MAX_FRAME_INTERVAL_NS = 1000000000L;
+    // Decoder is this far ahead of our timeline, it is wrong.
+    private static final int MAX_PENDING_FRAMES = 4;
+    // Interval is not stable for the first frames after lock, don't count them.
+    private static final int WARMUP_FRAMES = 8;
+    private final long vsyncIntervalNs;
+    private long lockVsyncNs = -1;
+    private long lockTimestampNs = 0;
+    private long lastTimestampNs = 0;
+    private long framesSinceLock = 0;
+    private long frameIntervalNs = 0;
+    private int vsyncsSinceLatch = 0;
+    private FrameStats stats = null;
+
+    /**
+     * @param vsyncIntervalNs Refresh interval of display, 16666667 for 60 Hz.
+     */
+    FramePacer(final long vsyncIntervalNs) {
+        this.vsyncIntervalNs = vsyncIntervalNs;
+    }
+
+    /**
+     * Call it once for every vsync, before drawing.
+     *
+     * @param vsyncTimeNs Time of the vsync which wakes render thread.
+     * @param pendingFrames Frames decoder queued to SurfaceTexture but not latched.
+     * @return int Frames to latch now, the last one is shown and others are skipped.
+     */
+    int getFramesToLatch(final long vsyncTimeNs, final int pendingFrames) {
+        ++vsyncsSinceLatch;
+        if (pendingFrames <= 0) {
+            return 0;
+        }
+        if (lockVsyncNs < 0 || frameIntervalNs <= 0) {
+            return 1;
+        }
+        // Frames are asked a quarter vsync after they are due, they had the same time to
+        // arrive as the lock frame, and cadence boundaries stay away from vsyncs.
+        final long elapsedNs = vsyncTimeNs - lockVsyncNs - vsyncIntervalNs / 4;
+        int count = 0;
+        while (count < pendingFrames &&
+            (framesSinceLock + count + 1) * frameIntervalNs <= elapsedNs) {
+            ++count;
+        }
+        if (count == 0 && pendingFrames > MAX_PENDING_FRAMES) {
+            lockVsyncNs = -1;
+            return 1;
+        }
+        return count;
+    }
+
+    /**
+     * @param vsyncTimeNs Same as the one passed to getFramesToLatch().
+     * @param timestampNs SurfaceTexture.getTimestamp() after latching.
+     * @param count Frames latched.
+     */
+    void onFramesLatched(final long vsyncTimeNs, final long timestampNs, final int count) {
+        final int holdVsyncs = vsyncsSinceLatch;
+        vsyncsSinceLatch = 0;
+        if (lockVsyncNs < 0 || count <= 0 || timestampNs <= lastTimestampNs ||
+            timestampNs - lastTimestampNs > MAX_FRAME_INTERVAL_NS * count) {
+            // Keep old interval as a guess, it is most likely the same video.
+            lockVsyncNs = vsyncTimeNs;
+            lockTimestampNs = timestampNs;
+            lastTimestampNs = timestampNs;
+            framesSinceLock = 0;
+            return;
+        }
+        framesSinceLock += count;
+        lastTimestampNs = timestampNs;
+        frameIntervalNs = (timestampNs - lockTimestampNs) / framesSinceLock;
+        if (framesSinceLock - count >= WARMUP_FRAMES) {
+            recordHold(holdVsyncs);
+        }
+    }
+
+    /**
+     * Forget timeline and interval, for a new video.
+     */
+    void reset() {
+        lockVsyncNs = -1;
+        lastTimestampNs = 0;
+        framesSinceLock = 0;
+        frameIntervalNs = 0;
+        vsyncsSinceLatch = 0;
+    }
+
+    long getVsyncIntervalNs() {
+        return vsyncIntervalNs;
+    }
+
+    /**
+     * @return long Estimated interval of video frames, 0 if unknown.
+     */
+    long getFrameIntervalNs() {
+        return frameIntervalNs;
+    }
+
+    /**
+     * @return FrameStats How long each video frame stays on screen, with frame interval
+     * as budget, or null if no frames are counted yet.
+     */
+    FrameStats getStats() {
+        return stats;
+    }
+
+    private void recordHold(final int holdVsyncs) {
+        if (stats == null ||
+            Math.abs(stats.getFrameBudgetNs() - frameIntervalNs) > frameIntervalNs / 10) {
+            stats = new FrameStats(frameIntervalNs);
+        }
+        stats.addInterval(holdVsyncs * vsyncIntervalNs);
+        // 2.5 vsyncs per frame should alternate 2 and 3, anything else is judder.
+        final double ratio = (double)frameIntervalNs / vsyncIntervalNs;
+        if (holdVsyncs < Math.floor(ratio + 0.1) || holdVsyncs > Math.ceil(ratio - 0.1)) {
+            stats.addJudder();
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2019 Alynx Zhou
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.alynx.livewallpaper;
+
+import android.support.annotation.NonNull;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ *
+ * FrameRatePolicy: decide what frame rate hint a video wallpaper gives its surface.
+ *
+ * EXACT: display has a mode at video frame rate, every vsync shows a new frame.
+ * MULTIPLE: display has a mode at a multiple of video frame rate, frames repeat evenly.
+ * DONT_CARE: nothing fits or frame rate is unknown, let compositor choose.
+ *
+ * For EXACT and MULTIPLE the hint is video frame rate with fixed source compatibility,
+ * compositor picks the mode itself, target refresh rate is only what we expect it to pick.
+ *
+ * It is plain Java, engine gives it display modes and applies the decision.
+ *
+ */
+class FrameRatePolicy {
+    @SuppressWarnings("unused")
+    private static final String TAG = "FrameRatePolicy";
+    // Surface.FRAME_RATE_COMPATIBILITY_* of API 30.
+    static final int COMPATIBILITY_DEFAULT = 0;
+    static final int COMPATIBILITY_FIXED_SOURCE = 1;
+    // 23.976 and 24 are the same for a display, 59.94 and 60 too.
+    private static final float TOLERANCE = 0.01f;
+    private final float[] refreshRates;
+
+    enum Mode {
+        EXACT,
+        MULTIPLE,
+        DONT_CARE
+    }
+
+    static class Decision {
+        private final Mode mode;
+        private final float frameRate;
+        private final float targetRefreshRate;
+
+        Decision(@NonNull final Mode mode, final float frameRate, final float targetRefreshRate) {
+            this.mode = mode;
+            this.frameRate = frameRate;
+            this.targetRefreshRate = targetRefreshRate;
+        }
+
+        @NonNull
+        Mode getMode() {
+            return mode;
+        }
+
+        /**
+         * @return float Hint for Surface.setFrameRate(), 0 means no preference.
+         */
+        float getFrameRate() {
+            return frameRate;
+        }
+
+        int getCompatibility() {
+            return mode == Mode.DONT_CARE ? COMPATIBILITY_DEFAULT : COMPATIBILITY_FIXED_SOURCE;
+        }
+
+        /**
+         * @return float Refresh rate we expect compositor to pick, 0 if we don't know.
+         */
+        float getTargetRefreshRate() {
+            return targetRefreshRate;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return String.format(
+                Locale.US, "%s %.2f fps on %.2f Hz", mode, frameRate, targetRefreshRate
+            );
+        }
+    }
+
+    /**
+     * @param refreshRates Refresh rates of display modes at current resolution.
+     */
+    FrameRatePolicy(@NonNull final float[] refreshRates) {
+        this.refreshRates = Arrays.copyOf(refreshRates, refreshRates.length);
+        // Lowest first, it costs least power.
+        Arrays.sort(this.refreshRates);
+    }
+
+    /**
+     * @param videoFrameRate Nominal frame rate from metadata, 0 if unknown.
+     */
+    @NonNull
+    Decision decide(final float videoFrameRate) {
+        if (videoFrameRate <= 0) {
+            return new Decision(Mode.DONT_CARE, 0, 0);
+        }
+        for (float refreshRate : refreshRates) {
+            if (Math.abs(refreshRate - videoFrameRate) <= videoFrameRate * TOLERANCE) {
+                return new Decision(Mode.EXACT, videoFrameRate, refreshRate);
+            }
+        }
+        for (float refreshRate : refreshRates) {
+            final float ratio = refreshRate / videoFrameRate;
+            final long multiple = Math.round(ratio);
+            if (multiple >= 2 && Math.abs(ratio - multiple) <= multiple * TOLERANCE) {
+                return new Decision(Mode.MULTIPLE, videoFrameRate, refreshRate);
+            }
+        }
+        return new Decision(Mode.DONT_CARE, 0, 0);
+    }
+}
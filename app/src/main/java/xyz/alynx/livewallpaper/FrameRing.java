@@ -0,0 +1,131 @@
+/*
+ * Copyright 2019 Alynx Zhou
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.alynx.livewallpaper;
+
+/**
+ *
+ * FrameRing: hand decoded frames from a decoder thread to renderer, in a few fixed slots.
+ *
+ * Slots are used in order: the one shown, then the queued ones, then the free ones.
+ * Decoder waits for a free slot, so it never runs more than the ring ahead of screen,
+ * and stops using CPU when renderer stops drawing. Renderer advances on vsync, a frame is
+ * replaced when its duration from the file has passed. A frame which comes a bit late keeps
+ * the timeline, one which comes much later starts it again, so a slow decoder or a hidden
+ * wallpaper does not make frames skip to catch up.
+ *
+ * Slots are only indices, owner keeps its bitmaps and textures in arrays of the same size.
+ *
+ * It is plain Java, so it can be tested with synthetic times.
+ *
+ */
+class FrameRing {
+    @SuppressWarnings("unused")
+    private static final String TAG = "FrameRing";
+    // Later than this, timeline starts again from now, for example after being hidden.
+    static final long MAX_LATE_NS = 100 * 1000000L;
+    private final int[] durationsMs;
+    private int head = 0;
+    private int queued = 0;
+    private int shown = -1;
+    private long shownUntilNs = 0;
+    private boolean closed = false;
+
+    FrameRing(final int size) {
+        if (size < 2) {
+            throw new IllegalArgumentException("Ring needs at least 2 slots");
+        }
+        durationsMs = new int[size];
+    }
+
+    int getSize() {
+        return durationsMs.length;
+    }
+
+    /**
+     * Called by decoder, blocks until a slot is free.
+     *
+     * @return int Slot to decode next frame into, or -1 if ring is closed.
+     */
+    synchronized int dequeueFree() throws InterruptedException {
+        while (!closed && queued + (shown >= 0 ? 1 : 0) == durationsMs.length) {
+            wait();
+        }
+        return closed ? -1 : (head + queued) % durationsMs.length;
+    }
+
+    /**
+     * Called by decoder after a frame is ready in the slot from dequeueFree().
+     */
+    synchronized void queue(final int slot, final int durationMs) {
+        if (slot != (head + queued) % durationsMs.length) {
+            throw new IllegalStateException("Slot " + slot + " is not the free one");
+        }
+        durationsMs[slot] = durationMs;
+        ++queued;
+    }
+
+    /**
+     * Called by renderer on vsync.
+     *
+     * @param nowNs Time the frame will be on screen.
+     * @return int Slot of a frame shown from now on, or -1 if shown frame does not change.
+     */
+    synchronized int advance(final long nowNs) {
+        if (queued == 0) {
+            return -1;
+        }
+        if (shown < 0) {
+            show(nowNs);
+            return shown;
+        }
+        if (nowNs < shownUntilNs) {
+            return -1;
+        }
+        while (queued > 0 && nowNs >= shownUntilNs) {
+            show(nowNs - shownUntilNs > MAX_LATE_NS ? nowNs : shownUntilNs);
+        }
+        return shown;
+    }
+
+    /**
+     * @return int Slot on screen, -1 before the first frame.
+     */
+    synchronized int getShownSlot() {
+        return shown;
+    }
+
+    synchronized int getQueuedCount() {
+        return queued;
+    }
+
+    /**
+     * Wake up and stop decoder, renderer may still show what is queued.
+     */
+    synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    private void show(final long startNs) {
+        shown = head;
+        head = (head + 1) % durationsMs.length;
+        --queued;
+        shownUntilNs = startNs + durationsMs[shown] * 1000000L;
+        // Old shown slot is free now.
+        notifyAll();
+    }
+}
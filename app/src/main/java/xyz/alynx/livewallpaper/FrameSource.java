@@ -0,0 +1,64 @@
+/*
+ * Copyright 2019 Alynx Zhou
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.alynx.livewallpaper;
+
+import android.support.annotation.NonNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ *
+ * FrameSource: frames of an animated image, decoded one by one from a stream.
+ *
+ * Implementations keep only what the next frame needs, not the whole file or every frame,
+ * and compose frames onto a canvas given by caller, so disposal and blending of partial
+ * frames work like in a browser. After the last frame they open the stream again and go on
+ * from the first one, so a caller just keeps reading.
+ *
+ */
+interface FrameSource extends Closeable {
+    // Browsers show GIF delays shorter than this as 100 ms, files rely on it.
+    int MIN_DELAY_MS = 20;
+    int DEFAULT_DELAY_MS = 100;
+
+    /**
+     * Opens the file from its beginning, once for every loop.
+     */
+    interface Opener {
+        @NonNull
+        InputStream open() throws IOException;
+    }
+
+    int getWidth();
+
+    int getHeight();
+
+    /**
+     * @return int Frames in a loop, or 0 if it is not known before the first loop ends.
+     */
+    int getFrameCount();
+
+    /**
+     * @param argb Canvas of getWidth() * getHeight() pixels, must be the same array for
+     *             every call, because frames are drawn over the previous ones.
+     * @return int How long this frame is shown in ms.
+     * @throws IOException if stream is broken, canvas keeps what was decoded.
+     */
+    int readFrame(@NonNull final int[] argb) throws IOException;
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright 2019 Alynx Zhou
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.alynx.livewallpaper;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+
+/**
+ *
+ * FrameSourcePlayer: decode an animated image on its own thread into a ring of bitmaps.
+ *
+ * Frames are composed on one canvas and copied into the free bitmap of the ring, renderer
+ * uploads a bitmap into the texture of the same slot when its frame is due. Nothing is
+ * allocated per frame, and decoder blocks on the ring when renderer stops drawing,
+ * so a hidden wallpaper does not decode.
+ *
+ */
+class FrameSourcePlayer {
+    @SuppressWarnings("unused")
+    private static final String TAG = "FrameSourcePlayer";
+    // One shown, one queued, one being decoded.
+    static final int RING_SIZE = 3;
+    private final FrameSource source;
+    private final FrameRing ring;
+    private final Bitmap[] bitmaps;
+    private final int[] canvas;
+    private Thread thread = null;
+
+    FrameSourcePlayer(@NonNull final FrameSource source) {
+        this.source = source;
+        ring = new FrameRing(RING_SIZE);
+        bitmaps = new Bitmap[RING_SIZE];
+        for (int i = 0; i < RING_SIZE; ++i) {
+            bitmaps[i] = Bitmap.createBitmap(
+                source.getWidth(), source.getHeight(), Bitmap.Config.ARGB_8888
+            );
+        }
+        canvas = new int[source.getWidth() * source.getHeight()];
+    }
+
+    /**
+     * @throws IOException if card cannot be read or is not an animated image.
+     */
+    @NonNull
+    static FrameSource openSource(
+        @NonNull final Context context,
+        @NonNull final WallpaperCard wallpaperCard
+    ) throws IOException {
+        return FrameSources.open(
+            createOpener(context, wallpaperCard.getType(), wallpaperCard.getPath(),
+                wallpaperCard.getUri()),
+            new PlatformWebpDecoder()
+        );
+    }
+
+    /**
+     * Users pick images and shaders from the same picker as videos, tell them by content.
+     */
+    @NonNull
+    static WallpaperCard.Kind detectKind(@NonNull final Context context, @NonNull final Uri uri) {
+        try {
+            final byte[] header = new byte[FrameSources.PROBE_BYTES];
+            final int length = FrameSources.readHeader(createOpener(
+                context, WallpaperCard.Type.EXTERNAL, uri.toString(), uri
+            ), header);
+            if (FrameSources.isAnimated(header, length)) {
+                return WallpaperCard.Kind.ANIMATION;
+            }
+            // Import compiles it, so other text files get a compiler error, not a card.
+            if (ShaderSource.isText(header, length)) {
+                return WallpaperCard.Kind.SHADER;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        // Still PNG and WebP are cheaper as a texture than as a frame source.
+        return StillImageLoader.canDecode(context, uri) ?
+            WallpaperCard.Kind.IMAGE : WallpaperCard.Kind.VIDEO;
+    }
+
+    int getWidth() {
+        return source.getWidth();
+    }
+
+    int getHeight() {
+        return source.getHeight();
+    }
+
+    @NonNull
+    FrameRing getRing() {
+        return ring;
+    }
+
+    /**
+     * Only valid for the slot FrameRing.advance() returned, decoder writes the others.
+     */
+    @NonNull
+    Bitmap getBitmap(final int slot) {
+        return bitmaps[slot];
+    }
+
+    void start() {
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ThreadTopology.getInstance().applyToCurrentThread(ThreadPolicy.Role.PLAYBACK);
+                decodeFrames();
+            }
+        }, ThreadPolicy.FRAME_THREAD_NAME);
+        thread.start();
+    }
+
+    /**
+     * Bitmaps are left to GC, renderer may still be uploading one.
+     */
+    void release() {
+        ring.close();
+        if (thread != null) {
+            thread.interrupt();
+            thread = null;
+        }
+    }
+
+    private void decodeFrames() {
+        final int width = source.getWidth();
+        final int height = source.getHeight();
+        long decodeMs = 0;
+        int frames = 0;
+        try {
+            while (true) {
+                final int slot = ring.dequeueFree();
+                if (slot < 0) {
+                    break;
+                }
+                final long startTime = SystemClock.uptimeMillis();
+                final int durationMs = source.readFrame(canvas);
+                bitmaps[slot].setPixels(canvas, 0, width, 0, 0, width, height);
+                decodeMs += SystemClock.uptimeMillis() - startTime;
+                ring.queue(slot, durationMs);
+                ++frames;
+                final int frameCount = source.getFrameCount();
+                if (frameCount == 1) {
+                    Utils.debug(TAG, "Still image, decoder stopped");
+                    break;
+                }
+                if (frameCount > 0 && frames % frameCount == 0) {
+                    Utils.debug(TAG, String.format(
+                        Locale.US, "Decoded %d frames of %dx%d, %.1f ms per frame",
+                        frames, width, height, (float)decodeMs / frames
+                    ));
+                }
+            }
+        } catch (InterruptedException e) {
+            // Released.
+        } catch (IOException e) {
+            // Renderer keeps what it has.
+            e.printStackTrace();
+        } finally {
+            try {
+                source.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    @NonNull
+    private static FrameSource.Opener createOpener(
+        @NonNull final Context context,
+        @NonNull final WallpaperCard.Type type,
+        @NonNull final String path,
+        @NonNull final Uri uri
+    ) {
+        final Context appContext = context.getApplicationContext();
+        return new FrameSource.Opener() {
+            @NonNull
+            @Override
+            public InputStream open() throws IOException {
+                if (type == WallpaperCard.Type.INTERNAL) {
+                    return appContext.getAssets().open(path);
+                }
+                final InputStream input = appContext.getContentResolver().openInputStream(uri);
+                if (input == null) {
+                    throw new IOException("Cannot open " + uri);
+                }
+                return input;
+            }
+        };
+    }
+
+    /**
+     * WebP bitstreams are decoded by platform into one reused bitmap.
+     */
+    private static class PlatformWebpDecoder implements WebpDecoder.BitstreamDecoder {
+        private final BitmapFactory.Options options = new BitmapFactory.Options();
+        private Bitmap reused = null;
+
+        PlatformWebpDecoder() {
+            options.inMutable = true;
+            options.inPremultiplied = false;
+            options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        }
+
+        @Override
+        public void decode(
+            @NonNull final byte[] webp,
+            final int length,
+            final int width,
+            final int height,
+            @NonNull final int[] argb
+        ) throws IOException {
+            // A reused bitmap is reconfigured to smaller frames, grow it for larger ones.
+            if (reused == null || reused.getAllocationByteCount() < width * height * 4) {
+                reused = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            }
+            options.inBitmap = reused;
+            final Bitmap bitmap;
+            try {
+                bitmap = BitmapFactory.decodeByteArray(webp, 0, length, options);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Cannot reuse bitmap for WebP frame", e);
+            }
+            if (bitmap == null || bitmap.getWidth() != width || bitmap.getHeight() != height) {
+                throw new IOException(String.format(
+                    Locale.US, "Cannot decode WebP frame of %dx%d", width, height
+                ));
+            }
+            reused = bitmap;
+            bitmap.getPixels(argb, 0, width, 0, 0, width, height);
+        }
+    }
+}
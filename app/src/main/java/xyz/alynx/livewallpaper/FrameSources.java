@@ -0,0 +1,186 @@
+/*
+ * Copyright 2019 Alynx Zhou
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.alynx.livewallpaper;
+
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ *
+ * FrameSources: tell animated image formats from their first bytes and open a decoder.
+ *
+ * It is plain Java, so it can be tested without files.
+ *
+ */
+final class FrameSources {
+    @SuppressWarnings("unused")
+    private static final String TAG = "FrameSources";
+    // Every frame is kept a few times as canvas and bitmaps, larger ones are not wallpapers.
+    static final int MAX_PIXELS = 4 * 1024 * 1024;
+    static final int SNIFF_BYTES = 12;
+    // Animation control of PNG comes before image data, which starts in the first KBs.
+    static final int PROBE_BYTES = 4096;
+
+    enum Format {
+        GIF,
+        PNG,
+        WEBP
+    }
+
+    private FrameSources() {
+    }
+
+    /**
+     * @return Format of header, or null if it is not an image we can stream.
+     */
+    static Format sniff(@NonNull final byte[] header, final int length) {
+        if (length >= 6 && header[0] == 'G' && header[1] == 'I' && header[2] == 'F' &&
+            header[3] == '8' && (header[4] == '7' || header[4] == '9') && header[5] == 'a') {
+            return Format.GIF;
+        }
+        if (length >= 8 && (header[0] & 0xff) == 0x89 && header[1] == 'P' &&
+            header[2] == 'N' && header[3] == 'G' && header[4] == '\r' && header[5] == '\n' &&
+            header[6] == 0x1a && header[7] == '\n') {
+            return Format.PNG;
+        }
+        if (length >= 12 && header[0] == 'R' && header[1] == 'I' && header[2] == 'F' &&
+            header[3] == 'F' && header[8] == 'W' && header[9] == 'E' && header[10] == 'B' &&
+            header[11] == 'P') {
+            return Format.WEBP;
+        }
+        return null;
+    }
+
+    /**
+     * @return Format of the file, or null if it is not an image we can stream.
+     */
+    static Format sniff(@NonNull final FrameSource.Opener opener) throws IOException {
+        final byte[] header = new byte[SNIFF_BYTES];
+        return sniff(header, readHeader(opener, header));
+    }
+
+    /**
+     * GIF is always taken as animated, a still one just stops after its frame.
+     *
+     * @param header First bytes of file, PROBE_BYTES are enough for PNG.
+     * @return boolean true if the image has more than one frame, false if it is still,
+     *         not an image we can stream, or the header is too short to tell.
+     */
+    static boolean isAnimated(@NonNull final byte[] header, final int length) {
+        final Format format = sniff(header, length);
+        if (format == null) {
+            return false;
+        }
+        switch (format) {
+        case GIF:
+            return true;
+        case PNG:
+            int offset = 8;
+            while (offset + 8 <= length) {
+                final int chunkLength = getInt(header, offset);
+                final int type = getInt(header, offset + 4);
+                if (type == PngDecoder.ACTL) {
+                    return true;
+                }
+                if (type == PngDecoder.IDAT || chunkLength < 0) {
+                    return false;
+                }
+                // Length, type, data and CRC.
+                offset += 12 + chunkLength;
+            }
+            return false;
+        default:
+            // Only extended WebP has animation, its flags follow the chunk header.
+            return length > 20 && header[12] == 'V' && header[13] == 'P' &&
+                header[14] == '8' && header[15] == 'X' && (header[20] & 0x02) != 0;
+        }
+    }
+
+    /**
+     * @return int Bytes read into header, less than its size if file is shorter.
+     */
+    static int readHeader(
+        @NonNull final FrameSource.Opener opener,
+        @NonNull final byte[] header
+    ) throws IOException {
+        final InputStream input = opener.open();
+        try {
+            int length = 0;
+            while (length < header.length) {
+                final int count = input.read(header, length, header.length - length);
+                if (count < 0) {
+                    break;
+                }
+                length += count;
+            }
+            return length;
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * @param bitstreamDecoder Decodes WebP frames, which are too complex to decode here.
+     * @throws IOException if it is not an image we can stream, or it is broken.
+     */
+    @NonNull
+    static FrameSource open(
+        @NonNull final FrameSource.Opener opener,
+        @NonNull final WebpDecoder.BitstreamDecoder bitstreamDecoder
+    ) throws IOException {
+        final Format format = sniff(opener);
+        if (format == null) {
+            throw new IOException("Not an animated image");
+        }
+        switch (format) {
+        case GIF:
+            return new GifDecoder(opener);
+        case PNG:
+            return new PngDecoder(opener);
+        default:
+            return new WebpDecoder(opener, bitstreamDecoder);
+        }
+    }
+
+    private static int getInt(@NonNull final byte[] bytes, final int offset) {
+        return (bytes[offset] & 0xff) << 24 | (bytes[offset + 1] & 0xff) << 16 |
+            (bytes[offset + 2] & 0xff) << 8 | (bytes[offset + 3] & 0xff);
+    }
+
+    /**
+     * Draw a pixel over another, both not premultiplied.
+     */
+    static int blendOver(final int source, final int target) {
+        final int sourceAlpha = source >>> 24;
+        if (sourceAlpha == 0xff) {
+            return source;
+        }
+        if (sourceAlpha == 0) {
+            return target;
+        }
+        final int targetAlpha = (target >>> 24) * (0xff - sourceAlpha) / 0xff;
+        final int alpha = sourceAlpha + targetAlpha;
+        final int red = (((source >> 16) & 0xff) * sourceAlpha +
+            ((target >> 16) & 0xff) * targetAlpha) / alpha;
+        final int green = (((source >> 8) & 0xff) * sourceAlpha +
+            ((target >> 8) & 0xff) * targetAlpha) / alpha;
+        final int blue = ((source & 0xff) * sourceAlpha + (target & 0xff) * targetAlpha) / alpha;
+        return alpha << 24 | red << 16 | green << 8 | blue;
+    }
+}
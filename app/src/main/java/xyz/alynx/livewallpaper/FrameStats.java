@@ -0,0 +1,146 @@
+/*
+ * Copyright 2019 Alynx Zhou
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.alynx.livewallpaper;
+
+import android.support.annotation.NonNull;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ *
+ * FrameStats: collect frame intervals and summarize them.
+ *
+ * It is plain Java without Android classes, so it is easy to test and to feed with
+ * timestamps from Choreographer, render thread or tests.
+ *
+ */
+class FrameStats {
+    @SuppressWarnings("unused")
+    private static final String TAG = "FrameStats";
+    private static final int INITIAL_CAPACITY = 256;
+    private final long frameBudgetNs;
+    private long[] intervals = new long[INITIAL_CAPACITY];
+    private int count = 0;
+    private long lastFrameTimeNs = -1;
+    private int jankCount = 0;
+    private int droppedFrames = 0;
+    private int judderCount = 0;
+
+    /**
+     * @param frameBudgetNs Expected interval of frames, 16666667 for 60 Hz.
+     */
+    FrameStats(final long frameBudgetNs) {
+        this.frameBudgetNs = frameBudgetNs;
+    }
+
+    /**
+     * @param frameTimeNs Timestamp of a frame, in nanoseconds.
+     *
+     * The first frame only sets the base.
+     */
+    void addFrame(final long frameTimeNs) {
+        if (lastFrameTimeNs >= 0) {
+            addInterval(frameTimeNs - lastFrameTimeNs);
+        }
+        lastFrameTimeNs = frameTimeNs;
+    }
+
+    void addInterval(final long intervalNs) {
+        if (count == intervals.length) {
+            intervals = Arrays.copyOf(intervals, count * 2);
+        }
+        intervals[count++] = intervalNs;
+        // Half a budget of tolerance for vsync jitter.
+        if (intervalNs > frameBudgetNs + frameBudgetNs / 2) {
+            ++jankCount;
+            droppedFrames += (int)((intervalNs + frameBudgetNs / 2) / frameBudgetNs) - 1;
+        }
+    }
+
+    /**
+     * Count a frame shown for an uneven number of vsyncs, decided by caller like FramePacer.
+     */
+    void addJudder() {
+        ++judderCount;
+    }
+
+    void reset() {
+        count = 0;
+        lastFrameTimeNs = -1;
+        jankCount = 0;
+        droppedFrames = 0;
+        judderCount = 0;
+    }
+
+    long getFrameBudgetNs() {
+        return frameBudgetNs;
+    }
+
+    int getFrameCount() {
+        return count;
+    }
+
+    int getJankCount() {
+        return jankCount;
+    }
+
+    int getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    int getJudderCount() {
+        return judderCount;
+    }
+
+    /**
+     * @param percentile From 0 to 100.
+     * @return long Interval in nanoseconds, 0 if no frames.
+     */
+    long getPercentileNs(final int percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        final long[] sorted = Arrays.copyOf(intervals, count);
+        Arrays.sort(sorted);
+        final int index = (int)Math.ceil(percentile / 100.0 * count) - 1;
+        return sorted[Math.max(0, Math.min(count - 1, index))];
+    }
+
+    long getMaxNs() {
+        return getPercentileNs(100);
+    }
+
+    /**
+     * @return float Ratio of janky frames, 0 if no frames.
+     */
+    float getJankRatio() {
+        return count == 0 ? 0 : (float)jankCount / count;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return String.format(
+            Locale.US, "%d frames, p50 %.1f ms, p90 %.1f ms, p99 %.1f ms, max %.1f ms, " +
+                "%d janky (%.1f%%), %d dropped, %d judder",
+            count, getPercentileNs(50) / 1e6, getPercentileNs(90) / 1e6,
+            getPercentileNs(99) / 1e6, getMaxNs() / 1e6, jankCount, getJankRatio() * 100,
+            droppedFrames, judderCount
+        );
+    }
+}
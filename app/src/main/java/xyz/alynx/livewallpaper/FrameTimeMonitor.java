@@ -0,0 +1,79 @@
+/*
+ * Copyright 2019 Alynx Zhou
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.alynx.livewallpaper;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.view.Choreographer;
+import android.view.WindowManager;
+
+/**
+ *
+ * FrameTimeMonitor: record UI frame intervals with Choreographer.
+ *
+ * Start and stop it on main thread, for example when a list starts and stops scrolling.
+ *
+ */
+class FrameTimeMonitor implements Choreographer.FrameCallback {
+    @SuppressWarnings("unused")
+    private static final String TAG = "FrameTimeMonitor";
+    private final FrameStats stats;
+    private boolean running = false;
+
+    FrameTimeMonitor(@NonNull final Context context) {
+        final WindowManager windowManager = (WindowManager)context.getSystemService(
+            Context.WINDOW_SERVICE
+        );
+        float refreshRate = 60;
+        if (windowManager != null) {
+            refreshRate = windowManager.getDefaultDisplay().getRefreshRate();
+        }
+        stats = new FrameStats((long)(1e9 / refreshRate));
+    }
+
+    void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        stats.reset();
+        Choreographer.getInstance().postFrameCallback(this);
+    }
+
+    /**
+     * @return FrameStats of frames since start().
+     */
+    @NonNull
+    FrameStats stop() {
+        running = false;
+        Choreographer.getInstance().removeFrameCallback(this);
+        return stats;
+    }
+
+    boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public void doFrame(final long frameTimeNanos) {
+        if (!running) {
+            return;
+        }
+        stats.addFrame(frameTimeNanos);
+        Choreographer.getInstance().postFrameCallback(this);
+    }
+}
@@ -17,10 +17,15 @@
 package xyz.alynx.livewallpaper;
 
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.graphics.SurfaceTexture;
 import android.opengl.GLES11Ext;
+import android.opengl.ETC1;
+import android.opengl.ETC1Util;
 import android.opengl.GLES20;
+import android.opengl.GLUtils;
 import android.opengl.Matrix;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.view.Surface;
 
@@ -31,25 +36,75 @@ import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
 import java.util.Locale;
-
-import javax.microedition.khronos.egl.EGLConfig;
-import javax.microedition.khronos.opengles.GL10;
+import java.util.concurrent.atomic.AtomicReference;
 
 class GLES20WallpaperRenderer extends GLWallpaperRenderer {
     @SuppressWarnings("unused")
     private static final String TAG = "GLES20WallpaperRenderer";
     private static final int BYTES_PER_FLOAT = 4;
     private static final int BYTES_PER_INT = 4;
+    private static final long CROSSFADE_MS = 300;
     private final FloatBuffer vertices;
     private final FloatBuffer texCoords;
     private final IntBuffer indices;
     private final int[] textures;
     private final int[] buffers;
+    private final int[] posterTextures;
     private final float[] mvp;
+    private final float[] posterMvp;
+    private final float[] captureMvp;
+    // No timer query in OpenGL ES 2, render scale only follows source density.
+    private final int[] scaleFramebuffers;
+    private final int[] scaleTextures;
+    private final float[] scaleMvp;
+    private int scaleTargetWidth = 0;
+    private int scaleTargetHeight = 0;
+    // Every frame of a short loop, so player can be released after recording.
+    private final int[] loopFramebuffers;
+    private int[] loopTextures = new int[0];
+    private LoopRing loopRing = null;
+    private OnLoopCachedListener loopListener = null;
+    // Flipbook frame shown, uploaded from mapped file when it changes.
+    private final int[] flipbookTextures;
+    private FlipbookFile flipbook = null;
+    private LoopClock flipbookClock = null;
+    private int flipbookIndex = -1;
+    // One texture per bitmap of the animated image player, uploaded when its frame is due.
+    private int[] frameSourceTextures = new int[0];
+    private boolean[] frameSourceAllocated = new boolean[0];
+    private FrameSourcePlayer frameSourcePlayer = null;
+    // Still image, uploaded once and drawn on redraw requests only.
+    private final int[] stillTextures;
+    private boolean hasStillImage = false;
+    // Procedural wallpaper, user's fragment shader drawn every frame.
+    private int shaderProgram = 0;
+    private int shaderPositionLocation = 0;
+    private int shaderTimeLocation = 0;
+    private int shaderResolutionLocation = 0;
+    private int shaderOffsetLocation = 0;
+    private long shaderStartTimeNs = 0;
+    // Shader draws its own crop, so it gets offsets before clamping.
+    private float shaderXOffset = 0;
+    private float shaderYOffset = 0;
+    // GPU without ETC1 gets frames decoded into this.
+    private ByteBuffer flipbookPixels = null;
     private int program = 0;
     private int mvpLocation = 0;
     private int positionLocation = 0;
     private int texCoordLocation = 0;
+    private int posterProgram = 0;
+    private int posterMvpLocation = 0;
+    private int posterAlphaLocation = 0;
+    private int posterPositionLocation = 0;
+    private int posterTexCoordLocation = 0;
+    // Set by engine thread, uploaded on GL thread.
+    private final AtomicReference<PosterCache.Poster> pendingPoster = new AtomicReference<>();
+    private boolean hasPoster = false;
+    private long posterShownTime = 0;
+    private long fadeStartTime = 0;
+    private final AtomicReference<CaptureRequest> pendingCapture = new AtomicReference<>();
+    private int viewportWidth = 0;
+    private int viewportHeight = 0;
     private SurfaceTexture surfaceTexture = null;
     private int screenWidth = 0;
     private int screenHeight = 0;
@@ -111,16 +166,32 @@ class GLES20WallpaperRenderer extends GLWallpaperRenderer {
 
         buffers = new int[3];
         textures = new int[1];
+        posterTextures = new int[1];
+        captureMvp = new float[16];
+        scaleFramebuffers = new int[1];
+        scaleTextures = new int[1];
+        scaleMvp = new float[16];
+        loopFramebuffers = new int[1];
+        flipbookTextures = new int[1];
+        stillTextures = new int[1];
+        // Offscreen target is upside down compared with our quad's texture coordinates.
+        setCaptureMatrix(scaleMvp, 0);
         mvp = new float[] {
             1.0f, 0.0f, 0.0f, 0.0f,
             0.0f, 1.0f, 0.0f, 0.0f,
             0.0f, 0.0f, 1.0f, 0.0f,
             0.0f, 0.0f, 0.0f, 1.0f
         };
+        posterMvp = new float[] {
+            1.0f, 0.0f, 0.0f, 0.0f,
+            0.0f, 1.0f, 0.0f, 0.0f,
+            0.0f, 0.0f, 1.0f, 0.0f,
+            0.0f, 0.0f, 0.0f, 1.0f
+        };
     }
 
     @Override
-    public void onSurfaceCreated(GL10 gl10, EGLConfig eglConfig) {
+    void onSurfaceCreated() {
         // No depth test for 2D video.
         GLES20.glDisable(GLES20.GL_DEPTH_TEST);
         GLES20.glDepthMask(false);
@@ -163,6 +234,35 @@ class GLES20WallpaperRenderer extends GLWallpaperRenderer {
         positionLocation = GLES20.glGetAttribLocation(program, "in_position");
         texCoordLocation = GLES20.glGetAttribLocation(program, "in_tex_coord");
 
+        posterProgram = Utils.linkProgramGLES20(
+            Utils.compileShaderResourceGLES20(
+                context, GLES20.GL_VERTEX_SHADER, R.raw.vertex_20
+            ),
+            Utils.compileShaderResourceGLES20(
+                context, GLES20.GL_FRAGMENT_SHADER, R.raw.fragment_poster_20
+            )
+        );
+        posterMvpLocation = GLES20.glGetUniformLocation(posterProgram, "mvp");
+        posterAlphaLocation = GLES20.glGetUniformLocation(posterProgram, "alpha");
+        posterPositionLocation = GLES20.glGetAttribLocation(posterProgram, "in_position");
+        posterTexCoordLocation = GLES20.glGetAttribLocation(posterProgram, "in_tex_coord");
+        // Textures of old context are gone.
+        posterTextures[0] = 0;
+        hasPoster = false;
+        scaleFramebuffers[0] = 0;
+        scaleTextures[0] = 0;
+        loopFramebuffers[0] = 0;
+        loopTextures = new int[0];
+        loopRing = null;
+        flipbookTextures[0] = 0;
+        flipbookIndex = -1;
+        frameSourceTextures = new int[0];
+        frameSourceAllocated = new boolean[0];
+        frameSourcePlayer = null;
+        stillTextures[0] = 0;
+        hasStillImage = false;
+        shaderProgram = 0;
+
         GLES20.glGenBuffers(buffers.length, buffers, 0);
 
         GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, buffers[0]);
@@ -190,27 +290,129 @@ class GLES20WallpaperRenderer extends GLWallpaperRenderer {
     }
 
     @Override
-    public void onSurfaceChanged(GL10 gl10, int width, int height) {
+    void onSurfaceChanged(final int width, final int height) {
+        viewportWidth = width;
+        viewportHeight = height;
         GLES20.glViewport(0, 0, width, height);
+        requestRedraw();
     }
 
     @Override
-    public void onDrawFrame(GL10 gl10) {
-        if (surfaceTexture == null) {
-            return;
+    boolean onDrawFrame(final long vsyncTimeNs) {
+        uploadPendingPoster();
+        applyLoopRequest();
+        applyFlipbookRequest();
+        applyFrameSourceRequest();
+        applyStillImageRequest();
+        applyShaderRequest();
+        if (surfaceTexture == null && !hasPoster && flipbook == null &&
+            frameSourcePlayer == null && !hasStillImage && shaderProgram == 0) {
+            return false;
         }
 
-        if (renderedFrame < updatedFrame) {
-            surfaceTexture.updateTexImage();
-            ++renderedFrame;
+        int latched = 0;
+        final boolean loopPlaying = loopRing != null &&
+            loopRing.getState() == LoopRing.State.PLAYING;
+        if (shaderProgram != 0) {
+            // Every frame is a new one, engine caps the rate.
+            latched = 1;
+        } else if (flipbook != null) {
+            if (uploadFlipbookFrame(vsyncTimeNs)) {
+                latched = 1;
+            }
+        } else if (frameSourcePlayer != null) {
+            if (uploadFrameSourceFrame(vsyncTimeNs)) {
+                latched = 1;
+            }
+        } else if (loopPlaying) {
+            if (loopRing.setShownIndex(
+                loopRing.getFrameIndex(vsyncTimeNs, getVsyncIntervalNs())
+            )) {
+                latched = 1;
+            }
+        } else if (surfaceTexture != null && renderedFrame < updatedFrame) {
+            if (loopRing != null) {
+                // Every frame must be recorded, so latch them one by one.
+                surfaceTexture.updateTexImage();
+                latched = 1;
+                recordLoopFrame();
+            } else {
+                latched = latchFrames(
+                    surfaceTexture, vsyncTimeNs, (int)(updatedFrame - renderedFrame)
+                );
+            }
+            renderedFrame += latched;
             // Utils.debug(
             //     TAG, "renderedFrame: " + renderedFrame + " updatedFrame: " + updatedFrame
             // );
         }
+        // Don't draw at display refresh rate when video is slower, it wastes power.
+        if (latched == 0 && !hasPoster && !consumeRedraw()) {
+            return false;
+        }
 
+        final boolean scaled = bindScaleTarget();
         GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+        if (shaderProgram != 0) {
+            drawShader(
+                vsyncTimeNs,
+                scaled ? getRenderScale().getRenderWidth() : viewportWidth,
+                scaled ? getRenderScale().getRenderHeight() : viewportHeight
+            );
+        } else if (flipbook != null) {
+            // Flipbook frames are upright, like poster.
+            drawTexture(flipbookTextures[0], posterMvp, 1.0f);
+        } else if (hasStillImage) {
+            drawTexture(stillTextures[0], posterMvp, 1.0f);
+        } else if (frameSourcePlayer != null) {
+            // Nothing is drawn before the first frame is uploaded.
+            final int slot = frameSourcePlayer.getRing().getShownSlot();
+            if (slot >= 0 && frameSourceAllocated[slot]) {
+                drawTexture(frameSourceTextures[slot], posterMvp, 1.0f);
+            }
+        } else if (loopPlaying) {
+            // Recorded frames are rotated, like poster.
+            drawTexture(loopTextures[loopRing.getShownIndex()], posterMvp, 1.0f);
+        } else if (surfaceTexture != null) {
+            drawVideo(mvp);
+        }
+        if (hasPoster) {
+            float alpha = 1.0f;
+            // Video has a frame, fade poster out.
+            if (renderedFrame > 0) {
+                final long now = SystemClock.uptimeMillis();
+                if (fadeStartTime == 0) {
+                    fadeStartTime = now;
+                    Utils.debug(TAG, String.format(
+                        Locale.US, "First video frame %d ms after poster",
+                        now - posterShownTime
+                    ));
+                }
+                alpha = 1.0f - (float)(now - fadeStartTime) / CROSSFADE_MS;
+            }
+            if (alpha > 0) {
+                drawTexture(posterTextures[0], posterMvp, alpha);
+            } else {
+                releasePoster();
+            }
+        }
+        if (scaled) {
+            // The single upscale pass.
+            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+            GLES20.glViewport(0, 0, viewportWidth, viewportHeight);
+            drawTexture(scaleTextures[0], scaleMvp, 1.0f);
+        }
+        // Captures draw video again at their own size, they don't need the scaled target.
+        if (surfaceTexture != null && renderedFrame > 0) {
+            captureIfRequested();
+        }
+        reportFirstDraw();
+        return true;
+    }
+
+    private void drawVideo(@NonNull final float[] matrix) {
         GLES20.glUseProgram(program);
-        GLES20.glUniformMatrix4fv(mvpLocation, 1, false, mvp, 0);
+        GLES20.glUniformMatrix4fv(mvpLocation, 1, false, matrix, 0);
         // No vertex array in OpenGL ES 2.
         GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, buffers[0]);
         GLES20.glEnableVertexAttribArray(positionLocation);
@@ -231,6 +433,612 @@ class GLES20WallpaperRenderer extends GLWallpaperRenderer {
         GLES20.glUseProgram(0);
     }
 
+    /**
+     * Shader only uses position of our quad, it makes texture coordinates from it.
+     */
+    private void drawShader(final long vsyncTimeNs, final int width, final int height) {
+        if (shaderStartTimeNs == 0) {
+            shaderStartTimeNs = vsyncTimeNs;
+        }
+        GLES20.glUseProgram(shaderProgram);
+        GLES20.glUniform1f(shaderTimeLocation, ShaderSource.getTime(vsyncTimeNs - shaderStartTimeNs));
+        GLES20.glUniform2f(shaderResolutionLocation, width, height);
+        GLES20.glUniform2f(shaderOffsetLocation, shaderXOffset, shaderYOffset);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, buffers[0]);
+        GLES20.glEnableVertexAttribArray(shaderPositionLocation);
+        GLES20.glVertexAttribPointer(
+            shaderPositionLocation, 2, GLES20.GL_FLOAT, false, 2 * BYTES_PER_FLOAT, 0
+        );
+        GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, buffers[2]);
+        GLES20.glDrawElements(GLES20.GL_TRIANGLES, 6, GLES20.GL_UNSIGNED_INT, 0);
+        GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
+        GLES20.glDisableVertexAttribArray(shaderPositionLocation);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        GLES20.glUseProgram(0);
+    }
+
+    /**
+     * Draw a 2D texture with poster program, for poster and offscreen target.
+     */
+    private void drawTexture(final int texture, @NonNull final float[] matrix, final float alpha) {
+        if (alpha < 1.0f) {
+            GLES20.glEnable(GLES20.GL_BLEND);
+            GLES20.glBlendFunc(GLES20.GL_SRC_ALPHA, GLES20.GL_ONE_MINUS_SRC_ALPHA);
+        }
+        GLES20.glUseProgram(posterProgram);
+        GLES20.glUniformMatrix4fv(posterMvpLocation, 1, false, matrix, 0);
+        GLES20.glUniform1f(posterAlphaLocation, alpha);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, buffers[0]);
+        GLES20.glEnableVertexAttribArray(posterPositionLocation);
+        GLES20.glVertexAttribPointer(
+            posterPositionLocation, 2, GLES20.GL_FLOAT, false, 2 * BYTES_PER_FLOAT, 0
+        );
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, buffers[1]);
+        GLES20.glEnableVertexAttribArray(posterTexCoordLocation);
+        GLES20.glVertexAttribPointer(
+            posterTexCoordLocation, 2, GLES20.GL_FLOAT, false, 2 * BYTES_PER_FLOAT, 0
+        );
+        GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, buffers[2]);
+        GLES20.glDrawElements(GLES20.GL_TRIANGLES, 6, GLES20.GL_UNSIGNED_INT, 0);
+        GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
+        GLES20.glDisableVertexAttribArray(posterTexCoordLocation);
+        GLES20.glDisableVertexAttribArray(posterPositionLocation);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        GLES20.glUseProgram(0);
+        GLES20.glDisable(GLES20.GL_BLEND);
+    }
+
+    /**
+     * Bind offscreen target if render scale wants one, (re)create it when size changes.
+     *
+     * @return boolean true if drawing goes to offscreen target.
+     */
+    private boolean bindScaleTarget() {
+        final RenderScaleController renderScale = getRenderScale();
+        renderScale.setSizes(viewportWidth, viewportHeight, videoWidth, videoHeight);
+        if (!renderScale.isScaled()) {
+            releaseScaleTarget();
+            return false;
+        }
+        final int width = renderScale.getRenderWidth();
+        final int height = renderScale.getRenderHeight();
+        if (scaleFramebuffers[0] == 0 || scaleTargetWidth != width ||
+            scaleTargetHeight != height) {
+            releaseScaleTarget();
+            GLES20.glGenTextures(scaleTextures.length, scaleTextures, 0);
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, scaleTextures[0]);
+            GLES20.glTexImage2D(
+                GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width, height, 0,
+                GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null
+            );
+            GLES20.glTexParameteri(
+                GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR
+            );
+            GLES20.glTexParameteri(
+                GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR
+            );
+            // Non power of two textures need clamping in OpenGL ES 2.
+            GLES20.glTexParameteri(
+                GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE
+            );
+            GLES20.glTexParameteri(
+                GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE
+            );
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+            GLES20.glGenFramebuffers(scaleFramebuffers.length, scaleFramebuffers, 0);
+            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, scaleFramebuffers[0]);
+            GLES20.glFramebufferTexture2D(
+                GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
+                GLES20.GL_TEXTURE_2D, scaleTextures[0], 0
+            );
+            if (GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER) !=
+                GLES20.GL_FRAMEBUFFER_COMPLETE) {
+                Utils.debug(TAG, "Scale framebuffer is not complete");
+                GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+                releaseScaleTarget();
+                return false;
+            }
+            scaleTargetWidth = width;
+            scaleTargetHeight = height;
+            Utils.debug(TAG, "Render target: " + renderScale);
+        } else {
+            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, scaleFramebuffers[0]);
+        }
+        GLES20.glViewport(0, 0, width, height);
+        return true;
+    }
+
+    private void releaseScaleTarget() {
+        if (scaleFramebuffers[0] == 0) {
+            return;
+        }
+        GLES20.glDeleteFramebuffers(scaleFramebuffers.length, scaleFramebuffers, 0);
+        GLES20.glDeleteTextures(scaleTextures.length, scaleTextures, 0);
+        scaleFramebuffers[0] = 0;
+        scaleTextures[0] = 0;
+        scaleTargetWidth = 0;
+        scaleTargetHeight = 0;
+    }
+
+    private void applyFlipbookRequest() {
+        final FlipbookRequest request = takeFlipbookRequest();
+        if (request == null) {
+            return;
+        }
+        releaseFlipbook();
+        if (request.flipbook == null) {
+            return;
+        }
+        flipbook = request.flipbook;
+        flipbookClock = new LoopClock(flipbook.getLoopNs());
+        // First frame replaces poster at once, there is no decoder to wait for.
+        releasePoster();
+        GLES20.glGenTextures(flipbookTextures.length, flipbookTextures, 0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, flipbookTextures[0]);
+        GLES20.glTexParameteri(
+            GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR
+        );
+        GLES20.glTexParameteri(
+            GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR
+        );
+        GLES20.glTexParameteri(
+            GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE
+        );
+        GLES20.glTexParameteri(
+            GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE
+        );
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        Utils.debug(TAG, "Showing flipbook: " + flipbook);
+    }
+
+    /**
+     * @return boolean true if a new frame is uploaded.
+     */
+    private boolean uploadFlipbookFrame(final long vsyncTimeNs) {
+        final int index = flipbook.getFrameIndex(
+            flipbookClock.advance(vsyncTimeNs, getVsyncIntervalNs())
+        );
+        if (index == flipbookIndex) {
+            return false;
+        }
+        ByteBuffer frame = flipbook.getFrame(index);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, flipbookTextures[0]);
+        if (flipbook.getFormat() == FlipbookFile.Format.ETC2_RGB8 &&
+            ETC1Util.isETC1Supported()) {
+            // ETC1 textures cannot be updated partly, but image of the same size is cheap.
+            GLES20.glCompressedTexImage2D(
+                GLES20.GL_TEXTURE_2D, 0, ETC1.ETC1_RGB8_OES,
+                flipbook.getWidth(), flipbook.getHeight(), 0, frame.remaining(), frame
+            );
+        } else {
+            if (flipbook.getFormat() == FlipbookFile.Format.ETC2_RGB8) {
+                if (flipbookPixels == null) {
+                    flipbookPixels = ByteBuffer.allocateDirect(
+                        flipbook.getWidth() * flipbook.getHeight() * 2
+                    ).order(ByteOrder.nativeOrder());
+                }
+                ETC1.decodeImage(
+                    frame, flipbookPixels, flipbook.getWidth(), flipbook.getHeight(),
+                    2, flipbook.getWidth() * 2
+                );
+                frame = flipbookPixels;
+            }
+            if (flipbookIndex < 0) {
+                GLES20.glTexImage2D(
+                    GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGB, flipbook.getWidth(),
+                    flipbook.getHeight(), 0, GLES20.GL_RGB, GLES20.GL_UNSIGNED_SHORT_5_6_5,
+                    frame
+                );
+            } else {
+                GLES20.glTexSubImage2D(
+                    GLES20.GL_TEXTURE_2D, 0, 0, 0, flipbook.getWidth(), flipbook.getHeight(),
+                    GLES20.GL_RGB, GLES20.GL_UNSIGNED_SHORT_5_6_5, frame
+                );
+            }
+        }
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        flipbookIndex = index;
+        return true;
+    }
+
+    private void releaseFlipbook() {
+        if (flipbook == null) {
+            return;
+        }
+        GLES20.glDeleteTextures(flipbookTextures.length, flipbookTextures, 0);
+        flipbookTextures[0] = 0;
+        flipbookIndex = -1;
+        flipbook.close();
+        flipbook = null;
+        flipbookClock = null;
+        flipbookPixels = null;
+    }
+
+    private void applyFrameSourceRequest() {
+        final FrameSourceRequest request = takeFrameSourceRequest();
+        if (request == null) {
+            return;
+        }
+        releaseFrameSource();
+        if (request.player == null) {
+            return;
+        }
+        frameSourcePlayer = request.player;
+        // Decoded frames are ready soon, poster would only fade into the first one.
+        releasePoster();
+        final int size = frameSourcePlayer.getRing().getSize();
+        frameSourceTextures = new int[size];
+        frameSourceAllocated = new boolean[size];
+        GLES20.glGenTextures(size, frameSourceTextures, 0);
+        for (int texture : frameSourceTextures) {
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture);
+            GLES20.glTexParameteri(
+                GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR
+            );
+            GLES20.glTexParameteri(
+                GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR
+            );
+            GLES20.glTexParameteri(
+                GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE
+            );
+            GLES20.glTexParameteri(
+                GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE
+            );
+        }
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        Utils.debug(TAG, String.format(
+            Locale.US, "Showing animated image of %dx%d",
+            frameSourcePlayer.getWidth(), frameSourcePlayer.getHeight()
+        ));
+    }
+
+    /**
+     * @return boolean true if a new frame is uploaded.
+     */
+    private boolean uploadFrameSourceFrame(final long vsyncTimeNs) {
+        // Frame is on screen at next vsync, switch when most of its interval is due.
+        final int slot = frameSourcePlayer.getRing().advance(
+            vsyncTimeNs + getVsyncIntervalNs() / 2
+        );
+        if (slot < 0) {
+            return false;
+        }
+        final Bitmap bitmap = frameSourcePlayer.getBitmap(slot);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, frameSourceTextures[slot]);
+        if (frameSourceAllocated[slot]) {
+            GLUtils.texSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, bitmap);
+        } else {
+            GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, bitmap, 0);
+            frameSourceAllocated[slot] = true;
+        }
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        return true;
+    }
+
+    private void releaseFrameSource() {
+        if (frameSourcePlayer == null) {
+            return;
+        }
+        GLES20.glDeleteTextures(frameSourceTextures.length, frameSourceTextures, 0);
+        frameSourceTextures = new int[0];
+        frameSourceAllocated = new boolean[0];
+        frameSourcePlayer.release();
+        frameSourcePlayer = null;
+    }
+
+    private void applyStillImageRequest() {
+        final StillImageRequest request = takeStillImageRequest();
+        if (request == null) {
+            return;
+        }
+        if (hasStillImage) {
+            GLES20.glDeleteTextures(stillTextures.length, stillTextures, 0);
+            stillTextures[0] = 0;
+            hasStillImage = false;
+        }
+        if (request.bitmap == null) {
+            return;
+        }
+        releasePoster();
+        GLES20.glGenTextures(stillTextures.length, stillTextures, 0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, stillTextures[0]);
+        GLES20.glTexParameteri(
+            GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR
+        );
+        GLES20.glTexParameteri(
+            GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR
+        );
+        GLES20.glTexParameteri(
+            GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE
+        );
+        GLES20.glTexParameteri(
+            GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE
+        );
+        GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, request.bitmap, 0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        Utils.debug(TAG, String.format(
+            Locale.US, "Showing still image of %dx%d",
+            request.bitmap.getWidth(), request.bitmap.getHeight()
+        ));
+        // Texture has its own copy.
+        request.bitmap.recycle();
+        hasStillImage = true;
+        requestRedraw();
+    }
+
+    private void applyShaderRequest() {
+        final ShaderRequest request = takeShaderRequest();
+        if (request == null) {
+            return;
+        }
+        releaseShader();
+        if (request.source == null) {
+            return;
+        }
+        releasePoster();
+        try {
+            shaderProgram = loadShaderProgram(request.source);
+        } catch (RuntimeException e) {
+            // Import compiled it, but this driver may disagree.
+            e.printStackTrace();
+            return;
+        }
+        shaderPositionLocation = GLES20.glGetAttribLocation(
+            shaderProgram, ShaderSource.ATTRIBUTE_POSITION
+        );
+        shaderTimeLocation = GLES20.glGetUniformLocation(shaderProgram, ShaderSource.UNIFORM_TIME);
+        shaderResolutionLocation = GLES20.glGetUniformLocation(
+            shaderProgram, ShaderSource.UNIFORM_RESOLUTION
+        );
+        shaderOffsetLocation = GLES20.glGetUniformLocation(shaderProgram, ShaderSource.UNIFORM_OFFSET);
+        // Time starts at the first frame drawn.
+        shaderStartTimeNs = 0;
+    }
+
+    /**
+     * No program binary in OpenGL ES 2 without extensions, so it is compiled every start.
+     */
+    private int loadShaderProgram(@NonNull final String source) {
+        final long startTime = SystemClock.uptimeMillis();
+        final int program = Utils.linkProgramGLES20(
+            Utils.compileShaderGLES20(GLES20.GL_VERTEX_SHADER, ShaderSource.VERTEX_SOURCE),
+            Utils.compileShaderGLES20(GLES20.GL_FRAGMENT_SHADER, ShaderSource.wrap(source))
+        );
+        Utils.debug(TAG, String.format(
+            Locale.US, "Compiled shader program in %d ms", SystemClock.uptimeMillis() - startTime
+        ));
+        return program;
+    }
+
+    private void releaseShader() {
+        if (shaderProgram == 0) {
+            return;
+        }
+        GLES20.glDeleteProgram(shaderProgram);
+        shaderProgram = 0;
+    }
+
+    private void applyLoopRequest() {
+        final LoopRequest request = takeLoopRequest();
+        if (request == null) {
+            return;
+        }
+        releaseLoopRing();
+        if (request.plan != null) {
+            loopRing = new LoopRing(request.plan, request.frameRate);
+            loopTextures = new int[request.plan.getFrameCapacity()];
+            loopListener = request.listener;
+        }
+    }
+
+    /**
+     * Draw the frame just latched into next texture of ring, like a capture but kept on GPU.
+     */
+    private void recordLoopFrame() {
+        final int index = loopRing.addFrame(surfaceTexture.getTimestamp());
+        if (index >= 0) {
+            final LoopCachePlan plan = loopRing.getPlan();
+            final boolean rgba = plan.getFormat() == LoopCachePlan.Format.RGBA8;
+            if (loopFramebuffers[0] == 0) {
+                GLES20.glGenFramebuffers(loopFramebuffers.length, loopFramebuffers, 0);
+            }
+            GLES20.glGenTextures(1, loopTextures, index);
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, loopTextures[index]);
+            GLES20.glTexImage2D(
+                GLES20.GL_TEXTURE_2D, 0, rgba ? GLES20.GL_RGBA : GLES20.GL_RGB,
+                plan.getWidth(), plan.getHeight(), 0, rgba ? GLES20.GL_RGBA : GLES20.GL_RGB,
+                rgba ? GLES20.GL_UNSIGNED_BYTE : GLES20.GL_UNSIGNED_SHORT_5_6_5, null
+            );
+            GLES20.glTexParameteri(
+                GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR
+            );
+            GLES20.glTexParameteri(
+                GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR
+            );
+            // Non power of two textures need clamping in OpenGL ES 2.
+            GLES20.glTexParameteri(
+                GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE
+            );
+            GLES20.glTexParameteri(
+                GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE
+            );
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, loopFramebuffers[0]);
+            GLES20.glFramebufferTexture2D(
+                GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
+                GLES20.GL_TEXTURE_2D, loopTextures[index], 0
+            );
+            if (GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER) ==
+                GLES20.GL_FRAMEBUFFER_COMPLETE) {
+                GLES20.glViewport(0, 0, plan.getWidth(), plan.getHeight());
+                setCaptureMatrix(captureMvp, videoRotation);
+                drawVideo(captureMvp);
+            } else {
+                loopRing.abort("loop framebuffer is not complete");
+            }
+            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+            GLES20.glViewport(0, 0, viewportWidth, viewportHeight);
+        }
+        switch (loopRing.getState()) {
+        case ABORTED:
+            Utils.debug(TAG, "Not caching loop: " + loopRing.getAbortReason());
+            releaseLoopRing();
+            break;
+        case PLAYING:
+            Utils.debug(TAG, String.format(
+                Locale.US, "Cached %d ms loop in %d frames, %d KB of textures",
+                loopRing.getLoopNs() / 1000000, loopRing.getFrameCount(),
+                loopRing.getBytes() / 1024
+            ));
+            loopListener.onLoopCached(loopRing);
+            break;
+        default:
+            break;
+        }
+    }
+
+    @Override
+    void releaseLoopCache() {
+        releaseLoopRing();
+    }
+
+    private void releaseLoopRing() {
+        if (loopRing == null) {
+            return;
+        }
+        GLES20.glDeleteTextures(loopRing.getFrameCount(), loopTextures, 0);
+        loopTextures = new int[0];
+        if (loopFramebuffers[0] != 0) {
+            GLES20.glDeleteFramebuffers(loopFramebuffers.length, loopFramebuffers, 0);
+            loopFramebuffers[0] = 0;
+        }
+        loopRing = null;
+        loopListener = null;
+    }
+
+    /**
+     * No pixel buffer object in OpenGL ES 2, so this reads synchronously,
+     * keep captures small and rare.
+     */
+    private void captureIfRequested() {
+        final CaptureRequest request = pendingCapture.getAndSet(null);
+        if (request == null) {
+            return;
+        }
+        final int[] captureTextures = new int[1];
+        final int[] framebuffers = new int[1];
+        GLES20.glGenTextures(captureTextures.length, captureTextures, 0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, captureTextures[0]);
+        GLES20.glTexImage2D(
+            GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, request.width, request.height, 0,
+            GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null
+        );
+        GLES20.glTexParameteri(
+            GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR
+        );
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        GLES20.glGenFramebuffers(framebuffers.length, framebuffers, 0);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, framebuffers[0]);
+        GLES20.glFramebufferTexture2D(
+            GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
+            GLES20.GL_TEXTURE_2D, captureTextures[0], 0
+        );
+        if (GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER) ==
+            GLES20.GL_FRAMEBUFFER_COMPLETE) {
+            GLES20.glViewport(0, 0, request.width, request.height);
+            setCaptureMatrix(captureMvp, videoRotation);
+            drawVideo(captureMvp);
+            final ByteBuffer pixels = ByteBuffer.allocateDirect(
+                request.width * request.height * 4
+            ).order(ByteOrder.nativeOrder());
+            final long startTime = System.nanoTime();
+            GLES20.glReadPixels(
+                0, 0, request.width, request.height,
+                GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, pixels
+            );
+            deliverCapture(
+                pixels, request.width, request.height,
+                System.nanoTime() - startTime, request.listener
+            );
+        } else {
+            Utils.debug(TAG, "Capture framebuffer is not complete");
+        }
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        GLES20.glDeleteFramebuffers(framebuffers.length, framebuffers, 0);
+        GLES20.glDeleteTextures(captureTextures.length, captureTextures, 0);
+        GLES20.glViewport(0, 0, viewportWidth, viewportHeight);
+    }
+
+    private void uploadPendingPoster() {
+        final PosterCache.Poster poster = pendingPoster.getAndSet(null);
+        if (poster == null) {
+            return;
+        }
+        final long startTime = SystemClock.uptimeMillis();
+        if (posterTextures[0] == 0) {
+            GLES20.glGenTextures(posterTextures.length, posterTextures, 0);
+        }
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, posterTextures[0]);
+        GLES20.glTexParameteri(
+            GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR
+        );
+        GLES20.glTexParameteri(
+            GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR
+        );
+        GLES20.glTexParameteri(
+            GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE
+        );
+        GLES20.glTexParameteri(
+            GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE
+        );
+        // Decoded to RGB565 by ETC1Util if GPU has no ETC1.
+        ETC1Util.loadTexture(
+            GLES20.GL_TEXTURE_2D, 0, 0,
+            GLES20.GL_RGB, GLES20.GL_UNSIGNED_SHORT_5_6_5, poster.getTexture()
+        );
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        hasPoster = true;
+        posterShownTime = SystemClock.uptimeMillis();
+        fadeStartTime = 0;
+        Utils.debug(TAG, String.format(
+            Locale.US, "Uploaded poster in %d ms", posterShownTime - startTime
+        ));
+    }
+
+    private void releasePoster() {
+        GLES20.glDeleteTextures(posterTextures.length, posterTextures, 0);
+        posterTextures[0] = 0;
+        hasPoster = false;
+    }
+
+    @Override
+    void release() {
+        if (surfaceTexture != null) {
+            surfaceTexture.release();
+            surfaceTexture = null;
+        }
+        releasePendingRequests();
+        releaseLoopRing();
+        releaseFlipbook();
+        releaseFrameSource();
+        if (hasStillImage) {
+            GLES20.glDeleteTextures(stillTextures.length, stillTextures, 0);
+            stillTextures[0] = 0;
+            hasStillImage = false;
+        }
+        releaseShader();
+        releasePoster();
+        releaseScaleTarget();
+        GLES20.glDeleteBuffers(buffers.length, buffers, 0);
+        GLES20.glDeleteTextures(textures.length, textures, 0);
+        GLES20.glDeleteProgram(program);
+        GLES20.glDeleteProgram(posterProgram);
+        program = 0;
+        posterProgram = 0;
+    }
+
     @Override
     void setSourcePlayer(@NonNull final SimpleExoPlayer exoPlayer) {
         // Re-create SurfaceTexture when getting a new player.
@@ -239,6 +1047,20 @@ class GLES20WallpaperRenderer extends GLWallpaperRenderer {
         exoPlayer.setVideoSurface(new Surface(surfaceTexture));
     }
 
+    @Override
+    void setPoster(@NonNull final PosterCache.Poster poster) {
+        pendingPoster.set(poster);
+    }
+
+    @Override
+    void requestCapture(
+        final int width,
+        final int height,
+        @NonNull final OnFrameCapturedListener listener
+    ) {
+        pendingCapture.set(new CaptureRequest(width, height, listener));
+    }
+
     @Override
     void setScreenSize(int width, int height) {
         if (screenWidth != width || screenHeight != height) {
@@ -289,6 +1111,8 @@ class GLES20WallpaperRenderer extends GLWallpaperRenderer {
 
     @Override
     void setOffset(float xOffset, float yOffset) {
+        shaderXOffset = xOffset;
+        shaderYOffset = yOffset;
         if (xOffset > maxXOffset) {
             xOffset = maxXOffset;
         }
@@ -318,6 +1142,7 @@ class GLES20WallpaperRenderer extends GLWallpaperRenderer {
         }
         updatedFrame = 0;
         renderedFrame = 0;
+        requestPacingReset();
         surfaceTexture = new SurfaceTexture(textures[0]);
         surfaceTexture.setDefaultBufferSize(videoWidth, videoHeight);
         surfaceTexture.setOnFrameAvailableListener(new SurfaceTexture.OnFrameAvailableListener() {
@@ -366,6 +1191,19 @@ class GLES20WallpaperRenderer extends GLWallpaperRenderer {
             }
             Matrix.translateM(mvp, 0, 0, yOffset, 0);
         }
+        // Poster is saved after rotating, so it only needs cropping and offset.
+        for (int i = 0; i < 16; ++i) {
+            posterMvp[i] = 0.0f;
+        }
+        posterMvp[0] = posterMvp[5] = posterMvp[10] = posterMvp[15] = 1.0f;
+        if (videoRatio >= screenRatio) {
+            Matrix.scaleM(posterMvp, 0, videoRatio / screenRatio, 1, 1);
+            Matrix.translateM(posterMvp, 0, xOffset, 0, 0);
+        } else {
+            Matrix.scaleM(posterMvp, 0, 1, screenRatio / videoRatio, 1);
+            Matrix.translateM(posterMvp, 0, 0, yOffset, 0);
+        }
         // This is a 2D center crop, so we only need model matrix, no view and projection.
+        requestRedraw();
     }
 }
@@ -17,38 +17,103 @@
 package xyz.alynx.livewallpaper;
 
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.graphics.SurfaceTexture;
 import android.opengl.GLES11Ext;
+import android.opengl.ETC1Util;
 import android.opengl.GLES30;
+import android.opengl.GLUtils;
 import android.opengl.Matrix;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.view.Surface;
 
 import com.google.android.exoplayer2.SimpleExoPlayer;
 
+import java.nio.Buffer;
+import java.io.File;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
 import java.util.Locale;
-
-import javax.microedition.khronos.egl.EGLConfig;
-import javax.microedition.khronos.opengles.GL10;
+import java.util.concurrent.atomic.AtomicReference;
 
 class GLES30WallpaperRenderer extends GLWallpaperRenderer {
     @SuppressWarnings("unused")
     private static final String TAG = "GLES30WallpaperRenderer";
     private static final int BYTES_PER_FLOAT = 4;
     private static final int BYTES_PER_INT = 4;
+    private static final long CROSSFADE_MS = 300;
+    // GL_EXT_disjoint_timer_query, GLES30 class does not have them.
+    private static final int GL_TIME_ELAPSED_EXT = 0x88BF;
+    private static final int GL_GPU_DISJOINT_EXT = 0x8FBB;
     private final FloatBuffer vertices;
     private final FloatBuffer texCoords;
     private final IntBuffer indices;
     private final int[] buffers;
     private final int[] vertexArrays;
     private final int[] textures;
+    private final int[] posterTextures;
     private final float[] mvp;
+    private final float[] posterMvp;
+    private final float[] captureMvp;
+    private final int[] pixelBuffers;
+    private final int[] scaleFramebuffers;
+    private final int[] scaleTextures;
+    private final float[] scaleMvp;
+    private int scaleTargetWidth = 0;
+    private int scaleTargetHeight = 0;
+    // Every frame of a short loop, so player can be released after recording.
+    private final int[] loopFramebuffers;
+    private int[] loopTextures = new int[0];
+    private LoopRing loopRing = null;
+    private OnLoopCachedListener loopListener = null;
+    // Flipbook frame shown, uploaded from mapped file when it changes.
+    private final int[] flipbookTextures;
+    private FlipbookFile flipbook = null;
+    private LoopClock flipbookClock = null;
+    private int flipbookIndex = -1;
+    // One texture per bitmap of the animated image player, uploaded when its frame is due.
+    private int[] frameSourceTextures = new int[0];
+    private boolean[] frameSourceAllocated = new boolean[0];
+    private FrameSourcePlayer frameSourcePlayer = null;
+    // Still image, uploaded once and drawn on redraw requests only.
+    private final int[] stillTextures;
+    private boolean hasStillImage = false;
+    // Procedural wallpaper, user's fragment shader drawn every frame.
+    private int shaderProgram = 0;
+    private int shaderTimeLocation = 0;
+    private int shaderResolutionLocation = 0;
+    private int shaderOffsetLocation = 0;
+    private long shaderStartTimeNs = 0;
+    // Shader draws its own crop, so it gets offsets before clamping.
+    private float shaderXOffset = 0;
+    private float shaderYOffset = 0;
+    private final ProgramBinaryCache programBinaryCache;
+    // Ring of timer queries, results come some frames later.
+    private final int[] timerQueries;
+    private final int[] queryResults;
+    private boolean hasTimerQuery = false;
+    private int timerHead = 0;
+    private int timersInFlight = 0;
     private int program = 0;
     private int mvpLocation = 0;
+    private int posterProgram = 0;
+    private int posterMvpLocation = 0;
+    private int posterAlphaLocation = 0;
+    // Set by engine thread, uploaded on GL thread.
+    private final AtomicReference<PosterCache.Poster> pendingPoster = new AtomicReference<>();
+    private boolean hasPoster = false;
+    private long posterShownTime = 0;
+    private long fadeStartTime = 0;
+    private final AtomicReference<CaptureRequest> pendingCapture = new AtomicReference<>();
+    // Capture whose pixels are still on their way to pixel buffer.
+    private CaptureRequest inflightCapture = null;
+    private long captureFence = 0;
+    private long captureStartTime = 0;
+    private int viewportWidth = 0;
+    private int viewportHeight = 0;
     private SurfaceTexture surfaceTexture = null;
     private int screenWidth = 0;
     private int screenHeight = 0;
@@ -65,6 +130,7 @@ class GLES30WallpaperRenderer extends GLWallpaperRenderer {
 
     GLES30WallpaperRenderer(@NonNull final Context context) {
         super(context);
+        programBinaryCache = new ProgramBinaryCache(new File(context.getCacheDir(), "programs"));
 
         // Those replaced glGenBuffers() and glBufferData().
         final float[] vertexArray = {
@@ -111,16 +177,35 @@ class GLES30WallpaperRenderer extends GLWallpaperRenderer {
         vertexArrays = new int[1];
         buffers = new int[3];
         textures = new int[1];
+        posterTextures = new int[1];
+        captureMvp = new float[16];
+        pixelBuffers = new int[1];
+        scaleFramebuffers = new int[1];
+        scaleTextures = new int[1];
+        scaleMvp = new float[16];
+        loopFramebuffers = new int[1];
+        flipbookTextures = new int[1];
+        stillTextures = new int[1];
+        // Offscreen target is upside down compared with our quad's texture coordinates.
+        setCaptureMatrix(scaleMvp, 0);
+        timerQueries = new int[3];
+        queryResults = new int[1];
         mvp = new float[] {
             1.0f, 0.0f, 0.0f, 0.0f,
             0.0f, 1.0f, 0.0f, 0.0f,
             0.0f, 0.0f, 1.0f, 0.0f,
             0.0f, 0.0f, 0.0f, 1.0f
         };
+        posterMvp = new float[] {
+            1.0f, 0.0f, 0.0f, 0.0f,
+            0.0f, 1.0f, 0.0f, 0.0f,
+            0.0f, 0.0f, 1.0f, 0.0f,
+            0.0f, 0.0f, 0.0f, 1.0f
+        };
     }
 
     @Override
-    public void onSurfaceCreated(GL10 gl10, EGLConfig eglConfig) {
+    void onSurfaceCreated() {
         // No depth test for 2D video.
         GLES30.glDisable(GLES30.GL_DEPTH_TEST);
         GLES30.glDepthMask(false);
@@ -160,6 +245,45 @@ class GLES30WallpaperRenderer extends GLWallpaperRenderer {
         );
         mvpLocation = GLES30.glGetUniformLocation(program, "mvp");
 
+        posterProgram = Utils.linkProgramGLES30(
+            Utils.compileShaderResourceGLES30(
+                context, GLES30.GL_VERTEX_SHADER, R.raw.vertex_30
+            ),
+            Utils.compileShaderResourceGLES30(
+                context, GLES30.GL_FRAGMENT_SHADER, R.raw.fragment_poster_30
+            )
+        );
+        posterMvpLocation = GLES30.glGetUniformLocation(posterProgram, "mvp");
+        posterAlphaLocation = GLES30.glGetUniformLocation(posterProgram, "alpha");
+        // Textures and buffers of old context are gone.
+        posterTextures[0] = 0;
+        hasPoster = false;
+        inflightCapture = null;
+        captureFence = 0;
+        scaleFramebuffers[0] = 0;
+        scaleTextures[0] = 0;
+        loopFramebuffers[0] = 0;
+        loopTextures = new int[0];
+        loopRing = null;
+        flipbookTextures[0] = 0;
+        flipbookIndex = -1;
+        frameSourceTextures = new int[0];
+        frameSourceAllocated = new boolean[0];
+        frameSourcePlayer = null;
+        stillTextures[0] = 0;
+        hasStillImage = false;
+        shaderProgram = 0;
+
+        // Without GPU time, render scale still follows source density.
+        final String extensions = GLES30.glGetString(GLES30.GL_EXTENSIONS);
+        hasTimerQuery = extensions != null &&
+            extensions.contains("GL_EXT_disjoint_timer_query");
+        if (hasTimerQuery) {
+            GLES30.glGenQueries(timerQueries.length, timerQueries, 0);
+        }
+        timerHead = 0;
+        timersInFlight = 0;
+
         GLES30.glGenBuffers(buffers.length, buffers, 0);
 
         GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, buffers[0]);
@@ -204,34 +328,855 @@ class GLES30WallpaperRenderer extends GLWallpaperRenderer {
     }
 
     @Override
-    public void onSurfaceChanged(GL10 gl10, int width, int height) {
+    void onSurfaceChanged(final int width, final int height) {
+        viewportWidth = width;
+        viewportHeight = height;
         GLES30.glViewport(0, 0, width, height);
+        requestRedraw();
     }
 
     @Override
-    public void onDrawFrame(GL10 gl10) {
-        if (surfaceTexture == null) {
-            return;
+    boolean onDrawFrame(final long vsyncTimeNs) {
+        uploadPendingPoster();
+        applyLoopRequest();
+        applyFlipbookRequest();
+        applyFrameSourceRequest();
+        applyStillImageRequest();
+        applyShaderRequest();
+        if (surfaceTexture == null && !hasPoster && flipbook == null &&
+            frameSourcePlayer == null && !hasStillImage && shaderProgram == 0) {
+            return false;
         }
 
-        if (renderedFrame < updatedFrame) {
-            surfaceTexture.updateTexImage();
-            ++renderedFrame;
+        int latched = 0;
+        final boolean loopPlaying = loopRing != null &&
+            loopRing.getState() == LoopRing.State.PLAYING;
+        if (shaderProgram != 0) {
+            // Every frame is a new one, engine caps the rate.
+            latched = 1;
+        } else if (flipbook != null) {
+            if (uploadFlipbookFrame(vsyncTimeNs)) {
+                latched = 1;
+            }
+        } else if (frameSourcePlayer != null) {
+            if (uploadFrameSourceFrame(vsyncTimeNs)) {
+                latched = 1;
+            }
+        } else if (loopPlaying) {
+            if (loopRing.setShownIndex(
+                loopRing.getFrameIndex(vsyncTimeNs, getVsyncIntervalNs())
+            )) {
+                latched = 1;
+            }
+        } else if (surfaceTexture != null && renderedFrame < updatedFrame) {
+            if (loopRing != null) {
+                // Every frame must be recorded, so latch them one by one.
+                surfaceTexture.updateTexImage();
+                latched = 1;
+                recordLoopFrame();
+            } else {
+                latched = latchFrames(
+                    surfaceTexture, vsyncTimeNs, (int)(updatedFrame - renderedFrame)
+                );
+            }
+            renderedFrame += latched;
             // Utils.debug(
             //     TAG, "renderedFrame: " + renderedFrame + " updatedFrame: " + updatedFrame
             // );
         }
+        // Don't draw at display refresh rate when video is slower, it wastes power.
+        if (latched == 0 && !hasPoster && inflightCapture == null && !consumeRedraw()) {
+            return false;
+        }
 
+        final boolean timing = beginTimer();
+        final boolean scaled = bindScaleTarget();
         GLES30.glClear(GLES30.GL_COLOR_BUFFER_BIT);
+        if (shaderProgram != 0) {
+            drawShader(
+                vsyncTimeNs,
+                scaled ? getRenderScale().getRenderWidth() : viewportWidth,
+                scaled ? getRenderScale().getRenderHeight() : viewportHeight
+            );
+        } else if (flipbook != null) {
+            // Flipbook frames are upright, like poster.
+            drawTexture(flipbookTextures[0], posterMvp, 1.0f);
+        } else if (hasStillImage) {
+            drawTexture(stillTextures[0], posterMvp, 1.0f);
+        } else if (frameSourcePlayer != null) {
+            // Nothing is drawn before the first frame is uploaded.
+            final int slot = frameSourcePlayer.getRing().getShownSlot();
+            if (slot >= 0 && frameSourceAllocated[slot]) {
+                drawTexture(frameSourceTextures[slot], posterMvp, 1.0f);
+            }
+        } else if (loopPlaying) {
+            // Recorded frames are rotated, like poster.
+            drawTexture(loopTextures[loopRing.getShownIndex()], posterMvp, 1.0f);
+        } else if (surfaceTexture != null) {
+            drawVideo(mvp);
+        }
+        if (hasPoster) {
+            float alpha = 1.0f;
+            // Video has a frame, fade poster out.
+            if (renderedFrame > 0) {
+                final long now = SystemClock.uptimeMillis();
+                if (fadeStartTime == 0) {
+                    fadeStartTime = now;
+                    Utils.debug(TAG, String.format(
+                        Locale.US, "First video frame %d ms after poster",
+                        now - posterShownTime
+                    ));
+                }
+                alpha = 1.0f - (float)(now - fadeStartTime) / CROSSFADE_MS;
+            }
+            if (alpha > 0) {
+                drawTexture(posterTextures[0], posterMvp, alpha);
+            } else {
+                releasePoster();
+            }
+        }
+        if (scaled) {
+            // The single upscale pass.
+            GLES30.glBindFramebuffer(GLES30.GL_FRAMEBUFFER, 0);
+            GLES30.glViewport(0, 0, viewportWidth, viewportHeight);
+            drawTexture(scaleTextures[0], scaleMvp, 1.0f);
+        }
+        endTimer(timing);
+        // Captures draw video again at their own size, they don't need the scaled target.
+        if (surfaceTexture != null) {
+            if (inflightCapture != null) {
+                pollCapture();
+            } else if (renderedFrame > 0) {
+                captureIfRequested();
+            }
+        }
+        reportFirstDraw();
+        return true;
+    }
+
+    private void drawVideo(@NonNull final float[] matrix) {
         GLES30.glUseProgram(program);
-        GLES30.glUniformMatrix4fv(mvpLocation, 1, false, mvp, 0);
+        GLES30.glUniformMatrix4fv(mvpLocation, 1, false, matrix, 0);
         GLES30.glBindVertexArray(vertexArrays[0]);
         GLES30.glDrawElements(GLES30.GL_TRIANGLES, 6, GLES30.GL_UNSIGNED_INT, 0);
         GLES30.glBindVertexArray(0);
         GLES30.glUseProgram(0);
     }
 
+    /**
+     * Shader only uses position of our quad, it makes texture coordinates from it.
+     */
+    private void drawShader(final long vsyncTimeNs, final int width, final int height) {
+        if (shaderStartTimeNs == 0) {
+            shaderStartTimeNs = vsyncTimeNs;
+        }
+        GLES30.glUseProgram(shaderProgram);
+        GLES30.glUniform1f(shaderTimeLocation, ShaderSource.getTime(vsyncTimeNs - shaderStartTimeNs));
+        GLES30.glUniform2f(shaderResolutionLocation, width, height);
+        GLES30.glUniform2f(shaderOffsetLocation, shaderXOffset, shaderYOffset);
+        GLES30.glBindVertexArray(vertexArrays[0]);
+        GLES30.glDrawElements(GLES30.GL_TRIANGLES, 6, GLES30.GL_UNSIGNED_INT, 0);
+        GLES30.glBindVertexArray(0);
+        GLES30.glUseProgram(0);
+    }
+
+    /**
+     * Draw a 2D texture with poster program, for poster and offscreen target.
+     */
+    private void drawTexture(final int texture, @NonNull final float[] matrix, final float alpha) {
+        if (alpha < 1.0f) {
+            GLES30.glEnable(GLES30.GL_BLEND);
+            GLES30.glBlendFunc(GLES30.GL_SRC_ALPHA, GLES30.GL_ONE_MINUS_SRC_ALPHA);
+        }
+        GLES30.glUseProgram(posterProgram);
+        GLES30.glUniformMatrix4fv(posterMvpLocation, 1, false, matrix, 0);
+        GLES30.glUniform1f(posterAlphaLocation, alpha);
+        GLES30.glBindTexture(GLES30.GL_TEXTURE_2D, texture);
+        // Poster shader has the same attribute locations, so vertex array can be shared.
+        GLES30.glBindVertexArray(vertexArrays[0]);
+        GLES30.glDrawElements(GLES30.GL_TRIANGLES, 6, GLES30.GL_UNSIGNED_INT, 0);
+        GLES30.glBindVertexArray(0);
+        GLES30.glBindTexture(GLES30.GL_TEXTURE_2D, 0);
+        GLES30.glUseProgram(0);
+        GLES30.glDisable(GLES30.GL_BLEND);
+    }
 
+    /**
+     * Bind offscreen target if render scale wants one, (re)create it when size changes.
+     *
+     * @return boolean true if drawing goes to offscreen target.
+     */
+    private boolean bindScaleTarget() {
+        final RenderScaleController renderScale = getRenderScale();
+        renderScale.setSizes(viewportWidth, viewportHeight, videoWidth, videoHeight);
+        if (!renderScale.isScaled()) {
+            releaseScaleTarget();
+            return false;
+        }
+        final int width = renderScale.getRenderWidth();
+        final int height = renderScale.getRenderHeight();
+        if (scaleFramebuffers[0] == 0 || scaleTargetWidth != width ||
+            scaleTargetHeight != height) {
+            releaseScaleTarget();
+            GLES30.glGenTextures(scaleTextures.length, scaleTextures, 0);
+            GLES30.glBindTexture(GLES30.GL_TEXTURE_2D, scaleTextures[0]);
+            GLES30.glTexStorage2D(GLES30.GL_TEXTURE_2D, 1, GLES30.GL_RGBA8, width, height);
+            GLES30.glTexParameteri(
+                GLES30.GL_TEXTURE_2D, GLES30.GL_TEXTURE_MIN_FILTER, GLES30.GL_LINEAR
+            );
+            GLES30.glTexParameteri(
+                GLES30.GL_TEXTURE_2D, GLES30.GL_TEXTURE_MAG_FILTER, GLES30.GL_LINEAR
+            );
+            GLES30.glTexParameteri(
+                GLES30.GL_TEXTURE_2D, GLES30.GL_TEXTURE_WRAP_S, GLES30.GL_CLAMP_TO_EDGE
+            );
+            GLES30.glTexParameteri(
+                GLES30.GL_TEXTURE_2D, GLES30.GL_TEXTURE_WRAP_T, GLES30.GL_CLAMP_TO_EDGE
+            );
+            GLES30.glBindTexture(GLES30.GL_TEXTURE_2D, 0);
+            GLES30.glGenFramebuffers(scaleFramebuffers.length, scaleFramebuffers, 0);
+            GLES30.glBindFramebuffer(GLES30.GL_FRAMEBUFFER, scaleFramebuffers[0]);
+            GLES30.glFramebufferTexture2D(
+                GLES30.GL_FRAMEBUFFER, GLES30.GL_COLOR_ATTACHMENT0,
+                GLES30.GL_TEXTURE_2D, scaleTextures[0], 0
+            );
+            if (GLES30.glCheckFramebufferStatus(GLES30.GL_FRAMEBUFFER) !=
+                GLES30.GL_FRAMEBUFFER_COMPLETE) {
+                Utils.debug(TAG, "Scale framebuffer is not complete");
+                GLES30.glBindFramebuffer(GLES30.GL_FRAMEBUFFER, 0);
+                releaseScaleTarget();
+                return false;
+            }
+            scaleTargetWidth = width;
+            scaleTargetHeight = height;
+            Utils.debug(TAG, "Render target: " + renderScale);
+        } else {
+            GLES30.glBindFramebuffer(GLES30.GL_FRAMEBUFFER, scaleFramebuffers[0]);
+        }
+        GLES30.glViewport(0, 0, width, height);
+        return true;
+    }
+
+    private void releaseScaleTarget() {
+        if (scaleFramebuffers[0] == 0) {
+            return;
+        }
+        GLES30.glDeleteFramebuffers(scaleFramebuffers.length, scaleFramebuffers, 0);
+        GLES30.glDeleteTextures(scaleTextures.length, scaleTextures, 0);
+        scaleFramebuffers[0] = 0;
+        scaleTextures[0] = 0;
+        scaleTargetWidth = 0;
+        scaleTargetHeight = 0;
+    }
+
+    private void applyFlipbookRequest() {
+        final FlipbookRequest request = takeFlipbookRequest();
+        if (request == null) {
+            return;
+        }
+        releaseFlipbook();
+        if (request.flipbook == null) {
+            return;
+        }
+        flipbook = request.flipbook;
+        flipbookClock = new LoopClock(flipbook.getLoopNs());
+        // First frame replaces poster at once, there is no decoder to wait for.
+        releasePoster();
+        GLES30.glGenTextures(flipbookTextures.length, flipbookTextures, 0);
+        GLES30.glBindTexture(GLES30.GL_TEXTURE_2D, flipbookTextures[0]);
+        GLES30.glTexParameteri(
+            GLES30.GL_TEXTURE_2D, GLES30.GL_TEXTURE_MIN_FILTER, GLES30.GL_LINEAR
+        );
+        GLES30.glTexParameteri(
+            GLES30.GL_TEXTURE_2D, GLES30.GL_TEXTURE_MAG_FILTER, GLES30.GL_LINEAR
+        );
+        GLES30.glTexParameteri(
+            GLES30.GL_TEXTURE_2D, GLES30.GL_TEXTURE_WRAP_S, GLES30.GL_CLAMP_TO_EDGE
+        );
+        GLES30.glTexParameteri(
+            GLES30.GL_TEXTURE_2D, GLES30.GL_TEXTURE_WRAP_T, GLES30.GL_CLAMP_TO_EDGE
+        );
+        GLES30.glBindTexture(GLES30.GL_TEXTURE_2D, 0);
+        Utils.debug(TAG, "Showing flipbook: " + flipbook);
+    }
+
+    /**
+     * @return boolean true if a new frame is uploaded.
+     */
+    private boolean uploadFlipbookFrame(final long vsyncTimeNs) {
+        final int index = flipbook.getFrameIndex(
+            flipbookClock.advance(vsyncTimeNs, getVsyncIntervalNs())
+        );
+        if (index == flipbookIndex) {
+            return false;
+        }
+        final ByteBuffer frame = flipbook.getFrame(index);
+        GLES30.glBindTexture(GLES30.GL_TEXTURE_2D, flipbookTextures[0]);
+        if (flipbook.getFormat() == FlipbookFile.Format.ETC2_RGB8) {
+            if (flipbookIndex < 0) {
+                GLES30.glCompressedTexImage2D(
+                    GLES30.GL_TEXTURE_2D, 0, GLES30.GL_COMPRESSED_RGB8_ETC2,
+                    flipbook.getWidth(), flipbook.getHeight(), 0, frame.remaining(), frame
+                );
+            } else {
+                GLES30.glCompressedTexSubImage2D(
+                    GLES30.GL_TEXTURE_2D, 0, 0, 0, flipbook.getWidth(), flipbook.getHeight(),
+                    GLES30.GL_COMPRESSED_RGB8_ETC2, frame.remaining(), frame
+                );
+            }
+        } else if (flipbookIndex < 0) {
+            GLES30.glTexImage2D(
+                GLES30.GL_TEXTURE_2D, 0, GLES30.GL_RGB, flipbook.getWidth(),
+                flipbook.getHeight(), 0, GLES30.GL_RGB, GLES30.GL_UNSIGNED_SHORT_5_6_5, frame
+            );
+        } else {
+            GLES30.glTexSubImage2D(
+                GLES30.GL_TEXTURE_2D, 0, 0, 0, flipbook.getWidth(), flipbook.getHeight(),
+                GLES30.GL_RGB, GLES30.GL_UNSIGNED_SHORT_5_6_5, frame
+            );
+        }
+        GLES30.glBindTexture(GLES30.GL_TEXTURE_2D, 0);
+        flipbookIndex = index;
+        return true;
+    }
+
+    private void releaseFlipbook() {
+        if (flipbook == null) {
+            return;
+        }
+        GLES30.glDeleteTextures(flipbookTextures.length, flipbookTextures, 0);
+        flipbookTextures[0] = 0;
+        flipbookIndex = -1;
+        flipbook.close();
+        flipbook = null;
+        flipbookClock = null;
+    }
+
+    private void applyFrameSourceRequest() {
+        final FrameSourceRequest request = takeFrameSourceRequest();
+        if (request == null) {
+            return;
+        }
+        releaseFrameSource();
+        if (request.player == null) {
+            return;
+        }
+        frameSourcePlayer = request.player;
+        // Decoded frames are ready soon, poster would only fade into the first one.
+        releasePoster();
+        final int size = frameSourcePlayer.getRing().getSize();
+        frameSourceTextures = new int[size];
+        frameSourceAllocated = new boolean[size];
+        GLES30.glGenTextures(size, frameSourceTextures, 0);
+        for (int texture : frameSourceTextures) {
+            GLES30.glBindTexture(GLES30.GL_TEXTURE_2D, texture);
+            GLES30.glTexParameteri(
+                GLES30.GL_TEXTURE_2D, GLES30.GL_TEXTURE_MIN_FILTER, GLES30.GL_LINEAR
+            );
+            GLES30.glTexParameteri(
+                GLES30.GL_TEXTURE_2D, GLES30.GL_TEXTURE_MAG_FILTER, GLES30.GL_LINEAR
+            );
+            GLES30.glTexParameteri(
+                GLES30.GL_TEXTURE_2D, GLES30.GL_TEXTURE_WRAP_S, GLES30.GL_CLAMP_TO_EDGE
+            );
+            GLES30.glTexParameteri(
+                GLES30.GL_TEXTURE_2D, GLES30.GL_TEXTURE_WRAP_T, GLES30.GL_CLAMP_TO_EDGE
+            );
+        }
+        GLES30.glBindTexture(GLES30.GL_TEXTURE_2D, 0);
+        Utils.debug(TAG, String.format(
+            Locale.US, "Showing animated image of %dx%d",
+            frameSourcePlayer.getWidth(), frameSourcePlayer.getHeight()
+        ));
+    }
+
+    /**
+     * @return boolean true if a new frame is uploaded.
+     */
+    private boolean uploadFrameSourceFrame(final long vsyncTimeNs) {
+        // Frame is on screen at next vsync, switch when most of its interval is due.
+        final int slot = frameSourcePlayer.getRing().advance(
+            vsyncTimeNs + getVsyncIntervalNs() / 2
+        );
+        if (slot < 0) {
+            return false;
+        }
+        final Bitmap bitmap = frameSourcePlayer.getBitmap(slot);
+        GLES30.glBindTexture(GLES30.GL_TEXTURE_2D, frameSourceTextures[slot]);
+        if (frameSourceAllocated[slot]) {
+            GLUtils.texSubImage2D(GLES30.GL_TEXTURE_2D, 0, 0, 0, bitmap);
+        } else {
+            GLUtils.texImage2D(GLES30.GL_TEXTURE_2D, 0, bitmap, 0);
+            frameSourceAllocated[slot] = true;
+        }
+        GLES30.glBindTexture(GLES30.GL_TEXTURE_2D, 0);
+        return true;
+    }
+
+    private void releaseFrameSource() {
+        if (frameSourcePlayer == null) {
+            return;
+        }
+        GLES30.glDeleteTextures(frameSourceTextures.length, frameSourceTextures, 0);
+        frameSourceTextures = new int[0];
+        frameSourceAllocated = new boolean[0];
+        frameSourcePlayer.release();
+        frameSourcePlayer = null;
+    }
+
+    private void applyStillImageRequest() {
+        final StillImageRequest request = takeStillImageRequest();
+        if (request == null) {
+            return;
+        }
+        if (hasStillImage) {
+            GLES30.glDeleteTextures(stillTextures.length, stillTextures, 0);
+            stillTextures[0] = 0;
+            hasStillImage = false;
+        }
+        if (request.bitmap == null) {
+            return;
+        }
+        releasePoster();
+        GLES30.glGenTextures(stillTextures.length, stillTextures, 0);
+        GLES30.glBindTexture(GLES30.GL_TEXTURE_2D, stillTextures[0]);
+        GLES30.glTexParameteri(
+            GLES30.GL_TEXTURE_2D, GLES30.GL_TEXTURE_MIN_FILTER, GLES30.GL_LINEAR
+        );
+        GLES30.glTexParameteri(
+            GLES30.GL_TEXTURE_2D, GLES30.GL_TEXTURE_MAG_FILTER, GLES30.GL_LINEAR
+        );
+        GLES30.glTexParameteri(
+            GLES30.GL_TEXTURE_2D, GLES30.GL_TEXTURE_WRAP_S, GLES30.GL_CLAMP_TO_EDGE
+        );
+        GLES30.glTexParameteri(
+            GLES30.GL_TEXTURE_2D, GLES30.GL_TEXTURE_WRAP_T, GLES30.GL_CLAMP_TO_EDGE
+        );
+        GLUtils.texImage2D(GLES30.GL_TEXTURE_2D, 0, request.bitmap, 0);
+        GLES30.glBindTexture(GLES30.GL_TEXTURE_2D, 0);
+        Utils.debug(TAG, String.format(
+            Locale.US, "Showing still image of %dx%d",
+            request.bitmap.getWidth(), request.bitmap.getHeight()
+        ));
+        // Texture has its own copy.
+        request.bitmap.recycle();
+        hasStillImage = true;
+        requestRedraw();
+    }
+
+    private void applyShaderRequest() {
+        final ShaderRequest request = takeShaderRequest();
+        if (request == null) {
+            return;
+        }
+        releaseShader();
+        if (request.source == null) {
+            return;
+        }
+        releasePoster();
+        try {
+            shaderProgram = loadShaderProgram(request.source);
+        } catch (RuntimeException e) {
+            // Import compiled it, but this driver may disagree.
+            e.printStackTrace();
+            return;
+        }
+        shaderTimeLocation = GLES30.glGetUniformLocation(shaderProgram, ShaderSource.UNIFORM_TIME);
+        shaderResolutionLocation = GLES30.glGetUniformLocation(
+            shaderProgram, ShaderSource.UNIFORM_RESOLUTION
+        );
+        shaderOffsetLocation = GLES30.glGetUniformLocation(shaderProgram, ShaderSource.UNIFORM_OFFSET);
+        // Time starts at the first frame drawn.
+        shaderStartTimeNs = 0;
+    }
+
+    /**
+     * Linked binary is kept per driver, so only the first start after import or driver
+     * update pays for compiling.
+     */
+    private int loadShaderProgram(@NonNull final String source) {
+        final long startTime = SystemClock.uptimeMillis();
+        final String fragmentSource = ShaderSource.wrap(source);
+        final String name = PosterCache.hash(
+            GLES30.glGetString(GLES30.GL_RENDERER) + '\n' + GLES30.glGetString(GLES30.GL_VERSION) + '\n' +
+            ShaderSource.VERTEX_SOURCE + fragmentSource
+        );
+        final int[] status = new int[1];
+        final ProgramBinaryCache.Entry entry = programBinaryCache.load(name);
+        if (entry != null) {
+            final int program = GLES30.glCreateProgram();
+            GLES30.glProgramBinary(program, entry.format, entry.binary, entry.binary.remaining());
+            GLES30.glGetProgramiv(program, GLES30.GL_LINK_STATUS, status, 0);
+            if (status[0] != 0) {
+                Utils.debug(TAG, String.format(
+                    Locale.US, "Loaded shader program binary in %d ms",
+                    SystemClock.uptimeMillis() - startTime
+                ));
+                return program;
+            }
+            // Driver does not take it any more, it is not an error.
+            GLES30.glDeleteProgram(program);
+            programBinaryCache.remove(name);
+        }
+        final int vertexShader = Utils.compileShaderGLES30(
+            GLES30.GL_VERTEX_SHADER, ShaderSource.VERTEX_SOURCE
+        );
+        final int fragmentShader;
+        try {
+            fragmentShader = Utils.compileShaderGLES30(GLES30.GL_FRAGMENT_SHADER, fragmentSource);
+        } catch (RuntimeException e) {
+            GLES30.glDeleteShader(vertexShader);
+            throw e;
+        }
+        final int program = GLES30.glCreateProgram();
+        GLES30.glAttachShader(program, vertexShader);
+        GLES30.glAttachShader(program, fragmentShader);
+        // Our vertex array has position at 0.
+        GLES30.glBindAttribLocation(program, 0, ShaderSource.ATTRIBUTE_POSITION);
+        GLES30.glProgramParameteri(program, GLES30.GL_PROGRAM_BINARY_RETRIEVABLE_HINT, GLES30.GL_TRUE);
+        GLES30.glLinkProgram(program);
+        // Deleted with program.
+        GLES30.glDeleteShader(vertexShader);
+        GLES30.glDeleteShader(fragmentShader);
+        GLES30.glGetProgramiv(program, GLES30.GL_LINK_STATUS, status, 0);
+        if (status[0] == 0) {
+            final String log = GLES30.glGetProgramInfoLog(program);
+            GLES30.glDeleteProgram(program);
+            throw new RuntimeException(log);
+        }
+        final int[] length = new int[1];
+        GLES30.glGetProgramiv(program, GLES30.GL_PROGRAM_BINARY_LENGTH, length, 0);
+        if (length[0] > 0) {
+            final ByteBuffer binary = ByteBuffer.allocateDirect(length[0]).order(
+                ByteOrder.nativeOrder()
+            );
+            final int[] format = new int[1];
+            GLES30.glGetProgramBinary(program, length[0], length, 0, format, 0, binary);
+            binary.limit(length[0]);
+            programBinaryCache.store(name, format[0], binary);
+        }
+        Utils.debug(TAG, String.format(
+            Locale.US, "Compiled shader program in %d ms, binary of %d bytes cached",
+            SystemClock.uptimeMillis() - startTime, length[0]
+        ));
+        return program;
+    }
+
+    private void releaseShader() {
+        if (shaderProgram == 0) {
+            return;
+        }
+        GLES30.glDeleteProgram(shaderProgram);
+        shaderProgram = 0;
+    }
+
+    private void applyLoopRequest() {
+        final LoopRequest request = takeLoopRequest();
+        if (request == null) {
+            return;
+        }
+        releaseLoopRing();
+        if (request.plan != null) {
+            loopRing = new LoopRing(request.plan, request.frameRate);
+            loopTextures = new int[request.plan.getFrameCapacity()];
+            loopListener = request.listener;
+        }
+    }
+
+    /**
+     * Draw the frame just latched into next texture of ring, like a capture but kept on GPU.
+     */
+    private void recordLoopFrame() {
+        final int index = loopRing.addFrame(surfaceTexture.getTimestamp());
+        if (index >= 0) {
+            final LoopCachePlan plan = loopRing.getPlan();
+            if (loopFramebuffers[0] == 0) {
+                GLES30.glGenFramebuffers(loopFramebuffers.length, loopFramebuffers, 0);
+            }
+            GLES30.glGenTextures(1, loopTextures, index);
+            GLES30.glBindTexture(GLES30.GL_TEXTURE_2D, loopTextures[index]);
+            GLES30.glTexStorage2D(
+                GLES30.GL_TEXTURE_2D, 1,
+                plan.getFormat() == LoopCachePlan.Format.RGBA8 ?
+                GLES30.GL_RGBA8 : GLES30.GL_RGB565,
+                plan.getWidth(), plan.getHeight()
+            );
+            GLES30.glTexParameteri(
+                GLES30.GL_TEXTURE_2D, GLES30.GL_TEXTURE_MIN_FILTER, GLES30.GL_LINEAR
+            );
+            GLES30.glTexParameteri(
+                GLES30.GL_TEXTURE_2D, GLES30.GL_TEXTURE_MAG_FILTER, GLES30.GL_LINEAR
+            );
+            GLES30.glTexParameteri(
+                GLES30.GL_TEXTURE_2D, GLES30.GL_TEXTURE_WRAP_S, GLES30.GL_CLAMP_TO_EDGE
+            );
+            GLES30.glTexParameteri(
+                GLES30.GL_TEXTURE_2D, GLES30.GL_TEXTURE_WRAP_T, GLES30.GL_CLAMP_TO_EDGE
+            );
+            GLES30.glBindTexture(GLES30.GL_TEXTURE_2D, 0);
+            GLES30.glBindFramebuffer(GLES30.GL_FRAMEBUFFER, loopFramebuffers[0]);
+            GLES30.glFramebufferTexture2D(
+                GLES30.GL_FRAMEBUFFER, GLES30.GL_COLOR_ATTACHMENT0,
+                GLES30.GL_TEXTURE_2D, loopTextures[index], 0
+            );
+            if (GLES30.glCheckFramebufferStatus(GLES30.GL_FRAMEBUFFER) ==
+                GLES30.GL_FRAMEBUFFER_COMPLETE) {
+                GLES30.glViewport(0, 0, plan.getWidth(), plan.getHeight());
+                setCaptureMatrix(captureMvp, videoRotation);
+                drawVideo(captureMvp);
+            } else {
+                loopRing.abort("loop framebuffer is not complete");
+            }
+            GLES30.glBindFramebuffer(GLES30.GL_FRAMEBUFFER, 0);
+            GLES30.glViewport(0, 0, viewportWidth, viewportHeight);
+        }
+        switch (loopRing.getState()) {
+        case ABORTED:
+            Utils.debug(TAG, "Not caching loop: " + loopRing.getAbortReason());
+            releaseLoopRing();
+            break;
+        case PLAYING:
+            Utils.debug(TAG, String.format(
+                Locale.US, "Cached %d ms loop in %d frames, %d KB of textures",
+                loopRing.getLoopNs() / 1000000, loopRing.getFrameCount(),
+                loopRing.getBytes() / 1024
+            ));
+            loopListener.onLoopCached(loopRing);
+            break;
+        default:
+            break;
+        }
+    }
+
+    @Override
+    void releaseLoopCache() {
+        releaseLoopRing();
+    }
+
+    private void releaseLoopRing() {
+        if (loopRing == null) {
+            return;
+        }
+        GLES30.glDeleteTextures(loopRing.getFrameCount(), loopTextures, 0);
+        loopTextures = new int[0];
+        if (loopFramebuffers[0] != 0) {
+            GLES30.glDeleteFramebuffers(loopFramebuffers.length, loopFramebuffers, 0);
+            loopFramebuffers[0] = 0;
+        }
+        loopRing = null;
+        loopListener = null;
+    }
+
+    /**
+     * @return boolean true if a timer query is started for this frame.
+     */
+    private boolean beginTimer() {
+        if (!hasTimerQuery || timersInFlight == timerQueries.length) {
+            return false;
+        }
+        GLES30.glBeginQuery(GL_TIME_ELAPSED_EXT, timerQueries[timerHead]);
+        return true;
+    }
+
+    /**
+     * End timer of this frame and report finished ones, never waits for GPU.
+     */
+    private void endTimer(final boolean timing) {
+        if (timing) {
+            GLES30.glEndQuery(GL_TIME_ELAPSED_EXT);
+            timerHead = (timerHead + 1) % timerQueries.length;
+            ++timersInFlight;
+        }
+        while (timersInFlight > 0) {
+            final int oldest = (timerHead - timersInFlight + timerQueries.length) %
+                timerQueries.length;
+            GLES30.glGetQueryObjectuiv(
+                timerQueries[oldest], GLES30.GL_QUERY_RESULT_AVAILABLE, queryResults, 0
+            );
+            if (queryResults[0] == 0) {
+                break;
+            }
+            GLES30.glGetQueryObjectuiv(
+                timerQueries[oldest], GLES30.GL_QUERY_RESULT, queryResults, 0
+            );
+            --timersInFlight;
+            final long gpuNs = queryResults[0] & 0xffffffffL;
+            // GPU frequency changed or context switched, result is meaningless.
+            GLES30.glGetIntegerv(GL_GPU_DISJOINT_EXT, queryResults, 0);
+            if (queryResults[0] == 0) {
+                reportGpuTime(gpuNs);
+            }
+        }
+    }
+
+    /**
+     * Read back into a pixel buffer object, it returns at once and GPU copies while we keep
+     * rendering. pollCapture() maps the buffer in a later frame after the fence signals.
+     */
+    private void captureIfRequested() {
+        final CaptureRequest request = pendingCapture.getAndSet(null);
+        if (request == null) {
+            return;
+        }
+        final int[] captureTextures = new int[1];
+        final int[] framebuffers = new int[1];
+        GLES30.glGenTextures(captureTextures.length, captureTextures, 0);
+        GLES30.glBindTexture(GLES30.GL_TEXTURE_2D, captureTextures[0]);
+        GLES30.glTexStorage2D(
+            GLES30.GL_TEXTURE_2D, 1, GLES30.GL_RGBA8, request.width, request.height
+        );
+        GLES30.glBindTexture(GLES30.GL_TEXTURE_2D, 0);
+        GLES30.glGenFramebuffers(framebuffers.length, framebuffers, 0);
+        GLES30.glBindFramebuffer(GLES30.GL_FRAMEBUFFER, framebuffers[0]);
+        GLES30.glFramebufferTexture2D(
+            GLES30.GL_FRAMEBUFFER, GLES30.GL_COLOR_ATTACHMENT0,
+            GLES30.GL_TEXTURE_2D, captureTextures[0], 0
+        );
+        if (GLES30.glCheckFramebufferStatus(GLES30.GL_FRAMEBUFFER) ==
+            GLES30.GL_FRAMEBUFFER_COMPLETE) {
+            GLES30.glViewport(0, 0, request.width, request.height);
+            setCaptureMatrix(captureMvp, videoRotation);
+            drawVideo(captureMvp);
+            GLES30.glGenBuffers(pixelBuffers.length, pixelBuffers, 0);
+            GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, pixelBuffers[0]);
+            GLES30.glBufferData(
+                GLES30.GL_PIXEL_PACK_BUFFER, request.width * request.height * 4,
+                null, GLES30.GL_STREAM_READ
+            );
+            captureStartTime = System.nanoTime();
+            // With a pack buffer bound, the last argument is an offset into it.
+            GLES30.glReadPixels(
+                0, 0, request.width, request.height,
+                GLES30.GL_RGBA, GLES30.GL_UNSIGNED_BYTE, 0
+            );
+            GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+            captureFence = GLES30.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+            inflightCapture = request;
+        } else {
+            Utils.debug(TAG, "Capture framebuffer is not complete");
+        }
+        GLES30.glBindFramebuffer(GLES30.GL_FRAMEBUFFER, 0);
+        // Safe to delete, GL keeps them until queued commands finish.
+        GLES30.glDeleteFramebuffers(framebuffers.length, framebuffers, 0);
+        GLES30.glDeleteTextures(captureTextures.length, captureTextures, 0);
+        GLES30.glViewport(0, 0, viewportWidth, viewportHeight);
+    }
+
+    private void pollCapture() {
+        // Zero timeout, never wait for GPU on render thread.
+        final int status = GLES30.glClientWaitSync(captureFence, 0, 0);
+        if (status == GLES30.GL_TIMEOUT_EXPIRED) {
+            return;
+        }
+        final CaptureRequest request = inflightCapture;
+        inflightCapture = null;
+        GLES30.glDeleteSync(captureFence);
+        captureFence = 0;
+        if (status != GLES30.GL_WAIT_FAILED) {
+            final int size = request.width * request.height * 4;
+            GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, pixelBuffers[0]);
+            final Buffer mapped = GLES30.glMapBufferRange(
+                GLES30.GL_PIXEL_PACK_BUFFER, 0, size, GLES30.GL_MAP_READ_BIT
+            );
+            if (mapped != null) {
+                // Mapped memory is gone after unmapping, copy it out.
+                final ByteBuffer pixels = ByteBuffer.allocateDirect(size).order(
+                    ByteOrder.nativeOrder()
+                );
+                pixels.put((ByteBuffer)mapped);
+                GLES30.glUnmapBuffer(GLES30.GL_PIXEL_PACK_BUFFER);
+                deliverCapture(
+                    pixels, request.width, request.height,
+                    System.nanoTime() - captureStartTime, request.listener
+                );
+            }
+            GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+        }
+        GLES30.glDeleteBuffers(pixelBuffers.length, pixelBuffers, 0);
+        pixelBuffers[0] = 0;
+    }
+
+    private void uploadPendingPoster() {
+        final PosterCache.Poster poster = pendingPoster.getAndSet(null);
+        if (poster == null) {
+            return;
+        }
+        final long startTime = SystemClock.uptimeMillis();
+        if (posterTextures[0] == 0) {
+            GLES30.glGenTextures(posterTextures.length, posterTextures, 0);
+        }
+        GLES30.glBindTexture(GLES30.GL_TEXTURE_2D, posterTextures[0]);
+        GLES30.glTexParameteri(
+            GLES30.GL_TEXTURE_2D, GLES30.GL_TEXTURE_MIN_FILTER, GLES30.GL_LINEAR
+        );
+        GLES30.glTexParameteri(
+            GLES30.GL_TEXTURE_2D, GLES30.GL_TEXTURE_MAG_FILTER, GLES30.GL_LINEAR
+        );
+        GLES30.glTexParameteri(
+            GLES30.GL_TEXTURE_2D, GLES30.GL_TEXTURE_WRAP_S, GLES30.GL_CLAMP_TO_EDGE
+        );
+        GLES30.glTexParameteri(
+            GLES30.GL_TEXTURE_2D, GLES30.GL_TEXTURE_WRAP_T, GLES30.GL_CLAMP_TO_EDGE
+        );
+        // GLES3 always has ETC1 via ETC2, fallback is only for safety.
+        ETC1Util.loadTexture(
+            GLES30.GL_TEXTURE_2D, 0, 0,
+            GLES30.GL_RGB, GLES30.GL_UNSIGNED_SHORT_5_6_5, poster.getTexture()
+        );
+        GLES30.glBindTexture(GLES30.GL_TEXTURE_2D, 0);
+        hasPoster = true;
+        posterShownTime = SystemClock.uptimeMillis();
+        fadeStartTime = 0;
+        Utils.debug(TAG, String.format(
+            Locale.US, "Uploaded poster in %d ms", posterShownTime - startTime
+        ));
+    }
+
+    private void releasePoster() {
+        GLES30.glDeleteTextures(posterTextures.length, posterTextures, 0);
+        posterTextures[0] = 0;
+        hasPoster = false;
+    }
+
+    @Override
+    void release() {
+        if (surfaceTexture != null) {
+            surfaceTexture.release();
+            surfaceTexture = null;
+        }
+        releasePendingRequests();
+        releaseLoopRing();
+        releaseFlipbook();
+        releaseFrameSource();
+        if (hasStillImage) {
+            GLES30.glDeleteTextures(stillTextures.length, stillTextures, 0);
+            stillTextures[0] = 0;
+            hasStillImage = false;
+        }
+        releaseShader();
+        releasePoster();
+        releaseScaleTarget();
+        if (captureFence != 0) {
+            GLES30.glDeleteSync(captureFence);
+            captureFence = 0;
+            inflightCapture = null;
+        }
+        if (pixelBuffers[0] != 0) {
+            GLES30.glDeleteBuffers(pixelBuffers.length, pixelBuffers, 0);
+            pixelBuffers[0] = 0;
+        }
+        if (hasTimerQuery) {
+            GLES30.glDeleteQueries(timerQueries.length, timerQueries, 0);
+            timersInFlight = 0;
+        }
+        GLES30.glDeleteVertexArrays(vertexArrays.length, vertexArrays, 0);
+        GLES30.glDeleteBuffers(buffers.length, buffers, 0);
+        GLES30.glDeleteTextures(textures.length, textures, 0);
+        GLES30.glDeleteProgram(program);
+        GLES30.glDeleteProgram(posterProgram);
+        program = 0;
+        posterProgram = 0;
+    }
 
     @Override
     void setSourcePlayer(@NonNull final SimpleExoPlayer exoPlayer) {
@@ -241,6 +1186,20 @@ class GLES30WallpaperRenderer extends GLWallpaperRenderer {
         exoPlayer.setVideoSurface(new Surface(surfaceTexture));
     }
 
+    @Override
+    void setPoster(@NonNull final PosterCache.Poster poster) {
+        pendingPoster.set(poster);
+    }
+
+    @Override
+    void requestCapture(
+        final int width,
+        final int height,
+        @NonNull final OnFrameCapturedListener listener
+    ) {
+        pendingCapture.set(new CaptureRequest(width, height, listener));
+    }
+
     @Override
     void setScreenSize(int width, int height) {
         if (screenWidth != width || screenHeight != height) {
@@ -291,6 +1250,8 @@ class GLES30WallpaperRenderer extends GLWallpaperRenderer {
 
     @Override
     void setOffset(float xOffset, float yOffset) {
+        shaderXOffset = xOffset;
+        shaderYOffset = yOffset;
         if (xOffset > maxXOffset) {
             xOffset = maxXOffset;
         }
@@ -320,6 +1281,7 @@ class GLES30WallpaperRenderer extends GLWallpaperRenderer {
         }
         updatedFrame = 0;
         renderedFrame = 0;
+        requestPacingReset();
         surfaceTexture = new SurfaceTexture(textures[0]);
         surfaceTexture.setDefaultBufferSize(videoWidth, videoHeight);
         surfaceTexture.setOnFrameAvailableListener(new SurfaceTexture.OnFrameAvailableListener() {
@@ -368,6 +1330,19 @@ class GLES30WallpaperRenderer extends GLWallpaperRenderer {
             }
             Matrix.translateM(mvp, 0, 0, yOffset, 0);
         }
+        // Poster is saved after rotating, so it only needs cropping and offset.
+        for (int i = 0; i < 16; ++i) {
+            posterMvp[i] = 0.0f;
+        }
+        posterMvp[0] = posterMvp[5] = posterMvp[10] = posterMvp[15] = 1.0f;
+        if (videoRatio >= screenRatio) {
+            Matrix.scaleM(posterMvp, 0, videoRatio / screenRatio, 1, 1);
+            Matrix.translateM(posterMvp, 0, xOffset, 0, 0);
+        } else {
+            Matrix.scaleM(posterMvp, 0, 1, screenRatio / videoRatio, 1);
+            Matrix.translateM(posterMvp, 0, 0, yOffset, 0);
+        }
         // This is a 2D center crop, so we only need model matrix, no view and projection.
+        requestRedraw();
     }
 }
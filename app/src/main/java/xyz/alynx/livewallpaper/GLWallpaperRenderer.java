@@ -17,15 +17,154 @@
 package xyz.alynx.livewallpaper;
 
 import android.content.Context;
-import android.opengl.GLSurfaceView;
+import android.graphics.Bitmap;
+import android.graphics.SurfaceTexture;
+import android.opengl.Matrix;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 
 import com.google.android.exoplayer2.SimpleExoPlayer;
 
-abstract class GLWallpaperRenderer implements GLSurfaceView.Renderer {
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+
+abstract class GLWallpaperRenderer {
     @SuppressWarnings("unused")
     private static final String TAG = "GLWallpaperRenderer";
+    // Bitmaps of captured frames are built here, not on GL thread.
+    private static final ExecutorService captureExecutor = Executors.newSingleThreadExecutor();
+    // Log pacing stats after this many video frames.
+    private static final int PACING_LOG_FRAMES = 600;
+    private FramePacer framePacer = new FramePacer(16666667);
+    private RenderScaleController renderScale = new RenderScaleController(16666667);
+    // Set by engine for quality tiers, applied on render thread.
+    private volatile float renderScaleLimit = 1.0f;
+    // Set when a new SurfaceTexture is created, checked on render thread.
+    private volatile boolean pacingResetRequested = false;
+    // Set when something other than video changes what should be on screen.
+    private volatile boolean redrawRequested = true;
     final Context context;
+    // Set by engine when it binds a surface, cleared by first draw after it.
+    private volatile String boundKind = null;
+    private volatile long boundTime = 0;
+    // Engine may set a request again before render thread takes it, the displaced one
+    // never reaches a subclass, so whoever displaces it releases what it holds.
+    private final AtomicReference<LoopRequest> pendingLoopRequest = new AtomicReference<>();
+    private final AtomicReference<FlipbookRequest> pendingFlipbookRequest =
+        new AtomicReference<>();
+    private final AtomicReference<FrameSourceRequest> pendingFrameSourceRequest =
+        new AtomicReference<>();
+    private final AtomicReference<StillImageRequest> pendingStillImageRequest =
+        new AtomicReference<>();
+    private final AtomicReference<ShaderRequest> pendingShaderRequest = new AtomicReference<>();
+
+    interface OnFrameCapturedListener {
+        /**
+         * Called on a worker thread.
+         *
+         * @param frame Frame after rotating, not cropped.
+         * @param readbackNs Time from issuing readback to having pixels on CPU.
+         */
+        void onFrameCaptured(@NonNull final Bitmap frame, final long readbackNs);
+    }
+
+    interface OnLoopCachedListener {
+        /**
+         * Called on render thread when every frame of a loop is in textures,
+         * renderer does not need the player any more.
+         */
+        void onLoopCached(@NonNull final LoopRing loopRing);
+    }
+
+    static class LoopRequest {
+        // Null means decode as usual.
+        final LoopCachePlan plan;
+        final float frameRate;
+        final OnLoopCachedListener listener;
+
+        LoopRequest(
+            final LoopCachePlan plan,
+            final float frameRate,
+            @NonNull final OnLoopCachedListener listener
+        ) {
+            this.plan = plan;
+            this.frameRate = frameRate;
+            this.listener = listener;
+        }
+    }
+
+    static class FlipbookRequest {
+        // Null means stop showing flipbook.
+        final FlipbookFile flipbook;
+
+        FlipbookRequest(final FlipbookFile flipbook) {
+            this.flipbook = flipbook;
+        }
+
+        void release() {
+            if (flipbook != null) {
+                flipbook.close();
+            }
+        }
+    }
+
+    static class FrameSourceRequest {
+        // Null means stop showing animated image.
+        final FrameSourcePlayer player;
+
+        FrameSourceRequest(final FrameSourcePlayer player) {
+            this.player = player;
+        }
+
+        void release() {
+            if (player != null) {
+                player.release();
+            }
+        }
+    }
+
+    static class StillImageRequest {
+        // Null means stop showing still image.
+        final Bitmap bitmap;
+
+        StillImageRequest(final Bitmap bitmap) {
+            this.bitmap = bitmap;
+        }
+
+        void release() {
+            if (bitmap != null) {
+                bitmap.recycle();
+            }
+        }
+    }
+
+    static class ShaderRequest {
+        // Null means stop drawing shader.
+        final String source;
+
+        ShaderRequest(final String source) {
+            this.source = source;
+        }
+    }
+
+    static class CaptureRequest {
+        final int width;
+        final int height;
+        final OnFrameCapturedListener listener;
+
+        CaptureRequest(
+            final int width,
+            final int height,
+            @NonNull final OnFrameCapturedListener listener
+        ) {
+            this.width = width;
+            this.height = height;
+            this.listener = listener;
+        }
+    }
 
     GLWallpaperRenderer(@NonNull final Context context) {
         this.context = context;
@@ -37,8 +176,325 @@ abstract class GLWallpaperRenderer implements GLSurfaceView.Renderer {
         return context;
     }
 
+    /**
+     * Called on render thread when context is created, with a pbuffer current.
+     */
+    abstract void onSurfaceCreated();
+    /**
+     * Called on render thread when a window surface is bound or resized.
+     */
+    abstract void onSurfaceChanged(final int width, final int height);
+    /**
+     * Called on render thread before context is destroyed, with a pbuffer current.
+     * SurfaceTexture and everything made for the context are released here.
+     */
+    abstract void release();
+    /**
+     * Called on render thread for every vsync, RenderThread swaps buffers if it draws.
+     *
+     * @param vsyncTimeNs Choreographer time of the vsync.
+     * @return boolean false if nothing changed and nothing is drawn, screen keeps old frame.
+     */
+    abstract boolean onDrawFrame(final long vsyncTimeNs);
+
+    void requestRedraw() {
+        redrawRequested = true;
+    }
+
+    /**
+     * @return boolean true if a redraw was requested since last call.
+     */
+    boolean consumeRedraw() {
+        final boolean requested = redrawRequested;
+        redrawRequested = false;
+        return requested;
+    }
+
+    /**
+     * Called on render thread when display refresh rate is known.
+     */
+    void setVsyncInterval(final long vsyncIntervalNs) {
+        if (framePacer.getVsyncIntervalNs() != vsyncIntervalNs) {
+            framePacer = new FramePacer(vsyncIntervalNs);
+            // GPU may use a whole vsync, sizes are given again on next frame.
+            renderScale = new RenderScaleController(vsyncIntervalNs);
+        }
+    }
+
+    /**
+     * Called on render thread.
+     */
+    long getVsyncIntervalNs() {
+        return framePacer.getVsyncIntervalNs();
+    }
+
+    /**
+     * Set before setSourcePlayer(), so recording starts with the first frame of new player.
+     *
+     * @param plan LoopCachePlan of next video, or null to decode as usual.
+     */
+    void setLoopCachePlan(
+        final LoopCachePlan plan,
+        final float frameRate,
+        @NonNull final OnLoopCachedListener listener
+    ) {
+        pendingLoopRequest.set(new LoopRequest(plan, frameRate, listener));
+    }
+
+    /**
+     * Called by subclasses in release(), requests which were never taken still hold files,
+     * decoders and bitmaps.
+     */
+    void releasePendingRequests() {
+        pendingLoopRequest.set(null);
+        pendingShaderRequest.set(null);
+        final FlipbookRequest flipbookRequest = takeFlipbookRequest();
+        if (flipbookRequest != null) {
+            flipbookRequest.release();
+        }
+        final FrameSourceRequest frameSourceRequest = takeFrameSourceRequest();
+        if (frameSourceRequest != null) {
+            frameSourceRequest.release();
+        }
+        final StillImageRequest stillImageRequest = takeStillImageRequest();
+        if (stillImageRequest != null) {
+            stillImageRequest.release();
+        }
+    }
+
+    /**
+     * Called on render thread, frees textures of the cached loop even if no frame is drawn,
+     * so a hidden wallpaper does not keep them.
+     */
+    abstract void releaseLoopCache();
+
+    /**
+     * Called on render thread, subclasses drop their old ring when it is not null.
+     */
+    LoopRequest takeLoopRequest() {
+        return pendingLoopRequest.getAndSet(null);
+    }
+
+    /**
+     * Flipbook frames are uploaded as textures on vsync, no player is needed.
+     *
+     * @param flipbook FlipbookFile to show instead of video, or null to stop showing it.
+     *                 Renderer closes it when it is replaced or stopped.
+     */
+    void setFlipbook(final FlipbookFile flipbook) {
+        final FlipbookRequest displaced =
+            pendingFlipbookRequest.getAndSet(new FlipbookRequest(flipbook));
+        if (displaced != null) {
+            displaced.release();
+        }
+    }
+
+    /**
+     * Called on render thread, subclasses drop their old flipbook when it is not null.
+     */
+    FlipbookRequest takeFlipbookRequest() {
+        return pendingFlipbookRequest.getAndSet(null);
+    }
+
+    /**
+     * Animated image frames are decoded by player and uploaded as textures on vsync.
+     *
+     * @param player Started FrameSourcePlayer to show instead of video, or null to stop.
+     *               Renderer releases it when it is replaced or stopped.
+     */
+    void setFrameSourcePlayer(final FrameSourcePlayer player) {
+        final FrameSourceRequest displaced =
+            pendingFrameSourceRequest.getAndSet(new FrameSourceRequest(player));
+        if (displaced != null) {
+            displaced.release();
+        }
+    }
+
+    /**
+     * Called on render thread, subclasses drop their old textures when it is not null.
+     */
+    FrameSourceRequest takeFrameSourceRequest() {
+        return pendingFrameSourceRequest.getAndSet(null);
+    }
+
+    /**
+     * Still image is uploaded once and drawn only when something requests a redraw.
+     *
+     * @param bitmap Image to show instead of video, recycled after uploading, or null to stop.
+     */
+    void setStillImage(final Bitmap bitmap) {
+        final StillImageRequest displaced =
+            pendingStillImageRequest.getAndSet(new StillImageRequest(bitmap));
+        if (displaced != null) {
+            displaced.release();
+        }
+    }
+
+    /**
+     * Called on render thread, subclasses drop their old texture when it is not null.
+     */
+    StillImageRequest takeStillImageRequest() {
+        return pendingStillImageRequest.getAndSet(null);
+    }
+
+    /**
+     * Shader wallpaper is drawn every frame, engine caps frame rate with a vsync divider.
+     *
+     * @param source Fragment shader as user wrote it, see ShaderSource, or null to stop.
+     */
+    void setShaderSource(final String source) {
+        pendingShaderRequest.set(new ShaderRequest(source));
+    }
+
+    /**
+     * Called on render thread, subclasses drop their old program when it is not null.
+     */
+    ShaderRequest takeShaderRequest() {
+        return pendingShaderRequest.getAndSet(null);
+    }
+
+    @NonNull
+    RenderScaleController getRenderScale() {
+        if (renderScale.setScaleLimit(renderScaleLimit)) {
+            Utils.debug(TAG, "Render scale limit changed: " + renderScale);
+        }
+        return renderScale;
+    }
+
+    /**
+     * @param limit Upper bound of render scale, 1 means only source density limits it.
+     */
+    void setRenderScaleLimit(final float limit) {
+        renderScaleLimit = limit;
+        requestRedraw();
+    }
+
+    /**
+     * Subclasses which can measure GPU time of frames call it, to adapt render scale.
+     */
+    void reportGpuTime(final long gpuNs) {
+        if (renderScale.addFrameTime(gpuNs)) {
+            Utils.debug(TAG, "Render scale changed: " + renderScale);
+        }
+        if (renderScale.getStats().getFrameCount() >= PACING_LOG_FRAMES) {
+            Utils.debug(TAG, "Render scale: " + renderScale);
+            renderScale.getStats().reset();
+        }
+    }
+
+    /**
+     * Subclasses call it when they get a new SurfaceTexture.
+     */
+    void requestPacingReset() {
+        pacingResetRequested = true;
+    }
+
+    /**
+     * Latch as many frames as pacer wants for this vsync.
+     *
+     * @param pendingFrames Frames available but not latched.
+     * @return int Frames latched.
+     */
+    int latchFrames(
+        @NonNull final SurfaceTexture surfaceTexture,
+        final long vsyncTimeNs,
+        final int pendingFrames
+    ) {
+        if (pacingResetRequested) {
+            pacingResetRequested = false;
+            framePacer.reset();
+        }
+        final int count = framePacer.getFramesToLatch(vsyncTimeNs, pendingFrames);
+        for (int i = 0; i < count; ++i) {
+            surfaceTexture.updateTexImage();
+        }
+        if (count > 0) {
+            framePacer.onFramesLatched(vsyncTimeNs, surfaceTexture.getTimestamp(), count);
+            final FrameStats stats = framePacer.getStats();
+            if (stats != null && stats.getFrameCount() >= PACING_LOG_FRAMES) {
+                Utils.debug(TAG, "Video pacing: " + stats);
+                stats.reset();
+            }
+        }
+        return count;
+    }
     abstract void setSourcePlayer(@NonNull final SimpleExoPlayer exoPlayer);
+    /**
+     * Poster is drawn until video has a frame, then it fades out.
+     */
+    abstract void setPoster(@NonNull final PosterCache.Poster poster);
+    /**
+     * Draw next video frame into a framebuffer of size and read it back.
+     *
+     * Only the latest request is kept, it waits until video has a frame.
+     */
+    abstract void requestCapture(
+        final int width,
+        final int height,
+        @NonNull final OnFrameCapturedListener listener
+    );
     abstract void setScreenSize(int width, int height);
+
+    /**
+     * @param kind What engine did for this surface, only for logging.
+     *
+     * Time from now to the first frame drawn is logged.
+     */
+    void markSurfaceBound(@NonNull final String kind) {
+        boundTime = SystemClock.elapsedRealtime();
+        boundKind = kind;
+    }
+
+    /**
+     * Subclasses call it after drawing anything to screen.
+     */
+    void reportFirstDraw() {
+        final String kind = boundKind;
+        if (kind == null) {
+            return;
+        }
+        boundKind = null;
+        Utils.debug(TAG, String.format(
+            Locale.US, "First draw after %s: %d ms",
+            kind, SystemClock.elapsedRealtime() - boundTime
+        ));
+    }
     abstract void setVideoSizeAndRotation(int width, int height, int rotation);
     abstract void setOffset(float xOffset, float yOffset);
-}
\ No newline at end of file
+
+    /**
+     * glReadPixels() gives bottom row first, but Bitmap wants top row first,
+     * so flip before rotating.
+     */
+    static void setCaptureMatrix(@NonNull final float[] matrix, final int rotation) {
+        Matrix.setIdentityM(matrix, 0);
+        Matrix.scaleM(matrix, 0, 1, -1, 1);
+        if (rotation % 360 != 0) {
+            Matrix.rotateM(matrix, 0, -rotation, 0, 0, 1);
+        }
+    }
+
+    /**
+     * @param pixels RGBA pixels read back, owned by callee after calling.
+     */
+    static void deliverCapture(
+        @NonNull final ByteBuffer pixels,
+        final int width,
+        final int height,
+        final long readbackNs,
+        @NonNull final OnFrameCapturedListener listener
+    ) {
+        Utils.debug(TAG, String.format(
+            Locale.US, "Read back %dx%d frame in %.2f ms", width, height, readbackNs / 1e6
+        ));
+        captureExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Bitmap frame = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+                pixels.position(0);
+                frame.copyPixelsFromBuffer(pixels);
+                listener.onFrameCaptured(frame, readbackNs);
+            }
+        });
+    }
+}
@@ -19,22 +19,32 @@ package xyz.alynx.livewallpaper;
 import android.app.ActivityManager;
 import android.content.ContentResolver;
 import android.content.Context;
-import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.pm.ConfigurationInfo;
-import android.content.res.AssetFileDescriptor;
-import android.media.MediaMetadataRetriever;
-import android.opengl.GLSurfaceView;
+import android.graphics.Bitmap;
+import android.hardware.display.DisplayManager;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Debug;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.ParcelFileDescriptor;
+import android.os.Process;
+import android.os.SystemClock;
 import android.service.wallpaper.WallpaperService;
 import android.support.annotation.NonNull;
+import android.view.Display;
+import android.view.MotionEvent;
+import android.view.Surface;
 import android.view.SurfaceHolder;
+import android.view.WindowManager;
 import android.widget.Toast;
 
-import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.ExoPlaybackException;
 import com.google.android.exoplayer2.ExoPlayerFactory;
 import com.google.android.exoplayer2.Player;
 import com.google.android.exoplayer2.SimpleExoPlayer;
+import com.google.android.exoplayer2.mediacodec.MediaCodecRenderer;
 import com.google.android.exoplayer2.source.ExtractorMediaSource;
 import com.google.android.exoplayer2.source.MediaSource;
 import com.google.android.exoplayer2.trackselection.DefaultTrackSelector;
@@ -42,9 +52,14 @@ import com.google.android.exoplayer2.upstream.DataSource;
 import com.google.android.exoplayer2.upstream.DefaultDataSourceFactory;
 import com.google.android.exoplayer2.util.Util;
 
+import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Locale;
 
 /**
  *
@@ -56,8 +71,8 @@ import java.util.List;
  * into storage, SharedPreferences is better than JSON because it's easier to get data.
  *
  * So when we cannot get current WallpaperCard from LWApplication, we read SharedPreference,
- * then build a temp WallpaperCard (in fact only type and path matter for service, so we can
- * set thumbnail to null).
+ * then build a temp WallpaperCard (in fact only type, path and cached metadata matter
+ * for service, cards never decode thumbnails here).
  *
  * And when we get a current WallpaperCard, we save it to SharedPreference for further loading.
  *
@@ -65,55 +80,242 @@ import java.util.List;
 public class GLWallpaperService extends WallpaperService {
     @SuppressWarnings("unused")
     private static final String TAG = "GLWallpaperService";
+    // Only the first player start in this process is a cold start.
+    private static boolean coldStartReported = false;
 
     class GLWallpaperEngine extends Engine {
         private static final String TAG = "GLWallpaperEngine";
+        // Let decoder settle before first capture.
+        private static final long CAPTURE_DELAY_MS = 3000;
+        // Keep decoder this long after hidden, launcher restarts and preview come back quickly.
+        private static final long RELEASE_DELAY_MS = 10 * 1000;
+        // Wait a while after releasing player, so CPU time is not only its teardown.
+        private static final long LOOP_REPORT_DELAY_MS = 10 * 1000;
+        // All threads are in dumpsys, report only shows where most CPU goes.
+        private static final int BUSIEST_THREAD_COUNT = 3;
         private final Context context;
-        private GLWallpaperSurfaceView glSurfaceView = null;
+        private RenderThread renderThread = null;
         private SimpleExoPlayer exoPlayer = null;
         private MediaSource videoSource = null;
         private DefaultTrackSelector trackSelector = null;
+        // Asked which decoder to blame when current player fails.
+        private DecoderSelector decoderSelector = null;
+        // Retries left for current card, a broken file fails with every decoder.
+        private int decoderRetries = 0;
         private WallpaperCard wallpaperCard = null;
         private WallpaperCard oldWallpaperCard = null;
+        // Newest catalog version handled, older ones posted behind it are dropped.
+        private long catalogVersion = 0;
         private GLWallpaperRenderer renderer = null;
         private boolean allowSlide = false;
         private int videoRotation = 0;
         private int videoWidth = 0;
         private int videoHeight = 0;
+        private float videoFrameRate = 0;
+        private RenditionStore.Rendition rendition = null;
+        private long videoDurationMs = 0;
+        private FrameRatePolicy frameRatePolicy = null;
+        private QualityPolicy.Tier qualityTier = QualityPolicy.Tier.FULL;
+        private final IdleTracker idleTracker = new IdleTracker(0);
+        private boolean idleCheckScheduled = false;
+        // Plan of current player, to ignore callbacks of an old one.
+        private LoopCachePlan loopPlan = null;
+        // Renderer draws from textures, flipbook, animated or still image, no player.
+        private boolean loopCached = false;
+        private FlipbookFile flipbook = null;
+        private FrameSourcePlayer frameSourcePlayer = null;
+        // Still image is shown, render thread only draws when something changes.
+        private boolean renderOnDemand = false;
+        // Shader is drawn, its frame rate cap divides vsync.
+        private boolean shaderShown = false;
+        private int shaderFrameRate = ShaderSource.DEFAULT_FRAME_RATE;
+        private long loopCpuStartMs = 0;
+        private long loopRealStartMs = 0;
+        private long loopFrameStart = 0;
+        // Video file opened once for the player, so loops do not open it again.
+        private FileRange fileRange = null;
         private long progress = 0;
+        private int screenWidth = 0;
+        private int screenHeight = 0;
+        // A new surface shows nothing, draw poster until decoder gives a frame.
+        private boolean needPoster = false;
+        private final Handler handler = new Handler(Looper.getMainLooper());
+        private final Runnable captureRunnable = new Runnable() {
+            @Override
+            public void run() {
+                captureFrame();
+            }
+        };
+        private final Runnable retryRunnable = new Runnable() {
+            @Override
+            public void run() {
+                // Player was released after the failure, it will start when visible again.
+                if (exoPlayer != null) {
+                    startPlayer();
+                }
+            }
+        };
+        private final Player.EventListener playerListener = new Player.EventListener() {
+            @Override
+            public void onPlayerStateChanged(boolean playWhenReady, int playbackState) {
+                // Codec threads are created when decoder is ready.
+                if (playbackState == Player.STATE_READY) {
+                    ThreadTopology.getInstance().apply();
+                }
+            }
 
-        private class GLWallpaperSurfaceView extends GLSurfaceView {
-            @SuppressWarnings("unused")
-            private static final String TAG = "GLWallpaperSurface";
-
-            public GLWallpaperSurfaceView(Context context) {
-                super(context);
+            @Override
+            public void onPlayerError(ExoPlaybackException error) {
+                if (error.type == ExoPlaybackException.TYPE_RENDERER) {
+                    onDecoderFailed(error.getRendererException());
+                }
+            }
+        };
+        private final Runnable idleRunnable = new Runnable() {
+            @Override
+            public void run() {
+                idleCheckScheduled = false;
+                checkIdle();
+            }
+        };
+        private final Runnable loopReportRunnable = new Runnable() {
+            @Override
+            public void run() {
+                if (loopCached || exoPlayer != null) {
+                    // Same numbers for every kind, so a card can be compared with another.
+                    final long frames = renderThread.getFrameCount() - loopFrameStart;
+                    final long cpuMs = Process.getElapsedCpuTime() - loopCpuStartMs;
+                    Utils.debug(TAG, String.format(
+                        Locale.US, "Process CPU %d ms per second, %.2f ms per frame " +
+                        "over %d frames while playing %s",
+                        getLoopCpuRate(), frames > 0 ? (float)cpuMs / frames : 0.0f, frames,
+                        getPlayingLabel()
+                    ));
+                }
+                if (fileRange != null) {
+                    Utils.debug(TAG, "Video file " + fileRange);
+                }
+                final List<ThreadStat> threads = ThreadTopology.getInstance().listThreads();
+                for (int i = 0; i < Math.min(BUSIEST_THREAD_COUNT, threads.size()); ++i) {
+                    Utils.debug(TAG, "Busy thread " + threads.get(i));
+                }
+            }
+        };
+        private final GLWallpaperRenderer.OnLoopCachedListener loopListener =
+            new GLWallpaperRenderer.OnLoopCachedListener() {
+            @Override
+            public void onLoopCached(@NonNull final LoopRing loopRing) {
+                final LoopCachePlan plan = loopRing.getPlan();
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        releaseCachedPlayer(plan);
+                    }
+                });
+            }
+        };
+        private final Runnable releaseRunnable = new Runnable() {
+            @Override
+            public void run() {
+                Utils.debug(TAG, "Hidden for long, releasing player");
+                stopPlayer();
+                releaseLoopCache();
+            }
+        };
+        // Compositor may switch refresh rate after our frame rate hint, pacer needs to know.
+        private final DisplayManager.DisplayListener displayListener =
+            new DisplayManager.DisplayListener() {
+            @Override
+            public void onDisplayAdded(final int displayId) {
             }
 
-            /**
-             * This is a hack. Because Android Live Wallpaper only has a Surface.
-             * So we create a GLSurfaceView, and when drawing to its Surface,
-             * we replace it with WallpaperEngine's Surface.
-             */
             @Override
-            public SurfaceHolder getHolder() {
-                return getSurfaceHolder();
+            public void onDisplayRemoved(final int displayId) {
             }
 
-            void onDestroy() {
-                super.onDetachedFromWindow();
+            @Override
+            public void onDisplayChanged(final int displayId) {
+                final Display display = getDefaultDisplay();
+                if (display == null || display.getDisplayId() != displayId) {
+                    return;
+                }
+                Utils.debug(TAG, String.format(
+                    Locale.US, "Display refresh rate is %.2f Hz", display.getRefreshRate()
+                ));
+                if (renderThread != null) {
+                    renderThread.setRefreshRate(display.getRefreshRate());
+                    // Shader cap depends on refresh rate.
+                    applyQualityTier();
+                }
             }
-        }
+        };
+        private final QualityGovernor.OnTierChangedListener tierListener =
+            new QualityGovernor.OnTierChangedListener() {
+            @Override
+            public void onTierChanged(@NonNull final QualityPolicy.Tier tier) {
+                final QualityPolicy.Tier oldTier = qualityTier;
+                qualityTier = tier;
+                applyQualityTier();
+                if (renderer == null || tier == oldTier) {
+                    return;
+                }
+                if (tier == QualityPolicy.Tier.STATIC) {
+                    pausePlayer();
+                    if (loopCached) {
+                        renderThread.pauseRendering();
+                    }
+                } else if (oldTier == QualityPolicy.Tier.STATIC && isVisible() &&
+                    !idleTracker.isFrozen()) {
+                    resumeRendering();
+                    resumePlayer();
+                }
+            }
+        };
+        private final CardCatalog.OnCatalogChangedListener catalogListener =
+            new CardCatalog.OnCatalogChangedListener() {
+            @Override
+            public void onCatalogChanged(
+                @NonNull final CardCatalog.Snapshot oldSnapshot,
+                @NonNull final CardCatalog.Snapshot newSnapshot
+            ) {
+                final WallpaperCard oldCard = isPreview() ?
+                    oldSnapshot.getPreviewCard() : oldSnapshot.getCurrentCard();
+                final WallpaperCard newCard = isPreview() ?
+                    newSnapshot.getPreviewCard() : newSnapshot.getCurrentCard();
+                // Null means user leaves preview or chooses other wallpaper,
+                // we keep playing old one until we are destroyed.
+                if (newCard == null || newCard == oldCard) {
+                    return;
+                }
+                // Catalog may be changed by any thread, engine runs on main thread.
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (newSnapshot.getVersion() <= catalogVersion) {
+                            return;
+                        }
+                        catalogVersion = newSnapshot.getVersion();
+                        if (renderer != null && isVisible() &&
+                            (wallpaperCard == null || !wallpaperCard.equals(newCard))) {
+                            Utils.debug(TAG, "Card changed, reloading player");
+                            onInteraction();
+                            startPlayer();
+                        }
+                    }
+                });
+            }
+        };
 
         GLWallpaperEngine(@NonNull final Context context) {
             this.context = context;
             setTouchEventsEnabled(false);
         }
 
-        // @Override
-        // public void onTouchEvent(MotionEvent event) {
-        //     super.onTouchEvent(event);
-        // }
+        @Override
+        public void onTouchEvent(MotionEvent event) {
+            super.onTouchEvent(event);
+            onInteraction();
+        }
 
         @Override
         public void onCreate(SurfaceHolder surfaceHolder) {
@@ -122,34 +324,117 @@ public class GLWallpaperService extends WallpaperService {
                 LWApplication.OPTIONS_PREF, MODE_PRIVATE
             );
             allowSlide = pref.getBoolean(LWApplication.SLIDE_WALLPAPER_KEY, false);
+            LWApplication.getCatalog().addListener(catalogListener);
+            frameRatePolicy = new FrameRatePolicy(getRefreshRates());
+            final DisplayManager displayManager = (DisplayManager)getSystemService(
+                Context.DISPLAY_SERVICE
+            );
+            if (displayManager != null) {
+                displayManager.registerDisplayListener(displayListener, handler);
+            }
+        }
+
+        @Override
+        public void onDestroy() {
+            LWApplication.getCatalog().removeListener(catalogListener);
+            QualityGovernor.getInstance().removeListener(tierListener);
+            if (idleTracker.getFreezeCount() > 0) {
+                Utils.debug(TAG, "Idle freeze: " + idleTracker.getStats(
+                    SystemClock.elapsedRealtime()
+                ));
+            }
+            final DisplayManager displayManager = (DisplayManager)getSystemService(
+                Context.DISPLAY_SERVICE
+            );
+            if (displayManager != null) {
+                displayManager.unregisterDisplayListener(displayListener);
+            }
+            handler.removeCallbacksAndMessages(null);
+            stopPlayer();
+            // Renderer releases flipbook and animated image it holds when it quits.
+            flipbook = null;
+            frameSourcePlayer = null;
+            if (renderThread != null) {
+                renderThread.quitAndWait();
+                renderThread = null;
+                renderer = null;
+            }
+            super.onDestroy();
         }
 
         @Override
         public void onSurfaceCreated(SurfaceHolder surfaceHolder) {
             super.onSurfaceCreated(surfaceHolder);
-            createGLSurfaceView();
-            int width = surfaceHolder.getSurfaceFrame().width();
-            int height = surfaceHolder.getSurfaceFrame().height();
-            renderer.setScreenSize(width, height);
-            startPlayer();
+            screenWidth = surfaceHolder.getSurfaceFrame().width();
+            screenHeight = surfaceHolder.getSurfaceFrame().height();
+            if (renderThread == null) {
+                createRenderThread();
+                renderer.markSurfaceBound("full rebuild");
+                renderer.setScreenSize(screenWidth, screenHeight);
+                renderThread.setSurface(surfaceHolder.getSurface(), screenWidth, screenHeight);
+                needPoster = true;
+                startPlayer();
+                return;
+            }
+            // Only a new EGL window surface is needed, context, textures,
+            // SurfaceTexture and decoder are still alive.
+            // System recreates surface for a reason, don't keep showing an old frame.
+            onInteraction();
+            renderer.markSurfaceBound("rebind");
+            renderer.setScreenSize(screenWidth, screenHeight);
+            renderThread.setSurface(surfaceHolder.getSurface(), screenWidth, screenHeight);
+            // Hint belongs to surface, a new one does not have it.
+            applyFrameRate();
+            if (isVisible()) {
+                resumePlayer();
+            }
         }
 
         @Override
         public void onVisibilityChanged(boolean visible) {
             super.onVisibilityChanged(visible);
+            // Only visible engines play and count in tier times.
+            if (visible) {
+                QualityGovernor.getInstance().addListener(context, tierListener);
+            } else {
+                QualityGovernor.getInstance().removeListener(tierListener);
+            }
             if (renderer != null) {
                 if (visible) {
                     final SharedPreferences pref = getSharedPreferences(
                         LWApplication.OPTIONS_PREF, MODE_PRIVATE
                     );
                     allowSlide = pref.getBoolean(LWApplication.SLIDE_WALLPAPER_KEY, false);
-                    glSurfaceView.onResume();
-                    startPlayer();
+                    ThreadTopology.getInstance().setMode(ThreadPolicy.parseMode(
+                        pref.getInt(LWApplication.THREAD_POLICY_KEY, -1)
+                    ));
+                    final int idleFreezeSeconds = pref.getInt(
+                        LWApplication.IDLE_FREEZE_KEY, LWApplication.DEFAULT_IDLE_FREEZE_SECONDS
+                    );
+                    idleTracker.setFreezeDelayMs(idleFreezeSeconds * 1000L);
+                    final int frameRate = pref.getInt(
+                        LWApplication.SHADER_FRAME_RATE_KEY, ShaderSource.DEFAULT_FRAME_RATE
+                    );
+                    if (frameRate != shaderFrameRate) {
+                        shaderFrameRate = frameRate;
+                        applyQualityTier();
+                    }
+                    // Touches are only useful to wake up, don't get them otherwise.
+                    setTouchEventsEnabled(idleFreezeSeconds > 0);
+                    idleTracker.onShown(SystemClock.elapsedRealtime());
+                    scheduleIdleCheck();
+                    handler.removeCallbacks(releaseRunnable);
+                    resumeRendering();
+                    resumePlayer();
                 } else {
-                    stopPlayer();
-                    glSurfaceView.onPause();
+                    idleTracker.onHidden(SystemClock.elapsedRealtime());
+                    handler.removeCallbacks(idleRunnable);
+                    idleCheckScheduled = false;
+                    pausePlayer();
+                    renderThread.pauseRendering();
                     // Prevent useless renderer calculating.
                     allowSlide = false;
+                    handler.postDelayed(releaseRunnable, RELEASE_DELAY_MS);
                 }
             }
         }
@@ -164,8 +449,12 @@ public class GLWallpaperService extends WallpaperService {
                 xOffset, yOffset, xOffsetStep,
                 yOffsetStep, xPixelOffset, yPixelOffset
             );
+            onInteraction();
             if (allowSlide && !isPreview()) {
                 renderer.setOffset(0.5f - xOffset, 0.5f - yOffset);
+                if (renderOnDemand) {
+                    renderThread.requestRender();
+                }
             }
         }
 
@@ -175,22 +464,81 @@ public class GLWallpaperService extends WallpaperService {
             int width, int height
         ) {
             super.onSurfaceChanged(surfaceHolder, format, width, height);
+            screenWidth = width;
+            screenHeight = height;
+            onInteraction();
             renderer.setScreenSize(width, height);
+            renderThread.setSurfaceSize(width, height);
         }
 
         @Override
         public void onSurfaceDestroyed(SurfaceHolder holder) {
             super.onSurfaceDestroyed(holder);
-            stopPlayer();
-            glSurfaceView.onDestroy();
+            // Decoder keeps writing to SurfaceTexture, not to this surface, so only pause it.
+            pausePlayer();
+            // System destroys surface after we return, EGL must stop using it before that.
+            renderThread.releaseSurface();
+        }
+
+        /**
+         * Touch, sliding and surface changes keep wallpaper awake, and wake it if frozen.
+         */
+        private void onInteraction() {
+            if (idleTracker.onActive(SystemClock.elapsedRealtime()) && renderThread != null) {
+                Utils.debug(TAG, "Waking up, idle " + idleTracker.getStats(
+                    SystemClock.elapsedRealtime()
+                ));
+                resumeRendering();
+                resumePlayer();
+            }
+            scheduleIdleCheck();
+        }
+
+        /**
+         * A cached loop, flipbook or animated image plays without player,
+         * so STATIC tier keeps rendering paused instead.
+         */
+        private void resumeRendering() {
+            if (loopCached && qualityTier == QualityPolicy.Tier.STATIC) {
+                return;
+            }
+            renderThread.resumeRendering();
+        }
+
+        /**
+         * Interactions only update time, the check reschedules itself for the remaining time,
+         * so sliding does not post a message for every offset.
+         */
+        private void scheduleIdleCheck() {
+            if (idleCheckScheduled) {
+                return;
+            }
+            final long remainingMs = idleTracker.getRemainingMs(SystemClock.elapsedRealtime());
+            if (remainingMs < 0) {
+                return;
+            }
+            idleCheckScheduled = true;
+            handler.postDelayed(idleRunnable, remainingMs);
         }
 
-        private void createGLSurfaceView() {
-            if (glSurfaceView != null) {
-                glSurfaceView.onDestroy();
-                glSurfaceView = null;
+        private void checkIdle() {
+            if (renderThread == null || !isVisible()) {
+                return;
             }
-            glSurfaceView = new GLWallpaperSurfaceView(context);
+            if (!idleTracker.freezeIfIdle(SystemClock.elapsedRealtime())) {
+                scheduleIdleCheck();
+                return;
+            }
+            Utils.debug(TAG, String.format(
+                Locale.US, "Idle for %d s, freezing on last frame",
+                idleTracker.getFreezeDelayMs() / 1000
+            ));
+            // Paused player keeps its position, surface keeps the last swapped frame.
+            pausePlayer();
+            renderThread.pauseRendering();
+        }
+
+        private void createRenderThread() {
             final ActivityManager activityManager = (ActivityManager)getSystemService(
                 Context.ACTIVITY_SERVICE
             );
@@ -198,22 +546,100 @@ public class GLWallpaperService extends WallpaperService {
                 throw new RuntimeException("Cannot get ActivityManager");
             }
             final ConfigurationInfo configInfo = activityManager.getDeviceConfigurationInfo();
+            final int version;
             if (configInfo.reqGlEsVersion >= 0x30000) {
                 Utils.debug(TAG, "Support GLESv3");
-                glSurfaceView.setEGLContextClientVersion(3);
+                version = 3;
                 renderer = new GLES30WallpaperRenderer(context);
             } else if (configInfo.reqGlEsVersion >= 0x20000) {
                 Utils.debug(TAG, "Fallback to GLESv2");
-                glSurfaceView.setEGLContextClientVersion(2);
+                version = 2;
                 renderer = new GLES20WallpaperRenderer(context);
             } else {
                 Toast.makeText(context, R.string.gles_version, Toast.LENGTH_LONG).show();
                 throw new RuntimeException("Needs GLESv2 or higher");
             }
-            glSurfaceView.setPreserveEGLContextOnPause(true);
-            glSurfaceView.setRenderer(renderer);
-            // On demand render will lead to black screen.
-            glSurfaceView.setRenderMode(GLSurfaceView.RENDERMODE_CONTINUOUSLY);
+            renderThread = new RenderThread(version, renderer);
+            // Renderer must have its textures before startPlayer() gives it a player.
+            renderThread.startAndWait();
+            final Display display = getDefaultDisplay();
+            if (display != null) {
+                renderThread.setRefreshRate(display.getRefreshRate());
+            }
+            applyQualityTier();
+        }
+
+        /**
+         * Lower tiers also do what higher tiers do, STATIC pausing player is handled
+         * by tier listener and player methods, because it depends on visibility.
+         */
+        private void applyQualityTier() {
+            if (renderThread == null) {
+                return;
+            }
+            int divider = qualityTier.compareTo(QualityPolicy.Tier.REDUCED_FPS) >= 0 ? 2 : 1;
+            if (shaderShown) {
+                final Display display = getDefaultDisplay();
+                divider = Math.max(divider, ShaderSource.getFrameDivider(
+                    display != null ? display.getRefreshRate() : 0, shaderFrameRate
+                ));
+            }
+            renderThread.setFrameDivider(divider);
+            renderer.setRenderScaleLimit(
+                qualityTier.compareTo(QualityPolicy.Tier.REDUCED_RESOLUTION) >= 0 ?
+                RenderScaleController.MIN_SCALE : 1.0f
+            );
+        }
+
+        private Display getDefaultDisplay() {
+            final WindowManager windowManager = (WindowManager)getSystemService(
+                Context.WINDOW_SERVICE
+            );
+            return windowManager == null ? null : windowManager.getDefaultDisplay();
+        }
+
+        /**
+         * @return float[] Refresh rates display can switch to without changing resolution.
+         */
+        @NonNull
+        private float[] getRefreshRates() {
+            final Display display = getDefaultDisplay();
+            if (display == null) {
+                return new float[0];
+            }
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+                return new float[] {display.getRefreshRate()};
+            }
+            final Display.Mode currentMode = display.getMode();
+            final Display.Mode[] modes = display.getSupportedModes();
+            final float[] refreshRates = new float[modes.length];
+            int count = 0;
+            for (Display.Mode mode : modes) {
+                if (mode.getPhysicalWidth() == currentMode.getPhysicalWidth() &&
+                    mode.getPhysicalHeight() == currentMode.getPhysicalHeight()) {
+                    refreshRates[count++] = mode.getRefreshRate();
+                }
+            }
+            return Arrays.copyOf(refreshRates, count);
+        }
+
+        /**
+         * Tell compositor the frame rate of video, so a high refresh display can
+         * switch to a lower mode which fits video instead of running at its maximum.
+         */
+        private void applyFrameRate() {
+            final Surface surface = getSurfaceHolder().getSurface();
+            if (frameRatePolicy == null || surface == null || !surface.isValid()) {
+                return;
+            }
+            final FrameRatePolicy.Decision decision = frameRatePolicy.decide(videoFrameRate);
+            if (Utils.setSurfaceFrameRate(
+                surface, decision.getFrameRate(), decision.getCompatibility()
+            )) {
+                Utils.debug(TAG, "Frame rate hint: " + decision);
+            } else {
+                Utils.debug(TAG, "Frame rate hint is not supported, wanted " + decision);
+            }
         }
 
         private boolean checkWallpaperCardValid() {
@@ -225,9 +651,9 @@ public class GLWallpaperService extends WallpaperService {
             }
             boolean res = true;
             // Ask persistable permission here because AddCardTask may not have context.
-            getContentResolver().takePersistableUriPermission(
-                wallpaperCard.getUri(), Intent.FLAG_GRANT_READ_URI_PERMISSION
-            );
+            if (!Utils.takeReadPermission(context, wallpaperCard.getUri())) {
+                return false;
+            }
             try {
                 final ContentResolver resolver = getContentResolver();
                 final ParcelFileDescriptor pfd = resolver.openFileDescriptor(
@@ -274,34 +700,41 @@ public class GLWallpaperService extends WallpaperService {
         }
 
         private void getVideoMetadata() throws IOException {
-            final MediaMetadataRetriever mmr = new MediaMetadataRetriever();
-            switch (wallpaperCard.getType()) {
-            case INTERNAL:
-                final AssetFileDescriptor afd = getAssets().openFd(wallpaperCard.getPath());
-                mmr.setDataSource(
-                    afd.getFileDescriptor(),
-                    afd.getStartOffset(),
-                    afd.getDeclaredLength()
-                );
-                afd.close();
-                break;
-            case EXTERNAL:
-                mmr.setDataSource(context, wallpaperCard.getUri());
-                break;
-            }
-            final String rotation = mmr.extractMetadata(
-                MediaMetadataRetriever.METADATA_KEY_VIDEO_ROTATION
-            );
-            final String width = mmr.extractMetadata(
-                MediaMetadataRetriever.METADATA_KEY_VIDEO_WIDTH
-            );
-            final String height = mmr.extractMetadata(
-                MediaMetadataRetriever.METADATA_KEY_VIDEO_HEIGHT
+            final boolean cached = wallpaperCard.getMetadata() != null;
+            final VideoMetadata metadata = VideoMetadata.obtain(context, wallpaperCard);
+            if (!cached && !isPreview() && LWApplication.isCurrentWallpaperCard(wallpaperCard)) {
+                // Save metadata with current card, so next cold start can skip extracting.
+                LWApplication.setCurrentWallpaperCard(context, wallpaperCard);
+            }
+            videoRotation = metadata.getRotation();
+            videoWidth = metadata.getWidth();
+            videoHeight = metadata.getHeight();
+            videoFrameRate = metadata.getFrameRate();
+            videoDurationMs = metadata.getDurationMs();
+            rendition = chooseRendition();
+            if (rendition != null) {
+                // Rotation is drawn into rendition frames.
+                videoRotation = 0;
+                videoWidth = rendition.width;
+                videoHeight = rendition.height;
+                videoFrameRate = rendition.frameRate;
+            }
+        }
+
+        /**
+         * @return Cheapest rendition which covers screen, or null to play source.
+         */
+        private RenditionStore.Rendition chooseRendition() {
+            if (screenWidth <= 0 || screenHeight <= 0 ||
+                wallpaperCard.getType() != WallpaperCard.Type.EXTERNAL) {
+                return null;
+            }
+            final boolean swap = videoRotation % 180 != 0;
+            return RenditionTask.getStore(context).choose(
+                RenditionTask.getKey(wallpaperCard),
+                swap ? videoHeight : videoWidth, swap ? videoWidth : videoHeight,
+                videoFrameRate, screenWidth, screenHeight
             );
-            mmr.release();
-            videoRotation = Integer.parseInt(rotation);
-            videoWidth = Integer.parseInt(width);
-            videoHeight = Integer.parseInt(height);
         }
 
         private void startPlayer() {
@@ -314,6 +747,23 @@ public class GLWallpaperService extends WallpaperService {
                 // gg
                 return;
             }
+            releasePlayerlessSource();
+            if (wallpaperCard.getKind() == WallpaperCard.Kind.FLIPBOOK) {
+                startFlipbook();
+                return;
+            }
+            if (wallpaperCard.getKind() == WallpaperCard.Kind.ANIMATION) {
+                startAnimation();
+                return;
+            }
+            if (wallpaperCard.getKind() == WallpaperCard.Kind.IMAGE) {
+                startStillImage();
+                return;
+            }
+            if (wallpaperCard.getKind() == WallpaperCard.Kind.SHADER) {
+                startShader();
+                return;
+            }
             try {
                 getVideoMetadata();
             } catch (IOException e) {
@@ -321,41 +771,508 @@ public class GLWallpaperService extends WallpaperService {
                 // gg
                 return;
             }
+            reportColdStart();
+            applyFrameRate();
+            loopCached = false;
+            handler.removeCallbacks(loopReportRunnable);
+            loopPlan = createLoopCachePlan();
+            if (oldWallpaperCard == null || !oldWallpaperCard.equals(wallpaperCard)) {
+                decoderRetries = DecoderRegistry.MAX_FAILURES;
+            }
             trackSelector = new DefaultTrackSelector();
-            exoPlayer = ExoPlayerFactory.newSimpleInstance(context, trackSelector);
+            decoderSelector = new DecoderSelector(DecoderProbe.getRegistry(context));
+            // Only a video renderer, so there is no audio decoder to disable.
+            exoPlayer = ExoPlayerFactory.newSimpleInstance(
+                context, decoderSelector.createRenderersFactory(context), trackSelector
+            );
+            exoPlayer.addListener(playerListener);
+            // Its playback thread exists now, at audio priority.
+            ThreadTopology.getInstance().apply();
             exoPlayer.setVolume(0.0f);
-            // Disable audio decoder.
-            final int count = exoPlayer.getRendererCount();
-            for (int i = 0; i < count; ++i) {
-                if (exoPlayer.getRendererType(i) == C.TRACK_TYPE_AUDIO) {
-                    trackSelector.setParameters(
-                        trackSelector.buildUponParameters().setRendererDisabled(i, true)
-                    );
+            exoPlayer.setRepeatMode(Player.REPEAT_MODE_ALL);
+            final Uri uri = rendition != null ?
+                Uri.fromFile(rendition.file) : wallpaperCard.getUri();
+            if (rendition != null) {
+                Utils.debug(TAG, "Playing rendition " + rendition);
+                try {
+                    fileRange = LocalFileDataSource.open(context, uri, true);
+                } catch (IOException | SecurityException e) {
+                    e.printStackTrace();
                 }
+            } else {
+                fileRange = LocalFileDataSource.open(context, wallpaperCard);
             }
-            exoPlayer.setRepeatMode(Player.REPEAT_MODE_ALL);
-            final DataSource.Factory dataSourceFactory = new DefaultDataSourceFactory(
+            // ExoPlayer can load file:///android_asset/ uri correctly, but opens it every loop.
+            final DataSource.Factory dataSourceFactory = fileRange != null ?
+                LocalFileDataSource.createFactory(fileRange, getSourceCacheBytes()) :
+                new DefaultDataSourceFactory(
                 context, Util.getUserAgent(context, "xyz.alynx.livewallpaper")
             );
-            // ExoPlayer can load file:///android_asset/ uri correctly.
             videoSource = new ExtractorMediaSource.Factory(
                 dataSourceFactory
-            ).createMediaSource(wallpaperCard.getUri());
+            ).createMediaSource(uri);
             // Let we assume video has correct info in metadata, or user should fix it.
             renderer.setVideoSizeAndRotation(videoWidth, videoHeight, videoRotation);
+            final boolean sameCard = oldWallpaperCard != null &&
+                oldWallpaperCard.equals(wallpaperCard);
+            long startPosition = sameCard ? progress : 0;
+            if (needPoster || !sameCard) {
+                needPoster = false;
+                final PosterCache.Poster poster = PosterCache.getInstance().load(
+                    context, wallpaperCard
+                );
+                if (poster != null) {
+                    renderer.setPoster(poster);
+                    // Continue from poster, so fading to video does not jump.
+                    if (!sameCard) {
+                        startPosition = poster.getPositionMs();
+                    }
+                }
+            }
+            if (loopPlan != null) {
+                // Timestamps of a loop started in the middle cannot be told from a restart.
+                startPosition = 0;
+                Utils.debug(TAG, "Caching loop: " + loopPlan);
+            }
+            renderer.setLoopCachePlan(loopPlan, videoFrameRate, loopListener);
+            // Video reports too, so cards of other kinds have something to be compared with.
+            startLoopReport();
             // This must be set after getting video info.
             renderer.setSourcePlayer(exoPlayer);
             exoPlayer.prepare(videoSource);
             // ExoPlayer's video size changed listener is buggy. Don't use it.
             // It give's width and height after rotation, but did not rotate frames.
-            if (oldWallpaperCard != null &&
-                oldWallpaperCard.equals(wallpaperCard)) {
-                exoPlayer.seekTo(progress);
+            if (startPosition > 0) {
+                exoPlayer.seekTo(startPosition);
+            }
+            // Prepared player shows its first frame even if it does not play.
+            if (qualityTier == QualityPolicy.Tier.STATIC) {
+                Utils.debug(TAG, "Quality tier is static, player stays paused");
+                return;
             }
             exoPlayer.setPlayWhenReady(true);
+            handler.postDelayed(captureRunnable, CAPTURE_DELAY_MS);
+        }
+
+        /**
+         * Renderer uploads flipbook frames at vsync by itself, no player or decoder is needed.
+         */
+        private void startFlipbook() {
+            final FlipbookFile flipbookFile;
+            try {
+                flipbookFile = FlipbookFile.open(new File(wallpaperCard.getUri().getPath()));
+            } catch (IOException e) {
+                e.printStackTrace();
+                // gg
+                return;
+            }
+            Utils.debug(TAG, "Flipbook starting: " + flipbookFile);
+            flipbook = flipbookFile;
+            videoRotation = 0;
+            videoWidth = flipbookFile.getWidth();
+            videoHeight = flipbookFile.getHeight();
+            videoFrameRate = flipbookFile.getFrameRate();
+            videoDurationMs = flipbookFile.getLoopNs() / 1000000;
+            reportColdStart();
+            applyFrameRate();
+            // Frames are always ready, poster would only be drawn before the first one.
+            needPoster = false;
+            loopPlan = null;
+            renderer.setVideoSizeAndRotation(videoWidth, videoHeight, videoRotation);
+            renderer.setLoopCachePlan(null, 0, loopListener);
+            renderer.setFlipbook(flipbookFile);
+            loopCached = true;
+            startLoopReport();
+        }
+
+        /**
+         * Animated images are decoded on their own thread, which waits for renderer,
+         * so it stops with rendering and needs no pausing.
+         */
+        private void startAnimation() {
+            final FrameSource source;
+            try {
+                source = FrameSourcePlayer.openSource(context, wallpaperCard);
+            } catch (IOException e) {
+                e.printStackTrace();
+                // gg
+                return;
+            }
+            Utils.debug(TAG, String.format(
+                Locale.US, "Animated image starting: %dx%d",
+                source.getWidth(), source.getHeight()
+            ));
+            frameSourcePlayer = new FrameSourcePlayer(source);
+            frameSourcePlayer.start();
+            videoRotation = 0;
+            videoWidth = source.getWidth();
+            videoHeight = source.getHeight();
+            // Every frame has its own delay, let policy treat it as unknown.
+            videoFrameRate = 0;
+            videoDurationMs = 0;
+            reportColdStart();
+            applyFrameRate();
+            needPoster = false;
+            loopPlan = null;
+            renderer.setVideoSizeAndRotation(videoWidth, videoHeight, videoRotation);
+            renderer.setLoopCachePlan(null, 0, loopListener);
+            renderer.setFrameSourcePlayer(frameSourcePlayer);
+            loopCached = true;
+            startLoopReport();
+        }
+
+        /**
+         * Shader is compiled by renderer, or loaded from its program binary cache,
+         * then drawn every vsync divider frames.
+         */
+        private void startShader() {
+            final String source;
+            try {
+                source = ShaderProbe.loadSource(context, wallpaperCard);
+            } catch (IOException e) {
+                e.printStackTrace();
+                // gg
+                return;
+            }
+            Utils.debug(TAG, "Shader starting");
+            videoRotation = 0;
+            // Shader has the density of screen, so render scale only follows GPU time.
+            videoWidth = screenWidth;
+            videoHeight = screenHeight;
+            videoFrameRate = shaderFrameRate;
+            videoDurationMs = 0;
+            reportColdStart();
+            applyFrameRate();
+            needPoster = false;
+            loopPlan = null;
+            renderer.setVideoSizeAndRotation(videoWidth, videoHeight, videoRotation);
+            renderer.setLoopCachePlan(null, 0, loopListener);
+            renderer.setShaderSource(source);
+            loopCached = true;
+            shaderShown = true;
+            applyQualityTier();
+            startLoopReport();
+        }
+
+        /**
+         * Still image is decoded once, then neither player, decoder nor vsync callbacks
+         * run while it is shown, only offset and surface changes draw a frame.
+         */
+        private void startStillImage() {
+            final Bitmap bitmap = StillImageLoader.load(
+                context, wallpaperCard, screenWidth, screenHeight
+            );
+            if (bitmap == null) {
+                // gg
+                return;
+            }
+            videoRotation = 0;
+            videoWidth = bitmap.getWidth();
+            videoHeight = bitmap.getHeight();
+            videoFrameRate = 0;
+            videoDurationMs = 0;
+            reportColdStart();
+            applyFrameRate();
+            needPoster = false;
+            loopPlan = null;
+            renderer.setVideoSizeAndRotation(videoWidth, videoHeight, videoRotation);
+            renderer.setLoopCachePlan(null, 0, loopListener);
+            // Renderer recycles it after uploading.
+            renderer.setStillImage(bitmap);
+            loopCached = true;
+            renderOnDemand = true;
+            renderThread.setRenderOnDemand(true);
+            renderThread.requestRender();
+            handler.removeCallbacks(loopReportRunnable);
+        }
+
+        /**
+         * Stop showing flipbook, animated image, still image or shader, before starting any card.
+         */
+        private void releasePlayerlessSource() {
+            if (flipbook != null) {
+                renderer.setFlipbook(null);
+                flipbook = null;
+            }
+            if (frameSourcePlayer != null) {
+                // Renderer releases it, it may be uploading a frame now.
+                renderer.setFrameSourcePlayer(null);
+                frameSourcePlayer = null;
+            }
+            if (renderOnDemand) {
+                renderer.setStillImage(null);
+                renderThread.setRenderOnDemand(false);
+                renderOnDemand = false;
+            }
+            if (shaderShown) {
+                renderer.setShaderSource(null);
+                shaderShown = false;
+                applyQualityTier();
+            }
+        }
+
+        /**
+         * Low RAM devices need memory more than saving storage reads.
+         *
+         * @return long Largest file kept in memory, 0 keeps none.
+         */
+        private long getSourceCacheBytes() {
+            final ActivityManager activityManager = (ActivityManager)getSystemService(
+                Context.ACTIVITY_SERVICE
+            );
+            if (activityManager == null || activityManager.isLowRamDevice()) {
+                return 0;
+            }
+            final SharedPreferences pref = getSharedPreferences(
+                LWApplication.OPTIONS_PREF, MODE_PRIVATE
+            );
+            return pref.getInt(
+                LWApplication.SOURCE_CACHE_KEY, LWApplication.DEFAULT_SOURCE_CACHE_MEGABYTES
+            ) * 1024L * 1024L;
+        }
+
+        /**
+         * Only short videos are cached, in the texture budget user chose, and not on low RAM
+         * devices, which are the ones killing our process when it is hidden.
+         */
+        private LoopCachePlan createLoopCachePlan() {
+            final ActivityManager activityManager = (ActivityManager)getSystemService(
+                Context.ACTIVITY_SERVICE
+            );
+            final SharedPreferences pref = getSharedPreferences(
+                LWApplication.OPTIONS_PREF, MODE_PRIVATE
+            );
+            final long budgetBytes = activityManager == null ||
+                activityManager.isLowRamDevice() ? 0 : pref.getInt(
+                LWApplication.LOOP_CACHE_KEY, LWApplication.DEFAULT_LOOP_CACHE_MEGABYTES
+            ) * 1024L * 1024L;
+            int width = videoWidth;
+            int height = videoHeight;
+            if (videoRotation % 180 != 0) {
+                final int swap = width;
+                //noinspection SuspiciousNameCombination
+                width = height;
+                height = swap;
+            }
+            return LoopCachePlan.create(
+                videoDurationMs, videoFrameRate, width, height,
+                RenderScaleController.getDensityScale(screenWidth, screenHeight, width, height),
+                budgetBytes
+            );
+        }
+
+        private void releaseCachedPlayer(@NonNull final LoopCachePlan plan) {
+            if (plan != loopPlan || exoPlayer == null) {
+                return;
+            }
+            Utils.debug(TAG, String.format(
+                Locale.US, "Loop cached, releasing player, process CPU %d ms per second " +
+                "while decoding", getLoopCpuRate()
+            ));
+            stopPlayer();
+            loopCached = true;
+            startLoopReport();
+        }
+
+        /**
+         * Cached loop is tens of MB of textures, a hidden wallpaper gives them back
+         * with its player, and decodes and caches again when shown.
+         */
+        private void releaseLoopCache() {
+            // Flipbooks and images are also played without player, but have no plan.
+            if (!loopCached || loopPlan == null) {
+                return;
+            }
+            Utils.debug(TAG, "Releasing cached loop");
+            loopCached = false;
+            loopPlan = null;
+            handler.removeCallbacks(loopReportRunnable);
+            final GLWallpaperRenderer renderer = this.renderer;
+            // Paused render thread draws no frame, so a pending request would wait.
+            renderThread.queueEvent(new Runnable() {
+                @Override
+                public void run() {
+                    renderer.releaseLoopCache();
+                }
+            });
+        }
+
+        /**
+         * Reports what playing costs once it settled, counting from now.
+         */
+        private void startLoopReport() {
+            loopCpuStartMs = Process.getElapsedCpuTime();
+            loopRealStartMs = SystemClock.elapsedRealtime();
+            loopFrameStart = renderThread.getFrameCount();
+            handler.removeCallbacks(loopReportRunnable);
+            handler.postDelayed(loopReportRunnable, LOOP_REPORT_DELAY_MS);
+        }
+
+        @NonNull
+        private String getPlayingLabel() {
+            if (flipbook != null) {
+                return "flipbook";
+            } else if (frameSourcePlayer != null) {
+                return "animated image";
+            } else if (shaderShown) {
+                return "shader";
+            } else if (exoPlayer != null) {
+                return "video";
+            }
+            return "cached loop";
+        }
+
+        /**
+         * Hardware decoder runs in media server, so this is our side of decoding:
+         * player threads, buffer callbacks and latching frames.
+         *
+         * @return long Process CPU milliseconds per second since last start.
+         */
+        private long getLoopCpuRate() {
+            final long realMs = SystemClock.elapsedRealtime() - loopRealStartMs;
+            return realMs > 0 ?
+                (Process.getElapsedCpuTime() - loopCpuStartMs) * 1000 / realMs : 0;
+        }
+
+        /**
+         * Continue the paused player if it still plays the card we want, or start a new one.
+         */
+        private void resumePlayer() {
+            final WallpaperCard card = isPreview() ?
+                LWApplication.getPreviewWallpaperCard() :
+                LWApplication.getCurrentWallpaperCard(context);
+            // Renderer plays cached loop, flipbook or animated image by itself.
+            if (loopCached && wallpaperCard != null &&
+                (card == null || wallpaperCard.equals(card))) {
+                return;
+            }
+            // Null card means user left preview, keep the old one like catalog listener.
+            if (exoPlayer == null || wallpaperCard == null ||
+                (card != null && !wallpaperCard.equals(card))) {
+                startPlayer();
+                return;
+            }
+            if (qualityTier != QualityPolicy.Tier.STATIC && !exoPlayer.getPlayWhenReady()) {
+                Utils.debug(TAG, "Player resuming");
+                exoPlayer.setPlayWhenReady(true);
+                handler.removeCallbacks(captureRunnable);
+                handler.postDelayed(captureRunnable, CAPTURE_DELAY_MS);
+            }
+        }
+
+        /**
+         * Renderer already has the frame in its texture, read it back instead of opening
+         * the video again, and refresh poster and thumbnail with it.
+         */
+        private void captureFrame() {
+            if (exoPlayer == null || renderer == null || wallpaperCard == null ||
+                screenWidth <= 0 || screenHeight <= 0) {
+                return;
+            }
+            // Keep refreshing poster while playing, so it stays near the position we stop.
+            handler.postDelayed(captureRunnable, PosterCache.MIN_UPDATE_INTERVAL_MS);
+            final WallpaperCard card = wallpaperCard;
+            final boolean needThumbnail = ThumbnailCache.getInstance().get(card) == null;
+            if (!needThumbnail && !PosterCache.getInstance().isStale(context, card)) {
+                return;
+            }
+            int width = videoWidth;
+            int height = videoHeight;
+            if (videoRotation % 180 != 0) {
+                final int swap = width;
+                //noinspection SuspiciousNameCombination
+                width = height;
+                height = swap;
+            }
+            final int[] size = PosterCache.getPosterSize(width, height, screenWidth, screenHeight);
+            final long positionMs = exoPlayer.getCurrentPosition();
+            renderer.requestCapture(
+                size[0], size[1], new GLWallpaperRenderer.OnFrameCapturedListener() {
+                @Override
+                public void onFrameCaptured(@NonNull final Bitmap frame, final long readbackNs) {
+                    PosterCache.getInstance().save(context, card, frame, positionMs);
+                    if (needThumbnail) {
+                        final int[] thumbnailSize = ThumbnailExtractor.fitSize(
+                            frame.getWidth(), frame.getHeight(), ThumbnailExtractor.THUMBNAIL_SIZE
+                        );
+                        final Bitmap thumbnail = Bitmap.createScaledBitmap(
+                            frame, thumbnailSize[0], thumbnailSize[1], true
+                        );
+                        ThumbnailCache.getInstance().put(card, thumbnail);
+                        if (thumbnail != frame) {
+                            frame.recycle();
+                        }
+                    } else {
+                        frame.recycle();
+                    }
+                }
+            });
+        }
+
+        private void reportColdStart() {
+            if (coldStartReported) {
+                return;
+            }
+            coldStartReported = true;
+            final Runtime runtime = Runtime.getRuntime();
+            final long javaHeapKB = (runtime.totalMemory() - runtime.freeMemory()) / 1024;
+            final long nativeHeapKB = Debug.getNativeHeapAllocatedSize() / 1024;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+                Utils.debug(TAG, String.format(
+                    Locale.US, "Cold start to player: %d ms, Java heap %d KB, native heap %d KB",
+                    SystemClock.elapsedRealtime() - Process.getStartElapsedRealtime(),
+                    javaHeapKB, nativeHeapKB
+                ));
+            } else {
+                Utils.debug(TAG, String.format(
+                    Locale.US, "Cold start to player: Java heap %d KB, native heap %d KB",
+                    javaHeapKB, nativeHeapKB
+                ));
+            }
+        }
+
+        /**
+         * Stop decoding but keep decoder and its output, so resuming needs no prepare.
+         */
+        private void pausePlayer() {
+            handler.removeCallbacks(captureRunnable);
+            if (exoPlayer != null && exoPlayer.getPlayWhenReady()) {
+                Utils.debug(TAG, "Player pausing");
+                exoPlayer.setPlayWhenReady(false);
+                progress = exoPlayer.getCurrentPosition();
+            }
+        }
+
+        /**
+         * Failures are counted for decoder, so retrying enough times moves to the next one.
+         */
+        private void onDecoderFailed(final Exception exception) {
+            String name = decoderSelector != null ? decoderSelector.getSelectedName() : null;
+            if (exception instanceof MediaCodecRenderer.DecoderInitializationException) {
+                final String initName =
+                    ((MediaCodecRenderer.DecoderInitializationException)exception).decoderName;
+                if (initName != null) {
+                    name = initName;
+                }
+            }
+            if (name == null) {
+                return;
+            }
+            Utils.debug(TAG, String.format(
+                Locale.US, "Decoder %s failed, %d retries left", name, decoderRetries
+            ));
+            DecoderProbe.recordFailure(context, name);
+            if (decoderRetries > 0) {
+                --decoderRetries;
+                // Never release player inside its own callback.
+                handler.post(retryRunnable);
+            }
         }
 
         private void stopPlayer() {
+            handler.removeCallbacks(captureRunnable);
+            handler.removeCallbacks(releaseRunnable);
+            handler.removeCallbacks(retryRunnable);
             if (exoPlayer != null) {
                 if (exoPlayer.getPlayWhenReady()) {
                     Utils.debug(TAG, "Player stopping");
@@ -366,9 +1283,49 @@ public class GLWallpaperService extends WallpaperService {
                 exoPlayer.release();
                 exoPlayer = null;
             }
+            if (fileRange != null) {
+                Utils.debug(TAG, "Video file " + fileRange);
+                SourceCache.getInstance().release(fileRange);
+                try {
+                    fileRange.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                fileRange = null;
+            }
             videoSource = null;
             trackSelector = null;
+            decoderSelector = null;
+        }
+    }
+
+    /**
+     * adb shell dumpsys activity service xyz.alynx.livewallpaper/.GLWallpaperService
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(fd, writer, args);
+        ThreadTopology.getInstance().dump(writer);
+    }
+
+    /**
+     * Cached video files are only a saving, they go before anything is killed.
+     */
+    @Override
+    public void onTrimMemory(final int level) {
+        super.onTrimMemory(level);
+        final SourceCache sourceCache = SourceCache.getInstance();
+        // Hidden activity of our process does not mean memory is low.
+        if (level == TRIM_MEMORY_UI_HIDDEN || sourceCache.getUsedBytes() == 0) {
+            return;
         }
+        Utils.debug(TAG, String.format(
+            Locale.US, "Trim memory level %d, %d KB of video files in memory",
+            level, sourceCache.getUsedBytes() / 1024
+        ));
+        sourceCache.trim(
+            level == TRIM_MEMORY_RUNNING_MODERATE ? sourceCache.getBudgetBytes() / 2 : 0
+        );
     }
 
     @Override
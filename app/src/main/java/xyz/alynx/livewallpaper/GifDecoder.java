@@ -0,0 +1,439 @@
+/*
+ * Copyright 2019 Alynx Zhou
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.alynx.livewallpaper;
+
+import android.support.annotation.NonNull;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ *
+ * GifDecoder: stream GIF frames, LZW decoding one image at a time.
+ *
+ * Tables, color maps and the index buffer are allocated once, reading a frame only fills
+ * them, so a long animation does not make garbage. Transparent pixels keep what is on canvas,
+ * background disposal clears to transparent like browsers do.
+ *
+ * It is plain Java, so it can be tested with GIFs written by tests.
+ *
+ */
+class GifDecoder implements FrameSource {
+    @SuppressWarnings("unused")
+    private static final String TAG = "GifDecoder";
+    private static final int MAX_CODES = 4096;
+    private static final int BLOCK_EXTENSION = 0x21;
+    private static final int BLOCK_IMAGE = 0x2c;
+    private static final int BLOCK_TRAILER = 0x3b;
+    private static final int LABEL_GRAPHIC_CONTROL = 0xf9;
+    private static final int DISPOSE_BACKGROUND = 2;
+    private static final int DISPOSE_PREVIOUS = 3;
+    private final Opener opener;
+    private InputStream input = null;
+    private int width = 0;
+    private int height = 0;
+    private boolean hasGlobalColors = false;
+    private final int[] globalColors = new int[256];
+    private final int[] localColors = new int[256];
+    private final short[] prefix = new short[MAX_CODES];
+    private final byte[] suffix = new byte[MAX_CODES];
+    private final byte[] pixelStack = new byte[MAX_CODES + 1];
+    private final byte[] block = new byte[256];
+    private final byte[] indices;
+    // Canvas before a frame which is disposed to previous, allocated when first needed.
+    private int[] previous = null;
+    private int disposal = 0;
+    private int disposalX = 0;
+    private int disposalY = 0;
+    private int disposalWidth = 0;
+    private int disposalHeight = 0;
+    private int frameIndex = 0;
+    private int frameCount = 0;
+
+    /**
+     * @throws IOException if it is not a GIF or too large.
+     */
+    GifDecoder(@NonNull final Opener opener) throws IOException {
+        this.opener = opener;
+        open();
+        indices = new byte[width * height];
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public int getFrameCount() {
+        return frameCount;
+    }
+
+    @Override
+    public int readFrame(@NonNull final int[] argb) throws IOException {
+        applyDisposal(argb);
+        // Graphic control only applies to the image after it.
+        int delay = -1;
+        int transparent = -1;
+        int nextDisposal = 0;
+        while (true) {
+            final int introducer = input.read();
+            switch (introducer) {
+            case BLOCK_EXTENSION:
+                if (readByte() == LABEL_GRAPHIC_CONTROL) {
+                    readByte();
+                    final int packed = readByte();
+                    delay = readShort();
+                    final int index = readByte();
+                    transparent = (packed & 0x01) != 0 ? index : -1;
+                    nextDisposal = (packed >> 2) & 0x07;
+                }
+                skipBlocks();
+                break;
+            case BLOCK_IMAGE:
+                readImage(argb, transparent, nextDisposal);
+                ++frameIndex;
+                return delay * 10 < MIN_DELAY_MS ? DEFAULT_DELAY_MS : delay * 10;
+            case BLOCK_TRAILER:
+            case -1:
+                // Many GIFs are cut before trailer, play what they have.
+                if (frameIndex == 0) {
+                    throw new IOException("GIF has no frames");
+                }
+                if (frameCount == 0) {
+                    frameCount = frameIndex;
+                }
+                rewind(argb);
+                delay = -1;
+                transparent = -1;
+                nextDisposal = 0;
+                break;
+            case 0:
+                // Some encoders leave a stray block terminator.
+                break;
+            default:
+                throw new IOException(String.format(
+                    Locale.US, "Bad GIF block 0x%02x after frame %d", introducer, frameIndex
+                ));
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (input != null) {
+            input.close();
+            input = null;
+        }
+    }
+
+    private void open() throws IOException {
+        input = new BufferedInputStream(opener.open());
+        try {
+            readHeader();
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    private void readHeader() throws IOException {
+        final int signature = readByte() << 16 | readByte() << 8 | readByte();
+        final int version = readByte() << 16 | readByte() << 8 | readByte();
+        // GIF 87a or 89a.
+        if (signature != 0x474946 || (version != 0x383761 && version != 0x383961)) {
+            throw new IOException("Not a GIF");
+        }
+        final int screenWidth = readShort();
+        final int screenHeight = readShort();
+        final int packed = readByte();
+        // Background color and aspect ratio, browsers ignore both.
+        readByte();
+        readByte();
+        if (width == 0) {
+            if (screenWidth <= 0 || screenHeight <= 0 ||
+                (long)screenWidth * screenHeight > FrameSources.MAX_PIXELS) {
+                throw new IOException("Bad GIF size " + screenWidth + "x" + screenHeight);
+            }
+            width = screenWidth;
+            height = screenHeight;
+        } else if (screenWidth != width || screenHeight != height) {
+            throw new IOException("GIF changed while playing");
+        }
+        hasGlobalColors = (packed & 0x80) != 0;
+        if (hasGlobalColors) {
+            readColors(globalColors, 2 << (packed & 0x07));
+        }
+    }
+
+    /**
+     * A loop starts from an empty canvas, as the first time.
+     */
+    private void rewind(@NonNull final int[] argb) throws IOException {
+        close();
+        open();
+        Arrays.fill(argb, 0);
+        disposal = 0;
+        frameIndex = 0;
+    }
+
+    private void readImage(
+        @NonNull final int[] argb,
+        final int transparent,
+        final int nextDisposal
+    ) throws IOException {
+        final int x = readShort();
+        final int y = readShort();
+        final int imageWidth = readShort();
+        final int imageHeight = readShort();
+        final int packed = readByte();
+        int[] colors = globalColors;
+        if ((packed & 0x80) != 0) {
+            readColors(localColors, 2 << (packed & 0x07));
+            colors = localColors;
+        } else if (!hasGlobalColors) {
+            throw new IOException("GIF frame " + frameIndex + " has no colors");
+        }
+        if ((long)imageWidth * imageHeight > indices.length) {
+            throw new IOException(String.format(
+                Locale.US, "GIF frame %d of %dx%d is larger than %dx%d",
+                frameIndex, imageWidth, imageHeight, width, height
+            ));
+        }
+        if (nextDisposal == DISPOSE_PREVIOUS) {
+            if (previous == null) {
+                previous = new int[width * height];
+            }
+            System.arraycopy(argb, 0, previous, 0, previous.length);
+        }
+        final int pixelCount = imageWidth * imageHeight;
+        decodeLzw(pixelCount);
+        final boolean interlaced = (packed & 0x40) != 0;
+        for (int row = 0; row < imageHeight; ++row) {
+            final int line = y + (interlaced ? getInterlacedLine(row, imageHeight) : row);
+            if (line >= height) {
+                continue;
+            }
+            final int source = row * imageWidth;
+            final int target = line * width;
+            final int columns = Math.min(imageWidth, width - x);
+            for (int column = 0; column < columns; ++column) {
+                final int index = indices[source + column] & 0xff;
+                if (index != transparent) {
+                    argb[target + x + column] = colors[index];
+                }
+            }
+        }
+        disposal = nextDisposal;
+        disposalX = x;
+        disposalY = y;
+        disposalWidth = imageWidth;
+        disposalHeight = imageHeight;
+    }
+
+    private void applyDisposal(@NonNull final int[] argb) {
+        if (disposal != DISPOSE_BACKGROUND && (disposal != DISPOSE_PREVIOUS || previous == null)) {
+            return;
+        }
+        final int right = Math.min(width, disposalX + disposalWidth);
+        final int bottom = Math.min(height, disposalY + disposalHeight);
+        for (int line = disposalY; line < bottom; ++line) {
+            final int start = line * width + disposalX;
+            final int end = line * width + right;
+            if (start >= end) {
+                break;
+            }
+            if (disposal == DISPOSE_BACKGROUND) {
+                Arrays.fill(argb, start, end, 0);
+            } else {
+                System.arraycopy(previous, start, argb, start, end - start);
+            }
+        }
+        disposal = 0;
+    }
+
+    /**
+     * Rows of an interlaced image come every 8th from 0, every 8th from 4,
+     * every 4th from 2 and every 2nd from 1.
+     */
+    private static int getInterlacedLine(int row, final int height) {
+        final int firstPass = (height + 7) / 8;
+        if (row < firstPass) {
+            return row * 8;
+        }
+        row -= firstPass;
+        final int secondPass = (height + 3) / 8;
+        if (row < secondPass) {
+            return row * 8 + 4;
+        }
+        row -= secondPass;
+        final int thirdPass = (height + 1) / 4;
+        if (row < thirdPass) {
+            return row * 4 + 2;
+        }
+        row -= thirdPass;
+        return row * 2 + 1;
+    }
+
+    /**
+     * Decode image data into indices, pixels missing in a broken image are index 0.
+     */
+    private void decodeLzw(final int pixelCount) throws IOException {
+        final int dataSize = readByte();
+        if (dataSize < 1 || dataSize > 11) {
+            throw new IOException("Bad GIF code size " + dataSize);
+        }
+        final int clear = 1 << dataSize;
+        final int endOfInformation = clear + 1;
+        int codeSize = dataSize + 1;
+        int codeMask = (1 << codeSize) - 1;
+        int available = clear + 2;
+        int oldCode = -1;
+        int first = 0;
+        for (int code = 0; code < clear; ++code) {
+            prefix[code] = 0;
+            suffix[code] = (byte)code;
+        }
+        int datum = 0;
+        int bits = 0;
+        int count = 0;
+        int blockIndex = 0;
+        int pixel = 0;
+        boolean terminated = false;
+        decoding:
+        while (pixel < pixelCount) {
+            if (count == 0) {
+                count = readBlock();
+                if (count == 0) {
+                    terminated = true;
+                    break;
+                }
+                blockIndex = 0;
+            }
+            datum += (block[blockIndex++] & 0xff) << bits;
+            bits += 8;
+            --count;
+            while (bits >= codeSize && pixel < pixelCount) {
+                int code = datum & codeMask;
+                datum >>= codeSize;
+                bits -= codeSize;
+                if (code == clear) {
+                    codeSize = dataSize + 1;
+                    codeMask = (1 << codeSize) - 1;
+                    available = clear + 2;
+                    oldCode = -1;
+                    continue;
+                }
+                if (code == endOfInformation || code > available) {
+                    break decoding;
+                }
+                if (oldCode == -1) {
+                    if (code >= clear) {
+                        break decoding;
+                    }
+                    indices[pixel++] = suffix[code];
+                    oldCode = code;
+                    first = code;
+                    continue;
+                }
+                final int inCode = code;
+                int top = 0;
+                if (code == available) {
+                    pixelStack[top++] = (byte)first;
+                    code = oldCode;
+                }
+                while (code >= clear) {
+                    pixelStack[top++] = suffix[code];
+                    code = prefix[code];
+                }
+                first = suffix[code] & 0xff;
+                pixelStack[top++] = (byte)first;
+                if (available < MAX_CODES) {
+                    prefix[available] = (short)oldCode;
+                    suffix[available] = (byte)first;
+                    ++available;
+                    if ((available & codeMask) == 0 && available < MAX_CODES) {
+                        ++codeSize;
+                        codeMask += available;
+                    }
+                }
+                oldCode = inCode;
+                while (top > 0 && pixel < pixelCount) {
+                    indices[pixel++] = pixelStack[--top];
+                }
+            }
+        }
+        Arrays.fill(indices, pixel, pixelCount, (byte)0);
+        if (!terminated) {
+            skipBlocks();
+        }
+    }
+
+    /**
+     * @return int Size of data sub-block read into block, 0 for terminator.
+     */
+    private int readBlock() throws IOException {
+        final int count = readByte();
+        readFully(block, count);
+        return count;
+    }
+
+    private void skipBlocks() throws IOException {
+        while (readBlock() > 0) {
+            // Skipped.
+        }
+    }
+
+    private void readColors(@NonNull final int[] colors, final int count) throws IOException {
+        for (int i = 0; i < count; ++i) {
+            colors[i] = 0xff000000 | readByte() << 16 | readByte() << 8 | readByte();
+        }
+        // Broken files may use indices out of table.
+        Arrays.fill(colors, count, colors.length, 0xff000000);
+    }
+
+    private void readFully(@NonNull final byte[] buffer, final int length) throws IOException {
+        int offset = 0;
+        while (offset < length) {
+            final int count = input.read(buffer, offset, length - offset);
+            if (count < 0) {
+                throw new IOException("GIF ends early");
+            }
+            offset += count;
+        }
+    }
+
+    private int readByte() throws IOException {
+        final int value = input.read();
+        if (value < 0) {
+            throw new IOException("GIF ends early");
+        }
+        return value;
+    }
+
+    private int readShort() throws IOException {
+        return readByte() | readByte() << 8;
+    }
+}
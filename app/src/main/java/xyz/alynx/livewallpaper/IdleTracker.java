@@ -0,0 +1,154 @@
+/*
+ * Copyright 2019 Alynx Zhou
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.alynx.livewallpaper;
+
+import android.support.annotation.NonNull;
+
+import java.util.Locale;
+
+/**
+ *
+ * IdleTracker: decide when a visible wallpaper has had no interaction for long enough
+ * to freeze, and count how much visible time was spent frozen.
+ *
+ * Engine reports interaction (touch, offsets, visibility, surface changes) with
+ * onActive(), and asks getRemainingMs() when its timer fires. Frozen time is the
+ * time decoder and render loop did not run while wallpaper was visible.
+ *
+ * It is plain Java, times are passed in, so it can be tested without a clock.
+ *
+ */
+class IdleTracker {
+    @SuppressWarnings("unused")
+    private static final String TAG = "IdleTracker";
+    private long freezeDelayMs;
+    private boolean visible = false;
+    private boolean frozen = false;
+    private long lastActiveMs = 0;
+    private long visibleSinceMs = 0;
+    private long frozenSinceMs = 0;
+    private long visibleMs = 0;
+    private long frozenMs = 0;
+    private int freezeCount = 0;
+
+    /**
+     * @param freezeDelayMs Idle time before freezing, 0 never freezes.
+     */
+    IdleTracker(final long freezeDelayMs) {
+        this.freezeDelayMs = freezeDelayMs;
+    }
+
+    void setFreezeDelayMs(final long freezeDelayMs) {
+        this.freezeDelayMs = freezeDelayMs;
+    }
+
+    long getFreezeDelayMs() {
+        return freezeDelayMs;
+    }
+
+    /**
+     * @return boolean true if it was frozen, and caller should wake up.
+     */
+    boolean onActive(final long nowMs) {
+        lastActiveMs = nowMs;
+        if (!frozen) {
+            return false;
+        }
+        frozen = false;
+        frozenMs += nowMs - frozenSinceMs;
+        return true;
+    }
+
+    /**
+     * Wallpaper becomes visible, which also counts as interaction.
+     */
+    void onShown(final long nowMs) {
+        if (!visible) {
+            visible = true;
+            visibleSinceMs = nowMs;
+        }
+        onActive(nowMs);
+    }
+
+    /**
+     * Hidden time is neither visible nor frozen, engine pauses everything anyway.
+     *
+     * @return boolean true if it was frozen.
+     */
+    boolean onHidden(final long nowMs) {
+        final boolean wasFrozen = frozen;
+        if (frozen) {
+            frozen = false;
+            frozenMs += nowMs - frozenSinceMs;
+        }
+        if (visible) {
+            visible = false;
+            visibleMs += nowMs - visibleSinceMs;
+        }
+        return wasFrozen;
+    }
+
+    /**
+     * @return long Milliseconds until freezing, 0 means freeze now, -1 means never.
+     */
+    long getRemainingMs(final long nowMs) {
+        if (!visible || frozen || freezeDelayMs <= 0) {
+            return -1;
+        }
+        return Math.max(0, lastActiveMs + freezeDelayMs - nowMs);
+    }
+
+    /**
+     * @return boolean true if it is time to freeze, caller must freeze then.
+     */
+    boolean freezeIfIdle(final long nowMs) {
+        if (getRemainingMs(nowMs) != 0) {
+            return false;
+        }
+        frozen = true;
+        frozenSinceMs = nowMs;
+        ++freezeCount;
+        return true;
+    }
+
+    boolean isFrozen() {
+        return frozen;
+    }
+
+    long getVisibleMs(final long nowMs) {
+        return visible ? visibleMs + nowMs - visibleSinceMs : visibleMs;
+    }
+
+    long getFrozenMs(final long nowMs) {
+        return frozen ? frozenMs + nowMs - frozenSinceMs : frozenMs;
+    }
+
+    int getFreezeCount() {
+        return freezeCount;
+    }
+
+    @NonNull
+    String getStats(final long nowMs) {
+        final long visibleMs = getVisibleMs(nowMs);
+        final long frozenMs = getFrozenMs(nowMs);
+        return String.format(
+            Locale.US, "frozen %d s of %d s visible (%d%%) in %d freezes",
+            frozenMs / 1000, visibleMs / 1000,
+            visibleMs > 0 ? frozenMs * 100 / visibleMs : 0, freezeCount
+        );
+    }
+}
@@ -19,16 +19,12 @@ package xyz.alynx.livewallpaper;
 import android.app.Application;
 import android.content.Context;
 import android.content.SharedPreferences;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.support.annotation.NonNull;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 
-import java.io.IOException;
-import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
 
@@ -40,62 +36,83 @@ public class LWApplication extends Application {
     private static final String CURRENT_CARD_PREF = "currentWallpaperCard";
     public static final String OPTIONS_PREF = "options";
     public static final String SLIDE_WALLPAPER_KEY = "slideWallpaper";
+    // Encoding every video of a large folder takes hours, so it is opt in.
+    public static final String FOLDER_RENDITIONS_KEY = "folderRenditions";
+    public static final String IDLE_FREEZE_KEY = "idleFreezeSeconds";
+    // Off until user chooses it, a frozen wallpaper looks broken to who did not expect it.
+    public static final int DEFAULT_IDLE_FREEZE_SECONDS = 0;
+    public static final String SHADER_FRAME_RATE_KEY = "shaderFrameRate";
+    public static final String SOURCE_CACHE_KEY = "sourceCacheMegabytes";
+    // Index of ThreadPolicy.Mode.
+    public static final String THREAD_POLICY_KEY = "threadPolicyMode";
+    // Most bundled and downloaded loops are smaller, a few of them fit in budget.
+    public static final int DEFAULT_SOURCE_CACHE_MEGABYTES = 8;
+    public static final String LOOP_CACHE_KEY = "loopCacheMegabytes";
+    // Texture memory each engine may fill with frames of a short loop.
+    public static final int DEFAULT_LOOP_CACHE_MEGABYTES = 64;
     private static final String INTERNAL_WALLPAPER_IMAGE_PATH = "wallpapers/fire-rain/fire-rain-512x384.webp";
     private static final String INTERNAL_WALLPAPER_VIDEO_PATH = "wallpapers/fire-rain/fire-rain-720x720.mp4";
-    private static List<WallpaperCard> cards = null;
-    private static WallpaperCard currentWallpaperCard = null;
-    private static WallpaperCard previewWallpaperCard = null;
+    private static final String INTERNAL_WALLPAPER_SHADER_PATH = "wallpapers/fire-rain/fire-rain.frag";
+    private static final CardCatalog catalog = new CardCatalog();
+
+    @NonNull
+    public static CardCatalog getCatalog() {
+        return catalog;
+    }
 
     @NonNull
     public static List<WallpaperCard> getCards(@NonNull final Context context) {
-        if (cards == null) {
+        if (catalog.getSnapshot().getCards().isEmpty()) {
             initCards(context);
         }
-        return cards;
+        return catalog.getSnapshot().getCards();
     }
 
     public static WallpaperCard getCurrentWallpaperCard(@NonNull final Context context) {
+        final WallpaperCard currentWallpaperCard = catalog.getSnapshot().getCurrentCard();
         if (currentWallpaperCard == null) {
-            currentWallpaperCard = loadWallpaperCardPreference(context);
+            final WallpaperCard savedWallpaperCard = loadWallpaperCardPreference(context);
+            if (savedWallpaperCard != null) {
+                catalog.edit().setCurrent(savedWallpaperCard).commit();
+            }
+            return savedWallpaperCard;
         }
         return currentWallpaperCard;
     }
 
     public static void setCurrentWallpaperCard(@NonNull final Context context, final WallpaperCard wallpaperCard) {
-        currentWallpaperCard = wallpaperCard;
+        catalog.edit().setCurrent(wallpaperCard).commit();
         if (wallpaperCard != null) {
             saveWallpaperCardPreference(context, wallpaperCard);
         }
     }
 
     public static boolean isCurrentWallpaperCard(WallpaperCard wallpaperCard) {
-        // Only check variable, no SharedPreference.
+        // Only check snapshot, no SharedPreference.
         // If wallpaper is not this app, Preference should not be cleared,
-        // only currentWallpaperCard is set to null.
+        // only current card is set to null.
         // Because when we getCurrentWallpaperCard(), it loads Preference,
-        // and set currentWallpaperCard to non-null.
+        // and set current card to non-null.
         // We want to detect whether service is selected
-        // by checking whether currentWallpaperCard is null.
+        // by checking whether current card is null.
         // If we use getCurrentWallpaperCard(), we cannot archive this.
-        return currentWallpaperCard != null && wallpaperCard.equals(currentWallpaperCard);
+        return catalog.getSnapshot().isCurrent(wallpaperCard);
     }
 
     public static WallpaperCard getPreviewWallpaperCard() {
-        return previewWallpaperCard;
+        return catalog.getSnapshot().getPreviewCard();
     }
 
     public static void setPreviewWallpaperCard(final WallpaperCard wallpaperCard) {
-        previewWallpaperCard = wallpaperCard;
+        catalog.edit().setPreview(wallpaperCard).commit();
     }
 
     public static JSONArray getCardsJSONArray() throws JSONException {
         JSONArray jsonArray = new JSONArray();
-        if (cards != null) {
-            for (WallpaperCard card : cards) {
-                // INTERNAL WallpaperCard don't need to save.
-                if (card.getType() != WallpaperCard.Type.INTERNAL) {
-                    jsonArray.put(card.toJSON());
-                }
+        for (WallpaperCard card : catalog.getSnapshot().getCards()) {
+            // INTERNAL WallpaperCard don't need to save.
+            if (card.getType() != WallpaperCard.Type.INTERNAL) {
+                jsonArray.put(card.toJSON());
             }
         }
         return jsonArray;
@@ -107,6 +124,18 @@ public class LWApplication extends Application {
         final SharedPreferences.Editor prefEditor = pref.edit();
         prefEditor.putString("name", wallpaperCard.getName());
         prefEditor.putString("path", wallpaperCard.getPath());
+        if (wallpaperCard.getFingerprint() != null) {
+            prefEditor.putString("fingerprint", wallpaperCard.getFingerprint());
+        } else {
+            prefEditor.remove("fingerprint");
+        }
+        // Service reads them on cold start, so it does not need a MediaMetadataRetriever.
+        final VideoMetadata metadata = wallpaperCard.getMetadata();
+        if (metadata != null) {
+            metadata.save(prefEditor);
+        } else {
+            VideoMetadata.clear(prefEditor);
+        }
         switch (wallpaperCard.getType()) {
         case INTERNAL:
             prefEditor.putString("type",  "INTERNAL");
@@ -115,6 +144,7 @@ public class LWApplication extends Application {
             prefEditor.putString("type", "EXTERNAL");
             break;
         }
+        prefEditor.putString("kind", wallpaperCard.getKind().name());
         prefEditor.apply();
     }
 
@@ -127,30 +157,39 @@ public class LWApplication extends Application {
         }
         WallpaperCard.Type type = WallpaperCard.Type.EXTERNAL;
         Uri uri;
+        String thumbnailPath = null;
         if (Objects.equals(pref.getString("type", null), "INTERNAL")) {
             type = WallpaperCard.Type.INTERNAL;
             uri = Uri.parse("file:///android_asset/" + path);
         } else {
             uri = Uri.parse(path);
         }
-        return new WallpaperCard(name, path, uri, type, null);
+        final WallpaperCard.Kind kind = WallpaperCard.parseKind(pref.getString("kind", null));
+        // Internal shader draws its own thumbnail.
+        if (type == WallpaperCard.Type.INTERNAL && kind == WallpaperCard.Kind.VIDEO) {
+            thumbnailPath = INTERNAL_WALLPAPER_IMAGE_PATH;
+        }
+        final WallpaperCard wallpaperCard = new WallpaperCard(
+            name, path, uri, type, kind, thumbnailPath
+        );
+        wallpaperCard.setFingerprint(pref.getString("fingerprint", null));
+        wallpaperCard.setMetadata(VideoMetadata.load(pref));
+        return wallpaperCard;
     }
 
     private static void initCards(@NonNull final Context context) {
-        cards = new ArrayList<>();
-        Bitmap thumbnail = null;
-        try {
-            thumbnail = BitmapFactory.decodeStream(
-                context.getAssets().open(INTERNAL_WALLPAPER_IMAGE_PATH)
-            );
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        cards.add(new WallpaperCard(
+        // Don't decode thumbnail here, service also calls this and never shows it.
+        // Another thread may init at the same time, catalog ignores the same path.
+        catalog.edit().add(new WallpaperCard(
             context.getResources().getString(R.string.fire_rain),
             INTERNAL_WALLPAPER_VIDEO_PATH, Uri.parse(
                 "file:///android_asset/" + INTERNAL_WALLPAPER_VIDEO_PATH
-            ), WallpaperCard.Type.INTERNAL, thumbnail
-        ));
+            ), WallpaperCard.Type.INTERNAL, INTERNAL_WALLPAPER_IMAGE_PATH
+        )).add(new WallpaperCard(
+            context.getResources().getString(R.string.fire_rain_shader),
+            INTERNAL_WALLPAPER_SHADER_PATH, Uri.parse(
+                "file:///android_asset/" + INTERNAL_WALLPAPER_SHADER_PATH
+            ), WallpaperCard.Type.INTERNAL, WallpaperCard.Kind.SHADER, null
+        )).commit();
     }
 }
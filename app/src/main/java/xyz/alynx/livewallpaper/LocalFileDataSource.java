@@ -0,0 +1,201 @@
+/*
+ * Copyright 2019 Alynx Zhou
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.alynx.livewallpaper;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.support.annotation.NonNull;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.upstream.BaseDataSource;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ *
+ * LocalFileDataSource: ExoPlayer reads the card's file through a FileRange opened once.
+ *
+ * Asset and content data sources open the file for every load, and a repeating player
+ * loads again from start for every loop. Here closing only ends a load, the file stays
+ * open until engine releases the player. Small files are also loaded into SourceCache
+ * when the first load starts, then loops do not read storage at all.
+ *
+ */
+class LocalFileDataSource extends BaseDataSource {
+    @SuppressWarnings("unused")
+    private static final String TAG = "LocalFileDataSource";
+    private final FileRange fileRange;
+    private final long maxMemoryBytes;
+    private Uri uri = null;
+    private long position = 0;
+    private long bytesRemaining = 0;
+    private boolean opened = false;
+
+    private LocalFileDataSource(@NonNull final FileRange fileRange, final long maxMemoryBytes) {
+        super(false);
+        this.fileRange = fileRange;
+        this.maxMemoryBytes = maxMemoryBytes;
+    }
+
+    /**
+     * APK is never changed while we run, so assets are mapped. Documents may be truncated
+     * by other apps, which would kill us on a mapped read, so they are read by position.
+     *
+     * @return FileRange, or null if card cannot be opened like this, for example
+     *         a compressed asset or a document which is not a regular file.
+     */
+    static FileRange open(@NonNull final Context context, @NonNull final WallpaperCard card) {
+        try {
+            switch (card.getType()) {
+            case INTERNAL:
+                final AssetFileDescriptor afd = context.getAssets().openFd(card.getPath());
+                try {
+                    return new FileRange(
+                        new FileInputStream(afd.getFileDescriptor()).getChannel(),
+                        afd.getStartOffset(), afd.getLength(), afd, true
+                    );
+                } catch (IOException e) {
+                    afd.close();
+                    throw e;
+                }
+            case EXTERNAL:
+                return open(context, card.getUri(), false);
+            }
+        } catch (IOException | SecurityException e) {
+            // Compressed assets have no descriptor, default data source can still read them.
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * @param map Only for files we own, like renditions, which nobody truncates.
+     * @return FileRange, or null if uri is not a regular file.
+     */
+    static FileRange open(
+        @NonNull final Context context,
+        @NonNull final Uri uri,
+        final boolean map
+    ) throws IOException {
+        final ParcelFileDescriptor pfd = context.getContentResolver().openFileDescriptor(uri, "r");
+        if (pfd == null) {
+            return null;
+        }
+        if (pfd.getStatSize() < 0) {
+            // Pipe or socket, it cannot be read by position.
+            pfd.close();
+            return null;
+        }
+        try {
+            return new FileRange(
+                new FileInputStream(pfd.getFileDescriptor()).getChannel(),
+                0, pfd.getStatSize(), pfd, map
+            );
+        } catch (IOException e) {
+            pfd.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @param maxMemoryBytes Files up to this size are kept in SourceCache, 0 keeps none.
+     */
+    @NonNull
+    static DataSource.Factory createFactory(
+        @NonNull final FileRange fileRange,
+        final long maxMemoryBytes
+    ) {
+        return new DataSource.Factory() {
+            @Override
+            public DataSource createDataSource() {
+                return new LocalFileDataSource(fileRange, maxMemoryBytes);
+            }
+        };
+    }
+
+    @Override
+    public long open(DataSpec dataSpec) throws IOException {
+        uri = dataSpec.uri;
+        transferInitializing(dataSpec);
+        if (dataSpec.position > fileRange.getLength()) {
+            throw new EOFException();
+        }
+        position = dataSpec.position;
+        bytesRemaining = dataSpec.length == C.LENGTH_UNSET ?
+            fileRange.getLength() - position : dataSpec.length;
+        if (bytesRemaining < 0 || position + bytesRemaining > fileRange.getLength()) {
+            throw new EOFException();
+        }
+        fileRange.onOpen(position);
+        if (position == 0 && maxMemoryBytes > 0 && !fileRange.isInMemory()) {
+            // Reading it all now costs what this loop reads anyway.
+            try {
+                SourceCache.getInstance().load(fileRange, maxMemoryBytes);
+            } catch (IOException e) {
+                // Memory is only a saving, this load still reads the file.
+                e.printStackTrace();
+            }
+        }
+        opened = true;
+        transferStarted(dataSpec);
+        return bytesRemaining;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int readLength) throws IOException {
+        if (readLength == 0) {
+            return 0;
+        }
+        if (bytesRemaining == 0) {
+            return C.RESULT_END_OF_INPUT;
+        }
+        final int count = fileRange.read(
+            position, buffer, offset, (int)Math.min(bytesRemaining, readLength)
+        );
+        if (count < 0) {
+            // File got shorter than it was when opened.
+            throw new EOFException();
+        }
+        position += count;
+        bytesRemaining -= count;
+        bytesTransferred(count);
+        return count;
+    }
+
+    @Override
+    public Uri getUri() {
+        return uri;
+    }
+
+    /**
+     * Only ends this load, file is closed by engine with FileRange.
+     */
+    @Override
+    public void close() {
+        uri = null;
+        if (opened) {
+            opened = false;
+            transferEnded();
+        }
+    }
+}
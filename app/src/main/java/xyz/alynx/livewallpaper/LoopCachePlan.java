@@ -0,0 +1,183 @@
+/*
+ * Copyright 2019 Alynx Zhou
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.alynx.livewallpaper;
+
+import android.support.annotation.NonNull;
+
+import java.util.Locale;
+
+/**
+ *
+ * LoopCachePlan: decide whether a video is short enough to keep all its frames as
+ * textures, and at what size and format.
+ *
+ * A short loop decoded forever keeps a hardware decoder, its buffers and player threads
+ * alive. If every frame of one loop fits in the texture budget, renderer records them
+ * and plays from textures, so player can be released.
+ *
+ * RGBA8 at source density is tried first, then RGB565 which halves memory, then RGB565 at
+ * a smaller size, but not below MIN_SCALE of source, it would look like a poster.
+ *
+ * It is plain Java, engine gives it metadata and screen density.
+ *
+ */
+class LoopCachePlan {
+    @SuppressWarnings("unused")
+    private static final String TAG = "LoopCachePlan";
+    static final long MAX_DURATION_MS = 6000;
+    static final float MIN_SCALE = 0.5f;
+    // Budget for videos whose container has no frame rate.
+    private static final float FALLBACK_FRAME_RATE = 60;
+    // Timestamps are not exact, leave room for a few more frames.
+    private static final float FRAME_SLACK = 1.1f;
+    private final int frameCapacity;
+    private final int width;
+    private final int height;
+    private final Format format;
+    private final long durationMs;
+
+    enum Format {
+        RGBA8(4),
+        RGB565(2);
+
+        private final int bytesPerPixel;
+
+        Format(final int bytesPerPixel) {
+            this.bytesPerPixel = bytesPerPixel;
+        }
+
+        int getBytesPerPixel() {
+            return bytesPerPixel;
+        }
+    }
+
+    private LoopCachePlan(
+        final int frameCapacity,
+        final int width,
+        final int height,
+        @NonNull final Format format,
+        final long durationMs
+    ) {
+        this.frameCapacity = frameCapacity;
+        this.width = width;
+        this.height = height;
+        this.format = format;
+        this.durationMs = durationMs;
+    }
+
+    /**
+     * @param width Video width after rotation.
+     * @param height Video height after rotation.
+     * @param maxScale Scale of source above which screen shows no more detail, 1 if unknown.
+     * @param budgetBytes Texture memory all frames may use, 0 disables caching.
+     * @return LoopCachePlan or null if video should be decoded as usual.
+     */
+    static LoopCachePlan create(
+        final long durationMs,
+        final float frameRate,
+        final int width,
+        final int height,
+        final float maxScale,
+        final long budgetBytes
+    ) {
+        if (durationMs <= 0 || durationMs > MAX_DURATION_MS || width <= 0 || height <= 0 ||
+            budgetBytes <= 0) {
+            return null;
+        }
+        final float rate = frameRate > 0 ? frameRate : FALLBACK_FRAME_RATE;
+        final int frameCapacity = (int)Math.ceil(durationMs * rate / 1000 * FRAME_SLACK);
+        final float densityScale = Math.min(1.0f, maxScale);
+        for (Format format : Format.values()) {
+            final long bytes = getBytes(frameCapacity, width, height, densityScale, format);
+            if (bytes <= budgetBytes) {
+                return new LoopCachePlan(
+                    frameCapacity, scaleSize(width, densityScale),
+                    scaleSize(height, densityScale), format, durationMs
+                );
+            }
+        }
+        // Shrink smallest format to fit, scale is per axis.
+        float scale = (float)Math.sqrt(
+            (double)budgetBytes / getBytes(frameCapacity, width, height, 1.0f, Format.RGB565)
+        );
+        // Rounding to even sizes may go a bit over.
+        while (scale >= MIN_SCALE &&
+            getBytes(frameCapacity, width, height, scale, Format.RGB565) > budgetBytes) {
+            scale -= 0.01f;
+        }
+        if (scale < MIN_SCALE) {
+            return null;
+        }
+        return new LoopCachePlan(
+            frameCapacity, scaleSize(width, scale), scaleSize(height, scale),
+            Format.RGB565, durationMs
+        );
+    }
+
+    /**
+     * @return int Most frames the ring may hold, more means timestamps don't fit duration.
+     */
+    int getFrameCapacity() {
+        return frameCapacity;
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    @NonNull
+    Format getFormat() {
+        return format;
+    }
+
+    long getDurationMs() {
+        return durationMs;
+    }
+
+    long getFrameBytes() {
+        return (long)width * height * format.getBytesPerPixel();
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return String.format(
+            Locale.US, "%d ms loop, up to %d frames of %dx%d %s, %d KB",
+            durationMs, frameCapacity, width, height, format,
+            getFrameBytes() * frameCapacity / 1024
+        );
+    }
+
+    private static long getBytes(
+        final int frames,
+        final int width,
+        final int height,
+        final float scale,
+        @NonNull final Format format
+    ) {
+        return (long)frames * scaleSize(width, scale) * scaleSize(height, scale) *
+            format.getBytesPerPixel();
+    }
+
+    private static int scaleSize(final int size, final float scale) {
+        return Math.max(2, Math.round(size * scale / 2) * 2);
+    }
+}
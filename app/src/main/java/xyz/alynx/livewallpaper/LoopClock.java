@@ -0,0 +1,50 @@
+/*
+ * Copyright 2019 Alynx Zhou
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.alynx.livewallpaper;
+
+/**
+ *
+ * LoopClock: position in a loop which renderer plays by itself, from vsync times.
+ *
+ * The clock advances at most two vsync intervals per call, so after a pause it continues
+ * where it stopped instead of jumping.
+ *
+ */
+class LoopClock {
+    @SuppressWarnings("unused")
+    private static final String TAG = "LoopClock";
+    private final long loopNs;
+    private long positionNs = 0;
+    private long lastVsyncNs = -1;
+
+    LoopClock(final long loopNs) {
+        this.loopNs = loopNs;
+    }
+
+    /**
+     * @return long Position to show at this vsync, half a vsync ahead, or a frame a few
+     *         nanoseconds after a vsync would show one vsync late.
+     */
+    long advance(final long vsyncTimeNs, final long vsyncIntervalNs) {
+        if (lastVsyncNs >= 0) {
+            final long deltaNs = Math.max(0, vsyncTimeNs - lastVsyncNs);
+            positionNs = (positionNs + Math.min(deltaNs, vsyncIntervalNs * 2)) % loopNs;
+        }
+        lastVsyncNs = vsyncTimeNs;
+        return (positionNs + vsyncIntervalNs / 2) % loopNs;
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2019 Alynx Zhou
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.alynx.livewallpaper;
+
+import android.support.annotation.NonNull;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ *
+ * LoopRing: timeline of a recorded video loop, the textures are renderer's.
+ *
+ * While RECORDING, renderer offers every decoded frame with its timestamp. The first one
+ * starts the loop, a frame at or after loop duration (or going back in time, if player
+ * restarts timestamps) completes it and is not kept. A gap of missing frames or more frames
+ * than planned means decoder dropped or timestamps are strange, recording is ABORTED and
+ * renderer goes on with decoder.
+ *
+ * While PLAYING, it keeps its own LoopClock from vsync times.
+ *
+ * It is plain Java, so it can be tested with synthetic timestamps.
+ *
+ */
+class LoopRing {
+    @SuppressWarnings("unused")
+    private static final String TAG = "LoopRing";
+    // A gap longer than this many frame intervals means decoder dropped frames.
+    private static final float MAX_GAP_FRAMES = 1.5f;
+    private final LoopCachePlan plan;
+    private final long[] timestampsNs;
+    private final long expectedIntervalNs;
+    private State state = State.RECORDING;
+    private int frameCount = 0;
+    private long firstTimestampNs = 0;
+    private long loopNs = 0;
+    private LoopClock clock = null;
+    private int shownIndex = -1;
+    private String abortReason = null;
+
+    enum State {
+        RECORDING,
+        PLAYING,
+        ABORTED
+    }
+
+    /**
+     * @param frameRate Frame rate from metadata, used to detect dropped frames, 0 if unknown.
+     */
+    LoopRing(@NonNull final LoopCachePlan plan, final float frameRate) {
+        this.plan = plan;
+        timestampsNs = new long[plan.getFrameCapacity()];
+        expectedIntervalNs = frameRate > 0 ? (long)(1e9 / frameRate) : 0;
+    }
+
+    @NonNull
+    LoopCachePlan getPlan() {
+        return plan;
+    }
+
+    @NonNull
+    State getState() {
+        return state;
+    }
+
+    int getFrameCount() {
+        return frameCount;
+    }
+
+    long getBytes() {
+        return plan.getFrameBytes() * frameCount;
+    }
+
+    /**
+     * @param timestampNs SurfaceTexture timestamp of a latched frame.
+     * @return int Index of texture to record this frame into, or -1 if it is not kept,
+     *         check getState() after it.
+     */
+    int addFrame(final long timestampNs) {
+        if (state != State.RECORDING) {
+            return -1;
+        }
+        if (frameCount == 0) {
+            firstTimestampNs = timestampNs;
+            timestampsNs[frameCount] = 0;
+            return frameCount++;
+        }
+        final long relativeNs = timestampNs - firstTimestampNs;
+        final long lastNs = timestampsNs[frameCount - 1];
+        final long durationNs = plan.getDurationMs() * 1000000;
+        final long intervalNs = expectedIntervalNs > 0 ?
+            expectedIntervalNs : lastNs / Math.max(1, frameCount - 1);
+        // Player went back to loop start, or reached duration with monotonic timestamps.
+        if (relativeNs <= lastNs || relativeNs >= durationNs - intervalNs / 2) {
+            complete(relativeNs <= lastNs ? lastNs + intervalNs : relativeNs);
+            return -1;
+        }
+        if (expectedIntervalNs > 0 && relativeNs - lastNs > expectedIntervalNs * MAX_GAP_FRAMES) {
+            abort(String.format(
+                Locale.US, "gap of %d ms after frame %d",
+                (relativeNs - lastNs) / 1000000, frameCount
+            ));
+            return -1;
+        }
+        if (frameCount == timestampsNs.length) {
+            abort("more frames than planned");
+            return -1;
+        }
+        timestampsNs[frameCount] = relativeNs;
+        return frameCount++;
+    }
+
+    /**
+     * @return int Index of frame to show at this vsync, only valid while PLAYING.
+     */
+    int getFrameIndex(final long vsyncTimeNs, final long vsyncIntervalNs) {
+        // Last frame whose timestamp is not after position.
+        final int found = Arrays.binarySearch(
+            timestampsNs, 0, frameCount, clock.advance(vsyncTimeNs, vsyncIntervalNs)
+        );
+        return found >= 0 ? found : -found - 2;
+    }
+
+    /**
+     * @return boolean true if index differs from the one shown last, and remember it.
+     */
+    boolean setShownIndex(final int index) {
+        if (index == shownIndex) {
+            return false;
+        }
+        shownIndex = index;
+        return true;
+    }
+
+    int getShownIndex() {
+        return shownIndex;
+    }
+
+    long getLoopNs() {
+        return loopNs;
+    }
+
+    /**
+     * Renderer may also abort, for example if it cannot create a texture.
+     */
+    void abort(@NonNull final String reason) {
+        abortReason = reason;
+        state = State.ABORTED;
+    }
+
+    /**
+     * @return String Why recording is ABORTED, or null.
+     */
+    String getAbortReason() {
+        return abortReason;
+    }
+
+    private void complete(final long loopNs) {
+        if (frameCount < 2) {
+            abort("too few frames");
+            return;
+        }
+        this.loopNs = loopNs;
+        clock = new LoopClock(loopNs);
+        state = State.PLAYING;
+    }
+}
@@ -28,10 +28,13 @@ import android.content.Intent;
 import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
 import android.provider.OpenableColumns;
+import android.support.annotation.ArrayRes;
 import android.support.annotation.NonNull;
+import android.support.annotation.StringRes;
 import android.support.design.widget.CoordinatorLayout;
 import android.support.design.widget.FloatingActionButton;
 import android.support.design.widget.Snackbar;
@@ -41,6 +44,7 @@ import android.support.v7.widget.DefaultItemAnimator;
 import android.support.v7.widget.LinearLayoutManager;
 import android.support.v7.widget.RecyclerView;
 import android.support.v7.widget.Toolbar;
+import android.util.DisplayMetrics;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.Menu;
@@ -58,17 +62,29 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
 import java.util.Objects;
 
 public class MainActivity extends AppCompatActivity
-    implements CardAdapter.OnCardClickedListener, AddCardTask.AddCardTaskListener {
+    implements CardAdapter.OnCardClickedListener, AddCardTask.AddCardTaskListener,
+    FolderImportTask.FolderImportTaskListener, FlipbookEncodeTask.FlipbookEncodeTaskListener {
     @SuppressWarnings("unused")
     private static final String TAG = "MainActivity";
     private static final String FIRST_START_PREF = "firstStartPref";
     private static final String SHOWED_TIPS_KEY = "showedTipsKey";
     private static final int SELECT_REQUEST_CODE = 3;
     private static final int PREVIEW_REQUEST_CODE = 7;
+    private static final int FOLDER_REQUEST_CODE = 11;
+    private static final int[] IDLE_FREEZE_SECONDS = {0, 60, 5 * 60, 15 * 60};
+    // 0 draws at display refresh rate.
+    private static final int[] SHADER_FRAME_RATES = {15, 24, 30, 60, 0};
+    private static final int[] SOURCE_CACHE_MEGABYTES = {0, 4, 8, 16};
+    private static final int[] LOOP_CACHE_MEGABYTES = {0, 32, 64, 128};
+    private static final int[] THREAD_POLICY_MODES = {
+        ThreadPolicy.Mode.SMOOTH.ordinal(), ThreadPolicy.Mode.YIELD.ordinal()
+    };
     private CoordinatorLayout coordinatorLayout = null;
     private CardAdapter cardAdapter = null;
     private AlertDialog addDialog = null;
@@ -92,8 +108,10 @@ public class MainActivity extends AppCompatActivity
             createTipsDialog();
         }
 
+        // Make sure internal card is in catalog before adapter takes a snapshot.
+        LWApplication.getCards(this);
         cardAdapter = new CardAdapter(
-            this, LWApplication.getCards(this), this
+            this, LWApplication.getCatalog(), this
         );
 
         final RecyclerView recyclerView = findViewById(R.id.recycler_view);
@@ -101,6 +119,24 @@ public class MainActivity extends AppCompatActivity
         recyclerView.setLayoutManager(layoutManager);
         recyclerView.setItemAnimator(new DefaultItemAnimator());
         recyclerView.setAdapter(cardAdapter);
+        if (BuildConfig.DEBUG) {
+            // Log frame times of every scroll, for checking large libraries.
+            final FrameTimeMonitor frameTimeMonitor = new FrameTimeMonitor(this);
+            recyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+                @Override
+                public void onScrollStateChanged(@NonNull RecyclerView recyclerView, int newState) {
+                    super.onScrollStateChanged(recyclerView, newState);
+                    if (newState != RecyclerView.SCROLL_STATE_IDLE) {
+                        frameTimeMonitor.start();
+                    } else if (frameTimeMonitor.isRunning()) {
+                        Utils.debug(TAG, String.format(
+                            Locale.US, "Scrolled %d cards: %s",
+                            cardAdapter.getItemCount(), frameTimeMonitor.stop()
+                        ));
+                    }
+                }
+            });
+        }
 
         coordinatorLayout = findViewById(R.id.coordinator_layout);
 
@@ -162,13 +198,29 @@ public class MainActivity extends AppCompatActivity
                     cursor.close();
                 }
             }
+        } else if (requestCode == FOLDER_REQUEST_CODE && resultCode == Activity.RESULT_OK) {
+            if (resultData == null || resultData.getData() == null ||
+                Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+                return;
+            }
+            final Uri treeUri = resultData.getData();
+            final FolderImportTask folderImportTask = new FolderImportTask(this, this, treeUri);
+            // Documents under the tree are readable with this permission.
+            getContentResolver().takePersistableUriPermission(
+                treeUri, Intent.FLAG_GRANT_READ_URI_PERMISSION
+            );
+            Snackbar.make(
+                coordinatorLayout,
+                R.string.importing_folder,
+                Snackbar.LENGTH_LONG
+            ).show();
+            // Don't block AddCardTasks on the serial executor.
+            folderImportTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
         } else if (requestCode == PREVIEW_REQUEST_CODE) {
             if (resultCode == Activity.RESULT_OK) {
                 LWApplication.setCurrentWallpaperCard(
                     this, LWApplication.getPreviewWallpaperCard()
                 );
-                // Rebind adapter.
-                cardAdapter.notifyDataSetChanged();
             }
             // Don't forget to delete preview card.
             LWApplication.setPreviewWallpaperCard(null);
@@ -187,6 +239,18 @@ public class MainActivity extends AppCompatActivity
         } else {
             toggleSlideMenuItem.setTitle(R.string.action_allow_slide);
         }
+        final MenuItem toggleFolderRenditionsMenuItem = menu.findItem(
+            R.id.action_toggle_folder_renditions
+        );
+        if (pref.getBoolean(LWApplication.FOLDER_RENDITIONS_KEY, false)) {
+            toggleFolderRenditionsMenuItem.setTitle(R.string.action_disallow_folder_renditions);
+        } else {
+            toggleFolderRenditionsMenuItem.setTitle(R.string.action_allow_folder_renditions);
+        }
+        // Document tree is added in Lollipop.
+        menu.findItem(R.id.action_import_folder).setVisible(
+            Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP
+        );
         return true;
     }
 
@@ -213,6 +277,76 @@ public class MainActivity extends AppCompatActivity
             }
             break;
         }
+        case R.id.action_toggle_folder_renditions: {
+            final SharedPreferences pref = getSharedPreferences(
+                LWApplication.OPTIONS_PREF, MODE_PRIVATE
+            );
+            final SharedPreferences.Editor editor = pref.edit();
+            final boolean newValue = !pref.getBoolean(
+                LWApplication.FOLDER_RENDITIONS_KEY, false
+            );
+            editor.putBoolean(LWApplication.FOLDER_RENDITIONS_KEY, newValue);
+            editor.apply();
+            if (newValue) {
+                item.setTitle(R.string.action_disallow_folder_renditions);
+            } else {
+                item.setTitle(R.string.action_allow_folder_renditions);
+            }
+            break;
+        }
+        case R.id.action_idle_freeze: {
+            createChoiceDialog(
+                R.string.action_idle_freeze, R.array.idle_freeze_entries,
+                IDLE_FREEZE_SECONDS, LWApplication.IDLE_FREEZE_KEY,
+                LWApplication.DEFAULT_IDLE_FREEZE_SECONDS
+            );
+            break;
+        }
+        case R.id.action_shader_frame_rate: {
+            createChoiceDialog(
+                R.string.action_shader_frame_rate, R.array.shader_frame_rate_entries,
+                SHADER_FRAME_RATES, LWApplication.SHADER_FRAME_RATE_KEY,
+                ShaderSource.DEFAULT_FRAME_RATE
+            );
+            break;
+        }
+        case R.id.action_source_cache: {
+            createChoiceDialog(
+                R.string.action_source_cache, R.array.source_cache_entries,
+                SOURCE_CACHE_MEGABYTES, LWApplication.SOURCE_CACHE_KEY,
+                LWApplication.DEFAULT_SOURCE_CACHE_MEGABYTES
+            );
+            break;
+        }
+        case R.id.action_loop_cache: {
+            createChoiceDialog(
+                R.string.action_loop_cache, R.array.loop_cache_entries,
+                LOOP_CACHE_MEGABYTES, LWApplication.LOOP_CACHE_KEY,
+                LWApplication.DEFAULT_LOOP_CACHE_MEGABYTES
+            );
+            break;
+        }
+        case R.id.action_thread_policy: {
+            createChoiceDialog(
+                R.string.action_thread_policy, R.array.thread_policy_entries,
+                THREAD_POLICY_MODES, LWApplication.THREAD_POLICY_KEY,
+                ThreadPolicy.Mode.SMOOTH.ordinal()
+            );
+            break;
+        }
+        case R.id.action_convert_flipbook: {
+            createConvertFlipbookDialog();
+            break;
+        }
+        case R.id.action_import_folder: {
+            final Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT_TREE);
+            intent.addFlags(
+                Intent.FLAG_GRANT_READ_URI_PERMISSION |
+                Intent.FLAG_GRANT_PERSISTABLE_URI_PERMISSION
+            );
+            startActivityForResult(intent, FOLDER_REQUEST_CODE);
+            break;
+        }
         case R.id.action_remove: {
             Snackbar.make(
                 coordinatorLayout,
@@ -269,10 +403,7 @@ public class MainActivity extends AppCompatActivity
         final WallpaperInfo info = WallpaperManager.getInstance(this).getWallpaperInfo();
         if (info == null || !Objects.equals(info.getPackageName(), getPackageName())) {
             LWApplication.setCurrentWallpaperCard(this, null);
-            // Rebind adapter.
-            cardAdapter.notifyDataSetChanged();
         }
-        List<WallpaperCard> cards = LWApplication.getCards(this);
         try {
             final FileInputStream fis = openFileInput(LWApplication.JSON_FILE_NAME);
             final BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(fis));
@@ -285,20 +416,13 @@ public class MainActivity extends AppCompatActivity
             final String jsonSource = stringBuilder.toString();
             final JSONObject json = new JSONObject(jsonSource);
             final JSONArray cardsArray = json.getJSONArray("cards");
+            // Cards were probed when imported, thumbnails are loaded when rows are bound,
+            // and unreadable ones are removed then. Catalog skips cards it already has.
+            final List<WallpaperCard> restoredCards = new ArrayList<>();
             for (int i = 0; i < cardsArray.length(); ++i) {
-                final String name = cardsArray.getJSONObject(i).getString("name");
-                final String path = cardsArray.getJSONObject(i).getString("path");
-                boolean found = false;
-                for (WallpaperCard card : cards) {
-                    if (Objects.equals(card.getPath(), path)) {
-                        found = true;
-                        break;
-                    }
-                }
-                if (!found) {
-                    new AddCardTask(this, this).execute(name, path);
-                }
+                restoredCards.add(WallpaperCard.fromJSON(cardsArray.getJSONObject(i)));
             }
+            LWApplication.getCatalog().edit().addAll(restoredCards).commit();
             bufferedReader.close();
             fis.close();
         } catch (FileNotFoundException e) {
@@ -341,7 +465,6 @@ public class MainActivity extends AppCompatActivity
                 public void onClick(DialogInterface dialog, int id) {
                     // Only after user click OK, we change currentWallpaperCard.
                     LWApplication.setCurrentWallpaperCard(getApplicationContext(), wallpaperCard);
-                    cardAdapter.notifyDataSetChanged();
                     LWApplication.setPreviewWallpaperCard(wallpaperCard);
                     Intent intent = new Intent(WallpaperManager.ACTION_LIVE_WALLPAPER_CHOOSER);
                     startActivity(intent);
@@ -351,7 +474,6 @@ public class MainActivity extends AppCompatActivity
             addDialog.show();
         } else {
             LWApplication.setCurrentWallpaperCard(this, wallpaperCard);
-            cardAdapter.notifyDataSetChanged();
             // Display a notice for user.
             Snackbar.make(
                 coordinatorLayout,
@@ -402,8 +524,20 @@ public class MainActivity extends AppCompatActivity
                 ).show();
                 return;
             }
+            if (card.isSameContent(wallpaperCard)) {
+                Snackbar.make(
+                    coordinatorLayout,
+                    String.format(
+                        getResources().getString(R.string.same_content),
+                        wallpaperCard.getName(), card.getName()
+                    ),
+                    Snackbar.LENGTH_LONG
+                ).show();
+                return;
+            }
         }
         cardAdapter.addCard(card);
+        RenditionTask.enqueue(this, card);
         if (message != null) {
             Snackbar.make(
                 coordinatorLayout,
@@ -424,6 +558,24 @@ public class MainActivity extends AppCompatActivity
         }
     }
 
+    @Override
+    public void onFolderImportFinished(@NonNull final String message) {
+        Snackbar.make(
+            coordinatorLayout,
+            message,
+            Snackbar.LENGTH_LONG
+        ).show();
+    }
+
+    @Override
+    public void onFlipbookEncodeFinished(@NonNull final String message) {
+        Snackbar.make(
+            coordinatorLayout,
+            message,
+            Snackbar.LENGTH_LONG
+        ).show();
+    }
+
     private void showCancelFab() {
         addCardFab.hide();
         cancelRemoveCardFab.show();
@@ -465,7 +617,12 @@ public class MainActivity extends AppCompatActivity
                     Intent.FLAG_GRANT_PERSISTABLE_URI_PERMISSION
                 );
                 intent.addCategory(Intent.CATEGORY_OPENABLE);
-                intent.setType("video/*");
+                // Images and shaders are picked with videos, AddCardTask tells them by content.
+                intent.setType("*/*");
+                // Providers have no type for shader files, they are text or unknown.
+                intent.putExtra(Intent.EXTRA_MIME_TYPES, new String[] {
+                    "video/*", "image/*", "text/*", "application/octet-stream"
+                });
                 startActivityForResult(intent, SELECT_REQUEST_CODE);
             }
         });
@@ -492,6 +649,75 @@ public class MainActivity extends AppCompatActivity
         addDialog.show();
     }
 
+    /**
+     * Single choice of an int option in OPTIONS_PREF.
+     *
+     * @param entriesRes String array of labels, in the same order as values.
+     */
+    private void createChoiceDialog(
+        @StringRes final int titleRes,
+        @ArrayRes final int entriesRes,
+        @NonNull final int[] values,
+        @NonNull final String prefKey,
+        final int defaultValue
+    ) {
+        final SharedPreferences pref = getSharedPreferences(
+            LWApplication.OPTIONS_PREF, MODE_PRIVATE
+        );
+        final int value = pref.getInt(prefKey, defaultValue);
+        int checked = -1;
+        for (int i = 0; i < values.length; ++i) {
+            if (values[i] == value) {
+                checked = i;
+            }
+        }
+        final AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(titleRes);
+        builder.setSingleChoiceItems(entriesRes, checked, new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int which) {
+                // Engine reads options when it becomes visible or opens a video.
+                final SharedPreferences.Editor prefEditor = pref.edit();
+                prefEditor.putInt(prefKey, values[which]);
+                prefEditor.apply();
+                dialog.dismiss();
+            }
+        });
+        builder.create().show();
+    }
+
+    private void createConvertFlipbookDialog() {
+        final List<WallpaperCard> videoCards = new ArrayList<>();
+        for (WallpaperCard card : LWApplication.getCards(this)) {
+            if (card.getKind() == WallpaperCard.Kind.VIDEO) {
+                videoCards.add(card);
+            }
+        }
+        final CharSequence[] items = new CharSequence[videoCards.size()];
+        for (int i = 0; i < videoCards.size(); ++i) {
+            items[i] = videoCards.get(i).getName();
+        }
+        final AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(R.string.action_convert_flipbook);
+        builder.setItems(items, new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int which) {
+                Snackbar.make(
+                    coordinatorLayout,
+                    R.string.converting_flipbook,
+                    Snackbar.LENGTH_LONG
+                ).show();
+                // Frames should cover the screen, which is not the window in multi window.
+                final DisplayMetrics displayMetrics = new DisplayMetrics();
+                getWindowManager().getDefaultDisplay().getRealMetrics(displayMetrics);
+                // It takes minutes on slow devices, don't block AddCardTasks.
+                new FlipbookEncodeTask(
+                    MainActivity.this, displayMetrics.widthPixels,
+                    displayMetrics.heightPixels, MainActivity.this
+                ).executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, videoCards.get(which));
+            }
+        });
+        builder.create().show();
+    }
+
     private void onAddCardConfirmed() {
         final EditText nameEditText = addDialog.findViewById(R.id.name_edit_text);
         final EditText pathEditText = addDialog.findViewById(R.id.path_edit_text);
@@ -0,0 +1,445 @@
+/*
+ * Copyright 2019 Alynx Zhou
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.alynx.livewallpaper;
+
+import android.content.Context;
+import android.graphics.SurfaceTexture;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.net.Uri;
+import android.opengl.EGLSurface;
+import android.opengl.GLES11Ext;
+import android.opengl.GLES20;
+import android.opengl.Matrix;
+import android.support.annotation.NonNull;
+import android.view.Surface;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ *
+ * MediaCodecRenditionEncoder: decodes source into a SurfaceTexture, draws every kept frame
+ * scaled and upright into the input surface of an AVC encoder, and muxes the output into MP4.
+ *
+ * Frames are dropped by time to cap frame rate, and rotation is drawn into pixels, so
+ * renditions play without rotation metadata. Audio is not copied, wallpaper never plays it.
+ *
+ * SurfaceTexture calls back on main looper when created on a thread without looper,
+ * so never use this on main thread.
+ *
+ */
+class MediaCodecRenditionEncoder implements RenditionEncoder {
+    @SuppressWarnings("unused")
+    private static final String TAG = "MediaCodecRenditionEncoder";
+    private static final int BYTES_PER_FLOAT = 4;
+    private static final long TIMEOUT_US = 10000;
+    private static final long FRAME_WAIT_MS = 2500;
+    private static final int I_FRAME_INTERVAL_SECONDS = 1;
+    // Give up if neither codec makes progress in this many loops.
+    private static final int MAX_STALLED_LOOPS = 500;
+    private final Object frameLock = new Object();
+    private final Context context;
+    private final Uri uri;
+    private final int rotation;
+    private boolean frameAvailable = false;
+
+    /**
+     * @param rotation Rotation from video metadata.
+     */
+    MediaCodecRenditionEncoder(
+        @NonNull final Context context,
+        @NonNull final Uri uri,
+        final int rotation
+    ) {
+        this.context = context;
+        this.uri = uri;
+        this.rotation = rotation;
+    }
+
+    /**
+     * @return String MIME type of first video track, or null if there is none.
+     */
+    static String getVideoMimeType(
+        @NonNull final Context context,
+        @NonNull final Uri uri
+    ) throws IOException {
+        final MediaExtractor extractor = new MediaExtractor();
+        try {
+            extractor.setDataSource(context, uri, null);
+            for (int i = 0; i < extractor.getTrackCount(); ++i) {
+                final String mime = extractor.getTrackFormat(i).getString(MediaFormat.KEY_MIME);
+                if (mime != null && mime.startsWith("video/")) {
+                    return mime;
+                }
+            }
+            return null;
+        } finally {
+            extractor.release();
+        }
+    }
+
+    @Override
+    public void encode(
+        @NonNull final RenditionPlan plan,
+        @NonNull final File output
+    ) throws IOException {
+        final MediaExtractor extractor = new MediaExtractor();
+        MediaCodec decoder = null;
+        MediaCodec encoder = null;
+        MediaMuxer muxer = null;
+        EGLCore eglCore = null;
+        EGLSurface eglSurface = null;
+        Surface inputSurface = null;
+        SurfaceTexture surfaceTexture = null;
+        Surface surface = null;
+        final int[] textures = new int[1];
+        int program = 0;
+        try {
+            extractor.setDataSource(context, uri, null);
+            MediaFormat format = null;
+            for (int i = 0; i < extractor.getTrackCount(); ++i) {
+                final MediaFormat trackFormat = extractor.getTrackFormat(i);
+                final String mime = trackFormat.getString(MediaFormat.KEY_MIME);
+                if (mime != null && mime.startsWith("video/")) {
+                    extractor.selectTrack(i);
+                    format = trackFormat;
+                    break;
+                }
+            }
+            if (format == null) {
+                throw new IOException("No video track");
+            }
+
+            final MediaFormat encoderFormat = MediaFormat.createVideoFormat(
+                RenditionPlan.MIME_TYPE, plan.getWidth(), plan.getHeight()
+            );
+            encoderFormat.setInteger(
+                MediaFormat.KEY_COLOR_FORMAT,
+                MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface
+            );
+            encoderFormat.setInteger(MediaFormat.KEY_BIT_RATE, plan.getBitRate());
+            encoderFormat.setInteger(
+                MediaFormat.KEY_FRAME_RATE, Math.round(plan.getFrameRate())
+            );
+            encoderFormat.setInteger(
+                MediaFormat.KEY_I_FRAME_INTERVAL, I_FRAME_INTERVAL_SECONDS
+            );
+            encoder = MediaCodec.createEncoderByType(RenditionPlan.MIME_TYPE);
+            encoder.configure(encoderFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            inputSurface = encoder.createInputSurface();
+            encoder.start();
+
+            eglCore = new EGLCore(2, true);
+            eglSurface = eglCore.createWindowSurface(inputSurface);
+            eglCore.makeCurrent(eglSurface);
+            GLES20.glGenTextures(textures.length, textures, 0);
+            GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, textures[0]);
+            GLES20.glTexParameteri(
+                GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR
+            );
+            GLES20.glTexParameteri(
+                GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR
+            );
+            GLES20.glTexParameteri(
+                GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_WRAP_S,
+                GLES20.GL_CLAMP_TO_EDGE
+            );
+            GLES20.glTexParameteri(
+                GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_WRAP_T,
+                GLES20.GL_CLAMP_TO_EDGE
+            );
+            program = Utils.linkProgramGLES20(
+                Utils.compileShaderResourceGLES20(
+                    context, GLES20.GL_VERTEX_SHADER, R.raw.vertex_20
+                ),
+                Utils.compileShaderResourceGLES20(
+                    context, GLES20.GL_FRAGMENT_SHADER, R.raw.fragment_20
+                )
+            );
+
+            surfaceTexture = new SurfaceTexture(textures[0]);
+            surfaceTexture.setOnFrameAvailableListener(
+                new SurfaceTexture.OnFrameAvailableListener() {
+                    @Override
+                    public void onFrameAvailable(SurfaceTexture surfaceTexture) {
+                        synchronized (frameLock) {
+                            frameAvailable = true;
+                            frameLock.notifyAll();
+                        }
+                    }
+                }
+            );
+            surface = new Surface(surfaceTexture);
+            decoder = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+            decoder.configure(format, surface, null, 0);
+            decoder.start();
+
+            muxer = new MediaMuxer(output.getPath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+            transcode(
+                plan, extractor, decoder, encoder, muxer, eglCore, eglSurface,
+                surfaceTexture, program
+            );
+        } catch (RuntimeException e) {
+            // Codecs and muxer report most failures as IllegalStateException.
+            throw new IOException(e);
+        } finally {
+            if (decoder != null) {
+                try {
+                    decoder.stop();
+                } catch (IllegalStateException e) {
+                    // Not started.
+                    e.printStackTrace();
+                }
+                decoder.release();
+            }
+            if (surface != null) {
+                surface.release();
+            }
+            if (surfaceTexture != null) {
+                surfaceTexture.release();
+            }
+            if (eglCore != null) {
+                GLES20.glDeleteTextures(textures.length, textures, 0);
+                GLES20.glDeleteProgram(program);
+                if (eglSurface != null) {
+                    eglCore.releaseSurface(eglSurface);
+                }
+                eglCore.release();
+            }
+            if (encoder != null) {
+                try {
+                    encoder.stop();
+                } catch (IllegalStateException e) {
+                    e.printStackTrace();
+                }
+                encoder.release();
+            }
+            if (inputSurface != null) {
+                inputSurface.release();
+            }
+            if (muxer != null) {
+                try {
+                    muxer.release();
+                } catch (IllegalStateException e) {
+                    e.printStackTrace();
+                }
+            }
+            extractor.release();
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private void transcode(
+        @NonNull final RenditionPlan plan,
+        @NonNull final MediaExtractor extractor,
+        @NonNull final MediaCodec decoder,
+        @NonNull final MediaCodec encoder,
+        @NonNull final MediaMuxer muxer,
+        @NonNull final EGLCore eglCore,
+        @NonNull final EGLSurface eglSurface,
+        @NonNull final SurfaceTexture surfaceTexture,
+        final int program
+    ) throws IOException {
+        final float[] vertexArray = {
+            -1.0f, -1.0f,
+            -1.0f, 1.0f,
+            1.0f, -1.0f,
+            1.0f, 1.0f
+        };
+        final FloatBuffer vertices = ByteBuffer.allocateDirect(
+            vertexArray.length * BYTES_PER_FLOAT
+        ).order(ByteOrder.nativeOrder()).asFloatBuffer();
+        vertices.put(vertexArray).position(0);
+        final float[] texCoordArray = {
+            0.0f, 1.0f,
+            0.0f, 0.0f,
+            1.0f, 1.0f,
+            1.0f, 0.0f
+        };
+        final FloatBuffer texCoords = ByteBuffer.allocateDirect(
+            texCoordArray.length * BYTES_PER_FLOAT
+        ).order(ByteOrder.nativeOrder()).asFloatBuffer();
+        texCoords.put(texCoordArray).position(0);
+        // Encoder surface is drawn like screen, so rotate like renderers do.
+        final float[] mvp = new float[16];
+        Matrix.setIdentityM(mvp, 0);
+        if (rotation % 360 != 0) {
+            Matrix.rotateM(mvp, 0, -rotation, 0, 0, 1);
+        }
+
+        final long frameIntervalUs = (long)(1000000 / plan.getFrameRate());
+        final ByteBuffer[] inputBuffers = decoder.getInputBuffers();
+        ByteBuffer[] outputBuffers = encoder.getOutputBuffers();
+        final MediaCodec.BufferInfo decoderInfo = new MediaCodec.BufferInfo();
+        final MediaCodec.BufferInfo encoderInfo = new MediaCodec.BufferInfo();
+        long nextFrameUs = Long.MIN_VALUE;
+        int track = -1;
+        int frames = 0;
+        int stalledLoops = 0;
+        boolean inputDone = false;
+        boolean decoderDone = false;
+        boolean encoderDone = false;
+        while (!encoderDone) {
+            if (++stalledLoops > MAX_STALLED_LOOPS) {
+                throw new IOException("Codecs stalled");
+            }
+            if (!inputDone) {
+                final int inputIndex = decoder.dequeueInputBuffer(TIMEOUT_US);
+                if (inputIndex >= 0) {
+                    final int size = extractor.readSampleData(inputBuffers[inputIndex], 0);
+                    if (size < 0) {
+                        decoder.queueInputBuffer(
+                            inputIndex, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM
+                        );
+                        inputDone = true;
+                    } else {
+                        decoder.queueInputBuffer(
+                            inputIndex, 0, size, extractor.getSampleTime(), 0
+                        );
+                        extractor.advance();
+                    }
+                    stalledLoops = 0;
+                }
+            }
+            if (!decoderDone) {
+                final int outputIndex = decoder.dequeueOutputBuffer(decoderInfo, TIMEOUT_US);
+                if (outputIndex >= 0) {
+                    final long timeUs = decoderInfo.presentationTimeUs;
+                    // A quarter interval of slack keeps 60 to 30 fps from drifting
+                    // on rounded timestamps.
+                    final boolean render = decoderInfo.size != 0 &&
+                        timeUs >= nextFrameUs - frameIntervalUs / 4;
+                    decoder.releaseOutputBuffer(outputIndex, render);
+                    if (render) {
+                        if (!awaitFrame()) {
+                            throw new IOException("Timed out waiting for decoded frame");
+                        }
+                        surfaceTexture.updateTexImage();
+                        drawFrame(plan, program, mvp, vertices, texCoords);
+                        eglCore.setPresentationTime(eglSurface, timeUs * 1000);
+                        eglCore.swapBuffers(eglSurface);
+                        nextFrameUs = Math.max(nextFrameUs, timeUs) + frameIntervalUs;
+                        ++frames;
+                    }
+                    if ((decoderInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                        encoder.signalEndOfInputStream();
+                        decoderDone = true;
+                    }
+                    stalledLoops = 0;
+                }
+            }
+            // Drain everything encoder has, its input surface blocks when it is full.
+            // After decoder is done only encoder works, so wait for it there.
+            while (true) {
+                final int outputIndex = encoder.dequeueOutputBuffer(
+                    encoderInfo, decoderDone ? TIMEOUT_US : 0
+                );
+                if (outputIndex == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                    break;
+                } else if (outputIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                    outputBuffers = encoder.getOutputBuffers();
+                } else if (outputIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                    if (track >= 0) {
+                        throw new IOException("Encoder format changed twice");
+                    }
+                    track = muxer.addTrack(encoder.getOutputFormat());
+                    muxer.start();
+                } else if (outputIndex >= 0) {
+                    final ByteBuffer data = outputBuffers[outputIndex];
+                    // Codec config is already in format given to muxer.
+                    if ((encoderInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0 &&
+                        encoderInfo.size != 0) {
+                        if (track < 0) {
+                            throw new IOException("Encoder output before format");
+                        }
+                        data.position(encoderInfo.offset);
+                        data.limit(encoderInfo.offset + encoderInfo.size);
+                        muxer.writeSampleData(track, data, encoderInfo);
+                    }
+                    encoder.releaseOutputBuffer(outputIndex, false);
+                    if ((encoderInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                        encoderDone = true;
+                        break;
+                    }
+                    stalledLoops = 0;
+                }
+            }
+        }
+        if (frames == 0 || track < 0) {
+            throw new IOException("No frame encoded");
+        }
+        // Stop writes the index, before it the file is not playable.
+        muxer.stop();
+    }
+
+    private boolean awaitFrame() {
+        synchronized (frameLock) {
+            final long deadline = System.currentTimeMillis() + FRAME_WAIT_MS;
+            while (!frameAvailable) {
+                final long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    return false;
+                }
+                try {
+                    frameLock.wait(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            frameAvailable = false;
+            return true;
+        }
+    }
+
+    private void drawFrame(
+        @NonNull final RenditionPlan plan,
+        final int program,
+        @NonNull final float[] mvp,
+        @NonNull final FloatBuffer vertices,
+        @NonNull final FloatBuffer texCoords
+    ) {
+        GLES20.glViewport(0, 0, plan.getWidth(), plan.getHeight());
+        GLES20.glClearColor(0.0f, 0.0f, 0.0f, 1.0f);
+        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+        GLES20.glUseProgram(program);
+        GLES20.glUniformMatrix4fv(
+            GLES20.glGetUniformLocation(program, "mvp"), 1, false, mvp, 0
+        );
+        final int positionLocation = GLES20.glGetAttribLocation(program, "in_position");
+        final int texCoordLocation = GLES20.glGetAttribLocation(program, "in_tex_coord");
+        GLES20.glEnableVertexAttribArray(positionLocation);
+        GLES20.glVertexAttribPointer(
+            positionLocation, 2, GLES20.GL_FLOAT, false, 2 * BYTES_PER_FLOAT, vertices
+        );
+        GLES20.glEnableVertexAttribArray(texCoordLocation);
+        GLES20.glVertexAttribPointer(
+            texCoordLocation, 2, GLES20.GL_FLOAT, false, 2 * BYTES_PER_FLOAT, texCoords
+        );
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+        GLES20.glDisableVertexAttribArray(texCoordLocation);
+        GLES20.glDisableVertexAttribArray(positionLocation);
+        GLES20.glUseProgram(0);
+    }
+}
@@ -0,0 +1,604 @@
+/*
+ * Copyright 2019 Alynx Zhou
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.alynx.livewallpaper;
+
+import android.support.annotation.NonNull;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ *
+ * PngDecoder: stream frames of an APNG, or the only frame of a PNG.
+ *
+ * Image data is inflated a row at a time through a fixed buffer, so neither compressed
+ * chunks nor decoded frames are kept in memory, rows are unfiltered and drawn on canvas
+ * at once. All color types are supported, 16 bit samples keep their high byte.
+ * Interlaced images are not, they are rare for animation and would need a whole frame.
+ *
+ * It is plain Java, so it can be tested with PNGs written by tests.
+ *
+ */
+class PngDecoder implements FrameSource {
+    @SuppressWarnings("unused")
+    private static final String TAG = "PngDecoder";
+    private static final long SIGNATURE = 0x89504e470d0a1a0aL;
+    private static final int IHDR = 0x49484452;
+    private static final int PLTE = 0x504c5445;
+    private static final int TRNS = 0x74524e53;
+    static final int IDAT = 0x49444154;
+    private static final int IEND = 0x49454e44;
+    static final int ACTL = 0x6163544c;
+    private static final int FCTL = 0x6663544c;
+    private static final int FDAT = 0x66644154;
+    private static final int DISPOSE_BACKGROUND = 1;
+    private static final int DISPOSE_PREVIOUS = 2;
+    private static final int BLEND_OVER = 1;
+    private final Opener opener;
+    private InputStream input = null;
+    private int width = 0;
+    private int height = 0;
+    private int bitDepth = 0;
+    private int colorType = 0;
+    private int channels = 0;
+    private final int[] palette = new int[256];
+    // Transparent gray or RGB of color type 0 and 2, -1 if there is none.
+    private int transparentColor = -1;
+    private boolean animated = false;
+    private int frameCount = 0;
+    private final Inflater inflater = new Inflater();
+    private final byte[] buffer = new byte[8192];
+    private byte[] row;
+    private byte[] priorRow;
+    private final int[] rowPixels;
+    private int[] previous = null;
+    // Chunk being read, image data may continue in the next chunk of the same type.
+    private int chunkType = 0;
+    private int chunkRemaining = 0;
+    // Frame control of the next image data, APNG frames only have one once.
+    private boolean hasControl = false;
+    private int frameX = 0;
+    private int frameY = 0;
+    private int frameWidth = 0;
+    private int frameHeight = 0;
+    private int frameDelayMs = 0;
+    private int frameDispose = 0;
+    private int frameBlend = 0;
+    private boolean stillDecoded = false;
+    private int disposal = 0;
+    private int disposalX = 0;
+    private int disposalY = 0;
+    private int disposalWidth = 0;
+    private int disposalHeight = 0;
+    private int frameIndex = 0;
+
+    /**
+     * @throws IOException if it is not a PNG of supported format or too large.
+     */
+    PngDecoder(@NonNull final Opener opener) throws IOException {
+        this.opener = opener;
+        open();
+        final int rowBytes = getRowBytes(width) + 1;
+        row = new byte[rowBytes];
+        priorRow = new byte[rowBytes];
+        rowPixels = new int[width];
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public int getFrameCount() {
+        return frameCount;
+    }
+
+    @Override
+    public int readFrame(@NonNull final int[] argb) throws IOException {
+        applyDisposal(argb);
+        while (true) {
+            if (!readChunkHeader()) {
+                // Cut files play what they have, like GIF.
+                endLoop(argb);
+                continue;
+            }
+            switch (chunkType) {
+            case PLTE:
+                readPalette();
+                break;
+            case TRNS:
+                readTransparency();
+                break;
+            case ACTL:
+                readFully(8);
+                animated = true;
+                frameCount = getInt(0);
+                skipChunk();
+                break;
+            case FCTL:
+                readFrameControl();
+                break;
+            case IDAT:
+                // Default image of an APNG is not a frame if no control comes before it.
+                if ((!animated && !stillDecoded) || (animated && hasControl)) {
+                    if (!animated) {
+                        setStillFrame();
+                    }
+                    return drawFrame(argb);
+                }
+                skipChunk();
+                break;
+            case FDAT:
+                if (animated && hasControl) {
+                    // Sequence number.
+                    readFully(4);
+                    return drawFrame(argb);
+                }
+                skipChunk();
+                break;
+            case IEND:
+                skipChunk();
+                endLoop(argb);
+                break;
+            default:
+                skipChunk();
+                break;
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closeInput();
+        inflater.end();
+    }
+
+    private void closeInput() throws IOException {
+        if (input != null) {
+            input.close();
+            input = null;
+        }
+    }
+
+    private void open() throws IOException {
+        input = new BufferedInputStream(opener.open());
+        try {
+            readHeader();
+        } catch (IOException e) {
+            closeInput();
+            throw e;
+        }
+    }
+
+    private void readHeader() throws IOException {
+        readFully(8);
+        if (((long)getInt(0) << 32 | (getInt(4) & 0xffffffffL)) != SIGNATURE) {
+            throw new IOException("Not a PNG");
+        }
+        if (!readChunkHeader() || chunkType != IHDR || chunkRemaining != 13) {
+            throw new IOException("PNG has no header");
+        }
+        readFully(13);
+        final int imageWidth = getInt(0);
+        final int imageHeight = getInt(4);
+        final int depth = buffer[8] & 0xff;
+        final int type = buffer[9] & 0xff;
+        final int interlace = buffer[12] & 0xff;
+        skipChunk();
+        if (width != 0) {
+            if (imageWidth != width || imageHeight != height || depth != bitDepth ||
+                type != colorType) {
+                throw new IOException("PNG changed while playing");
+            }
+            return;
+        }
+        if (imageWidth <= 0 || imageHeight <= 0 ||
+            (long)imageWidth * imageHeight > FrameSources.MAX_PIXELS) {
+            throw new IOException("Bad PNG size " + imageWidth + "x" + imageHeight);
+        }
+        if (interlace != 0) {
+            throw new IOException("Interlaced PNG is not supported");
+        }
+        switch (type) {
+        case 0:
+            channels = 1;
+            break;
+        case 2:
+            channels = 3;
+            break;
+        case 3:
+            channels = 1;
+            break;
+        case 4:
+            channels = 2;
+            break;
+        case 6:
+            channels = 4;
+            break;
+        default:
+            throw new IOException("Bad PNG color type " + type);
+        }
+        final boolean lowDepth = depth == 1 || depth == 2 || depth == 4;
+        if (!(depth == 8 || (depth == 16 && type != 3) || (lowDepth && (type == 0 || type == 3)))) {
+            throw new IOException(String.format(
+                Locale.US, "Bad PNG bit depth %d of color type %d", depth, type
+            ));
+        }
+        width = imageWidth;
+        height = imageHeight;
+        bitDepth = depth;
+        colorType = type;
+        Arrays.fill(palette, 0xff000000);
+    }
+
+    private void endLoop(@NonNull final int[] argb) throws IOException {
+        if (frameIndex == 0) {
+            throw new IOException("PNG has no frames");
+        }
+        // Trust what we played more than acTL.
+        frameCount = frameIndex;
+        closeInput();
+        open();
+        Arrays.fill(argb, 0);
+        hasControl = false;
+        stillDecoded = false;
+        disposal = 0;
+        frameIndex = 0;
+    }
+
+    private void readPalette() throws IOException {
+        if (chunkRemaining > 256 * 3 || chunkRemaining % 3 != 0) {
+            throw new IOException("Bad PNG palette of " + chunkRemaining + " bytes");
+        }
+        final int count = chunkRemaining / 3;
+        readFully(chunkRemaining);
+        for (int i = 0; i < count; ++i) {
+            palette[i] = 0xff000000 | (buffer[i * 3] & 0xff) << 16 |
+                (buffer[i * 3 + 1] & 0xff) << 8 | (buffer[i * 3 + 2] & 0xff);
+        }
+        skipChunk();
+    }
+
+    private void readTransparency() throws IOException {
+        if (colorType == 3) {
+            final int count = Math.min(chunkRemaining, 256);
+            readFully(count);
+            for (int i = 0; i < count; ++i) {
+                palette[i] = (buffer[i] & 0xff) << 24 | (palette[i] & 0x00ffffff);
+            }
+        } else if (colorType == 0 && chunkRemaining >= 2) {
+            readFully(2);
+            transparentColor = getShort(0);
+        } else if (colorType == 2 && chunkRemaining >= 6) {
+            readFully(6);
+            // Compared with samples at their own depth, 16 bit ones do not fit an int.
+            transparentColor = bitDepth == 16 ?
+                (getShort(0) >> 8) << 16 | (getShort(2) >> 8) << 8 | getShort(4) >> 8 :
+                getShort(0) << 16 | getShort(2) << 8 | getShort(4);
+        }
+        skipChunk();
+    }
+
+    private void readFrameControl() throws IOException {
+        if (chunkRemaining != 26) {
+            throw new IOException("Bad APNG frame control");
+        }
+        readFully(26);
+        frameWidth = getInt(4);
+        frameHeight = getInt(8);
+        frameX = getInt(12);
+        frameY = getInt(16);
+        final int delayNumerator = getShort(20);
+        int delayDenominator = getShort(22);
+        if (delayDenominator == 0) {
+            delayDenominator = 100;
+        }
+        frameDelayMs = delayNumerator * 1000 / delayDenominator;
+        if (frameDelayMs < MIN_DELAY_MS) {
+            frameDelayMs = DEFAULT_DELAY_MS;
+        }
+        frameDispose = buffer[24] & 0xff;
+        frameBlend = buffer[25] & 0xff;
+        if (frameWidth <= 0 || frameHeight <= 0 || frameX < 0 || frameY < 0 ||
+            frameX + frameWidth > width || frameY + frameHeight > height) {
+            throw new IOException(String.format(
+                Locale.US, "Bad APNG frame %d of %dx%d at %d,%d",
+                frameIndex, frameWidth, frameHeight, frameX, frameY
+            ));
+        }
+        // Nothing is under the first frame to go back to.
+        if (frameIndex == 0 && frameDispose == DISPOSE_PREVIOUS) {
+            frameDispose = DISPOSE_BACKGROUND;
+        }
+        hasControl = true;
+        skipChunk();
+    }
+
+    private void setStillFrame() {
+        frameX = 0;
+        frameY = 0;
+        frameWidth = width;
+        frameHeight = height;
+        frameDelayMs = DEFAULT_DELAY_MS;
+        frameDispose = 0;
+        frameBlend = 0;
+        frameCount = 1;
+        stillDecoded = true;
+    }
+
+    /**
+     * Inflate image data starting at current chunk and draw it on canvas.
+     *
+     * @return int Delay of this frame in ms.
+     */
+    private int drawFrame(@NonNull final int[] argb) throws IOException {
+        if (frameDispose == DISPOSE_PREVIOUS) {
+            if (previous == null) {
+                previous = new int[width * height];
+            }
+            System.arraycopy(argb, 0, previous, 0, previous.length);
+        }
+        final int dataType = chunkType;
+        inflater.reset();
+        feedInflater(dataType);
+        final int rowBytes = getRowBytes(frameWidth);
+        final int filterBytes = Math.max(1, channels * bitDepth / 8);
+        Arrays.fill(priorRow, 0, rowBytes + 1, (byte)0);
+        for (int y = 0; y < frameHeight; ++y) {
+            inflateRow(rowBytes + 1, dataType);
+            unfilter(rowBytes, filterBytes);
+            convertRow();
+            final int target = (frameY + y) * width + frameX;
+            for (int x = 0; x < frameWidth; ++x) {
+                argb[target + x] = frameBlend == BLEND_OVER ?
+                    FrameSources.blendOver(rowPixels[x], argb[target + x]) : rowPixels[x];
+            }
+            final byte[] swap = priorRow;
+            priorRow = row;
+            row = swap;
+        }
+        // Rest of image data is only zlib checksum or padding, following chunks of it are
+        // skipped when reading the next frame.
+        skipChunk();
+        hasControl = false;
+        disposal = frameDispose;
+        disposalX = frameX;
+        disposalY = frameY;
+        disposalWidth = frameWidth;
+        disposalHeight = frameHeight;
+        ++frameIndex;
+        return frameDelayMs;
+    }
+
+    private void applyDisposal(@NonNull final int[] argb) {
+        if (disposal != DISPOSE_BACKGROUND && (disposal != DISPOSE_PREVIOUS || previous == null)) {
+            return;
+        }
+        for (int line = disposalY; line < disposalY + disposalHeight; ++line) {
+            final int start = line * width + disposalX;
+            if (disposal == DISPOSE_BACKGROUND) {
+                Arrays.fill(argb, start, start + disposalWidth, 0);
+            } else {
+                System.arraycopy(previous, start, argb, start, disposalWidth);
+            }
+        }
+        disposal = 0;
+    }
+
+    private void inflateRow(final int length, final int dataType) throws IOException {
+        int offset = 0;
+        while (offset < length) {
+            final int count;
+            try {
+                count = inflater.inflate(row, offset, length - offset);
+            } catch (DataFormatException e) {
+                throw new IOException("Bad PNG image data", e);
+            }
+            if (count == 0) {
+                if (inflater.finished() || inflater.needsDictionary()) {
+                    throw new IOException("PNG image data ends early");
+                }
+                if (inflater.needsInput()) {
+                    feedInflater(dataType);
+                }
+            }
+            offset += count;
+        }
+    }
+
+    /**
+     * Give inflater the next piece of image data, from this chunk or the next one.
+     */
+    private void feedInflater(final int dataType) throws IOException {
+        while (chunkRemaining == 0) {
+            skipChunk();
+            if (!readChunkHeader() || chunkType != dataType) {
+                throw new IOException("PNG image data ends early");
+            }
+            if (dataType == FDAT) {
+                // Sequence number.
+                readFully(4);
+            }
+        }
+        final int count = Math.min(chunkRemaining, buffer.length);
+        readFully(count);
+        inflater.setInput(buffer, 0, count);
+    }
+
+    private void unfilter(final int rowBytes, final int filterBytes) throws IOException {
+        final int filter = row[0];
+        for (int i = 1; i <= rowBytes; ++i) {
+            final int a = i > filterBytes ? row[i - filterBytes] & 0xff : 0;
+            final int b = priorRow[i] & 0xff;
+            final int c = i > filterBytes ? priorRow[i - filterBytes] & 0xff : 0;
+            final int predictor;
+            switch (filter) {
+            case 0:
+                predictor = 0;
+                break;
+            case 1:
+                predictor = a;
+                break;
+            case 2:
+                predictor = b;
+                break;
+            case 3:
+                predictor = (a + b) >> 1;
+                break;
+            case 4:
+                final int p = a + b - c;
+                final int pa = Math.abs(p - a);
+                final int pb = Math.abs(p - b);
+                final int pc = Math.abs(p - c);
+                predictor = pa <= pb && pa <= pc ? a : pb <= pc ? b : c;
+                break;
+            default:
+                throw new IOException("Bad PNG filter " + filter);
+            }
+            row[i] = (byte)(row[i] + predictor);
+        }
+    }
+
+    private void convertRow() {
+        if (bitDepth < 8) {
+            final int mask = (1 << bitDepth) - 1;
+            for (int x = 0; x < frameWidth; ++x) {
+                final int bit = x * bitDepth;
+                final int value = (row[1 + bit / 8] >> (8 - bitDepth - bit % 8)) & mask;
+                if (colorType == 3) {
+                    rowPixels[x] = palette[value];
+                } else {
+                    final int gray = value * 255 / mask;
+                    rowPixels[x] = (value == transparentColor ? 0 : 0xff000000) |
+                        gray << 16 | gray << 8 | gray;
+                }
+            }
+            return;
+        }
+        final int step = bitDepth / 8;
+        for (int x = 0; x < frameWidth; ++x) {
+            // High bytes of 16 bit samples.
+            final int offset = 1 + x * channels * step;
+            final int first = row[offset] & 0xff;
+            switch (colorType) {
+            case 0: {
+                final int value = step == 2 ? first << 8 | (row[offset + 1] & 0xff) : first;
+                rowPixels[x] = (value == transparentColor ? 0 : 0xff000000) |
+                    first << 16 | first << 8 | first;
+                break;
+            }
+            case 2: {
+                final int rgb = first << 16 | (row[offset + step] & 0xff) << 8 |
+                    (row[offset + step * 2] & 0xff);
+                rowPixels[x] = (rgb == transparentColor ? 0 : 0xff000000) | rgb;
+                break;
+            }
+            case 3:
+                rowPixels[x] = palette[first];
+                break;
+            case 4:
+                rowPixels[x] = (row[offset + step] & 0xff) << 24 | first << 16 | first << 8 | first;
+                break;
+            default:
+                rowPixels[x] = (row[offset + step * 3] & 0xff) << 24 | first << 16 |
+                    (row[offset + step] & 0xff) << 8 | (row[offset + step * 2] & 0xff);
+                break;
+            }
+        }
+    }
+
+    private int getRowBytes(final int pixels) {
+        return (pixels * channels * bitDepth + 7) / 8;
+    }
+
+    /**
+     * @return boolean false at end of stream.
+     */
+    private boolean readChunkHeader() throws IOException {
+        int offset = 0;
+        while (offset < 8) {
+            final int count = input.read(buffer, offset, 8 - offset);
+            if (count < 0) {
+                if (offset == 0) {
+                    return false;
+                }
+                throw new IOException("PNG ends early");
+            }
+            offset += count;
+        }
+        chunkRemaining = getInt(0);
+        chunkType = getInt(4);
+        if (chunkRemaining < 0) {
+            throw new IOException("Bad PNG chunk length " + chunkRemaining);
+        }
+        return true;
+    }
+
+    /**
+     * Skip rest of current chunk and its CRC.
+     */
+    private void skipChunk() throws IOException {
+        long remaining = chunkRemaining + 4L;
+        while (remaining > 0) {
+            final long count = input.skip(remaining);
+            if (count <= 0) {
+                if (input.read() < 0) {
+                    throw new IOException("PNG ends early");
+                }
+                --remaining;
+            } else {
+                remaining -= count;
+            }
+        }
+        chunkRemaining = 0;
+    }
+
+    /**
+     * Read bytes of current chunk to the beginning of buffer.
+     */
+    private void readFully(final int length) throws IOException {
+        int offset = 0;
+        while (offset < length) {
+            final int count = input.read(buffer, offset, length - offset);
+            if (count < 0) {
+                throw new IOException("PNG ends early");
+            }
+            offset += count;
+        }
+        chunkRemaining = Math.max(0, chunkRemaining - length);
+    }
+
+    private int getInt(final int offset) {
+        return (buffer[offset] & 0xff) << 24 | (buffer[offset + 1] & 0xff) << 16 |
+            (buffer[offset + 2] & 0xff) << 8 | (buffer[offset + 3] & 0xff);
+    }
+
+    private int getShort(final int offset) {
+        return (buffer[offset] & 0xff) << 8 | (buffer[offset + 1] & 0xff);
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright 2019 Alynx Zhou
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.alynx.livewallpaper;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.opengl.ETC1Util;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+
+/**
+ *
+ * PosterCache: a frame per card to draw before decoder gives us the first frame.
+ *
+ * Posters are captured by renderer from the frame it is showing, scaled to cover the screen,
+ * and saved as ETC1 textures, so showing one is a file read and a glCompressedTexImage2D().
+ *
+ * File layout is the position in milliseconds as a big endian long, followed by a PKM
+ * texture written by ETC1Util.
+ *
+ */
+class PosterCache {
+    @SuppressWarnings("unused")
+    private static final String TAG = "PosterCache";
+    private static final String DIRECTORY = "posters";
+    // Encoding a poster costs CPU, don't do it too often.
+    static final long MIN_UPDATE_INTERVAL_MS = 60 * 1000;
+    private static PosterCache instance = null;
+
+    static class Poster {
+        private final ETC1Util.ETC1Texture texture;
+        private final long positionMs;
+
+        Poster(@NonNull final ETC1Util.ETC1Texture texture, final long positionMs) {
+            this.texture = texture;
+            this.positionMs = positionMs;
+        }
+
+        @NonNull
+        ETC1Util.ETC1Texture getTexture() {
+            return texture;
+        }
+
+        long getPositionMs() {
+            return positionMs;
+        }
+    }
+
+    private PosterCache() {
+    }
+
+    @NonNull
+    static synchronized PosterCache getInstance() {
+        if (instance == null) {
+            instance = new PosterCache();
+        }
+        return instance;
+    }
+
+    /**
+     * @return Poster of card, or null if there is none. It reads file, but it is small.
+     */
+    Poster load(@NonNull final Context context, @NonNull final WallpaperCard wallpaperCard) {
+        final File file = getFile(context, wallpaperCard);
+        if (!file.exists()) {
+            return null;
+        }
+        final long startTime = SystemClock.elapsedRealtime();
+        try {
+            final DataInputStream inputStream = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file))
+            );
+            try {
+                final long positionMs = inputStream.readLong();
+                final ETC1Util.ETC1Texture texture = ETC1Util.createTexture(inputStream);
+                Utils.debug(TAG, String.format(
+                    Locale.US, "Loaded %dx%d poster in %d ms",
+                    texture.getWidth(), texture.getHeight(),
+                    SystemClock.elapsedRealtime() - startTime
+                ));
+                return new Poster(texture, positionMs);
+            } finally {
+                inputStream.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            // Broken file, make a new one next time.
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+            return null;
+        }
+    }
+
+    /**
+     * @param frame Frame after rotating, at the size poster should be.
+     *
+     * It encodes texture and blocks, don't use it on main thread.
+     */
+    void save(
+        @NonNull final Context context,
+        @NonNull final WallpaperCard wallpaperCard,
+        @NonNull final Bitmap frame,
+        final long positionMs
+    ) {
+        final long startTime = SystemClock.elapsedRealtime();
+        final Bitmap rgb565 = frame.getConfig() == Bitmap.Config.RGB_565 ?
+            frame : frame.copy(Bitmap.Config.RGB_565, false);
+        if (rgb565 == null) {
+            return;
+        }
+        final ByteBuffer pixels = ByteBuffer.allocateDirect(
+            rgb565.getRowBytes() * rgb565.getHeight()
+        ).order(ByteOrder.nativeOrder());
+        rgb565.copyPixelsToBuffer(pixels);
+        pixels.position(0);
+        final ETC1Util.ETC1Texture texture = ETC1Util.compressTexture(
+            pixels, rgb565.getWidth(), rgb565.getHeight(), 2, rgb565.getRowBytes()
+        );
+        if (rgb565 != frame) {
+            rgb565.recycle();
+        }
+        final File file = getFile(context, wallpaperCard);
+        final File parent = file.getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            return;
+        }
+        // Write to another file and rename, so engine never reads a half written poster.
+        final File tempFile = new File(file.getPath() + ".tmp");
+        try {
+            final DataOutputStream outputStream = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tempFile))
+            );
+            try {
+                outputStream.writeLong(positionMs);
+                ETC1Util.writeTexture(texture, outputStream);
+            } finally {
+                outputStream.close();
+            }
+            if (!tempFile.renameTo(file)) {
+                throw new IOException("Failed to rename " + tempFile);
+            }
+            Utils.debug(TAG, String.format(
+                Locale.US, "Saved %dx%d poster at %d ms in %d ms",
+                texture.getWidth(), texture.getHeight(), positionMs,
+                SystemClock.elapsedRealtime() - startTime
+            ));
+        } catch (IOException e) {
+            e.printStackTrace();
+            //noinspection ResultOfMethodCallIgnored
+            tempFile.delete();
+        }
+    }
+
+    /**
+     * @return boolean true if card has no poster or it is older than update interval.
+     */
+    boolean isStale(@NonNull final Context context, @NonNull final WallpaperCard wallpaperCard) {
+        final File file = getFile(context, wallpaperCard);
+        return System.currentTimeMillis() - file.lastModified() >= MIN_UPDATE_INTERVAL_MS;
+    }
+
+    void remove(@NonNull final Context context, @NonNull final WallpaperCard wallpaperCard) {
+        //noinspection ResultOfMethodCallIgnored
+        getFile(context, wallpaperCard).delete();
+    }
+
+    /**
+     * @return int[] Size of poster, video size scaled to cover screen, never enlarged.
+     */
+    @NonNull
+    static int[] getPosterSize(
+        final int videoWidth,
+        final int videoHeight,
+        final int screenWidth,
+        final int screenHeight
+    ) {
+        final float scale = Math.min(1.0f, Math.max(
+            (float)screenWidth / videoWidth, (float)screenHeight / videoHeight
+        ));
+        return new int[] {
+            Math.max(1, Math.round(videoWidth * scale)),
+            Math.max(1, Math.round(videoHeight * scale))
+        };
+    }
+
+    @NonNull
+    private static File getFile(
+        @NonNull final Context context,
+        @NonNull final WallpaperCard wallpaperCard
+    ) {
+        return new File(
+            new File(context.getCacheDir(), DIRECTORY),
+            hash(wallpaperCard.getCacheKey()) + ".pkm"
+        );
+    }
+
+    @NonNull
+    static String hash(@NonNull final String key) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes("UTF-8"));
+            final StringBuilder stringBuilder = new StringBuilder();
+            for (byte b : digest) {
+                stringBuilder.append(String.format(Locale.US, "%02x", b & 0xff));
+            }
+            return stringBuilder.toString();
+        } catch (NoSuchAlgorithmException | IOException e) {
+            // Every Android has SHA-1 and UTF-8.
+            throw new RuntimeException(e);
+        }
+    }
+}
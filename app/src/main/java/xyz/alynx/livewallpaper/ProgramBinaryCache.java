@@ -0,0 +1,181 @@
+/*
+ * Copyright 2019 Alynx Zhou
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.alynx.livewallpaper;
+
+import android.support.annotation.NonNull;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ *
+ * ProgramBinaryCache: linked shader programs saved as files, so a wallpaper shader is
+ * compiled once per driver instead of every time the wallpaper starts.
+ *
+ * Caller makes the name from everything which changes the binary: sources, GPU renderer
+ * and driver version, so a driver update just misses. Driver may still reject a binary,
+ * then caller removes it and compiles again.
+ *
+ * Only the most recently used entries are kept.
+ *
+ * It is plain Java, so it can be tested with a temporary folder.
+ *
+ */
+class ProgramBinaryCache {
+    @SuppressWarnings("unused")
+    private static final String TAG = "ProgramBinaryCache";
+    private static final int MAGIC = 0x4c575042;
+    private static final String SUFFIX = ".bin";
+    static final int MAX_ENTRIES = 16;
+    // Binaries are a few hundred KB at most, larger ones are broken files.
+    static final int MAX_BINARY_BYTES = 4 * 1024 * 1024;
+    private final File directory;
+
+    static class Entry {
+        final int format;
+        // Direct, as glProgramBinary() wants.
+        final ByteBuffer binary;
+
+        Entry(final int format, @NonNull final ByteBuffer binary) {
+            this.format = format;
+            this.binary = binary;
+        }
+    }
+
+    ProgramBinaryCache(@NonNull final File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * @param name File safe name, for example a hash.
+     * @return Entry, or null if there is no valid one.
+     */
+    Entry load(@NonNull final String name) {
+        final File file = getFile(name);
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            final DataInputStream input = new DataInputStream(new FileInputStream(file));
+            try {
+                if (input.readInt() != MAGIC) {
+                    throw new IOException("Bad program binary " + file);
+                }
+                final int format = input.readInt();
+                final int length = input.readInt();
+                if (length <= 0 || length > MAX_BINARY_BYTES) {
+                    throw new IOException("Bad program binary length " + length);
+                }
+                final byte[] bytes = new byte[length];
+                input.readFully(bytes);
+                final ByteBuffer binary = ByteBuffer.allocateDirect(length).order(
+                    ByteOrder.nativeOrder()
+                );
+                binary.put(bytes);
+                binary.flip();
+                // Used entries stay longer.
+                //noinspection ResultOfMethodCallIgnored
+                file.setLastModified(System.currentTimeMillis());
+                return new Entry(format, binary);
+            } finally {
+                input.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            remove(name);
+            return null;
+        }
+    }
+
+    /**
+     * @param binary Bytes from position to limit are saved, position is not changed.
+     */
+    void store(@NonNull final String name, final int format, @NonNull final ByteBuffer binary) {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            return;
+        }
+        final File file = getFile(name);
+        final File tmpFile = new File(file.getPath() + ".tmp");
+        final byte[] bytes = new byte[binary.remaining()];
+        binary.duplicate().get(bytes);
+        try {
+            final DataOutputStream output = new DataOutputStream(new FileOutputStream(tmpFile));
+            try {
+                output.writeInt(MAGIC);
+                output.writeInt(format);
+                output.writeInt(bytes.length);
+                output.write(bytes);
+            } finally {
+                output.close();
+            }
+            if (!tmpFile.renameTo(file)) {
+                throw new IOException("Failed to rename " + tmpFile);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            //noinspection ResultOfMethodCallIgnored
+            tmpFile.delete();
+            return;
+        }
+        trim();
+    }
+
+    /**
+     * Called when driver rejects a binary.
+     */
+    void remove(@NonNull final String name) {
+        //noinspection ResultOfMethodCallIgnored
+        getFile(name).delete();
+    }
+
+    private void trim() {
+        final File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        int count = 0;
+        for (File file : files) {
+            if (file.getName().endsWith(SUFFIX)) {
+                ++count;
+            }
+        }
+        while (count > MAX_ENTRIES) {
+            File oldest = null;
+            for (File file : files) {
+                if (file.getName().endsWith(SUFFIX) && file.exists() &&
+                    (oldest == null || file.lastModified() < oldest.lastModified())) {
+                    oldest = file;
+                }
+            }
+            if (oldest == null || !oldest.delete()) {
+                return;
+            }
+            --count;
+        }
+    }
+
+    @NonNull
+    private File getFile(@NonNull final String name) {
+        return new File(directory, name + SUFFIX);
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2019 Alynx Zhou
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.alynx.livewallpaper;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ *
+ * QualityGovernor: watch battery, power save and thermal state for all visible engines,
+ * and tell them which QualityPolicy tier to use.
+ *
+ * Receivers are only registered while some engine listens, so time in tiers is
+ * only counted while wallpaper is playing. Battery broadcasts arrive
+ * when level changes, thermal status has no broadcast before API 29 listener which we
+ * cannot compile against, so it is polled together with the hold time check.
+ *
+ * Time spent in each tier is saved to SharedPreferences, so it survives process death
+ * and can be shown in about page.
+ *
+ * All methods must be called on main thread, listeners are called on main thread.
+ *
+ */
+class QualityGovernor {
+    @SuppressWarnings("unused")
+    private static final String TAG = "QualityGovernor";
+    static final String QUALITY_PREF = "quality";
+    private static final String TIER_TIME_KEY_PREFIX = "tierTimeMs";
+    private static final long POLL_INTERVAL_MS = 30 * 1000;
+    private static QualityGovernor instance = null;
+    private final List<OnTierChangedListener> listeners = new ArrayList<>();
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final QualityPolicy policy = new QualityPolicy(new QualityPolicy.Config());
+    private Context context = null;
+    private PowerManager powerManager = null;
+    private int batteryPercent = -1;
+    private boolean charging = false;
+    private final BroadcastReceiver receiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(final Context context, final Intent intent) {
+            if (Intent.ACTION_BATTERY_CHANGED.equals(intent.getAction())) {
+                readBattery(intent);
+            }
+            evaluate();
+        }
+    };
+    private final Runnable pollRunnable = new Runnable() {
+        @Override
+        public void run() {
+            evaluate();
+            handler.postDelayed(pollRunnable, POLL_INTERVAL_MS);
+        }
+    };
+
+    public interface OnTierChangedListener {
+        void onTierChanged(@NonNull final QualityPolicy.Tier tier);
+    }
+
+    private QualityGovernor() {
+    }
+
+    @NonNull
+    static synchronized QualityGovernor getInstance() {
+        if (instance == null) {
+            instance = new QualityGovernor();
+        }
+        return instance;
+    }
+
+    /**
+     * Start watching if this is the first listener, listener is called with current tier.
+     */
+    void addListener(@NonNull final Context context, @NonNull final OnTierChangedListener listener) {
+        if (listeners.contains(listener)) {
+            return;
+        }
+        listeners.add(listener);
+        if (listeners.size() == 1) {
+            start(context.getApplicationContext());
+        }
+        listener.onTierChanged(policy.getTier());
+    }
+
+    void removeListener(@NonNull final OnTierChangedListener listener) {
+        if (listeners.remove(listener) && listeners.isEmpty()) {
+            stop();
+        }
+    }
+
+    @NonNull
+    QualityPolicy.Tier getTier() {
+        return policy.getTier();
+    }
+
+    /**
+     * @return long[] Saved milliseconds spent in each tier, indexed by Tier.ordinal().
+     */
+    @NonNull
+    static long[] loadTierTimesMs(@NonNull final Context context) {
+        final SharedPreferences pref = context.getSharedPreferences(QUALITY_PREF, Context.MODE_PRIVATE);
+        final QualityPolicy.Tier[] tiers = QualityPolicy.Tier.values();
+        final long[] times = new long[tiers.length];
+        for (QualityPolicy.Tier tier : tiers) {
+            times[tier.ordinal()] = pref.getLong(TIER_TIME_KEY_PREFIX + tier.name(), 0);
+        }
+        return times;
+    }
+
+    private void start(@NonNull final Context context) {
+        this.context = context;
+        powerManager = (PowerManager)context.getSystemService(Context.POWER_SERVICE);
+        final IntentFilter filter = new IntentFilter(Intent.ACTION_BATTERY_CHANGED);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            filter.addAction(PowerManager.ACTION_POWER_SAVE_MODE_CHANGED);
+        }
+        // Battery broadcast is sticky, so we get current level at once.
+        final Intent battery = context.registerReceiver(receiver, filter);
+        if (battery != null) {
+            readBattery(battery);
+        }
+        evaluate();
+        handler.postDelayed(pollRunnable, POLL_INTERVAL_MS);
+    }
+
+    private void stop() {
+        handler.removeCallbacks(pollRunnable);
+        context.unregisterReceiver(receiver);
+        final long nowMs = SystemClock.elapsedRealtime();
+        policy.stopClock(nowMs);
+        saveTierTimes(nowMs);
+        context = null;
+        powerManager = null;
+    }
+
+    private void readBattery(@NonNull final Intent intent) {
+        final int level = intent.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+        final int scale = intent.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+        batteryPercent = level >= 0 && scale > 0 ? level * 100 / scale : -1;
+        final int status = intent.getIntExtra(BatteryManager.EXTRA_STATUS, -1);
+        charging = status == BatteryManager.BATTERY_STATUS_CHARGING ||
+            status == BatteryManager.BATTERY_STATUS_FULL;
+    }
+
+    private void evaluate() {
+        if (context == null) {
+            return;
+        }
+        boolean powerSave = false;
+        int thermalStatus = QualityPolicy.THERMAL_NONE;
+        if (powerManager != null) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                powerSave = powerManager.isPowerSaveMode();
+            }
+            thermalStatus = Utils.getThermalStatus(powerManager);
+        }
+        final QualityPolicy.Conditions conditions = new QualityPolicy.Conditions(
+            batteryPercent, charging, powerSave, thermalStatus
+        );
+        final QualityPolicy.Tier oldTier = policy.getTier();
+        final QualityPolicy.Tier tier = policy.update(conditions, SystemClock.elapsedRealtime());
+        if (tier == oldTier) {
+            return;
+        }
+        Utils.debug(TAG, String.format(
+            Locale.US, "Quality tier %s -> %s for %s", oldTier, tier, conditions
+        ));
+        // Listener may remove itself.
+        for (OnTierChangedListener listener : new ArrayList<>(listeners)) {
+            listener.onTierChanged(tier);
+        }
+    }
+
+    private void saveTierTimes(final long nowMs) {
+        final long[] saved = loadTierTimesMs(context);
+        final long[] times = policy.getTierTimesMs(nowMs);
+        final SharedPreferences.Editor editor = context.getSharedPreferences(
+            QUALITY_PREF, Context.MODE_PRIVATE
+        ).edit();
+        final StringBuilder stringBuilder = new StringBuilder();
+        for (QualityPolicy.Tier tier : QualityPolicy.Tier.values()) {
+            final long total = saved[tier.ordinal()] + times[tier.ordinal()];
+            editor.putLong(TIER_TIME_KEY_PREFIX + tier.name(), total);
+            stringBuilder.append(String.format(
+                Locale.US, "%s%s %d s", stringBuilder.length() > 0 ? ", " : "",
+                tier, total / 1000
+            ));
+        }
+        editor.apply();
+        // Saved, don't add them again next time.
+        policy.clearTierTimes();
+        Utils.debug(TAG, "Time in quality tiers: " + stringBuilder);
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ * Copyright 2019 Alynx Zhou
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.alynx.livewallpaper;
+
+import android.support.annotation.NonNull;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ *
+ * QualityPolicy: map battery, power save and thermal state to a playback quality tier.
+ *
+ * Tiers are ordered, every tier also does what the ones before it do:
+ * FULL: play at video frame rate and source density.
+ * REDUCED_FPS: draw every other vsync.
+ * REDUCED_RESOLUTION: also cap render scale.
+ * STATIC: stop decoding and keep the last frame on screen.
+ *
+ * Going to a lower tier happens at once, going back needs battery to be above threshold
+ * by a margin and the current tier to be held for a while, so tiers don't flap when
+ * battery level or temperature wanders around a threshold.
+ *
+ * Time spent in each tier is recorded from the times passed in.
+ *
+ * It is plain Java, QualityGovernor feeds it with system state.
+ *
+ */
+class QualityPolicy {
+    @SuppressWarnings("unused")
+    private static final String TAG = "QualityPolicy";
+    // PowerManager.THERMAL_STATUS_* of API 29.
+    static final int THERMAL_NONE = 0;
+    static final int THERMAL_LIGHT = 1;
+    static final int THERMAL_MODERATE = 2;
+    static final int THERMAL_SEVERE = 3;
+    static final int THERMAL_CRITICAL = 4;
+    private final Config config;
+    private final long[] tierTimesMs;
+    private Tier tier = Tier.FULL;
+    private long tierStartMs = -1;
+
+    enum Tier {
+        FULL,
+        REDUCED_FPS,
+        REDUCED_RESOLUTION,
+        STATIC
+    }
+
+    static class Conditions {
+        private final int batteryPercent;
+        private final boolean charging;
+        private final boolean powerSave;
+        private final int thermalStatus;
+
+        /**
+         * @param batteryPercent Battery level, -1 if unknown.
+         * @param thermalStatus One of THERMAL_*, THERMAL_NONE if unknown.
+         */
+        Conditions(
+            final int batteryPercent,
+            final boolean charging,
+            final boolean powerSave,
+            final int thermalStatus
+        ) {
+            this.batteryPercent = batteryPercent;
+            this.charging = charging;
+            this.powerSave = powerSave;
+            this.thermalStatus = thermalStatus;
+        }
+
+        int getBatteryPercent() {
+            return batteryPercent;
+        }
+
+        boolean isCharging() {
+            return charging;
+        }
+
+        boolean isPowerSave() {
+            return powerSave;
+        }
+
+        int getThermalStatus() {
+            return thermalStatus;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return String.format(
+                Locale.US, "battery %d%%%s%s, thermal %d", batteryPercent,
+                charging ? " charging" : "", powerSave ? ", power save" : "", thermalStatus
+            );
+        }
+    }
+
+    /**
+     * Config: thresholds of tiers, defaults are used for fields that are not set.
+     *
+     * Battery thresholds are the level at or below which a tier starts,
+     * thermal thresholds are the status at or above which a tier starts.
+     */
+    static class Config {
+        private int reducedFpsBattery = 30;
+        private int reducedResolutionBattery = 20;
+        private int staticBattery = 10;
+        private int batteryMargin = 5;
+        private int reducedFpsThermal = THERMAL_MODERATE;
+        private int reducedResolutionThermal = THERMAL_SEVERE;
+        private int staticThermal = THERMAL_CRITICAL;
+        private Tier powerSaveTier = Tier.REDUCED_RESOLUTION;
+        private long minHoldMs = 60 * 1000;
+
+        @NonNull
+        Config setBatteryThresholds(
+            final int reducedFps,
+            final int reducedResolution,
+            final int still
+        ) {
+            reducedFpsBattery = reducedFps;
+            reducedResolutionBattery = reducedResolution;
+            staticBattery = still;
+            return this;
+        }
+
+        /**
+         * @param margin Percent battery must be above a threshold to leave its tier.
+         */
+        @NonNull
+        Config setBatteryMargin(final int margin) {
+            batteryMargin = margin;
+            return this;
+        }
+
+        @NonNull
+        Config setThermalThresholds(
+            final int reducedFps,
+            final int reducedResolution,
+            final int still
+        ) {
+            reducedFpsThermal = reducedFps;
+            reducedResolutionThermal = reducedResolution;
+            staticThermal = still;
+            return this;
+        }
+
+        @NonNull
+        Config setPowerSaveTier(@NonNull final Tier tier) {
+            powerSaveTier = tier;
+            return this;
+        }
+
+        /**
+         * @param holdMs Time a tier is kept at least before going to a better one.
+         */
+        @NonNull
+        Config setMinHoldMs(final long holdMs) {
+            minHoldMs = holdMs;
+            return this;
+        }
+    }
+
+    QualityPolicy(@NonNull final Config config) {
+        this.config = config;
+        tierTimesMs = new long[Tier.values().length];
+    }
+
+    /**
+     * @param nowMs Monotonic time, like SystemClock.elapsedRealtime().
+     * @return Tier Tier to use now, which may be the current one.
+     */
+    @NonNull
+    synchronized Tier update(@NonNull final Conditions conditions, final long nowMs) {
+        if (tierStartMs < 0) {
+            tierStartMs = nowMs;
+        }
+        final Tier wanted = getTier(conditions, 0);
+        if (wanted.compareTo(tier) > 0) {
+            setTier(wanted, nowMs);
+        } else if (wanted.compareTo(tier) < 0 && nowMs - tierStartMs >= config.minHoldMs) {
+            // Leave with margin, the tier may only be a bit better than current one.
+            final Tier relaxed = getTier(conditions, config.batteryMargin);
+            if (relaxed.compareTo(tier) < 0) {
+                setTier(relaxed, nowMs);
+            }
+        }
+        return tier;
+    }
+
+    @NonNull
+    synchronized Tier getTier() {
+        return tier;
+    }
+
+    /**
+     * @return long[] Milliseconds spent in each tier until nowMs, indexed by Tier.ordinal().
+     */
+    @NonNull
+    synchronized long[] getTierTimesMs(final long nowMs) {
+        final long[] times = Arrays.copyOf(tierTimesMs, tierTimesMs.length);
+        if (tierStartMs >= 0) {
+            times[tier.ordinal()] += nowMs - tierStartMs;
+        }
+        return times;
+    }
+
+    /**
+     * Stop counting time, until next update(). For times when nothing is playing.
+     */
+    synchronized void stopClock(final long nowMs) {
+        if (tierStartMs >= 0) {
+            tierTimesMs[tier.ordinal()] += nowMs - tierStartMs;
+            tierStartMs = -1;
+        }
+    }
+
+    synchronized void clearTierTimes() {
+        Arrays.fill(tierTimesMs, 0);
+    }
+
+    private void setTier(@NonNull final Tier newTier, final long nowMs) {
+        tierTimesMs[tier.ordinal()] += nowMs - tierStartMs;
+        tier = newTier;
+        tierStartMs = nowMs;
+    }
+
+    @NonNull
+    private Tier getTier(@NonNull final Conditions conditions, final int batteryMargin) {
+        Tier result = Tier.FULL;
+        if (!conditions.isCharging() && conditions.getBatteryPercent() >= 0) {
+            final int battery = conditions.getBatteryPercent() - batteryMargin;
+            if (battery <= config.staticBattery) {
+                result = max(result, Tier.STATIC);
+            } else if (battery <= config.reducedResolutionBattery) {
+                result = max(result, Tier.REDUCED_RESOLUTION);
+            } else if (battery <= config.reducedFpsBattery) {
+                result = max(result, Tier.REDUCED_FPS);
+            }
+        }
+        if (conditions.isPowerSave()) {
+            result = max(result, config.powerSaveTier);
+        }
+        final int thermal = conditions.getThermalStatus();
+        if (thermal >= config.staticThermal) {
+            result = max(result, Tier.STATIC);
+        } else if (thermal >= config.reducedResolutionThermal) {
+            result = max(result, Tier.REDUCED_RESOLUTION);
+        } else if (thermal >= config.reducedFpsThermal) {
+            result = max(result, Tier.REDUCED_FPS);
+        }
+        return result;
+    }
+
+    @NonNull
+    private static Tier max(@NonNull final Tier a, @NonNull final Tier b) {
+        return a.compareTo(b) >= 0 ? a : b;
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright 2019 Alynx Zhou
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.alynx.livewallpaper;
+
+import android.support.annotation.NonNull;
+
+import java.util.Locale;
+
+/**
+ *
+ * RenderScaleController: choose the resolution renderer draws at before scaling to screen.
+ *
+ * Drawing a 720x720 video to a 1440x3040 screen samples every source pixel many times,
+ * so rendering above the source pixel density only costs fill rate. The scale never goes
+ * above that density, and goes lower when measured GPU frame time is near the budget,
+ * back up when there is room again.
+ *
+ * Scale is relative to screen size on both axes. It changes in steps after a window of
+ * frames, so render target is not reallocated every frame.
+ *
+ * It is plain Java, renderer feeds it with sizes and GPU frame times.
+ *
+ */
+class RenderScaleController {
+    @SuppressWarnings("unused")
+    private static final String TAG = "RenderScaleController";
+    // Don't go below this even when GPU is slow, it looks too blurry.
+    static final float MIN_SCALE = 0.5f;
+    // Closer to full size than this is not worth an extra pass.
+    static final float DIRECT_SCALE = 0.95f;
+    static final float STEP = 0.1f;
+    static final int WINDOW_FRAMES = 30;
+    private static final float HIGH_LOAD = 0.8f;
+    private static final float LOW_LOAD = 0.5f;
+    private final long frameBudgetNs;
+    private final FrameStats stats;
+    private int screenWidth = 0;
+    private int screenHeight = 0;
+    private int sourceWidth = 0;
+    private int sourceHeight = 0;
+    private float scaleLimit = 1.0f;
+    private float maxScale = 1.0f;
+    private float scale = 1.0f;
+    private long windowSumNs = 0;
+    private int windowFrames = 0;
+
+    /**
+     * @param frameBudgetNs GPU time a frame may take, usually a vsync interval.
+     */
+    RenderScaleController(final long frameBudgetNs) {
+        this.frameBudgetNs = frameBudgetNs;
+        stats = new FrameStats(frameBudgetNs);
+    }
+
+    /**
+     * @param sourceWidth Width of video after rotation.
+     * @param sourceHeight Height of video after rotation.
+     * @return boolean true if render size changed.
+     */
+    boolean setSizes(
+        final int screenWidth,
+        final int screenHeight,
+        final int sourceWidth,
+        final int sourceHeight
+    ) {
+        if (this.screenWidth == screenWidth && this.screenHeight == screenHeight &&
+            this.sourceWidth == sourceWidth && this.sourceHeight == sourceHeight) {
+            return false;
+        }
+        this.screenWidth = screenWidth;
+        this.screenHeight = screenHeight;
+        this.sourceWidth = sourceWidth;
+        this.sourceHeight = sourceHeight;
+        resetScale();
+        return true;
+    }
+
+    /**
+     * @param limit Upper bound of scale besides source density, 1 means no limit.
+     * @return boolean true if it changed.
+     */
+    boolean setScaleLimit(final float limit) {
+        if (scaleLimit == limit) {
+            return false;
+        }
+        scaleLimit = limit;
+        resetScale();
+        return true;
+    }
+
+    /**
+     * @param gpuNs GPU time of a frame.
+     * @return boolean true if render size changed.
+     */
+    boolean addFrameTime(final long gpuNs) {
+        stats.addInterval(gpuNs);
+        windowSumNs += gpuNs;
+        if (++windowFrames < WINDOW_FRAMES) {
+            return false;
+        }
+        final long averageNs = windowSumNs / windowFrames;
+        windowSumNs = 0;
+        windowFrames = 0;
+        final float minScale = Math.min(MIN_SCALE, maxScale);
+        float newScale = scale;
+        if (averageNs > frameBudgetNs * HIGH_LOAD) {
+            newScale = Math.max(minScale, scale - STEP);
+        } else if (averageNs < frameBudgetNs * LOW_LOAD) {
+            newScale = Math.min(maxScale, scale + STEP);
+        }
+        if (newScale == scale) {
+            return false;
+        }
+        scale = newScale;
+        return true;
+    }
+
+    /**
+     * @return boolean true if renderer should draw offscreen and scale up.
+     */
+    boolean isScaled() {
+        return scale < DIRECT_SCALE && screenWidth > 0 && screenHeight > 0;
+    }
+
+    float getScale() {
+        return scale;
+    }
+
+    float getMaxScale() {
+        return maxScale;
+    }
+
+    int getRenderWidth() {
+        return isScaled() ? roundEven(screenWidth * scale) : screenWidth;
+    }
+
+    int getRenderHeight() {
+        return isScaled() ? roundEven(screenHeight * scale) : screenHeight;
+    }
+
+    /**
+     * @return float Ratio of pixels not drawn compared with drawing at screen size.
+     */
+    float getFillSaving() {
+        if (screenWidth <= 0 || screenHeight <= 0) {
+            return 0;
+        }
+        return 1.0f - (float)getRenderWidth() * getRenderHeight() / screenWidth / screenHeight;
+    }
+
+    /**
+     * @return FrameStats GPU frame times, with frame budget.
+     */
+    @NonNull
+    FrameStats getStats() {
+        return stats;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return String.format(
+            Locale.US, "render %dx%d of %dx%d (scale %.2f, max %.2f), fill saved %.0f%%, GPU %s",
+            getRenderWidth(), getRenderHeight(), screenWidth, screenHeight, scale, maxScale,
+            getFillSaving() * 100, stats
+        );
+    }
+
+    /**
+     * Video is center cropped to cover screen, one source pixel covers 1 / density screen
+     * pixels on each axis, so rendering above density adds no detail.
+     *
+     * @return float Scale of screen size which has the same pixel density as source.
+     */
+    static float getDensityScale(
+        final int screenWidth,
+        final int screenHeight,
+        final int sourceWidth,
+        final int sourceHeight
+    ) {
+        if (screenWidth <= 0 || screenHeight <= 0 || sourceWidth <= 0 || sourceHeight <= 0) {
+            return 1.0f;
+        }
+        final float cover = Math.max(
+            (float)screenWidth / sourceWidth, (float)screenHeight / sourceHeight
+        );
+        return Math.min(1.0f, 1.0f / cover);
+    }
+
+    /**
+     * Still images are decoded once, subsampled as far as they still cover screen
+     * at full density, and never larger than maxSize, which GPU may not take.
+     *
+     * @return int Power of two for BitmapFactory.Options.inSampleSize.
+     */
+    static int getSampleSize(
+        final int screenWidth,
+        final int screenHeight,
+        final int sourceWidth,
+        final int sourceHeight,
+        final int maxSize
+    ) {
+        int sampleSize = 1;
+        if (screenWidth > 0 && screenHeight > 0 && sourceWidth > 0 && sourceHeight > 0) {
+            final float cover = Math.max(
+                (float)screenWidth / sourceWidth, (float)screenHeight / sourceHeight
+            );
+            while (sampleSize * 2 * cover <= 1.0f) {
+                sampleSize *= 2;
+            }
+        }
+        while (Math.max(sourceWidth, sourceHeight) / sampleSize > maxSize) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    private void resetScale() {
+        maxScale = Math.min(
+            scaleLimit, getDensityScale(screenWidth, screenHeight, sourceWidth, sourceHeight)
+        );
+        // Start at max scale, frame times will lower it if needed.
+        scale = maxScale;
+        windowSumNs = 0;
+        windowFrames = 0;
+    }
+
+    private static int roundEven(final float size) {
+        return Math.max(2, Math.round(size / 2) * 2);
+    }
+}
@@ -0,0 +1,357 @@
+/*
+ * Copyright 2019 Alynx Zhou
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.alynx.livewallpaper;
+
+import android.opengl.EGL14;
+import android.opengl.EGLSurface;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.view.Choreographer;
+import android.view.Surface;
+
+import java.util.Locale;
+
+/**
+ *
+ * RenderThread: our own GL thread, replacing the GLSurfaceView we used to hijack.
+ *
+ * It owns an EGLCore whose context lives as long as the thread. Renderer creates its
+ * resources on a 1x1 pbuffer when thread starts, window surfaces are only bound to it
+ * when engine has one, so losing a window surface keeps textures and SurfaceTexture.
+ *
+ * Frames are driven by Choreographer of this thread, every frame gets a presentation time
+ * from the vsync it is made for. Content which only changes with offset or surface renders
+ * on demand instead, so no vsync callback runs while nothing changes.
+ *
+ * All public methods are for the engine on main thread, methods which must finish before
+ * engine returns to system (like releasing surface) block until render thread is done.
+ *
+ */
+class RenderThread extends Thread implements Choreographer.FrameCallback {
+    @SuppressWarnings("unused")
+    private static final String TAG = "RenderThread";
+    // Lower rates come from frameDivider, swaps always wait for the next vsync.
+    private static final int SWAP_INTERVAL = 1;
+    private final Object lock = new Object();
+    private final int version;
+    private final GLWallpaperRenderer renderer;
+    private EGLCore eglCore = null;
+    private EGLSurface pbufferSurface = EGL14.EGL_NO_SURFACE;
+    private EGLSurface windowSurface = EGL14.EGL_NO_SURFACE;
+    private Handler handler = null;
+    private Choreographer choreographer = null;
+    private boolean ready = false;
+    private boolean paused = true;
+    private boolean frameScheduled = false;
+    private long frameIntervalNs = 16666667;
+    private int frameDivider = 1;
+    private boolean renderOnDemand = false;
+    private long vsyncCount = 0;
+    // Read by engine to report cost per frame.
+    private volatile long frameCount = 0;
+    // Counts when rendering resumed, to log what a visible period cost.
+    private long resumeVsyncCount = 0;
+    private long resumeFrameCount = 0;
+
+    /**
+     * @param version GLES major version, 2 or 3.
+     */
+    RenderThread(final int version, @NonNull final GLWallpaperRenderer renderer) {
+        super(ThreadPolicy.RENDER_THREAD_NAME);
+        this.version = version;
+        this.renderer = renderer;
+    }
+
+    @Override
+    public void run() {
+        ThreadTopology.getInstance().applyToCurrentThread(ThreadPolicy.Role.RENDER);
+        Looper.prepare();
+        eglCore = new EGLCore(version);
+        pbufferSurface = eglCore.createPbufferSurface(1, 1);
+        eglCore.makeCurrent(pbufferSurface);
+        renderer.onSurfaceCreated();
+        choreographer = Choreographer.getInstance();
+        synchronized (lock) {
+            handler = new Handler();
+            ready = true;
+            lock.notifyAll();
+        }
+        Looper.loop();
+        choreographer.removeFrameCallback(this);
+        destroyWindowSurface();
+        // Pbuffer is current now, renderer deletes what it made before context goes.
+        renderer.release();
+        eglCore.releaseSurface(pbufferSurface);
+        pbufferSurface = EGL14.EGL_NO_SURFACE;
+        eglCore.release();
+        eglCore = null;
+        Utils.debug(TAG, String.format(
+            Locale.US, "Quit after swapping %d frames in %d vsyncs", frameCount, vsyncCount
+        ));
+    }
+
+    /**
+     * Start thread and wait until context and renderer resources are created,
+     * so renderer has its textures before engine gives it a player.
+     */
+    void startAndWait() {
+        start();
+        synchronized (lock) {
+            while (!ready) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * @param refreshRate Display refresh rate, used to pick presentation time of frames.
+     */
+    void setRefreshRate(final float refreshRate) {
+        final long intervalNs = (long)(1e9 / refreshRate);
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                frameIntervalNs = intervalNs;
+                renderer.setVsyncInterval(frameIntervalNs * frameDivider);
+            }
+        });
+    }
+
+    /**
+     * @return long Frames swapped since thread started.
+     */
+    long getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * @param divider Draw only every divider vsyncs, 1 draws every vsync.
+     *
+     * Renderer sees the longer interval as its vsync, so video pacing still works.
+     */
+    void setFrameDivider(final int divider) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                frameDivider = Math.max(1, divider);
+                renderer.setVsyncInterval(frameIntervalNs * frameDivider);
+            }
+        });
+    }
+
+    void setSurface(@NonNull final Surface surface, final int width, final int height) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                destroyWindowSurface();
+                try {
+                    windowSurface = eglCore.createWindowSurface(surface);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                    return;
+                }
+                eglCore.makeCurrent(windowSurface);
+                eglCore.setSwapInterval(SWAP_INTERVAL);
+                renderer.onSurfaceChanged(width, height);
+                scheduleFrame();
+            }
+        });
+    }
+
+    void setSurfaceSize(final int width, final int height) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (windowSurface != EGL14.EGL_NO_SURFACE) {
+                    renderer.onSurfaceChanged(width, height);
+                    scheduleFrame();
+                }
+            }
+        });
+    }
+
+    /**
+     * @param onDemand true to draw only after requestRender(), surface changes and resuming.
+     */
+    void setRenderOnDemand(final boolean onDemand) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (renderOnDemand == onDemand) {
+                    return;
+                }
+                renderOnDemand = onDemand;
+                Utils.debug(TAG, "Render on demand: " + renderOnDemand);
+                scheduleFrame();
+            }
+        });
+    }
+
+    /**
+     * Draw one frame if rendering on demand, continuous rendering draws anyway.
+     */
+    void requestRender() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                scheduleFrame();
+            }
+        });
+    }
+
+    /**
+     * Unbind window surface and wait, system destroys it after engine returns.
+     */
+    void releaseSurface() {
+        runAndWait(new Runnable() {
+            @Override
+            public void run() {
+                destroyWindowSurface();
+            }
+        });
+    }
+
+    void pauseRendering() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!paused) {
+                    Utils.debug(TAG, String.format(
+                        Locale.US, "Swapped %d frames in %d vsyncs since resumed%s",
+                        frameCount - resumeFrameCount, vsyncCount - resumeVsyncCount,
+                        renderOnDemand ? ", on demand" : ""
+                    ));
+                }
+                paused = true;
+                if (frameScheduled) {
+                    choreographer.removeFrameCallback(RenderThread.this);
+                    frameScheduled = false;
+                }
+            }
+        });
+    }
+
+    void resumeRendering() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (paused) {
+                    resumeVsyncCount = vsyncCount;
+                    resumeFrameCount = frameCount;
+                }
+                paused = false;
+                scheduleFrame();
+            }
+        });
+    }
+
+    /**
+     * Run on render thread, with context current.
+     */
+    void queueEvent(@NonNull final Runnable runnable) {
+        handler.post(runnable);
+    }
+
+    /**
+     * Release everything and wait for thread to exit.
+     */
+    void quitAndWait() {
+        handler.getLooper().quit();
+        try {
+            join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void doFrame(final long frameTimeNanos) {
+        frameScheduled = false;
+        if (paused || windowSurface == EGL14.EGL_NO_SURFACE) {
+            return;
+        }
+        // Schedule first, so a slow frame does not make us miss next vsync callback.
+        if (!renderOnDemand) {
+            scheduleFrame();
+        }
+        // A requested frame is never skipped.
+        if (vsyncCount++ % frameDivider != 0 && !renderOnDemand) {
+            return;
+        }
+        if (!renderer.onDrawFrame(frameTimeNanos)) {
+            return;
+        }
+        // This frame is made for the vsync after the one which woke us.
+        eglCore.setPresentationTime(windowSurface, frameTimeNanos + frameIntervalNs);
+        if (!eglCore.swapBuffers(windowSurface)) {
+            Utils.debug(TAG, String.format(
+                Locale.US, "Failed to swap buffers: 0x%x", EGL14.eglGetError()
+            ));
+        }
+        ++frameCount;
+    }
+
+    private void scheduleFrame() {
+        if (paused || frameScheduled || windowSurface == EGL14.EGL_NO_SURFACE) {
+            return;
+        }
+        frameScheduled = true;
+        choreographer.postFrameCallback(this);
+    }
+
+    private void destroyWindowSurface() {
+        if (windowSurface == EGL14.EGL_NO_SURFACE) {
+            return;
+        }
+        if (frameScheduled) {
+            choreographer.removeFrameCallback(this);
+            frameScheduled = false;
+        }
+        // Keep context current on pbuffer, renderer resources stay usable.
+        eglCore.makeCurrent(pbufferSurface);
+        eglCore.releaseSurface(windowSurface);
+        windowSurface = EGL14.EGL_NO_SURFACE;
+    }
+
+    private void runAndWait(@NonNull final Runnable runnable) {
+        final boolean[] done = {false};
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                runnable.run();
+                synchronized (lock) {
+                    done[0] = true;
+                    lock.notifyAll();
+                }
+            }
+        });
+        synchronized (lock) {
+            while (!done[0]) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
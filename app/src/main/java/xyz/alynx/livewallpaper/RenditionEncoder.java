@@ -0,0 +1,38 @@
+/*
+ * Copyright 2019 Alynx Zhou
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.alynx.livewallpaper;
+
+import android.support.annotation.NonNull;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ *
+ * RenditionEncoder: writes a rendition of one source video, RenditionStore decides
+ * where and whether. MediaCodecRenditionEncoder is the one on devices.
+ *
+ */
+interface RenditionEncoder {
+    /**
+     * Called on a worker thread, it may take as long as the video plays.
+     *
+     * @param output Temporary file, store renames it when this returns.
+     * @throws IOException if video cannot be encoded, output may be partly written then.
+     */
+    void encode(@NonNull final RenditionPlan plan, @NonNull final File output) throws IOException;
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2019 Alynx Zhou
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.alynx.livewallpaper;
+
+import android.support.annotation.NonNull;
+
+import java.util.Locale;
+
+/**
+ *
+ * RenditionPlan: size, frame rate and codec of a cheaper copy of a video, made at import.
+ *
+ * Phones record 4K at 60 fps, often HEVC, and users set that on 1080p screens. A rendition
+ * covers the screen held the same way as the video, short edge against short edge and long
+ * edge against long edge, so it is never upscaled when shown like that. Frame rate is capped,
+ * and codec is AVC, which every hardware decoder plays.
+ *
+ * It is plain Java, so it can be tested without codecs.
+ *
+ */
+final class RenditionPlan {
+    @SuppressWarnings("unused")
+    private static final String TAG = "RenditionPlan";
+    static final String MIME_TYPE = "video/avc";
+    static final float MAX_FRAME_RATE = 30;
+    // Videos without frame rate in container.
+    static final float FALLBACK_FRAME_RATE = 30;
+    // Many encoders only take multiples of 16.
+    static final int ALIGNMENT = 16;
+    // Smaller savings are not worth encoding time and generation loss.
+    static final float MAX_COST_RATIO = 0.6f;
+    private static final float BITS_PER_PIXEL = 0.1f;
+    private final int width;
+    private final int height;
+    private final float frameRate;
+
+    RenditionPlan(final int width, final int height, final float frameRate) {
+        this.width = width;
+        this.height = height;
+        this.frameRate = frameRate;
+    }
+
+    /**
+     * @param videoWidth Width after rotation.
+     * @param videoHeight Height after rotation.
+     * @param videoFrameRate 0 if unknown.
+     * @param mimeType Codec of video track.
+     * @return RenditionPlan, or null if video is cheap enough already.
+     */
+    static RenditionPlan create(
+        final int videoWidth,
+        final int videoHeight,
+        final float videoFrameRate,
+        @NonNull final String mimeType,
+        final int screenWidth,
+        final int screenHeight
+    ) {
+        if (videoWidth <= 0 || videoHeight <= 0 || screenWidth <= 0 || screenHeight <= 0) {
+            return null;
+        }
+        final float scale = Math.min(
+            1.0f, getCoverScale(videoWidth, videoHeight, screenWidth, screenHeight)
+        );
+        final int width = Math.min(videoWidth, align(videoWidth * scale));
+        final int height = Math.min(videoHeight, align(videoHeight * scale));
+        final float sourceFrameRate = videoFrameRate > 0 ? videoFrameRate : FALLBACK_FRAME_RATE;
+        final float frameRate = Math.min(MAX_FRAME_RATE, sourceFrameRate);
+        final boolean compatible = MIME_TYPE.equals(mimeType);
+        if (compatible && getCost(width, height, frameRate) >
+            MAX_COST_RATIO * getCost(videoWidth, videoHeight, sourceFrameRate)) {
+            return null;
+        }
+        return new RenditionPlan(width, height, frameRate);
+    }
+
+    /**
+     * @return float Scale which makes video cover screen held the same way.
+     */
+    static float getCoverScale(
+        final int videoWidth,
+        final int videoHeight,
+        final int screenWidth,
+        final int screenHeight
+    ) {
+        return Math.max(
+            (float)Math.min(screenWidth, screenHeight) / Math.min(videoWidth, videoHeight),
+            (float)Math.max(screenWidth, screenHeight) / Math.max(videoWidth, videoHeight)
+        );
+    }
+
+    /**
+     * @return boolean Whether a video of this size is not upscaled on screen held the same way.
+     */
+    static boolean covers(
+        final int videoWidth,
+        final int videoHeight,
+        final int screenWidth,
+        final int screenHeight
+    ) {
+        return getCoverScale(videoWidth, videoHeight, screenWidth, screenHeight) <= 1.0f;
+    }
+
+    /**
+     * Decoding cost is about pixels per second.
+     */
+    static float getCost(final int width, final int height, final float frameRate) {
+        return (float)width * height * (frameRate > 0 ? frameRate : FALLBACK_FRAME_RATE);
+    }
+
+    private static int align(final float size) {
+        return (int)Math.ceil(size / ALIGNMENT) * ALIGNMENT;
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    float getFrameRate() {
+        return frameRate;
+    }
+
+    int getBitRate() {
+        return (int)(width * height * frameRate * BITS_PER_PIXEL);
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return String.format(
+            Locale.US, "%dx%d %.0f fps %s at %d kbps",
+            width, height, frameRate, MIME_TYPE, getBitRate() / 1000
+        );
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright 2019 Alynx Zhou
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.alynx.livewallpaper;
+
+import android.support.annotation.NonNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ *
+ * RenditionStore: renditions of videos as files in app storage, named by their card,
+ * size and frame rate, so the file list is the whole index.
+ *
+ * Engine asks it for the cheapest of source and renditions which still covers screen,
+ * so a rendition made for another screen is only used where it is good enough.
+ *
+ * It is plain Java, so it can be tested with a fake encoder.
+ *
+ */
+class RenditionStore {
+    @SuppressWarnings("unused")
+    private static final String TAG = "RenditionStore";
+    private static final String SUFFIX = ".mp4";
+    // Empty file telling this source needs no rendition, so it is not probed again.
+    private static final String NOT_NEEDED_SUFFIX = ".none";
+    private static final Pattern NAME_PATTERN = Pattern.compile(
+        "(.+)-(\\d+)x(\\d+)-(\\d+)fps\\.mp4"
+    );
+    private final File directory;
+
+    static class Rendition {
+        final int width;
+        final int height;
+        final float frameRate;
+        final File file;
+
+        Rendition(final int width, final int height, final float frameRate, final File file) {
+            this.width = width;
+            this.height = height;
+            this.frameRate = frameRate;
+            this.file = file;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return String.format(
+                Locale.US, "%dx%d %.0f fps %s", width, height, frameRate, file.getName()
+            );
+        }
+    }
+
+    RenditionStore(@NonNull final File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * @param key File safe name of card, for example a hash.
+     */
+    @NonNull
+    List<Rendition> list(@NonNull final String key) {
+        final List<Rendition> renditions = new ArrayList<>();
+        final File[] files = directory.listFiles();
+        if (files == null) {
+            return renditions;
+        }
+        for (File file : files) {
+            final Matcher matcher = NAME_PATTERN.matcher(file.getName());
+            if (matcher.matches() && matcher.group(1).equals(key)) {
+                renditions.add(new Rendition(
+                    Integer.parseInt(matcher.group(2)), Integer.parseInt(matcher.group(3)),
+                    Integer.parseInt(matcher.group(4)), file
+                ));
+            }
+        }
+        return renditions;
+    }
+
+    /**
+     * Encodes a rendition unless it exists, files are only renamed into place when complete,
+     * so a killed encoding never looks like a rendition.
+     */
+    @NonNull
+    Rendition create(
+        @NonNull final String key,
+        @NonNull final RenditionPlan plan,
+        @NonNull final RenditionEncoder encoder
+    ) throws IOException {
+        final int frameRate = Math.round(plan.getFrameRate());
+        final File file = new File(directory, String.format(
+            Locale.US, "%s-%dx%d-%dfps%s", key, plan.getWidth(), plan.getHeight(),
+            frameRate, SUFFIX
+        ));
+        final Rendition rendition = new Rendition(
+            plan.getWidth(), plan.getHeight(), frameRate, file
+        );
+        if (file.isFile() && file.length() > 0) {
+            return rendition;
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Failed to create " + directory);
+        }
+        final File tmpFile = new File(file.getPath() + ".tmp");
+        try {
+            encoder.encode(plan, tmpFile);
+            if (!tmpFile.isFile() || tmpFile.length() == 0) {
+                throw new IOException("Encoder wrote nothing to " + tmpFile);
+            }
+            if (!tmpFile.renameTo(file)) {
+                throw new IOException("Failed to rename " + tmpFile);
+            }
+        } catch (IOException e) {
+            //noinspection ResultOfMethodCallIgnored
+            tmpFile.delete();
+            throw e;
+        }
+        return rendition;
+    }
+
+    /**
+     * @param videoWidth Width of source after rotation.
+     * @param videoHeight Height of source after rotation.
+     * @param videoFrameRate Frame rate of source, 0 if unknown.
+     * @return Rendition cheaper than source which covers screen, or null to play source.
+     */
+    Rendition choose(
+        @NonNull final String key,
+        final int videoWidth,
+        final int videoHeight,
+        final float videoFrameRate,
+        final int screenWidth,
+        final int screenHeight
+    ) {
+        Rendition best = null;
+        float bestCost = RenditionPlan.getCost(videoWidth, videoHeight, videoFrameRate);
+        for (Rendition rendition : list(key)) {
+            final float cost = RenditionPlan.getCost(
+                rendition.width, rendition.height, rendition.frameRate
+            );
+            // A rendition as costly as source still has the broadly supported codec.
+            if (cost <= bestCost && RenditionPlan.covers(
+                rendition.width, rendition.height, screenWidth, screenHeight
+            )) {
+                best = rendition;
+                bestCost = cost;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Remembers that source is already cheap enough or cannot be encoded.
+     */
+    void markNotNeeded(@NonNull final String key) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Failed to create " + directory);
+        }
+        final File file = getNotNeededFile(key);
+        if (!file.isFile() && !file.createNewFile()) {
+            throw new IOException("Failed to create " + file);
+        }
+    }
+
+    boolean isNotNeeded(@NonNull final String key) {
+        return getNotNeededFile(key).isFile();
+    }
+
+    /**
+     * Renditions belong to their card, remove them together.
+     */
+    void remove(@NonNull final String key) {
+        for (Rendition rendition : list(key)) {
+            //noinspection ResultOfMethodCallIgnored
+            rendition.file.delete();
+        }
+        //noinspection ResultOfMethodCallIgnored
+        getNotNeededFile(key).delete();
+    }
+
+    @NonNull
+    private File getNotNeededFile(@NonNull final String key) {
+        return new File(directory, key + NOT_NEEDED_SUFFIX);
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2019 Alynx Zhou
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.alynx.livewallpaper;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.util.DisplayMetrics;
+import android.view.WindowManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ *
+ * RenditionTask: encodes a rendition of an imported video for this screen, in background,
+ * one video at a time, because hardware has few codec instances and wallpaper may be
+ * playing with one.
+ *
+ * Engine picks renditions up the next time it starts a player, so import never waits
+ * for this.
+ *
+ */
+class RenditionTask implements Runnable {
+    @SuppressWarnings("unused")
+    private static final String TAG = "RenditionTask";
+    private static final String DIRECTORY = "renditions";
+    // Not in import pool, one encoding takes minutes and would hold a probe thread.
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor(
+        ThreadTopology.getInstance().newThreadFactory(
+            ThreadPolicy.RENDITION_THREAD_NAME, ThreadPolicy.Role.IMPORT
+        )
+    );
+    private final Context context;
+    private final WallpaperCard wallpaperCard;
+
+    private RenditionTask(
+        @NonNull final Context context,
+        @NonNull final WallpaperCard wallpaperCard
+    ) {
+        this.context = context.getApplicationContext();
+        this.wallpaperCard = wallpaperCard;
+    }
+
+    /**
+     * Called once when a card is first imported, restored cards keep what they got then.
+     * Only external videos get renditions, internal ones are made for phones already.
+     */
+    static void enqueue(@NonNull final Context context, @NonNull final WallpaperCard wallpaperCard) {
+        if (wallpaperCard.getType() != WallpaperCard.Type.EXTERNAL ||
+            wallpaperCard.getKind() != WallpaperCard.Kind.VIDEO) {
+            return;
+        }
+        executor.execute(new RenditionTask(context, wallpaperCard));
+    }
+
+    @NonNull
+    static RenditionStore getStore(@NonNull final Context context) {
+        return new RenditionStore(new File(context.getFilesDir(), DIRECTORY));
+    }
+
+    @NonNull
+    static String getKey(@NonNull final WallpaperCard wallpaperCard) {
+        return PosterCache.hash(wallpaperCard.getCacheKey());
+    }
+
+    /**
+     * Renditions belong to their cards, remove them together.
+     */
+    static void deleteFiles(
+        @NonNull final Context context,
+        @NonNull final WallpaperCard wallpaperCard
+    ) {
+        if (wallpaperCard.getType() == WallpaperCard.Type.EXTERNAL &&
+            wallpaperCard.getKind() == WallpaperCard.Kind.VIDEO) {
+            getStore(context).remove(getKey(wallpaperCard));
+        }
+    }
+
+    @Override
+    public void run() {
+        if (!LWApplication.getCatalog().getSnapshot().contains(wallpaperCard)) {
+            return;
+        }
+        final WindowManager windowManager = (WindowManager)context.getSystemService(
+            Context.WINDOW_SERVICE
+        );
+        if (windowManager == null) {
+            return;
+        }
+        // Frames should cover the screen, which is not the window in multi window.
+        final DisplayMetrics displayMetrics = new DisplayMetrics();
+        windowManager.getDefaultDisplay().getRealMetrics(displayMetrics);
+        final RenditionStore store = getStore(context);
+        final String key = getKey(wallpaperCard);
+        // Probing opens the source and a codec, skip sources checked before.
+        if (store.isNotNeeded(key)) {
+            return;
+        }
+        try {
+            final VideoMetadata metadata = VideoMetadata.obtain(context, wallpaperCard);
+            final String mimeType = MediaCodecRenditionEncoder.getVideoMimeType(
+                context, wallpaperCard.getUri()
+            );
+            if (mimeType == null) {
+                store.markNotNeeded(key);
+                return;
+            }
+            final boolean swap = metadata.getRotation() % 180 != 0;
+            final int videoWidth = swap ? metadata.getHeight() : metadata.getWidth();
+            final int videoHeight = swap ? metadata.getWidth() : metadata.getHeight();
+            if (store.choose(
+                key, videoWidth, videoHeight, metadata.getFrameRate(),
+                displayMetrics.widthPixels, displayMetrics.heightPixels
+            ) != null) {
+                return;
+            }
+            final RenditionPlan plan = RenditionPlan.create(
+                videoWidth, videoHeight, metadata.getFrameRate(), mimeType,
+                displayMetrics.widthPixels, displayMetrics.heightPixels
+            );
+            if (plan == null) {
+                Utils.debug(TAG, String.format(
+                    Locale.US, "%s %dx%d %s needs no rendition",
+                    wallpaperCard.getName(), videoWidth, videoHeight, mimeType
+                ));
+                store.markNotNeeded(key);
+                return;
+            }
+            final long startMs = SystemClock.elapsedRealtime();
+            final RenditionStore.Rendition rendition = store.create(
+                key, plan, new MediaCodecRenditionEncoder(
+                    context, wallpaperCard.getUri(), metadata.getRotation()
+                )
+            );
+            Utils.debug(TAG, String.format(
+                Locale.US, "Encoded %s of %s %dx%d %s in %d ms, %d KB",
+                plan, wallpaperCard.getName(), videoWidth, videoHeight, mimeType,
+                SystemClock.elapsedRealtime() - startMs, rendition.file.length() / 1024
+            ));
+        } catch (IOException e) {
+            // Source still plays, only slower.
+            e.printStackTrace();
+        }
+        // Card may be removed while encoding, after its files were deleted.
+        if (!LWApplication.getCatalog().getSnapshot().contains(wallpaperCard)) {
+            store.remove(key);
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2019 Alynx Zhou
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.alynx.livewallpaper;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Matrix;
+import android.opengl.EGL14;
+import android.opengl.EGLSurface;
+import android.opengl.GLES20;
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Locale;
+
+/**
+ *
+ * ShaderProbe: compile a shader wallpaper and draw one frame of it, away from the wallpaper.
+ *
+ * Import calls it, so a shader which does not compile is never added as a card, and the
+ * frame becomes its thumbnail. It uses its own GLES 2 context on a pbuffer, GLES 2 is what
+ * every renderer can run, so a shader passing here compiles on wallpaper too.
+ *
+ */
+final class ShaderProbe {
+    @SuppressWarnings("unused")
+    private static final String TAG = "ShaderProbe";
+    // Many shaders start from black, a later time makes a better thumbnail.
+    private static final float THUMBNAIL_TIME_S = 2.0f;
+
+    static class Result {
+        // Compiler log or other problem, null if shader is fine.
+        final String error;
+        final Bitmap frame;
+
+        Result(final String error, final Bitmap frame) {
+            this.error = error;
+            this.frame = frame;
+        }
+    }
+
+    private ShaderProbe() {
+    }
+
+    /**
+     * @throws IOException if it cannot be read or is too large for a shader.
+     */
+    @NonNull
+    static String loadSource(
+        @NonNull final Context context,
+        @NonNull final WallpaperCard wallpaperCard
+    ) throws IOException {
+        final InputStream input = wallpaperCard.getType() == WallpaperCard.Type.INTERNAL ?
+            context.getAssets().open(wallpaperCard.getPath()) :
+            context.getContentResolver().openInputStream(wallpaperCard.getUri());
+        if (input == null) {
+            throw new IOException("Cannot open " + wallpaperCard.getUri());
+        }
+        try {
+            return ShaderSource.read(input);
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Called on a worker thread, it makes its own context current there.
+     */
+    @NonNull
+    static Result probe(@NonNull final String source, final int width, final int height) {
+        final String problem = ShaderSource.check(source);
+        if (problem != null) {
+            return new Result(problem, null);
+        }
+        EGLCore eglCore = null;
+        EGLSurface surface = EGL14.EGL_NO_SURFACE;
+        try {
+            eglCore = new EGLCore(2);
+            surface = eglCore.createPbufferSurface(width, height);
+            eglCore.makeCurrent(surface);
+            final long startTime = System.nanoTime();
+            final int program = Utils.linkProgramGLES20(
+                Utils.compileShaderGLES20(GLES20.GL_VERTEX_SHADER, ShaderSource.VERTEX_SOURCE),
+                Utils.compileShaderGLES20(
+                    GLES20.GL_FRAGMENT_SHADER, ShaderSource.wrap(source)
+                )
+            );
+            final long compileNs = System.nanoTime() - startTime;
+            final Bitmap frame = drawFrame(program, width, height);
+            Utils.debug(TAG, String.format(
+                Locale.US, "Shader compiled in %.1f ms, frame of %dx%d drawn in %.1f ms",
+                compileNs / 1e6, width, height, (System.nanoTime() - startTime - compileNs) / 1e6
+            ));
+            final int error = GLES20.glGetError();
+            if (error != GLES20.GL_NO_ERROR) {
+                frame.recycle();
+                return new Result(String.format(Locale.US, "GL error 0x%x", error), null);
+            }
+            return new Result(null, frame);
+        } catch (RuntimeException e) {
+            // Compiler log is the message.
+            e.printStackTrace();
+            return new Result(e.getMessage() != null ? e.getMessage() : e.toString(), null);
+        } finally {
+            if (eglCore != null) {
+                // Deleting context deletes program and shaders.
+                eglCore.makeNothingCurrent();
+                if (surface != EGL14.EGL_NO_SURFACE) {
+                    eglCore.releaseSurface(surface);
+                }
+                eglCore.release();
+            }
+        }
+    }
+
+    @NonNull
+    private static Bitmap drawFrame(final int program, final int width, final int height) {
+        final FloatBuffer vertices = ByteBuffer.allocateDirect(8 * 4).order(
+            ByteOrder.nativeOrder()
+        ).asFloatBuffer();
+        vertices.put(new float[] {-1.0f, -1.0f, 1.0f, -1.0f, -1.0f, 1.0f, 1.0f, 1.0f});
+        vertices.position(0);
+        GLES20.glViewport(0, 0, width, height);
+        GLES20.glUseProgram(program);
+        GLES20.glUniform1f(
+            GLES20.glGetUniformLocation(program, ShaderSource.UNIFORM_TIME), THUMBNAIL_TIME_S
+        );
+        GLES20.glUniform2f(
+            GLES20.glGetUniformLocation(program, ShaderSource.UNIFORM_RESOLUTION), width, height
+        );
+        GLES20.glUniform2f(
+            GLES20.glGetUniformLocation(program, ShaderSource.UNIFORM_OFFSET), 0.0f, 0.0f
+        );
+        final int position = GLES20.glGetAttribLocation(program, ShaderSource.ATTRIBUTE_POSITION);
+        GLES20.glEnableVertexAttribArray(position);
+        GLES20.glVertexAttribPointer(position, 2, GLES20.GL_FLOAT, false, 0, vertices);
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+        GLES20.glDisableVertexAttribArray(position);
+        GLES20.glUseProgram(0);
+        final ByteBuffer pixels = ByteBuffer.allocateDirect(width * height * 4);
+        GLES20.glReadPixels(
+            0, 0, width, height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, pixels
+        );
+        // RGBA bytes are the memory layout of ARGB_8888.
+        final Bitmap bottomUp = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        bottomUp.copyPixelsFromBuffer(pixels);
+        // glReadPixels() gives bottom row first.
+        final Matrix flip = new Matrix();
+        flip.preScale(1.0f, -1.0f);
+        final Bitmap frame = Bitmap.createBitmap(bottomUp, 0, 0, width, height, flip, false);
+        if (frame != bottomUp) {
+            bottomUp.recycle();
+        }
+        return frame;
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2019 Alynx Zhou
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.alynx.livewallpaper;
+
+import android.support.annotation.NonNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ *
+ * ShaderSource: fragment shader wallpapers, as users write them and as GPU gets them.
+ *
+ * Users write a GLSL ES 1.00 fragment shader with a main() setting gl_FragColor, and
+ * get these without declaring them:
+ *
+ *     uniform float u_time;       // Seconds since shown, wraps every hour.
+ *     uniform vec2 u_resolution;  // Render target size in pixels.
+ *     uniform vec2 u_offset;      // Home screen offset, -0.5 to 0.5 on both axes.
+ *     varying vec2 tex_coord;     // 0 to 1, bottom left is 0.
+ *
+ * Both renderers draw it with the same vertex shader, so one file works on GLES 2 and 3.
+ *
+ * It is plain Java, so it can be tested without GPU.
+ *
+ */
+final class ShaderSource {
+    @SuppressWarnings("unused")
+    private static final String TAG = "ShaderSource";
+    static final int MAX_SOURCE_BYTES = 64 * 1024;
+    // Float time loses precision after hours, shaders using sin() start to stutter.
+    static final float TIME_WRAP_S = 3600.0f;
+    static final int DEFAULT_FRAME_RATE = 30;
+    static final String UNIFORM_TIME = "u_time";
+    static final String UNIFORM_RESOLUTION = "u_resolution";
+    static final String UNIFORM_OFFSET = "u_offset";
+    static final String ATTRIBUTE_POSITION = "in_position";
+    // Renderers have their own texture coordinates, shader gets them from position.
+    static final String VERTEX_SOURCE = "#version 100\n" +
+        "attribute vec2 in_position;\n" +
+        "varying vec2 tex_coord;\n" +
+        "void main() {\n" +
+        "    gl_Position = vec4(in_position, 0.0, 1.0);\n" +
+        "    tex_coord = in_position * 0.5 + 0.5;\n" +
+        "}\n";
+    private static final String HEADER = "#ifdef GL_FRAGMENT_PRECISION_HIGH\n" +
+        "precision highp float;\n" +
+        "#else\n" +
+        "precision mediump float;\n" +
+        "#endif\n" +
+        "uniform float u_time;\n" +
+        "uniform vec2 u_resolution;\n" +
+        "uniform vec2 u_offset;\n" +
+        "varying vec2 tex_coord;\n";
+
+    private ShaderSource() {
+    }
+
+    /**
+     * Checks what GPU cannot tell us, or tells in a confusing way.
+     *
+     * @return String Problem of source, or null if GPU should compile it.
+     */
+    static String check(@NonNull final String source) {
+        if (source.length() > MAX_SOURCE_BYTES) {
+            return "Shader is larger than " + MAX_SOURCE_BYTES / 1024 + " KB";
+        }
+        if (!source.contains("main")) {
+            return "Shader has no main()";
+        }
+        for (String line : source.split("\n", -1)) {
+            final String trimmed = line.trim();
+            if (trimmed.startsWith("#version") && !trimmed.matches("#version\\s+100\\b.*")) {
+                return "Only GLSL ES 1.00 shaders are supported, remove " + trimmed;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Version and extension directives must come before any declaration, so they are moved
+     * before our header. Their lines are left empty and a #line directive follows header,
+     * so compile errors have the line numbers of user's file.
+     */
+    @NonNull
+    static String wrap(@NonNull final String source) {
+        final StringBuilder directives = new StringBuilder("#version 100\n");
+        final StringBuilder body = new StringBuilder();
+        for (String line : source.split("\n", -1)) {
+            final String trimmed = line.trim();
+            if (trimmed.startsWith("#version")) {
+                body.append('\n');
+            } else if (trimmed.startsWith("#extension")) {
+                directives.append(trimmed).append('\n');
+                body.append('\n');
+            } else {
+                body.append(line).append('\n');
+            }
+        }
+        return directives.toString() + HEADER + "#line 1\n" + body.toString();
+    }
+
+    /**
+     * Shader files have no magic number, but videos and images have control bytes in
+     * their first KBs and source code has none.
+     *
+     * @return boolean Whether header is text which may be a shader.
+     */
+    static boolean isText(@NonNull final byte[] header, final int length) {
+        if (length <= 0) {
+            return false;
+        }
+        for (int i = 0; i < length; ++i) {
+            final int b = header[i] & 0xff;
+            // Tab, new lines and form feed are fine, UTF-8 bytes are all above 0x7f.
+            if (b < 0x09 || (b > 0x0d && b < 0x20) || b == 0x7f) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @throws IOException if stream is larger than MAX_SOURCE_BYTES.
+     */
+    @NonNull
+    static String read(@NonNull final InputStream input) throws IOException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[4096];
+        int count;
+        while ((count = input.read(buffer)) >= 0) {
+            output.write(buffer, 0, count);
+            if (output.size() > MAX_SOURCE_BYTES) {
+                throw new IOException("Shader is larger than " + MAX_SOURCE_BYTES / 1024 + " KB");
+            }
+        }
+        return output.toString("UTF-8");
+    }
+
+    /**
+     * Procedural content can be drawn at any rate, so it is capped to save power.
+     *
+     * @param maxFrameRate Cap chosen by user, 0 means no cap.
+     * @return int Smallest vsync divider which does not draw faster than cap.
+     */
+    static int getFrameDivider(final float refreshRate, final int maxFrameRate) {
+        if (maxFrameRate <= 0 || refreshRate <= 0) {
+            return 1;
+        }
+        // Tolerate displays reporting 60.0001 Hz.
+        return Math.max(1, (int)Math.ceil(refreshRate / maxFrameRate - 0.01f));
+    }
+
+    /**
+     * @return float Value of u_time, wrapped before float loses precision.
+     */
+    static float getTime(final long elapsedNs) {
+        return (float)((elapsedNs / 1e9) % TIME_WRAP_S);
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2019 Alynx Zhou
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.alynx.livewallpaper;
+
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *
+ * SourceCache: whole small video files kept in memory, so a loop playing for days
+ * does not read storage every few seconds.
+ *
+ * All engines share one budget, home screen and preview may both play. When it is full,
+ * the file loaded first leaves memory. A file which left memory is read from storage
+ * until its player is released, loading it again would undo what trimming freed.
+ *
+ * It is plain Java, so it can be tested with temporary files.
+ *
+ */
+class SourceCache {
+    @SuppressWarnings("unused")
+    private static final String TAG = "SourceCache";
+    // Two engines playing the largest file user allows.
+    static final long DEFAULT_BUDGET_BYTES = 32 * 1024 * 1024;
+    private static SourceCache instance = null;
+    private final long budgetBytes;
+    // Loaded first at head.
+    private final List<FileRange> ranges = new ArrayList<>();
+    private long usedBytes = 0;
+
+    SourceCache(final long budgetBytes) {
+        this.budgetBytes = budgetBytes;
+    }
+
+    @NonNull
+    static synchronized SourceCache getInstance() {
+        if (instance == null) {
+            instance = new SourceCache(DEFAULT_BUDGET_BYTES);
+        }
+        return instance;
+    }
+
+    /**
+     * Called on loader thread, it reads the whole file once.
+     *
+     * Bytes are reserved before reading and the file is read without holding the lock,
+     * because release() and trim() are called on main thread.
+     *
+     * @param maxFileBytes Larger files are not loaded, 0 loads nothing.
+     * @return boolean Whether range is in memory.
+     */
+    boolean load(
+        @NonNull final FileRange range,
+        final long maxFileBytes
+    ) throws IOException {
+        final long length = range.getLength();
+        synchronized (this) {
+            if (range.isInMemory()) {
+                return true;
+            }
+            // Reserved range is being read by another loader.
+            if (range.isMemoryDropped() || length <= 0 || length > maxFileBytes ||
+                length > budgetBytes || ranges.contains(range)) {
+                return false;
+            }
+            trim(budgetBytes - length);
+            ranges.add(range);
+            usedBytes += length;
+        }
+        final ByteBuffer buffer;
+        try {
+            buffer = range.readIntoMemory();
+        } catch (IOException e) {
+            synchronized (this) {
+                if (ranges.remove(range)) {
+                    usedBytes -= length;
+                }
+            }
+            throw e;
+        }
+        synchronized (this) {
+            // Released or trimmed while reading, its bytes were already given back.
+            if (range.isMemoryDropped()) {
+                return false;
+            }
+            range.publishMemory(buffer);
+            return true;
+        }
+    }
+
+    /**
+     * Called when player is released, before closing range.
+     */
+    synchronized void release(@NonNull final FileRange range) {
+        if (ranges.remove(range)) {
+            usedBytes -= range.getLength();
+        }
+        // A loader of released player may still try to load it.
+        range.dropMemory();
+    }
+
+    /**
+     * Drop files loaded first, until at most keepBytes are used.
+     */
+    synchronized void trim(final long keepBytes) {
+        while (usedBytes > keepBytes && !ranges.isEmpty()) {
+            final FileRange range = ranges.remove(0);
+            usedBytes -= range.getLength();
+            range.dropMemory();
+        }
+    }
+
+    synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    long getBudgetBytes() {
+        return budgetBytes;
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2019 Alynx Zhou
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.alynx.livewallpaper;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+
+/**
+ *
+ * StillImageLoader: decode a still image once, only as large as screen needs.
+ *
+ * Image is subsampled by BitmapFactory while decoding, so a photo of many megapixels
+ * never exists in memory at full size, and the bitmap is given to renderer as a texture.
+ *
+ */
+final class StillImageLoader {
+    @SuppressWarnings("unused")
+    private static final String TAG = "StillImageLoader";
+    // Every GPU we run on takes this, larger images are subsampled anyway.
+    static final int MAX_TEXTURE_SIZE = 4096;
+
+    private StillImageLoader() {
+    }
+
+    /**
+     * @return Bitmap which covers screen in both orientations, or null if it cannot be decoded.
+     */
+    static Bitmap load(
+        @NonNull final Context context,
+        @NonNull final WallpaperCard wallpaperCard,
+        final int screenWidth,
+        final int screenHeight
+    ) {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        decode(context, wallpaperCard.getType(), wallpaperCard.getPath(),
+            wallpaperCard.getUri(), options);
+        final int width = options.outWidth;
+        final int height = options.outHeight;
+        if (width <= 0 || height <= 0) {
+            return null;
+        }
+        // Screen may rotate later, one decode is cheaper than decoding again.
+        options.inSampleSize = Math.min(
+            RenderScaleController.getSampleSize(
+                screenWidth, screenHeight, width, height, MAX_TEXTURE_SIZE
+            ),
+            RenderScaleController.getSampleSize(
+                screenHeight, screenWidth, width, height, MAX_TEXTURE_SIZE
+            )
+        );
+        options.inJustDecodeBounds = false;
+        // JPEG has no alpha, half of the memory and texture bandwidth is enough.
+        if ("image/jpeg".equals(options.outMimeType)) {
+            options.inPreferredConfig = Bitmap.Config.RGB_565;
+        }
+        final long startTime = SystemClock.uptimeMillis();
+        final Bitmap bitmap = decode(
+            context, wallpaperCard.getType(), wallpaperCard.getPath(),
+            wallpaperCard.getUri(), options
+        );
+        if (bitmap != null) {
+            Utils.debug(TAG, String.format(
+                Locale.US, "Decoded %dx%d image as %dx%d %s in %d ms",
+                width, height, bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig(),
+                SystemClock.uptimeMillis() - startTime
+            ));
+        }
+        return bitmap;
+    }
+
+    /**
+     * Only reads the header.
+     */
+    static boolean canDecode(@NonNull final Context context, @NonNull final Uri uri) {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        decode(context, WallpaperCard.Type.EXTERNAL, uri.toString(), uri, options);
+        return options.outWidth > 0 && options.outHeight > 0;
+    }
+
+    private static Bitmap decode(
+        @NonNull final Context context,
+        @NonNull final WallpaperCard.Type type,
+        @NonNull final String path,
+        @NonNull final Uri uri,
+        @NonNull final BitmapFactory.Options options
+    ) {
+        InputStream input = null;
+        try {
+            if (type == WallpaperCard.Type.INTERNAL) {
+                input = context.getAssets().open(path);
+            } else {
+                input = context.getContentResolver().openInputStream(uri);
+            }
+            if (input == null) {
+                return null;
+            }
+            return BitmapFactory.decodeStream(input, null, options);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            if (input != null) {
+                try {
+                    input.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,326 @@
+/*
+ * Copyright 2019 Alynx Zhou
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.alynx.livewallpaper;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.SurfaceTexture;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.net.Uri;
+import android.opengl.EGLSurface;
+import android.opengl.GLES11Ext;
+import android.opengl.GLES20;
+import android.opengl.Matrix;
+import android.support.annotation.NonNull;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ *
+ * SurfaceFrameGrabber: decode video frames with MediaCodec into a SurfaceTexture,
+ * and draw them into a small pbuffer, so we get a scaled frame without creating
+ * a full resolution bitmap like MediaMetadataRetriever.getFrameAtTime() does.
+ *
+ * Only used before API 27, newer system has MediaMetadataRetriever.getScaledFrameAtTime().
+ *
+ * SurfaceTexture calls back on main looper when created on a thread without looper,
+ * so never use this on main thread.
+ *
+ */
+class SurfaceFrameGrabber {
+    @SuppressWarnings("unused")
+    private static final String TAG = "SurfaceFrameGrabber";
+    private static final int BYTES_PER_FLOAT = 4;
+    private static final long TIMEOUT_US = 10000;
+    private static final long FRAME_WAIT_MS = 2500;
+    // Give up if decoder does not output anything in this many loops.
+    private static final int MAX_DECODE_LOOPS = 500;
+    private final Object frameLock = new Object();
+    private final int width;
+    private final int height;
+    private final MediaExtractor extractor;
+    private final EGLCore eglCore;
+    private final EGLSurface eglSurface;
+    private final int[] textures = new int[1];
+    private final float[] mvp = new float[16];
+    private final FloatBuffer vertices;
+    private final FloatBuffer texCoords;
+    private final int program;
+    private final SurfaceTexture surfaceTexture;
+    private final Surface surface;
+    private MediaCodec decoder = null;
+    private boolean frameAvailable = false;
+    private boolean decoderUsed = false;
+
+    /**
+     * @param width Output width, after rotation.
+     * @param height Output height, after rotation.
+     * @param rotation Rotation from video metadata.
+     */
+    SurfaceFrameGrabber(
+        @NonNull final Context context,
+        @NonNull final Uri uri,
+        final int width,
+        final int height,
+        final int rotation
+    ) throws IOException {
+        this.width = width;
+        this.height = height;
+        extractor = new MediaExtractor();
+        extractor.setDataSource(context, uri, null);
+        MediaFormat format = null;
+        for (int i = 0; i < extractor.getTrackCount(); ++i) {
+            final MediaFormat trackFormat = extractor.getTrackFormat(i);
+            final String mime = trackFormat.getString(MediaFormat.KEY_MIME);
+            if (mime != null && mime.startsWith("video/")) {
+                extractor.selectTrack(i);
+                format = trackFormat;
+                break;
+            }
+        }
+        if (format == null) {
+            extractor.release();
+            throw new IOException("No video track");
+        }
+
+        eglCore = new EGLCore(2);
+        eglSurface = eglCore.createPbufferSurface(width, height);
+        eglCore.makeCurrent(eglSurface);
+
+        GLES20.glGenTextures(textures.length, textures, 0);
+        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, textures[0]);
+        GLES20.glTexParameteri(
+            GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR
+        );
+        GLES20.glTexParameteri(
+            GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR
+        );
+        GLES20.glTexParameteri(
+            GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE
+        );
+        GLES20.glTexParameteri(
+            GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE
+        );
+        program = Utils.linkProgramGLES20(
+            Utils.compileShaderResourceGLES20(
+                context, GLES20.GL_VERTEX_SHADER, R.raw.vertex_20
+            ),
+            Utils.compileShaderResourceGLES20(
+                context, GLES20.GL_FRAGMENT_SHADER, R.raw.fragment_20
+            )
+        );
+        // Same quad as renderers.
+        final float[] vertexArray = {
+            -1.0f, -1.0f,
+            -1.0f, 1.0f,
+            1.0f, -1.0f,
+            1.0f, 1.0f
+        };
+        vertices = ByteBuffer.allocateDirect(
+            vertexArray.length * BYTES_PER_FLOAT
+        ).order(ByteOrder.nativeOrder()).asFloatBuffer();
+        vertices.put(vertexArray).position(0);
+        final float[] texCoordArray = {
+            0.0f, 1.0f,
+            0.0f, 0.0f,
+            1.0f, 1.0f,
+            1.0f, 0.0f
+        };
+        texCoords = ByteBuffer.allocateDirect(
+            texCoordArray.length * BYTES_PER_FLOAT
+        ).order(ByteOrder.nativeOrder()).asFloatBuffer();
+        texCoords.put(texCoordArray).position(0);
+        // glReadPixels() gives bottom row first, but Bitmap wants top row first,
+        // so flip Y, then rotate like renderers do.
+        Matrix.setIdentityM(mvp, 0);
+        Matrix.scaleM(mvp, 0, 1, -1, 1);
+        if (rotation % 360 != 0) {
+            Matrix.rotateM(mvp, 0, -rotation, 0, 0, 1);
+        }
+
+        surfaceTexture = new SurfaceTexture(textures[0]);
+        surfaceTexture.setOnFrameAvailableListener(new SurfaceTexture.OnFrameAvailableListener() {
+            @Override
+            public void onFrameAvailable(SurfaceTexture surfaceTexture) {
+                synchronized (frameLock) {
+                    frameAvailable = true;
+                    frameLock.notifyAll();
+                }
+            }
+        });
+        surface = new Surface(surfaceTexture);
+        try {
+            decoder = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+            decoder.configure(format, surface, null, 0);
+            decoder.start();
+        } catch (IOException | RuntimeException e) {
+            release();
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * @param timeUs Time of the frame.
+     * @param exact false to take the first frame after previous sync frame, which is faster.
+     * @param outWidth Bitmap width, no larger than grabber width.
+     * @param outHeight Bitmap height, no larger than grabber height.
+     * @return Bitmap, or null if no frame is decoded.
+     */
+    @SuppressWarnings("deprecation")
+    Bitmap grab(
+        final long timeUs,
+        final boolean exact,
+        final int outWidth,
+        final int outHeight
+    ) {
+        extractor.seekTo(timeUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        if (decoderUsed) {
+            decoder.flush();
+        }
+        decoderUsed = true;
+        synchronized (frameLock) {
+            frameAvailable = false;
+        }
+        final ByteBuffer[] inputBuffers = decoder.getInputBuffers();
+        final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        boolean inputDone = false;
+        boolean outputDone = false;
+        boolean rendered = false;
+        int loops = 0;
+        while (!outputDone && loops++ < MAX_DECODE_LOOPS) {
+            if (!inputDone) {
+                final int inputIndex = decoder.dequeueInputBuffer(TIMEOUT_US);
+                if (inputIndex >= 0) {
+                    final int size = extractor.readSampleData(inputBuffers[inputIndex], 0);
+                    if (size < 0) {
+                        decoder.queueInputBuffer(
+                            inputIndex, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM
+                        );
+                        inputDone = true;
+                    } else {
+                        decoder.queueInputBuffer(
+                            inputIndex, 0, size, extractor.getSampleTime(), 0
+                        );
+                        extractor.advance();
+                    }
+                }
+            }
+            final int outputIndex = decoder.dequeueOutputBuffer(info, TIMEOUT_US);
+            if (outputIndex >= 0) {
+                final boolean endOfStream =
+                    (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+                // When exact, skip frames before target, but never skip the last one.
+                final boolean render = info.size != 0 &&
+                    (!exact || info.presentationTimeUs >= timeUs || endOfStream);
+                decoder.releaseOutputBuffer(outputIndex, render);
+                if (render) {
+                    rendered = true;
+                    outputDone = true;
+                } else if (endOfStream) {
+                    outputDone = true;
+                }
+            }
+        }
+        if (!rendered || !awaitFrame()) {
+            return null;
+        }
+        surfaceTexture.updateTexImage();
+        return readFrame(Math.min(outWidth, width), Math.min(outHeight, height));
+    }
+
+    private boolean awaitFrame() {
+        synchronized (frameLock) {
+            final long deadline = System.currentTimeMillis() + FRAME_WAIT_MS;
+            while (!frameAvailable) {
+                final long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    return false;
+                }
+                try {
+                    frameLock.wait(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            frameAvailable = false;
+            return true;
+        }
+    }
+
+    @NonNull
+    private Bitmap readFrame(final int outWidth, final int outHeight) {
+        GLES20.glViewport(0, 0, outWidth, outHeight);
+        GLES20.glClearColor(0.0f, 0.0f, 0.0f, 1.0f);
+        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+        GLES20.glUseProgram(program);
+        GLES20.glUniformMatrix4fv(
+            GLES20.glGetUniformLocation(program, "mvp"), 1, false, mvp, 0
+        );
+        final int positionLocation = GLES20.glGetAttribLocation(program, "in_position");
+        final int texCoordLocation = GLES20.glGetAttribLocation(program, "in_tex_coord");
+        GLES20.glEnableVertexAttribArray(positionLocation);
+        GLES20.glVertexAttribPointer(
+            positionLocation, 2, GLES20.GL_FLOAT, false, 2 * BYTES_PER_FLOAT, vertices
+        );
+        GLES20.glEnableVertexAttribArray(texCoordLocation);
+        GLES20.glVertexAttribPointer(
+            texCoordLocation, 2, GLES20.GL_FLOAT, false, 2 * BYTES_PER_FLOAT, texCoords
+        );
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+        GLES20.glDisableVertexAttribArray(texCoordLocation);
+        GLES20.glDisableVertexAttribArray(positionLocation);
+        GLES20.glUseProgram(0);
+        final ByteBuffer pixels = ByteBuffer.allocateDirect(
+            outWidth * outHeight * 4
+        ).order(ByteOrder.nativeOrder());
+        GLES20.glReadPixels(
+            0, 0, outWidth, outHeight, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, pixels
+        );
+        // RGBA bytes are the same layout as ARGB_8888 in memory.
+        final Bitmap bitmap = Bitmap.createBitmap(outWidth, outHeight, Bitmap.Config.ARGB_8888);
+        pixels.rewind();
+        bitmap.copyPixelsFromBuffer(pixels);
+        return bitmap;
+    }
+
+    void release() {
+        if (decoder != null) {
+            try {
+                decoder.stop();
+            } catch (IllegalStateException e) {
+                // Not started.
+                e.printStackTrace();
+            }
+            decoder.release();
+            decoder = null;
+        }
+        surface.release();
+        surfaceTexture.release();
+        GLES20.glDeleteTextures(textures.length, textures, 0);
+        GLES20.glDeleteProgram(program);
+        eglCore.releaseSurface(eglSurface);
+        eglCore.release();
+        extractor.release();
+    }
+}
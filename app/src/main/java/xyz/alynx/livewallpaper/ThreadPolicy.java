@@ -0,0 +1,120 @@
+/*
+ * Copyright 2019 Alynx Zhou
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.alynx.livewallpaper;
+
+import android.support.annotation.NonNull;
+
+/**
+ *
+ * ThreadPolicy: which threads of our process do what, told by their names, and which
+ * priority each kind gets.
+ *
+ * ExoPlayer runs its playback thread at audio priority, above launcher's UI, which is
+ * too much for a silent wallpaper. With SMOOTH, threads which put frames on screen get
+ * display priority, like system render threads. With YIELD, they run just below normal
+ * apps, so the foreground app wins when both want CPU. Import is background in both.
+ *
+ * Priorities are Linux nice values, lower runs first. Names are compared by prefix,
+ * because system only keeps first 15 characters of thread names.
+ *
+ * It is plain Java, so it can be tested without threads.
+ *
+ */
+final class ThreadPolicy {
+    @SuppressWarnings("unused")
+    private static final String TAG = "ThreadPolicy";
+    // Same values as android.os.Process.THREAD_PRIORITY_*.
+    static final int PRIORITY_DISPLAY = -4;
+    static final int PRIORITY_DEFAULT = 0;
+    static final int PRIORITY_LESS_FAVORABLE = 1;
+    static final int PRIORITY_BACKGROUND = 10;
+    static final int PRIORITY_LOWEST = 19;
+    static final String RENDER_THREAD_NAME = "LWRenderThread";
+    static final String FRAME_THREAD_NAME = "LWFrameDecoder";
+    static final String IMPORT_THREAD_NAME = "LWImport";
+    static final String RENDITION_THREAD_NAME = "LWRendition";
+    private static final int MAX_NAME_LENGTH = 15;
+    private final Mode mode;
+
+    // Saved by index, only append.
+    enum Mode {SMOOTH, YIELD}
+
+    enum Role {
+        // Draws and swaps frames.
+        RENDER,
+        // Feeds decoders or decodes frames ahead of renderer.
+        PLAYBACK,
+        // Codec callbacks in our process, hardware codecs run in media server.
+        CODEC,
+        // Work user waits for without watching, probing, thumbnails of import, encoding.
+        IMPORT
+    }
+
+    ThreadPolicy(@NonNull final Mode mode) {
+        this.mode = mode;
+    }
+
+    /**
+     * @param index Saved index of Mode, or anything else for default.
+     */
+    @NonNull
+    static Mode parseMode(final int index) {
+        final Mode[] modes = Mode.values();
+        return index >= 0 && index < modes.length ? modes[index] : Mode.SMOOTH;
+    }
+
+    /**
+     * @param name Thread name, may be cut to 15 characters.
+     * @return Role, or null for threads this policy leaves alone.
+     */
+    static Role classify(@NonNull final String name) {
+        if (matches(name, RENDER_THREAD_NAME)) {
+            return Role.RENDER;
+        }
+        if (matches(name, FRAME_THREAD_NAME) || matches(name, "ExoPlayerImplInternal:Handler")) {
+            return Role.PLAYBACK;
+        }
+        if (matches(name, "MediaCodec_looper") || matches(name, "CodecLooper")) {
+            return Role.CODEC;
+        }
+        if (matches(name, IMPORT_THREAD_NAME) || matches(name, RENDITION_THREAD_NAME)) {
+            return Role.IMPORT;
+        }
+        return null;
+    }
+
+    private static boolean matches(@NonNull final String name, @NonNull final String prefix) {
+        return name.startsWith(prefix.substring(0, Math.min(prefix.length(), MAX_NAME_LENGTH)));
+    }
+
+    @NonNull
+    Mode getMode() {
+        return mode;
+    }
+
+    int getPriority(@NonNull final Role role) {
+        switch (role) {
+        case RENDER:
+        case PLAYBACK:
+        case CODEC:
+            return mode == Mode.SMOOTH ? PRIORITY_DISPLAY : PRIORITY_LESS_FAVORABLE;
+        case IMPORT:
+            return mode == Mode.SMOOTH ? PRIORITY_BACKGROUND : PRIORITY_LOWEST;
+        }
+        return PRIORITY_DEFAULT;
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2019 Alynx Zhou
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.alynx.livewallpaper;
+
+import android.support.annotation.NonNull;
+
+import java.util.Locale;
+
+/**
+ *
+ * ThreadStat: one thread of our process as /proc/self/task/<tid>/stat shows it,
+ * with its CPU time and nice value.
+ *
+ * It is plain Java, so it can be tested with lines copied from a device.
+ *
+ */
+final class ThreadStat {
+    @SuppressWarnings("unused")
+    private static final String TAG = "ThreadStat";
+    // USER_HZ, the same on every Android kernel.
+    static final int CLOCK_TICKS_PER_SECOND = 100;
+    // Fields after name, counted from state, which is field 3 in proc(5).
+    private static final int UTIME_INDEX = 14 - 3;
+    private static final int STIME_INDEX = 15 - 3;
+    private static final int NICE_INDEX = 19 - 3;
+    final int tid;
+    final String name;
+    final long cpuTicks;
+    final int nice;
+
+    ThreadStat(final int tid, @NonNull final String name, final long cpuTicks, final int nice) {
+        this.tid = tid;
+        this.name = name;
+        this.cpuTicks = cpuTicks;
+        this.nice = nice;
+    }
+
+    /**
+     * Name is inside parentheses and may hold spaces and parentheses itself,
+     * so fields are counted from the last closing one.
+     *
+     * @return ThreadStat, or null if line is not a stat line.
+     */
+    static ThreadStat parse(@NonNull final String line) {
+        final int nameStart = line.indexOf('(');
+        final int nameEnd = line.lastIndexOf(')');
+        if (nameStart <= 0 || nameEnd < nameStart) {
+            return null;
+        }
+        final String[] fields = line.substring(nameEnd + 1).trim().split(" +");
+        if (fields.length <= NICE_INDEX) {
+            return null;
+        }
+        try {
+            return new ThreadStat(
+                Integer.parseInt(line.substring(0, nameStart).trim()),
+                line.substring(nameStart + 1, nameEnd),
+                Long.parseLong(fields[UTIME_INDEX]) + Long.parseLong(fields[STIME_INDEX]),
+                Integer.parseInt(fields[NICE_INDEX])
+            );
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    long getCpuMs() {
+        return cpuTicks * 1000 / CLOCK_TICKS_PER_SECOND;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%d %s nice %d CPU %d ms", tid, name, nice, getCpuMs());
+    }
+}
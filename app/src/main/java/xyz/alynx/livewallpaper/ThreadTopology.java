@@ -0,0 +1,212 @@
+/*
+ * Copyright 2019 Alynx Zhou
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.alynx.livewallpaper;
+
+import android.os.Process;
+import android.support.annotation.NonNull;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *
+ * ThreadTopology: names and priorities of threads in our process, following ThreadPolicy.
+ *
+ * Threads we create get their priority when they start. Threads ExoPlayer and MediaCodec
+ * create are found by name in /proc and changed after player starts, and again when
+ * policy changes. Probes of all imports share one small pool, so importing two folders
+ * does not take twice the cores.
+ *
+ */
+final class ThreadTopology {
+    @SuppressWarnings("unused")
+    private static final String TAG = "ThreadTopology";
+    private static final String TASK_DIRECTORY = "/proc/self/task";
+    static final int IMPORT_THREADS = Math.max(
+        2, Math.min(4, Runtime.getRuntime().availableProcessors() / 2)
+    );
+    private static final long IMPORT_KEEP_ALIVE_SECONDS = 30;
+    private static ThreadTopology instance = null;
+    private volatile ThreadPolicy policy = new ThreadPolicy(ThreadPolicy.Mode.SMOOTH);
+    private ExecutorService importExecutor = null;
+
+    private ThreadTopology() {}
+
+    @NonNull
+    static synchronized ThreadTopology getInstance() {
+        if (instance == null) {
+            instance = new ThreadTopology();
+        }
+        return instance;
+    }
+
+    /**
+     * Policy API, engines set what user chose, others may set it too.
+     */
+    void setMode(@NonNull final ThreadPolicy.Mode mode) {
+        if (policy.getMode() == mode) {
+            return;
+        }
+        Utils.debug(TAG, "Thread policy " + mode);
+        policy = new ThreadPolicy(mode);
+        apply();
+    }
+
+    @NonNull
+    ThreadPolicy.Mode getMode() {
+        return policy.getMode();
+    }
+
+    /**
+     * Called at start of threads we create.
+     */
+    void applyToCurrentThread(@NonNull final ThreadPolicy.Role role) {
+        Process.setThreadPriority(policy.getPriority(role));
+    }
+
+    /**
+     * @param name Prefix of thread names, ThreadPolicy knows it.
+     */
+    @NonNull
+    ThreadFactory newThreadFactory(
+        @NonNull final String name,
+        @NonNull final ThreadPolicy.Role role
+    ) {
+        final AtomicInteger count = new AtomicInteger(0);
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(@NonNull final Runnable runnable) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        applyToCurrentThread(role);
+                        runnable.run();
+                    }
+                }, name + "-" + count.incrementAndGet());
+            }
+        };
+    }
+
+    /**
+     * Threads leave when idle, import is rare.
+     */
+    @NonNull
+    synchronized ExecutorService getImportExecutor() {
+        if (importExecutor == null) {
+            final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                IMPORT_THREADS, IMPORT_THREADS, IMPORT_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                newThreadFactory(ThreadPolicy.IMPORT_THREAD_NAME, ThreadPolicy.Role.IMPORT)
+            );
+            executor.allowCoreThreadTimeOut(true);
+            importExecutor = executor;
+        }
+        return importExecutor;
+    }
+
+    /**
+     * Set priority of every thread policy knows, including ones we did not create.
+     * Reads /proc, so call it when threads come, not every frame.
+     */
+    void apply() {
+        final ThreadPolicy policy = this.policy;
+        for (ThreadStat stat : listThreads()) {
+            final ThreadPolicy.Role role = ThreadPolicy.classify(stat.name);
+            if (role == null) {
+                continue;
+            }
+            final int priority = policy.getPriority(role);
+            if (stat.nice == priority) {
+                continue;
+            }
+            try {
+                Process.setThreadPriority(stat.tid, priority);
+                Utils.debug(TAG, String.format(
+                    Locale.US, "Thread %s %s nice %d to %d",
+                    stat.name, role, stat.nice, priority
+                ));
+            } catch (IllegalArgumentException | SecurityException e) {
+                // Thread is gone.
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * @return ThreadStat of every thread in our process, most CPU time first.
+     */
+    @NonNull
+    List<ThreadStat> listThreads() {
+        final List<ThreadStat> stats = new ArrayList<>();
+        final String[] tids = new File(TASK_DIRECTORY).list();
+        if (tids == null) {
+            return stats;
+        }
+        for (String tid : tids) {
+            try {
+                final BufferedReader reader = new BufferedReader(
+                    new FileReader(new File(TASK_DIRECTORY, tid + "/stat"))
+                );
+                try {
+                    final String line = reader.readLine();
+                    final ThreadStat stat = line != null ? ThreadStat.parse(line) : null;
+                    if (stat != null) {
+                        stats.add(stat);
+                    }
+                } finally {
+                    reader.close();
+                }
+            } catch (IOException e) {
+                // Thread ended while listing.
+            }
+        }
+        Collections.sort(stats, new Comparator<ThreadStat>() {
+            @Override
+            public int compare(ThreadStat a, ThreadStat b) {
+                return Long.compare(b.cpuTicks, a.cpuTicks);
+            }
+        });
+        return stats;
+    }
+
+    /**
+     * For dumpsys, so a user can send what burns CPU without a debugger.
+     */
+    void dump(@NonNull final PrintWriter writer) {
+        writer.println("Thread policy " + policy.getMode());
+        for (ThreadStat stat : listThreads()) {
+            final ThreadPolicy.Role role = ThreadPolicy.classify(stat.name);
+            writer.println(String.format(
+                Locale.US, "  %s%s", stat, role != null ? " " + role : ""
+            ));
+        }
+    }
+}
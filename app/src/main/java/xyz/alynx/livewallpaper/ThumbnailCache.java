@@ -0,0 +1,124 @@
+/*
+ * Copyright 2019 Alynx Zhou
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.alynx.livewallpaper;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.support.annotation.NonNull;
+import android.util.LruCache;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ *
+ * ThumbnailCache: presentation layer of WallpaperCard.
+ *
+ * WallpaperCard only keeps light descriptors, so service can load cards without decoding
+ * any image. Thumbnails are only needed by UI, so they are loaded here when first asked.
+ *
+ * Keys are content fingerprints when cards have them, so the same video has one thumbnail.
+ *
+ */
+class ThumbnailCache {
+    @SuppressWarnings("unused")
+    private static final String TAG = "ThumbnailCache";
+    private static ThumbnailCache instance = null;
+    private final LruCache<String, Bitmap> cache;
+
+    private ThumbnailCache() {
+        // Use 1/8 of heap, sized by bytes.
+        final int maxKB = (int)(Runtime.getRuntime().maxMemory() / 1024 / 8);
+        cache = new LruCache<String, Bitmap>(maxKB) {
+            @Override
+            protected int sizeOf(@NonNull final String key, @NonNull final Bitmap bitmap) {
+                return bitmap.getByteCount() / 1024;
+            }
+        };
+    }
+
+    @NonNull
+    static synchronized ThumbnailCache getInstance() {
+        if (instance == null) {
+            instance = new ThumbnailCache();
+        }
+        return instance;
+    }
+
+    Bitmap get(@NonNull final WallpaperCard wallpaperCard) {
+        return cache.get(wallpaperCard.getCacheKey());
+    }
+
+    void put(@NonNull final WallpaperCard wallpaperCard, @NonNull final Bitmap thumbnail) {
+        cache.put(wallpaperCard.getCacheKey(), thumbnail);
+    }
+
+    void remove(@NonNull final WallpaperCard wallpaperCard) {
+        cache.remove(wallpaperCard.getCacheKey());
+    }
+
+    /**
+     * @param context Activity context or application context.
+     * @param wallpaperCard Card to load thumbnail for.
+     * @return Bitmap thumbnail, or null if failed.
+     *
+     * Cards with a bundled thumbnail decode it from assets, images are decoded small,
+     * flipbooks and animated images decode their first frame, shaders draw one,
+     * others extract a video frame.
+     */
+    Bitmap load(@NonNull final Context context, @NonNull final WallpaperCard wallpaperCard) {
+        Bitmap thumbnail = get(wallpaperCard);
+        if (thumbnail != null) {
+            return thumbnail;
+        }
+        final String thumbnailPath = wallpaperCard.getThumbnailPath();
+        if (thumbnailPath != null) {
+            try {
+                final InputStream inputStream = context.getAssets().open(thumbnailPath);
+                thumbnail = BitmapFactory.decodeStream(inputStream);
+                inputStream.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        } else if (wallpaperCard.getKind() == WallpaperCard.Kind.FLIPBOOK) {
+            thumbnail = ThumbnailExtractor.extractFlipbook(
+                wallpaperCard, ThumbnailExtractor.THUMBNAIL_SIZE
+            );
+        } else if (wallpaperCard.getKind() == WallpaperCard.Kind.IMAGE) {
+            thumbnail = ThumbnailExtractor.extractImage(
+                context, wallpaperCard, ThumbnailExtractor.THUMBNAIL_SIZE
+            );
+        } else if (wallpaperCard.getKind() == WallpaperCard.Kind.ANIMATION) {
+            thumbnail = ThumbnailExtractor.extractAnimation(
+                context, wallpaperCard, ThumbnailExtractor.THUMBNAIL_SIZE
+            );
+        } else if (wallpaperCard.getKind() == WallpaperCard.Kind.SHADER) {
+            thumbnail = ThumbnailExtractor.extractShader(
+                context, wallpaperCard, ThumbnailExtractor.THUMBNAIL_SIZE
+            );
+        } else {
+            thumbnail = new ThumbnailExtractor(context, wallpaperCard.getUri()).extract(
+                ThumbnailExtractor.THUMBNAIL_SIZE
+            );
+        }
+        if (thumbnail != null) {
+            put(wallpaperCard, thumbnail);
+        }
+        return thumbnail;
+    }
+}
@@ -0,0 +1,377 @@
+/*
+ * Copyright 2019 Alynx Zhou
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.alynx.livewallpaper;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.media.MediaMetadataRetriever;
+import android.net.Uri;
+import android.os.Build;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ *
+ * ThumbnailExtractor: get a thumbnail of a video, decoded straight to the target size.
+ *
+ * MediaMetadataRetriever.getFrameAtTime() gives a full resolution frame, for a 4K video that
+ * is a ~33 MB bitmap just to make a 512px thumbnail. On API 27+ we ask retriever for scaled
+ * frames, before that we let MediaCodec decode to a surface and draw it into a small pbuffer.
+ *
+ * First frames are often black or fading in, so we score several candidates with tiny frames
+ * and only decode the best one at target size.
+ *
+ * It blocks, don't use it on main thread.
+ *
+ */
+class ThumbnailExtractor {
+    @SuppressWarnings("unused")
+    private static final String TAG = "ThumbnailExtractor";
+    static final int THUMBNAIL_SIZE = 512;
+    private static final int SCORE_SIZE = 32;
+    // Positions of candidates in duration.
+    private static final float[] CANDIDATES = {0.1f, 0.3f, 0.5f, 0.7f};
+    private final Context context;
+    private final Uri uri;
+    private long liveBytes = 0;
+    private long peakBytes = 0;
+    private long elapsedMs = 0;
+
+    ThumbnailExtractor(@NonNull final Context context, @NonNull final Uri uri) {
+        this.context = context;
+        this.uri = uri;
+    }
+
+    /**
+     * @param maxSize Max length of the longer edge.
+     * @return Bitmap thumbnail, or null if it is not a valid video.
+     */
+    Bitmap extract(final int maxSize) {
+        final long startTime = SystemClock.elapsedRealtime();
+        liveBytes = 0;
+        peakBytes = 0;
+        Bitmap bitmap = null;
+        final MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+        try {
+            retriever.setDataSource(context, uri);
+            final long durationUs = parseLong(
+                retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION)
+            ) * 1000;
+            int width = (int)parseLong(
+                retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_WIDTH)
+            );
+            int height = (int)parseLong(
+                retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_HEIGHT)
+            );
+            final int rotation = (int)parseLong(
+                retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_ROTATION)
+            );
+            if (width <= 0 || height <= 0) {
+                return null;
+            }
+            if (rotation % 180 != 0) {
+                final int swap = width;
+                //noinspection SuspiciousNameCombination
+                width = height;
+                height = swap;
+            }
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O_MR1) {
+                bitmap = extractScaled(retriever, durationUs, width, height, maxSize);
+            } else {
+                // Retriever is only needed for metadata here, release it before decoding.
+                retriever.release();
+                bitmap = extractFromSurface(durationUs, width, height, rotation, maxSize);
+            }
+        } catch (IllegalArgumentException e) {
+            // Assume this is a corrupt video file
+            e.printStackTrace();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (RuntimeException e) {
+            // Assume this is a corrupt video file.
+            e.printStackTrace();
+        } finally {
+            try {
+                retriever.release();
+            } catch (RuntimeException e) {
+                // Ignore failures while cleaning up.
+                e.printStackTrace();
+            }
+        }
+        elapsedMs = SystemClock.elapsedRealtime() - startTime;
+        Utils.debug(TAG, String.format(
+            Locale.US, "Extracted thumbnail of %s in %d ms, peak allocation %d KB",
+            uri, elapsedMs, peakBytes / 1024
+        ));
+        return bitmap;
+    }
+
+    /**
+     * @return long Peak bytes of bitmaps and buffers alive together in last extract().
+     */
+    long getPeakBytes() {
+        return peakBytes;
+    }
+
+    long getElapsedMs() {
+        return elapsedMs;
+    }
+
+    private Bitmap extractScaled(
+        @NonNull final MediaMetadataRetriever retriever,
+        final long durationUs,
+        final int width,
+        final int height,
+        final int maxSize
+    ) {
+        final int[] scoreSize = fitSize(width, height, SCORE_SIZE);
+        long bestTimeUs = 0;
+        double bestScore = -1;
+        for (float candidate : CANDIDATES) {
+            final long timeUs = (long)(durationUs * candidate);
+            final Bitmap frame = retriever.getScaledFrameAtTime(
+                timeUs, MediaMetadataRetriever.OPTION_CLOSEST_SYNC,
+                scoreSize[0], scoreSize[1]
+            );
+            if (frame == null) {
+                continue;
+            }
+            allocated(frame);
+            final double score = score(frame);
+            freed(frame);
+            if (score > bestScore) {
+                bestScore = score;
+                bestTimeUs = timeUs;
+            }
+        }
+        final int[] size = fitSize(width, height, maxSize);
+        final Bitmap bitmap = retriever.getScaledFrameAtTime(
+            bestTimeUs, MediaMetadataRetriever.OPTION_CLOSEST_SYNC, size[0], size[1]
+        );
+        if (bitmap != null) {
+            allocated(bitmap);
+        }
+        return bitmap;
+    }
+
+    private Bitmap extractFromSurface(
+        final long durationUs,
+        final int width,
+        final int height,
+        final int rotation,
+        final int maxSize
+    ) throws IOException {
+        final int[] size = fitSize(width, height, maxSize);
+        final int[] scoreSize = fitSize(width, height, SCORE_SIZE);
+        final SurfaceFrameGrabber grabber = new SurfaceFrameGrabber(
+            context, uri, size[0], size[1], rotation
+        );
+        // Pbuffer holds one RGBA frame.
+        final long pbufferBytes = (long)size[0] * size[1] * 4;
+        liveBytes += pbufferBytes;
+        peakBytes = Math.max(peakBytes, liveBytes);
+        try {
+            long bestTimeUs = 0;
+            double bestScore = -1;
+            for (float candidate : CANDIDATES) {
+                final long timeUs = (long)(durationUs * candidate);
+                final Bitmap frame = grabber.grab(timeUs, false, scoreSize[0], scoreSize[1]);
+                if (frame == null) {
+                    continue;
+                }
+                allocated(frame);
+                final double score = score(frame);
+                freed(frame);
+                if (score > bestScore) {
+                    bestScore = score;
+                    bestTimeUs = timeUs;
+                }
+            }
+            final Bitmap bitmap = grabber.grab(bestTimeUs, true, size[0], size[1]);
+            if (bitmap != null) {
+                allocated(bitmap);
+            }
+            return bitmap;
+        } finally {
+            grabber.release();
+            liveBytes -= pbufferBytes;
+        }
+    }
+
+    private void allocated(@NonNull final Bitmap bitmap) {
+        liveBytes += bitmap.getByteCount();
+        peakBytes = Math.max(peakBytes, liveBytes);
+    }
+
+    private void freed(@NonNull final Bitmap bitmap) {
+        liveBytes -= bitmap.getByteCount();
+        bitmap.recycle();
+    }
+
+    /**
+     * @return double Standard deviation of luma, flat frames like black screens score low.
+     */
+    private static double score(@NonNull final Bitmap frame) {
+        final int w = frame.getWidth();
+        final int h = frame.getHeight();
+        final int[] pixels = new int[w * h];
+        frame.getPixels(pixels, 0, w, 0, 0, w, h);
+        double sum = 0;
+        double squareSum = 0;
+        for (int pixel : pixels) {
+            final double luma = 0.299 * ((pixel >> 16) & 0xff) +
+                0.587 * ((pixel >> 8) & 0xff) +
+                0.114 * (pixel & 0xff);
+            sum += luma;
+            squareSum += luma * luma;
+        }
+        final double mean = sum / pixels.length;
+        return Math.sqrt(Math.max(0, squareSum / pixels.length - mean * mean));
+    }
+
+    /**
+     * Flipbook frames are plain pixels, so the first one is decoded without any retriever.
+     *
+     * @return Bitmap thumbnail, or null if it is not a valid flipbook.
+     */
+    static Bitmap extractFlipbook(@NonNull final WallpaperCard wallpaperCard, final int maxSize) {
+        final FlipbookFile flipbook;
+        try {
+            flipbook = FlipbookFile.open(new File(wallpaperCard.getUri().getPath()));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+        final int[] argb = new int[flipbook.getWidth() * flipbook.getHeight()];
+        flipbook.decodeFrame(0, argb);
+        flipbook.close();
+        final Bitmap frame = Bitmap.createBitmap(
+            argb, flipbook.getWidth(), flipbook.getHeight(), Bitmap.Config.ARGB_8888
+        );
+        final int[] size = fitSize(flipbook.getWidth(), flipbook.getHeight(), maxSize);
+        final Bitmap thumbnail = Bitmap.createScaledBitmap(frame, size[0], size[1], true);
+        if (thumbnail != frame) {
+            frame.recycle();
+        }
+        return thumbnail;
+    }
+
+    /**
+     * First frame of an animated image, decoded the same way as wallpaper plays it.
+     *
+     * @return Bitmap thumbnail, or null if it is not an image we can stream.
+     */
+    static Bitmap extractAnimation(
+        @NonNull final Context context,
+        @NonNull final WallpaperCard wallpaperCard,
+        final int maxSize
+    ) {
+        final Bitmap frame;
+        try {
+            final FrameSource source = FrameSourcePlayer.openSource(context, wallpaperCard);
+            try {
+                final int[] argb = new int[source.getWidth() * source.getHeight()];
+                source.readFrame(argb);
+                frame = Bitmap.createBitmap(
+                    argb, source.getWidth(), source.getHeight(), Bitmap.Config.ARGB_8888
+                );
+            } finally {
+                source.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+        final int[] size = fitSize(frame.getWidth(), frame.getHeight(), maxSize);
+        final Bitmap thumbnail = Bitmap.createScaledBitmap(frame, size[0], size[1], true);
+        if (thumbnail != frame) {
+            frame.recycle();
+        }
+        return thumbnail;
+    }
+
+    /**
+     * Still images are subsampled while decoding, so large photos are cheap.
+     *
+     * @return Bitmap thumbnail, or null if it cannot be decoded.
+     */
+    static Bitmap extractImage(
+        @NonNull final Context context,
+        @NonNull final WallpaperCard wallpaperCard,
+        final int maxSize
+    ) {
+        final Bitmap image = StillImageLoader.load(context, wallpaperCard, maxSize, maxSize);
+        if (image == null) {
+            return null;
+        }
+        final int[] size = fitSize(image.getWidth(), image.getHeight(), maxSize);
+        final Bitmap thumbnail = Bitmap.createScaledBitmap(image, size[0], size[1], true);
+        if (thumbnail != image) {
+            image.recycle();
+        }
+        return thumbnail;
+    }
+
+    /**
+     * Shader has no frame to extract, probe draws one when it checks the shader.
+     *
+     * @return Bitmap thumbnail, or null if shader cannot be read or compiled.
+     */
+    static Bitmap extractShader(
+        @NonNull final Context context,
+        @NonNull final WallpaperCard wallpaperCard,
+        final int maxSize
+    ) {
+        final String source;
+        try {
+            source = ShaderProbe.loadSource(context, wallpaperCard);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+        // Same aspect as bundled thumbnail, so cards line up.
+        return ShaderProbe.probe(source, maxSize, maxSize * 3 / 4).frame;
+    }
+
+    @NonNull
+    static int[] fitSize(final int width, final int height, final int maxSize) {
+        final int max = Math.max(width, height);
+        if (max <= maxSize) {
+            return new int[] {width, height};
+        }
+        final float scale = (float)maxSize / max;
+        return new int[] {
+            Math.max(1, Math.round(scale * width)),
+            Math.max(1, Math.round(scale * height))
+        };
+    }
+
+    private static long parseLong(final String value) {
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
@@ -17,68 +17,163 @@
 package xyz.alynx.livewallpaper;
 
 import android.content.Context;
-import android.graphics.Bitmap;
-import android.media.MediaMetadataRetriever;
+import android.content.Intent;
+import android.content.UriPermission;
 import android.net.Uri;
 import android.opengl.GLES20;
 import android.opengl.GLES30;
+import android.os.Build;
+import android.os.ParcelFileDescriptor;
+import android.os.PowerManager;
 import android.support.annotation.NonNull;
 import android.util.Log;
+import android.view.Surface;
 
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.List;
 
 class Utils {
     @SuppressWarnings("unused")
     private static final String TAG = "Utils";
+    private static final String TREE_SEGMENT = "tree";
 
     /**
-     * createVideoThumbnailFromUri
+     * takeReadPermission
      * @param context Activity context or application context.
-     * @param uri Video uri.
-     * @return Bitmap thumbnail
+     * @param uri Document uri.
+     * @return boolean true if we can read it.
      *
-     * Hacked from ThumbnailUtils.createVideoThumbnail()'s code.
+     * Documents imported from a folder are granted by the tree uri, so asking persistable
+     * permission for themselves throws SecurityException, but they are still readable.
      */
-    static Bitmap createVideoThumbnailFromUri(
-        @NonNull final Context context,
-        @NonNull final  Uri uri
+    static boolean takeReadPermission(@NonNull final Context context, @NonNull final Uri uri) {
+        try {
+            context.getContentResolver().takePersistableUriPermission(
+                uri, Intent.FLAG_GRANT_READ_URI_PERMISSION
+            );
+            return true;
+        } catch (SecurityException e) {
+            try {
+                final ParcelFileDescriptor pfd = context.getContentResolver().openFileDescriptor(
+                    uri, "r"
+                );
+                if (pfd == null) {
+                    return false;
+                }
+                pfd.close();
+                return true;
+            } catch (IOException | SecurityException ex) {
+                ex.printStackTrace();
+                return false;
+            }
+        }
+    }
+
+    static void releaseReadPermission(@NonNull final Context context, @NonNull final Uri uri) {
+        try {
+            context.getContentResolver().releasePersistableUriPermission(
+                uri, Intent.FLAG_GRANT_READ_URI_PERMISSION
+            );
+        } catch (SecurityException e) {
+            // Granted by a tree uri, nothing to release.
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * releaseUnusedTreePermissions
+     * @param context Activity context or application context.
+     *
+     * Folder imports hold a grant of their tree, release it when no card is under it anymore,
+     * because system limits how many grants an app persists. Calls into system, so don't
+     * call it on main thread.
+     */
+    static void releaseUnusedTreePermissions(@NonNull final Context context) {
+        final List<WallpaperCard> cards = LWApplication.getCatalog().getSnapshot().getCards();
+        for (UriPermission permission : context.getContentResolver().getPersistedUriPermissions()) {
+            final Uri treeUri = permission.getUri();
+            final List<String> treeSegments = treeUri.getPathSegments();
+            if (treeSegments.size() != 2 || !TREE_SEGMENT.equals(treeSegments.get(0)) ||
+                FolderImportTask.isImporting(treeUri)) {
+                continue;
+            }
+            boolean used = false;
+            for (WallpaperCard card : cards) {
+                final Uri uri = card.getUri();
+                if (uri == null || !treeUri.getAuthority().equals(uri.getAuthority())) {
+                    continue;
+                }
+                // Documents of a tree look like tree/<tree id>/document/<document id>.
+                final List<String> segments = uri.getPathSegments();
+                if (segments.size() > 2 && TREE_SEGMENT.equals(segments.get(0)) &&
+                    treeSegments.get(1).equals(segments.get(1))) {
+                    used = true;
+                    break;
+                }
+            }
+            if (!used) {
+                releaseReadPermission(context, treeUri);
+            }
+        }
+    }
+
+    /**
+     * setSurfaceFrameRate
+     * @param frameRate Frames per second, 0 clears hint.
+     * @param compatibility One of FrameRatePolicy.COMPATIBILITY_*.
+     * @return boolean false if system does not support it or refuses it.
+     *
+     * Surface.setFrameRate() is API 30, we compile against older SDK, so call it by reflection.
+     */
+    static boolean setSurfaceFrameRate(
+        @NonNull final Surface surface,
+        final float frameRate,
+        final int compatibility
     ) {
-        Bitmap bitmap = null;
-        final MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+        if (Build.VERSION.SDK_INT < 30) {
+            return false;
+        }
         try {
-            retriever.setDataSource(context, uri);
-            bitmap = retriever.getFrameAtTime(-1);
-        } catch (IllegalArgumentException e) {
-            // Assume this is a corrupt video file
+            final Method method = Surface.class.getMethod(
+                "setFrameRate", float.class, int.class
+            );
+            method.invoke(surface, frameRate, compatibility);
+            return true;
+        } catch (NoSuchMethodException | IllegalAccessException e) {
             e.printStackTrace();
-        } catch (RuntimeException e) {
-            // Assume this is a corrupt video file.
+            return false;
+        } catch (InvocationTargetException e) {
+            // Surface is released or arguments are invalid.
             e.printStackTrace();
-        } finally {
-            try {
-                retriever.release();
-            } catch (RuntimeException e) {
-                // Ignore failures while cleaning up.
-                e.printStackTrace();
-            }
+            return false;
         }
-        if (bitmap == null) {
-            return null;
+    }
+
+    /**
+     * getThermalStatus
+     * @return int One of QualityPolicy.THERMAL_*, THERMAL_NONE if system does not report it.
+     *
+     * PowerManager.getCurrentThermalStatus() is API 29, call it by reflection too.
+     */
+    static int getThermalStatus(@NonNull final PowerManager powerManager) {
+        if (Build.VERSION.SDK_INT < 29) {
+            return QualityPolicy.THERMAL_NONE;
         }
-        // Scale down the bitmap if it's too large.
-        final int width = bitmap.getWidth();
-        final int height = bitmap.getHeight();
-        final int max = Math.max(width, height);
-        if (max > 512) {
-            final float scale = 512f / max;
-            final int w = Math.round(scale * width);
-            final int h = Math.round(scale * height);
-            bitmap = Bitmap.createScaledBitmap(bitmap, w, h, true);
+        try {
+            final Method method = PowerManager.class.getMethod("getCurrentThermalStatus");
+            return (Integer)method.invoke(powerManager);
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            e.printStackTrace();
+            return QualityPolicy.THERMAL_NONE;
+        } catch (InvocationTargetException e) {
+            e.printStackTrace();
+            return QualityPolicy.THERMAL_NONE;
         }
-        return bitmap;
     }
 
     static int compileShaderResourceGLES30(
@@ -99,7 +194,13 @@ class Utils {
             e.printStackTrace();
             return 0;
         }
-        final String shaderSource = stringBuilder.toString();
+        return compileShaderGLES30(shaderType, stringBuilder.toString());
+    }
+
+    static int compileShaderGLES30(
+        final int shaderType,
+        @NonNull final String shaderSource
+    ) throws RuntimeException {
         int shader = GLES30.glCreateShader(shaderType);
         if (shader == 0) {
             throw new RuntimeException("Failed to create shader");
@@ -155,7 +256,13 @@ class Utils {
             e.printStackTrace();
             return 0;
         }
-        final String shaderSource = stringBuilder.toString();
+        return compileShaderGLES20(shaderType, stringBuilder.toString());
+    }
+
+    static int compileShaderGLES20(
+        final int shaderType,
+        @NonNull final String shaderSource
+    ) throws RuntimeException {
         int shader = GLES20.glCreateShader(shaderType);
         if (shader == 0) {
             throw new RuntimeException("Failed to create shader");
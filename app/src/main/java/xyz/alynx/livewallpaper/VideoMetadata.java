@@ -0,0 +1,237 @@
+/*
+ * Copyright 2019 Alynx Zhou
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.alynx.livewallpaper;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.res.AssetFileDescriptor;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.media.MediaMetadataRetriever;
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ *
+ * VideoMetadata: the part of a video's metadata the renderer needs.
+ *
+ * It is small and immutable, so it is cached in WallpaperCard and SharedPreferences,
+ * and service does not need to start a MediaMetadataRetriever every time.
+ * Cards with the same content fingerprint share one record in memory.
+ *
+ */
+class VideoMetadata {
+    @SuppressWarnings("unused")
+    private static final String TAG = "VideoMetadata";
+    private final int width;
+    private final int height;
+    private final int rotation;
+    // Nominal frames per second from container, 0 if unknown.
+    private final float frameRate;
+    // 0 if unknown.
+    private final long durationMs;
+    // Keyed by WallpaperCard.getCacheKey().
+    private static final Map<String, VideoMetadata> sharedCache = new ConcurrentHashMap<>();
+
+    VideoMetadata(
+        final int width,
+        final int height,
+        final int rotation,
+        final float frameRate,
+        final long durationMs
+    ) {
+        this.width = width;
+        this.height = height;
+        this.rotation = rotation;
+        this.frameRate = frameRate;
+        this.durationMs = durationMs;
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    int getRotation() {
+        return rotation;
+    }
+
+    float getFrameRate() {
+        return frameRate;
+    }
+
+    long getDurationMs() {
+        return durationMs;
+    }
+
+    /**
+     * @return VideoMetadata of card, from card itself, shared cache or extracting.
+     *
+     * Result is also saved into card and shared cache.
+     */
+    @NonNull
+    static VideoMetadata obtain(
+        @NonNull final Context context,
+        @NonNull final WallpaperCard wallpaperCard
+    ) throws IOException {
+        VideoMetadata metadata = wallpaperCard.getMetadata();
+        if (metadata == null) {
+            metadata = sharedCache.get(wallpaperCard.getCacheKey());
+        }
+        if (metadata == null) {
+            metadata = extract(context, wallpaperCard);
+        }
+        wallpaperCard.setMetadata(metadata);
+        sharedCache.put(wallpaperCard.getCacheKey(), metadata);
+        return metadata;
+    }
+
+    @NonNull
+    static VideoMetadata extract(
+        @NonNull final Context context,
+        @NonNull final WallpaperCard wallpaperCard
+    ) throws IOException {
+        final MediaMetadataRetriever mmr = new MediaMetadataRetriever();
+        try {
+            switch (wallpaperCard.getType()) {
+            case INTERNAL:
+                final AssetFileDescriptor afd = context.getAssets().openFd(wallpaperCard.getPath());
+                mmr.setDataSource(
+                    afd.getFileDescriptor(),
+                    afd.getStartOffset(),
+                    afd.getDeclaredLength()
+                );
+                afd.close();
+                break;
+            case EXTERNAL:
+                mmr.setDataSource(context, wallpaperCard.getUri());
+                break;
+            }
+            final String rotation = mmr.extractMetadata(
+                MediaMetadataRetriever.METADATA_KEY_VIDEO_ROTATION
+            );
+            final String width = mmr.extractMetadata(
+                MediaMetadataRetriever.METADATA_KEY_VIDEO_WIDTH
+            );
+            final String height = mmr.extractMetadata(
+                MediaMetadataRetriever.METADATA_KEY_VIDEO_HEIGHT
+            );
+            final String duration = mmr.extractMetadata(
+                MediaMetadataRetriever.METADATA_KEY_DURATION
+            );
+            return new VideoMetadata(
+                Integer.parseInt(width),
+                Integer.parseInt(height),
+                Integer.parseInt(rotation),
+                extractFrameRate(context, wallpaperCard),
+                duration != null ? Long.parseLong(duration) : 0
+            );
+        } catch (RuntimeException e) {
+            // setDataSource() and parseInt() throw unchecked exceptions for broken files.
+            throw new IOException(e);
+        } finally {
+            mmr.release();
+        }
+    }
+
+    /**
+     * MediaMetadataRetriever has no frame rate before API 28, read it from container.
+     *
+     * @return float Frames per second, 0 if container does not tell.
+     */
+    private static float extractFrameRate(
+        @NonNull final Context context,
+        @NonNull final WallpaperCard wallpaperCard
+    ) {
+        final MediaExtractor extractor = new MediaExtractor();
+        try {
+            switch (wallpaperCard.getType()) {
+            case INTERNAL:
+                final AssetFileDescriptor afd = context.getAssets().openFd(wallpaperCard.getPath());
+                extractor.setDataSource(
+                    afd.getFileDescriptor(),
+                    afd.getStartOffset(),
+                    afd.getDeclaredLength()
+                );
+                afd.close();
+                break;
+            case EXTERNAL:
+                extractor.setDataSource(context, wallpaperCard.getUri(), null);
+                break;
+            }
+            for (int i = 0; i < extractor.getTrackCount(); ++i) {
+                final MediaFormat format = extractor.getTrackFormat(i);
+                final String mime = format.getString(MediaFormat.KEY_MIME);
+                if (mime == null || !mime.startsWith("video/") ||
+                    !format.containsKey(MediaFormat.KEY_FRAME_RATE)) {
+                    continue;
+                }
+                // Some extractors store it as float, docs say integer.
+                try {
+                    return format.getInteger(MediaFormat.KEY_FRAME_RATE);
+                } catch (ClassCastException e) {
+                    return format.getFloat(MediaFormat.KEY_FRAME_RATE);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // Frame rate is only a hint, never fail for it.
+            e.printStackTrace();
+        } finally {
+            extractor.release();
+        }
+        return 0;
+    }
+
+    void save(@NonNull final SharedPreferences.Editor prefEditor) {
+        prefEditor.putInt("videoWidth", width);
+        prefEditor.putInt("videoHeight", height);
+        prefEditor.putInt("videoRotation", rotation);
+        prefEditor.putFloat("videoFrameRate", frameRate);
+        prefEditor.putLong("videoDurationMs", durationMs);
+    }
+
+    static void clear(@NonNull final SharedPreferences.Editor prefEditor) {
+        prefEditor.remove("videoWidth");
+        prefEditor.remove("videoHeight");
+        prefEditor.remove("videoRotation");
+        prefEditor.remove("videoFrameRate");
+        prefEditor.remove("videoDurationMs");
+    }
+
+    /**
+     * @return VideoMetadata saved by save(), or null if there is no complete record.
+     */
+    static VideoMetadata load(@NonNull final SharedPreferences pref) {
+        final int width = pref.getInt("videoWidth", 0);
+        final int height = pref.getInt("videoHeight", 0);
+        // Records saved before frame rate and duration were added are extracted again.
+        if (width <= 0 || height <= 0 || !pref.contains("videoFrameRate") ||
+            !pref.contains("videoDurationMs")) {
+            return null;
+        }
+        return new VideoMetadata(
+            width, height, pref.getInt("videoRotation", 0),
+            pref.getFloat("videoFrameRate", 0), pref.getLong("videoDurationMs", 0)
+        );
+    }
+}
@@ -16,7 +16,6 @@
 
 package xyz.alynx.livewallpaper;
 
-import android.graphics.Bitmap;
 import android.net.Uri;
 import android.support.annotation.NonNull;
 
@@ -27,7 +26,10 @@ import java.util.Objects;
 
 /**
  *
- * WallpaperCard: saving wallpaper info (name, path, type, thumbnail) to display or play.
+ * WallpaperCard: saving wallpaper info (name, path, type, kind) to display or play.
+ *
+ * It only holds light descriptors so it is cheap to create in service,
+ * thumbnails are loaded lazily by ThumbnailCache.
  *
  */
 
@@ -39,26 +41,69 @@ public class WallpaperCard {
     // So actually path is a path.
     private String path;
     private Uri uri;
-    private final Bitmap thumbnail;
-    private boolean valid = true;
+    // Asset path of a bundled thumbnail, null means extracting from video.
+    private final String thumbnailPath;
+    // Hash of size and sampled content, the same file from different uris shares it.
+    // Null for cards imported before fingerprinting or bundled ones.
+    private volatile String fingerprint = null;
+    // Filled when someone first reads metadata, so we only extract once.
+    private volatile VideoMetadata metadata = null;
+    // Found at import, no working hardware decoder plays it.
+    private volatile boolean softwareDecode = false;
+    // Engine thread marks card invalid while UI thread reads it.
+    private volatile boolean valid = true;
     private final Type type;
+    private final Kind kind;
 
     // INTERNAL means this video is bundled into app assets.
     // So it cannot be removed.
     public enum Type {INTERNAL, EXTERNAL}
 
+    // What the file holds, VIDEO is played by a decoder,
+    // FLIPBOOK is a FlipbookFile in app storage converted from a video,
+    // ANIMATION is an animated GIF, WebP or PNG decoded by FrameSourcePlayer,
+    // IMAGE is a still image, drawn only when offset or surface changes.
+    public enum Kind {VIDEO, FLIPBOOK, ANIMATION, IMAGE, SHADER}
+
     WallpaperCard(
         @NonNull final String name,
         @NonNull final String path,
         @NonNull final Uri uri,
         @NonNull final Type type,
-        final Bitmap thumbnail
+        final String thumbnailPath
+    ) {
+        this(name, path, uri, type, Kind.VIDEO, thumbnailPath);
+    }
+
+    WallpaperCard(
+        @NonNull final String name,
+        @NonNull final String path,
+        @NonNull final Uri uri,
+        @NonNull final Type type,
+        @NonNull final Kind kind,
+        final String thumbnailPath
     ) {
         setName(name);
         setPath(path);
         setUri(uri);
         this.type = type;
-        this.thumbnail = thumbnail;
+        this.kind = kind;
+        this.thumbnailPath = thumbnailPath;
+    }
+
+    /**
+     * @return Kind parsed from saved name, VIDEO for null or names of newer versions.
+     */
+    @NonNull
+    static Kind parseKind(final String name) {
+        if (name != null) {
+            for (Kind kind : Kind.values()) {
+                if (kind.name().equals(name)) {
+                    return kind;
+                }
+            }
+        }
+        return Kind.VIDEO;
     }
 
     @NonNull
@@ -88,8 +133,41 @@ public class WallpaperCard {
         this.uri = uri;
     }
 
-    Bitmap getThumbnail() {
-        return thumbnail;
+    String getThumbnailPath() {
+        return thumbnailPath;
+    }
+
+    String getFingerprint() {
+        return fingerprint;
+    }
+
+    void setFingerprint(final String fingerprint) {
+        this.fingerprint = fingerprint;
+    }
+
+    boolean isSoftwareDecode() {
+        return softwareDecode;
+    }
+
+    void setSoftwareDecode(final boolean softwareDecode) {
+        this.softwareDecode = softwareDecode;
+    }
+
+    /**
+     * @return String key for caches, fingerprint if we have one, otherwise path.
+     */
+    @NonNull
+    String getCacheKey() {
+        final String fingerprint = getFingerprint();
+        return fingerprint != null ? fingerprint : getPath();
+    }
+
+    VideoMetadata getMetadata() {
+        return metadata;
+    }
+
+    void setMetadata(final VideoMetadata metadata) {
+        this.metadata = metadata;
     }
 
     /**
@@ -102,6 +180,17 @@ public class WallpaperCard {
         return Objects.equals(getPath(), card.getPath());
     }
 
+    /**
+     * @param card WallpaperCard to compare.
+     * @return boolean true if both have fingerprints and they are equal.
+     *
+     * Paths may differ, for example a video picked from Downloads and from gallery.
+     */
+    boolean isSameContent(@NonNull final WallpaperCard card) {
+        final String fingerprint = getFingerprint();
+        return fingerprint != null && fingerprint.equals(card.getFingerprint());
+    }
+
     /**
      * @return boolean true for removable, false for not.
      *
@@ -133,10 +222,18 @@ public class WallpaperCard {
         return type;
     }
 
+    @NonNull
+    Kind getKind() {
+        return kind;
+    }
+
     JSONObject toJSON() throws JSONException {
         JSONObject json = new JSONObject();
         json.put("name", getName());
         json.put("path", getPath());
+        if (getFingerprint() != null) {
+            json.put("fingerprint", getFingerprint());
+        }
         switch (getType()) {
         case INTERNAL:
             json.put("type", "INTERNAL");
@@ -145,6 +242,27 @@ public class WallpaperCard {
             json.put("type", "EXTERNAL");
             break;
         }
+        json.put("kind", getKind().name());
+        if (isSoftwareDecode()) {
+            json.put("softwareDecode", true);
+        }
         return json;
     }
+
+    /**
+     * @param json Saved by toJSON(), only EXTERNAL cards are saved.
+     * @return WallpaperCard with what import found, so restoring does not probe again.
+     */
+    @NonNull
+    static WallpaperCard fromJSON(@NonNull final JSONObject json) throws JSONException {
+        final String path = json.getString("path");
+        final WallpaperCard card = new WallpaperCard(
+            json.getString("name"), path, Uri.parse(path), Type.EXTERNAL,
+            parseKind(json.optString("kind", null)), null
+        );
+        // Cards saved by older versions have no fingerprint, they use path as cache key.
+        card.setFingerprint(json.optString("fingerprint", null));
+        card.setSoftwareDecode(json.optBoolean("softwareDecode", false));
+        return card;
+    }
 }
@@ -0,0 +1,457 @@
+/*
+ * Copyright 2019 Alynx Zhou
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.alynx.livewallpaper;
+
+import android.support.annotation.NonNull;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ *
+ * WebpDecoder: stream frames of an animated WebP, or the only frame of a still one.
+ *
+ * Only the RIFF container is parsed here, every ANMF frame is wrapped into a still WebP
+ * and given to a BitstreamDecoder, which is the platform decoder on Android, then drawn
+ * on canvas with its offset, blending and disposal. Wrapping buffers grow to the largest
+ * frame once and are reused.
+ *
+ * It is plain Java, a test can give it any BitstreamDecoder.
+ *
+ */
+class WebpDecoder implements FrameSource {
+    @SuppressWarnings("unused")
+    private static final String TAG = "WebpDecoder";
+    private static final int RIFF = 0x52494646;
+    private static final int WEBP = 0x57454250;
+    private static final int VP8 = 0x56503820;
+    private static final int VP8L = 0x5650384c;
+    private static final int VP8X = 0x56503858;
+    private static final int ANMF = 0x414e4d46;
+    private static final int ALPH = 0x414c5048;
+    private static final int FLAG_ANIMATION = 0x02;
+    private static final int FLAG_ALPHA = 0x10;
+    private static final int FRAME_HEADER_SIZE = 16;
+    private final Opener opener;
+    private final BitstreamDecoder bitstreamDecoder;
+    private InputStream input = null;
+    private int width = 0;
+    private int height = 0;
+    private boolean animated = false;
+    private int frameCount = 0;
+    // Bytes of RIFF payload not read yet.
+    private long riffRemaining = 0;
+    // Chunk header of a still image, read while looking for canvas size.
+    private int stillType = 0;
+    private int stillSize = 0;
+    // Flags of an extended still image, which tell decoder what chunks follow.
+    private int extendedFlags = 0;
+    private final byte[] header = new byte[FRAME_HEADER_SIZE];
+    private byte[] payload = new byte[0];
+    private byte[] wrapped = new byte[0];
+    private final int[] framePixels;
+    private int disposeX = 0;
+    private int disposeY = 0;
+    private int disposeWidth = 0;
+    private int disposeHeight = 0;
+    private boolean dispose = false;
+    private int frameIndex = 0;
+
+    interface BitstreamDecoder {
+        /**
+         * @param webp A still WebP file in webp[0, length).
+         * @param argb Receives width * height pixels, not premultiplied.
+         * @throws IOException if it cannot be decoded or has another size.
+         */
+        void decode(
+            @NonNull final byte[] webp,
+            final int length,
+            final int width,
+            final int height,
+            @NonNull final int[] argb
+        ) throws IOException;
+    }
+
+    /**
+     * @throws IOException if it is not a WebP or too large.
+     */
+    WebpDecoder(
+        @NonNull final Opener opener,
+        @NonNull final BitstreamDecoder bitstreamDecoder
+    ) throws IOException {
+        this.opener = opener;
+        this.bitstreamDecoder = bitstreamDecoder;
+        open();
+        framePixels = new int[width * height];
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public int getFrameCount() {
+        return frameCount;
+    }
+
+    @Override
+    public int readFrame(@NonNull final int[] argb) throws IOException {
+        if (dispose) {
+            for (int y = disposeY; y < disposeY + disposeHeight; ++y) {
+                final int start = y * width + disposeX;
+                Arrays.fill(argb, start, start + disposeWidth, 0);
+            }
+            dispose = false;
+        }
+        if (!animated) {
+            if (frameIndex > 0) {
+                rewind(argb);
+            }
+            readStill(argb);
+            frameCount = 1;
+            ++frameIndex;
+            return DEFAULT_DELAY_MS;
+        }
+        while (true) {
+            if (riffRemaining < 8 || !readChunkHeader()) {
+                if (frameIndex == 0) {
+                    throw new IOException("WebP has no frames");
+                }
+                frameCount = frameIndex;
+                rewind(argb);
+                continue;
+            }
+            final int type = getInt(0);
+            final int size = getIntLE(4);
+            if (type != ANMF) {
+                skip(size + (size & 1));
+                continue;
+            }
+            if (size < FRAME_HEADER_SIZE) {
+                throw new IOException("Bad WebP frame of " + size + " bytes");
+            }
+            readFully(header, 0, FRAME_HEADER_SIZE);
+            final int x = getInt24(header, 0) * 2;
+            final int y = getInt24(header, 3) * 2;
+            final int frameWidth = getInt24(header, 6) + 1;
+            final int frameHeight = getInt24(header, 9) + 1;
+            final int durationMs = getInt24(header, 12);
+            final int flags = header[15] & 0xff;
+            if (x + frameWidth > width || y + frameHeight > height) {
+                throw new IOException(String.format(
+                    Locale.US, "Bad WebP frame %d of %dx%d at %d,%d",
+                    frameIndex, frameWidth, frameHeight, x, y
+                ));
+            }
+            final int dataSize = size - FRAME_HEADER_SIZE;
+            payload = ensureCapacity(payload, dataSize);
+            readFully(payload, 0, dataSize);
+            if ((size & 1) != 0) {
+                skip(1);
+            }
+            final int length = wrapFrame(dataSize, frameWidth, frameHeight);
+            bitstreamDecoder.decode(wrapped, length, frameWidth, frameHeight, framePixels);
+            // Flag set means not blending.
+            final boolean blend = (flags & 0x02) == 0;
+            for (int row = 0; row < frameHeight; ++row) {
+                final int source = row * frameWidth;
+                final int target = (y + row) * width + x;
+                for (int column = 0; column < frameWidth; ++column) {
+                    argb[target + column] = blend ? FrameSources.blendOver(
+                        framePixels[source + column], argb[target + column]
+                    ) : framePixels[source + column];
+                }
+            }
+            dispose = (flags & 0x01) != 0;
+            disposeX = x;
+            disposeY = y;
+            disposeWidth = frameWidth;
+            disposeHeight = frameHeight;
+            ++frameIndex;
+            return durationMs < MIN_DELAY_MS ? DEFAULT_DELAY_MS : durationMs;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (input != null) {
+            input.close();
+            input = null;
+        }
+    }
+
+    private void open() throws IOException {
+        input = new BufferedInputStream(opener.open());
+        try {
+            readHeader();
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    private void rewind(@NonNull final int[] argb) throws IOException {
+        close();
+        open();
+        Arrays.fill(argb, 0);
+        dispose = false;
+        frameIndex = 0;
+    }
+
+    private void readHeader() throws IOException {
+        riffRemaining = 12;
+        readFully(header, 0, 12);
+        if (getInt(0) != RIFF || getInt(8) != WEBP) {
+            throw new IOException("Not a WebP");
+        }
+        riffRemaining = (getIntLE(4) & 0xffffffffL) - 4;
+        if (!readChunkHeader()) {
+            throw new IOException("WebP has no chunks");
+        }
+        final int type = getInt(0);
+        final int size = getIntLE(4);
+        int canvasWidth;
+        int canvasHeight;
+        if (type == VP8X) {
+            if (size < 10) {
+                throw new IOException("Bad WebP extended header");
+            }
+            readFully(header, 0, 10);
+            extendedFlags = header[0] & 0xff;
+            animated = (extendedFlags & FLAG_ANIMATION) != 0;
+            canvasWidth = getInt24(header, 4) + 1;
+            canvasHeight = getInt24(header, 7) + 1;
+            skip(size - 10 + (size & 1));
+            stillType = 0;
+        } else if (type == VP8 || type == VP8L) {
+            // Size is in bitstream, read it and remember chunk, file is the only frame.
+            if (size < 10) {
+                throw new IOException("WebP bitstream of " + size + " bytes is too small");
+            }
+            readFully(header, 0, 10);
+            if (type == VP8) {
+                canvasWidth = getShortLE(header, 6) & 0x3fff;
+                canvasHeight = getShortLE(header, 8) & 0x3fff;
+            } else {
+                final int bits = getIntLE(header, 1);
+                canvasWidth = (bits & 0x3fff) + 1;
+                canvasHeight = ((bits >> 14) & 0x3fff) + 1;
+            }
+            stillType = type;
+            stillSize = size;
+            animated = false;
+        } else {
+            throw new IOException(String.format(Locale.US, "Bad WebP chunk 0x%08x", type));
+        }
+        if (width == 0) {
+            if (canvasWidth <= 0 || canvasHeight <= 0 ||
+                (long)canvasWidth * canvasHeight > FrameSources.MAX_PIXELS) {
+                throw new IOException("Bad WebP size " + canvasWidth + "x" + canvasHeight);
+            }
+            width = canvasWidth;
+            height = canvasHeight;
+        } else if (canvasWidth != width || canvasHeight != height) {
+            throw new IOException("WebP changed while playing");
+        }
+    }
+
+    /**
+     * A still image is decoded as it is, extended ones may have alpha or metadata chunks,
+     * so they are read whole.
+     */
+    private void readStill(@NonNull final int[] argb) throws IOException {
+        int length;
+        if (stillType != 0) {
+            // Chunk header and the 10 bytes read for size.
+            length = 12 + 8 + stillSize + (stillSize & 1);
+            wrapped = ensureCapacity(wrapped, length);
+            putInt(wrapped, 0, RIFF);
+            putIntLE(wrapped, 4, length - 8);
+            putInt(wrapped, 8, WEBP);
+            putInt(wrapped, 12, stillType);
+            putIntLE(wrapped, 16, stillSize);
+            System.arraycopy(header, 0, wrapped, 20, 10);
+            readFully(wrapped, 30, length - 30);
+        } else {
+            final long remaining = riffRemaining;
+            if (remaining > Integer.MAX_VALUE - 64) {
+                throw new IOException("WebP is too large");
+            }
+            // Give decoder the whole file again, with the extended header we skipped.
+            length = 12 + 18 + (int)remaining;
+            wrapped = ensureCapacity(wrapped, length);
+            putInt(wrapped, 0, RIFF);
+            putIntLE(wrapped, 4, length - 8);
+            putInt(wrapped, 8, WEBP);
+            putInt(wrapped, 12, VP8X);
+            putIntLE(wrapped, 16, 10);
+            Arrays.fill(wrapped, 20, 30, (byte)0);
+            wrapped[20] = (byte)extendedFlags;
+            putInt24(wrapped, 24, width - 1);
+            putInt24(wrapped, 27, height - 1);
+            readFully(wrapped, 30, (int)remaining);
+        }
+        bitstreamDecoder.decode(wrapped, length, width, height, argb);
+    }
+
+    /**
+     * Put frame data into a still WebP, with an extended header if it has alpha.
+     *
+     * @return int Length of wrapped file.
+     */
+    private int wrapFrame(final int dataSize, final int frameWidth, final int frameHeight) {
+        boolean hasAlpha = false;
+        int offset = 0;
+        while (offset + 8 <= dataSize) {
+            if (getInt(payload, offset) == ALPH) {
+                hasAlpha = true;
+            }
+            final int size = getIntLE(payload, offset + 4);
+            offset += 8 + size + (size & 1);
+        }
+        final int length = 12 + (hasAlpha ? 18 : 0) + dataSize;
+        wrapped = ensureCapacity(wrapped, length);
+        putInt(wrapped, 0, RIFF);
+        putIntLE(wrapped, 4, length - 8);
+        putInt(wrapped, 8, WEBP);
+        int position = 12;
+        if (hasAlpha) {
+            putInt(wrapped, 12, VP8X);
+            putIntLE(wrapped, 16, 10);
+            Arrays.fill(wrapped, 20, 30, (byte)0);
+            wrapped[20] = (byte)FLAG_ALPHA;
+            putInt24(wrapped, 24, frameWidth - 1);
+            putInt24(wrapped, 27, frameHeight - 1);
+            position = 30;
+        }
+        System.arraycopy(payload, 0, wrapped, position, dataSize);
+        return length;
+    }
+
+    /**
+     * Read fourcc and little endian size into header.
+     *
+     * @return boolean false at end of stream.
+     */
+    private boolean readChunkHeader() throws IOException {
+        int offset = 0;
+        while (offset < 8) {
+            final int count = input.read(header, offset, 8 - offset);
+            if (count < 0) {
+                if (offset == 0) {
+                    return false;
+                }
+                throw new IOException("WebP ends early");
+            }
+            offset += count;
+        }
+        riffRemaining -= 8;
+        if (getIntLE(4) < 0) {
+            throw new IOException("Bad WebP chunk size");
+        }
+        return true;
+    }
+
+    private void readFully(
+        @NonNull final byte[] buffer,
+        final int offset,
+        final int length
+    ) throws IOException {
+        int done = 0;
+        while (done < length) {
+            final int count = input.read(buffer, offset + done, length - done);
+            if (count < 0) {
+                throw new IOException("WebP ends early");
+            }
+            done += count;
+        }
+        riffRemaining -= length;
+    }
+
+    private void skip(long length) throws IOException {
+        riffRemaining -= length;
+        while (length > 0) {
+            final long count = input.skip(length);
+            if (count <= 0) {
+                if (input.read() < 0) {
+                    throw new IOException("WebP ends early");
+                }
+                --length;
+            } else {
+                length -= count;
+            }
+        }
+    }
+
+    @NonNull
+    private static byte[] ensureCapacity(@NonNull final byte[] buffer, final int length) {
+        return buffer.length >= length ? buffer : new byte[length];
+    }
+
+    private int getInt(final int offset) {
+        return getInt(header, offset);
+    }
+
+    private int getIntLE(final int offset) {
+        return getIntLE(header, offset);
+    }
+
+    private static int getInt(@NonNull final byte[] buffer, final int offset) {
+        return (buffer[offset] & 0xff) << 24 | (buffer[offset + 1] & 0xff) << 16 |
+            (buffer[offset + 2] & 0xff) << 8 | (buffer[offset + 3] & 0xff);
+    }
+
+    private static int getIntLE(@NonNull final byte[] buffer, final int offset) {
+        return getInt24(buffer, offset) | (buffer[offset + 3] & 0xff) << 24;
+    }
+
+    private static int getInt24(@NonNull final byte[] buffer, final int offset) {
+        return (buffer[offset] & 0xff) | (buffer[offset + 1] & 0xff) << 8 |
+            (buffer[offset + 2] & 0xff) << 16;
+    }
+
+    private static int getShortLE(@NonNull final byte[] buffer, final int offset) {
+        return (buffer[offset] & 0xff) | (buffer[offset + 1] & 0xff) << 8;
+    }
+
+    private static void putInt(@NonNull final byte[] buffer, final int offset, final int value) {
+        buffer[offset] = (byte)(value >> 24);
+        buffer[offset + 1] = (byte)(value >> 16);
+        buffer[offset + 2] = (byte)(value >> 8);
+        buffer[offset + 3] = (byte)value;
+    }
+
+    private static void putIntLE(@NonNull final byte[] buffer, final int offset, final int value) {
+        putInt24(buffer, offset, value);
+        buffer[offset + 3] = (byte)(value >> 24);
+    }
+
+    private static void putInt24(@NonNull final byte[] buffer, final int offset, final int value) {
+        buffer[offset] = (byte)value;
+        buffer[offset + 1] = (byte)(value >> 8);
+        buffer[offset + 2] = (byte)(value >> 16);
+    }
+}
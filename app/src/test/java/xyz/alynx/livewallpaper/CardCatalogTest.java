@@ -0,0 +1,120 @@
+package xyz.alynx.livewallpaper;
+
+import android.support.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test of CardCatalog, with batches committed from several threads.
+ */
+public class CardCatalogTest {
+    private static final int THREADS = 8;
+    private static final int COMMITS_PER_THREAD = 200;
+
+    private static WallpaperCard card(@NonNull final String path, final String fingerprint) {
+        // Catalog only compares paths and fingerprints, uri is never read.
+        final WallpaperCard card = new WallpaperCard(
+            path, path, null, WallpaperCard.Type.EXTERNAL, null
+        );
+        card.setFingerprint(fingerprint);
+        return card;
+    }
+
+    @Test
+    public void commit_appliesBatchAsOneVersion() {
+        final CardCatalog catalog = new CardCatalog();
+        final WallpaperCard a = card("/a.mp4", "fa");
+        final WallpaperCard b = card("/b.mp4", "fb");
+        final WallpaperCard c = card("/c.mp4", null);
+        final CardCatalog.Snapshot first = catalog.edit().addAll(Arrays.asList(a, b, c)).commit();
+        assertEquals(1, first.getVersion());
+        assertEquals(3, first.getCards().size());
+        final CardCatalog.Snapshot second = catalog.edit().remove(b).setCurrent(a).commit();
+        assertEquals(2, second.getVersion());
+        assertEquals(Arrays.asList(a, c), second.getCards());
+        assertTrue(second.isCurrent(a));
+        // Old snapshot is not changed by later commits.
+        assertEquals(3, first.getCards().size());
+        assertNull(first.getCurrentCard());
+    }
+
+    @Test
+    public void commit_rejectsDuplicates() {
+        final CardCatalog catalog = new CardCatalog();
+        final WallpaperCard a = card("/a.mp4", "fa");
+        catalog.edit().add(a).commit();
+        final CardCatalog.Snapshot snapshot = catalog.getSnapshot();
+        // Same path, and same content from another path.
+        assertSame(snapshot, catalog.edit().add(card("/a.mp4", null)).commit());
+        assertSame(snapshot, catalog.edit().add(card("/copy.mp4", "fa")).commit());
+        assertSame(a, snapshot.findSameContent(card("/copy.mp4", "fa")));
+        // Cards without fingerprint never match by content.
+        assertNull(snapshot.findSameContent(card("/d.mp4", null)));
+        // Duplicates inside one batch are rejected too.
+        final CardCatalog.Snapshot batch = catalog.edit()
+            .add(card("/e.mp4", "fe"))
+            .add(card("/e-copy.mp4", "fe"))
+            .commit();
+        assertEquals(2, batch.getCards().size());
+        // Removing a card which is not there does not publish.
+        assertSame(batch, catalog.edit().remove(card("/none.mp4", null)).commit());
+    }
+
+    @Test
+    public void commit_keepsConcurrentChanges() throws InterruptedException {
+        final CardCatalog catalog = new CardCatalog();
+        final List<long[]> versions = new ArrayList<>();
+        catalog.addListener(new CardCatalog.OnCatalogChangedListener() {
+            @Override
+            public void onCatalogChanged(
+                @NonNull final CardCatalog.Snapshot oldSnapshot,
+                @NonNull final CardCatalog.Snapshot newSnapshot
+            ) {
+                // Calls are serialized, no lock needed.
+                versions.add(new long[]{oldSnapshot.getVersion(), newSnapshot.getVersion()});
+            }
+        });
+        final CountDownLatch start = new CountDownLatch(1);
+        final Thread[] threads = new Thread[THREADS];
+        for (int i = 0; i < THREADS; ++i) {
+            final int thread = i;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int j = 0; j < COMMITS_PER_THREAD; ++j) {
+                        catalog.edit().add(card("/" + thread + "/" + j + ".mp4", null)).commit();
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        // A lost compare-and-set would lose a card.
+        final CardCatalog.Snapshot snapshot = catalog.getSnapshot();
+        assertEquals(THREADS * COMMITS_PER_THREAD, snapshot.getCards().size());
+        assertEquals(THREADS * COMMITS_PER_THREAD, snapshot.getVersion());
+        // Listener sees versions in order, each old one is the last new one.
+        long last = 0;
+        for (long[] pair : versions) {
+            assertEquals(last, pair[0]);
+            assertTrue(pair[1] > pair[0]);
+            last = pair[1];
+        }
+        assertEquals(snapshot.getVersion(), last);
+    }
+}
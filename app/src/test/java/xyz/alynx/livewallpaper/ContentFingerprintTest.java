@@ -0,0 +1,115 @@
+package xyz.alynx.livewallpaper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test of ContentFingerprint.
+ */
+public class ContentFingerprintTest {
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("fingerprint", "");
+        assertTrue(dir.delete());
+        assertTrue(dir.mkdir());
+    }
+
+    @After
+    public void tearDown() {
+        final File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        dir.delete();
+    }
+
+    @Test
+    public void sameContent_sameFingerprint() throws IOException {
+        final byte[] content = randomBytes(1024 * 1024, 1);
+        assertEquals(
+            fingerprint(write("a.mp4", content)),
+            fingerprint(write("b.mp4", content))
+        );
+    }
+
+    @Test
+    public void sampledByteChanged_differentFingerprint() throws IOException {
+        final byte[] content = randomBytes(1024 * 1024, 2);
+        final String original = fingerprint(write("a.mp4", content));
+        // Tail chunk is always sampled.
+        content[content.length - 1] ^= 1;
+        assertNotEquals(original, fingerprint(write("b.mp4", content)));
+    }
+
+    @Test
+    public void sizeChanged_differentFingerprint() throws IOException {
+        final byte[] content = randomBytes(1024 * 1024, 3);
+        final byte[] longer = new byte[content.length + 1];
+        System.arraycopy(content, 0, longer, 0, content.length);
+        assertNotEquals(
+            fingerprint(write("a.mp4", content)),
+            fingerprint(write("b.mp4", longer))
+        );
+    }
+
+    @Test
+    public void smallFile_hashedWhole() throws IOException {
+        final byte[] content = randomBytes(100 * 1024, 4);
+        final String original = fingerprint(write("a.mp4", content));
+        // Not at head or tail chunk, but small files are read completely.
+        content[70 * 1024] ^= 1;
+        assertNotEquals(original, fingerprint(write("b.mp4", content)));
+    }
+
+    @Test
+    public void offset_onlyHashesRange() throws IOException {
+        final byte[] content = randomBytes(512 * 1024, 5);
+        final byte[] padded = new byte[content.length + 4096];
+        System.arraycopy(content, 0, padded, 1024, content.length);
+        final File file = write("b.mp4", padded);
+        try (FileInputStream fis = new FileInputStream(file)) {
+            assertEquals(
+                fingerprint(write("a.mp4", content)),
+                ContentFingerprint.compute(fis.getChannel(), 1024, content.length)
+            );
+        }
+    }
+
+    private File write(final String name, final byte[] content) throws IOException {
+        final File file = new File(dir, name);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(0);
+            raf.write(content);
+        }
+        return file;
+    }
+
+    private static String fingerprint(final File file) throws IOException {
+        try (FileInputStream fis = new FileInputStream(file)) {
+            final FileChannel channel = fis.getChannel();
+            return ContentFingerprint.compute(channel, 0, channel.size());
+        }
+    }
+
+    private static byte[] randomBytes(final int size, final long seed) {
+        final byte[] bytes = new byte[size];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,126 @@
+package xyz.alynx.livewallpaper;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test of DecoderRegistry, with made up decoders.
+ */
+public class DecoderRegistryTest {
+    private static final int PROFILE_HIGH = 8;
+    private static final int LEVEL_41 = 0x1000;
+    private static final int LEVEL_51 = 0x4000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private DecoderRegistry createRegistry(final String build) {
+        return new DecoderRegistry(build, Arrays.asList(
+            new DecoderRegistry.Decoder(
+                "OMX.google.h264.decoder", "video/avc", false, 4096, 4096, 960,
+                new int[] {PROFILE_HIGH, LEVEL_51}
+            ),
+            new DecoderRegistry.Decoder(
+                "OMX.vendor.avc.decoder", "video/avc", true, 1920, 1088, 60,
+                new int[] {PROFILE_HIGH, LEVEL_41}
+            ),
+            new DecoderRegistry.Decoder(
+                "c2.android.hevc.decoder", "video/hevc", false, 4096, 4096, 120,
+                new int[0]
+            )
+        ));
+    }
+
+    @Test
+    public void isSoftwareName_knowsCommonNames() {
+        assertTrue(DecoderRegistry.isSoftwareName("OMX.google.h264.decoder"));
+        assertTrue(DecoderRegistry.isSoftwareName("c2.android.avc.decoder"));
+        assertTrue(DecoderRegistry.isSoftwareName("OMX.MTK.VIDEO.DECODER.AVC.sw"));
+        assertFalse(DecoderRegistry.isSoftwareName("OMX.qcom.video.decoder.avc"));
+        assertFalse(DecoderRegistry.isSoftwareName("c2.exynos.h264.decoder"));
+    }
+
+    @Test
+    public void rank_putsHardwareFirstAndFailedLast() {
+        final DecoderRegistry registry = createRegistry("build");
+        final List<String> names = Arrays.asList(
+            "OMX.google.h264.decoder", "OMX.vendor.avc.decoder"
+        );
+        assertEquals(
+            Arrays.asList("OMX.vendor.avc.decoder", "OMX.google.h264.decoder"),
+            registry.rank(names)
+        );
+        assertFalse(registry.recordFailure("OMX.vendor.avc.decoder"));
+        assertEquals("OMX.vendor.avc.decoder", registry.rank(names).get(0));
+        assertTrue(registry.recordFailure("OMX.vendor.avc.decoder"));
+        assertTrue(registry.isFailed("OMX.vendor.avc.decoder"));
+        assertEquals(
+            Arrays.asList("OMX.google.h264.decoder", "OMX.vendor.avc.decoder"),
+            registry.rank(names)
+        );
+        // Unknown names are told by their names.
+        assertEquals(
+            Arrays.asList("OMX.other.avc", "OMX.google.other"),
+            registry.rank(Arrays.asList("OMX.google.other", "OMX.other.avc"))
+        );
+    }
+
+    @Test
+    public void decodesInHardware_followsCapabilities() {
+        final DecoderRegistry registry = createRegistry("build");
+        final int unknown = DecoderRegistry.UNKNOWN;
+        assertTrue(registry.decodesInHardware("video/avc", PROFILE_HIGH, LEVEL_41, 1920, 1080, 30));
+        // Rotated size is fine.
+        assertTrue(registry.decodesInHardware("video/avc", unknown, unknown, 1080, 1920, 0));
+        assertFalse(registry.decodesInHardware("video/avc", unknown, unknown, 3840, 2160, 30));
+        assertFalse(registry.decodesInHardware(
+            "video/avc", PROFILE_HIGH, LEVEL_51, 1920, 1080, 30
+        ));
+        assertFalse(registry.decodesInHardware("video/avc", unknown, unknown, 1920, 1080, 120));
+        assertFalse(registry.decodesInHardware("video/hevc", unknown, unknown, 1920, 1080, 30));
+        registry.recordFailure("OMX.vendor.avc.decoder");
+        registry.recordFailure("OMX.vendor.avc.decoder");
+        assertFalse(registry.decodesInHardware("video/avc", unknown, unknown, 1920, 1080, 30));
+    }
+
+    @Test
+    public void save_keepsDecodersAndFailures() throws IOException {
+        final File file = new File(folder.getRoot(), "decoders.bin");
+        final DecoderRegistry registry = createRegistry("build");
+        registry.recordFailure("OMX.vendor.avc.decoder");
+        registry.recordFailure("OMX.vendor.avc.decoder");
+        registry.save(file);
+        final DecoderRegistry loaded = DecoderRegistry.load(file, "build");
+        assertNotNull(loaded);
+        assertEquals(3, loaded.getDecoders().size());
+        final DecoderRegistry.Decoder decoder = loaded.getDecoders().get(1);
+        assertEquals("OMX.vendor.avc.decoder", decoder.name);
+        assertTrue(decoder.hardware);
+        assertEquals(1920, decoder.maxWidth);
+        assertEquals(1088, decoder.maxHeight);
+        assertEquals(60, decoder.maxFrameRate, 0.01f);
+        assertArrayEquals(new int[] {PROFILE_HIGH, LEVEL_41}, decoder.profileLevels);
+        assertTrue(loaded.isFailed("OMX.vendor.avc.decoder"));
+        // A system update probes again.
+        assertNull(DecoderRegistry.load(file, "other build"));
+    }
+
+    @Test
+    public void load_rejectsBrokenFile() throws IOException {
+        final File file = folder.newFile("decoders.bin");
+        final FileOutputStream output = new FileOutputStream(file);
+        output.write(new byte[] {1, 2, 3});
+        output.close();
+        assertNull(DecoderRegistry.load(file, "build"));
+        assertNull(DecoderRegistry.load(new File(folder.getRoot(), "missing"), "build"));
+    }
+}
@@ -0,0 +1,143 @@
+package xyz.alynx.livewallpaper;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test of EtcCodec, with synthetic images.
+ */
+public class EtcCodecTest {
+    private static int[] roundTrip(final int[] argb, final int width, final int height) {
+        final ByteBuffer encoded = ByteBuffer.allocate(EtcCodec.getEncodedSize(width, height));
+        EtcCodec.encode(argb, width, height, encoded);
+        assertFalse(encoded.hasRemaining());
+        encoded.flip();
+        final int[] decoded = new int[width * height];
+        EtcCodec.decode(encoded, width, height, decoded);
+        return decoded;
+    }
+
+    private static double psnr(final int[] a, final int[] b) {
+        double sum = 0;
+        for (int i = 0; i < a.length; ++i) {
+            for (int shift = 0; shift <= 16; shift += 8) {
+                final int d = ((a[i] >> shift) & 0xff) - ((b[i] >> shift) & 0xff);
+                sum += d * d;
+            }
+        }
+        final double mse = sum / (a.length * 3);
+        return mse == 0 ? Double.POSITIVE_INFINITY : 10 * Math.log10(255 * 255 / mse);
+    }
+
+    private static int maxChannelError(final int[] a, final int[] b) {
+        int max = 0;
+        for (int i = 0; i < a.length; ++i) {
+            for (int shift = 0; shift <= 16; shift += 8) {
+                max = Math.max(max, Math.abs(((a[i] >> shift) & 0xff) - ((b[i] >> shift) & 0xff)));
+            }
+        }
+        return max;
+    }
+
+    @Test
+    public void encodedSize_padsToBlocks() {
+        assertEquals(8, EtcCodec.getEncodedSize(4, 4));
+        assertEquals(8, EtcCodec.getEncodedSize(1, 1));
+        assertEquals(4 * 2 * 8, EtcCodec.getEncodedSize(13, 8));
+    }
+
+    @Test
+    public void solidColors_closeToSource() {
+        final int[] colors = {0xff000000, 0xffffffff, 0xff808080, 0xffff0000, 0xff00ff00, 0xff123456};
+        for (int color : colors) {
+            final int[] argb = new int[16];
+            Arrays.fill(argb, color);
+            final int[] decoded = roundTrip(argb, 4, 4);
+            assertTrue(Integer.toHexString(color), maxChannelError(argb, decoded) <= 8);
+            for (int pixel : decoded) {
+                assertEquals(0xff000000, pixel & 0xff000000);
+            }
+        }
+    }
+
+    @Test
+    public void twoColorBlock_keepsEdge() {
+        // Left half dark, right half bright, split without flip fits it exactly.
+        final int[] argb = new int[16];
+        for (int i = 0; i < 16; ++i) {
+            argb[i] = i % 4 < 2 ? 0xff202020 : 0xffe0e0e0;
+        }
+        final int[] decoded = roundTrip(argb, 4, 4);
+        assertTrue(maxChannelError(argb, decoded) <= 8);
+        // Top and bottom halves need flip.
+        for (int i = 0; i < 16; ++i) {
+            argb[i] = i < 8 ? 0xff2040a0 : 0xffa04020;
+        }
+        assertTrue(maxChannelError(argb, roundTrip(argb, 4, 4)) <= 8);
+    }
+
+    @Test
+    public void gradient_goodQuality() {
+        final int width = 64;
+        final int height = 32;
+        final int[] argb = new int[width * height];
+        for (int y = 0; y < height; ++y) {
+            for (int x = 0; x < width; ++x) {
+                argb[y * width + x] = 0xff000000 | (x * 4) << 16 | (y * 8) << 8 | ((x + y) * 2);
+            }
+        }
+        assertTrue(psnr(argb, roundTrip(argb, width, height)) > 35);
+    }
+
+    @Test
+    public void oddSize_edgesDecoded() {
+        final int width = 6;
+        final int height = 5;
+        final int[] argb = new int[width * height];
+        for (int i = 0; i < argb.length; ++i) {
+            argb[i] = 0xff000000 | (i * 8) << 8;
+        }
+        final int[] decoded = roundTrip(argb, width, height);
+        assertTrue(psnr(argb, decoded) > 30);
+    }
+
+    @Test
+    public void differentialColors_stayInEtc1Range() {
+        // Noisy image exercises both modes, ETC2 decoders read out of range
+        // differential colors as other modes, so they must never be written.
+        final int width = 32;
+        final int height = 32;
+        final int[] argb = new int[width * height];
+        long seed = 42;
+        for (int i = 0; i < argb.length; ++i) {
+            seed = seed * 6364136223846793005L + 1442695040888963407L;
+            argb[i] = 0xff000000 | (int)(seed >>> 40);
+        }
+        final ByteBuffer encoded = ByteBuffer.allocate(EtcCodec.getEncodedSize(width, height));
+        EtcCodec.encode(argb, width, height, encoded);
+        encoded.flip();
+        while (encoded.hasRemaining()) {
+            final long bits = encoded.getLong();
+            if (((bits >>> 33) & 1) == 0) {
+                continue;
+            }
+            for (int c = 0; c < 3; ++c) {
+                final int first = (int)(bits >>> (59 - c * 8)) & 0x1f;
+                final int delta = ((int)(bits >>> (56 - c * 8)) & 0x7) << 29 >> 29;
+                assertTrue(first + delta >= 0 && first + delta <= 31);
+            }
+        }
+    }
+
+    @Test
+    public void rgb565_packsChannels() {
+        assertEquals((short)0xffff, EtcCodec.toRgb565(0xffffffff));
+        assertEquals((short)0xf800, EtcCodec.toRgb565(0xffff0000));
+        assertEquals((short)0x07e0, EtcCodec.toRgb565(0xff00ff00));
+        assertEquals((short)0x001f, EtcCodec.toRgb565(0xff0000ff));
+    }
+}
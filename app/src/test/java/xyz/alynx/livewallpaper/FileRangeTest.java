@@ -0,0 +1,103 @@
+package xyz.alynx.livewallpaper;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test of FileRange, with a range inside a temporary file like an asset in APK.
+ */
+public class FileRangeTest {
+    private static final int OFFSET = 100;
+    private static final int LENGTH = 1000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FileRange openRange(final boolean map) throws IOException {
+        final File file = folder.newFile(map ? "mapped" : "read");
+        final FileOutputStream output = new FileOutputStream(file);
+        final byte[] bytes = new byte[OFFSET + LENGTH + 100];
+        for (int i = 0; i < bytes.length; ++i) {
+            bytes[i] = (byte)(i - OFFSET);
+        }
+        output.write(bytes);
+        output.close();
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        return new FileRange(randomAccessFile.getChannel(), OFFSET, LENGTH, randomAccessFile, map);
+    }
+
+    private static void assertLoop(final FileRange range) throws IOException {
+        range.onOpen(0);
+        final byte[] buffer = new byte[300];
+        long position = 0;
+        int count;
+        while ((count = range.read(position, buffer, 0, buffer.length)) > 0) {
+            for (int i = 0; i < count; ++i) {
+                assertEquals((byte)(position + i), buffer[i]);
+            }
+            position += count;
+        }
+        assertEquals(LENGTH, position);
+    }
+
+    @Test
+    public void read_staysInRange() throws IOException {
+        for (boolean map : new boolean[] {false, true}) {
+            final FileRange range = openRange(map);
+            assertEquals(map, range.isMapped());
+            final byte[] buffer = new byte[10];
+            assertEquals(5, range.read(LENGTH - 5, buffer, 2, 8));
+            assertEquals((byte)(LENGTH - 5), buffer[2]);
+            assertEquals(0, buffer[7]);
+            assertEquals(-1, range.read(LENGTH, buffer, 0, 10));
+            range.close();
+        }
+    }
+
+    @Test
+    public void loops_doNotOpenAgain() throws IOException {
+        final FileRange positional = openRange(false);
+        assertLoop(positional);
+        final long syscalls = positional.getSyscalls();
+        assertLoop(positional);
+        // Only 4 reads of data, end of range is known without reading.
+        assertEquals(syscalls + 4, positional.getSyscalls());
+        assertEquals(2, positional.getLoops());
+        assertEquals(2 * LENGTH, positional.getBytesCopied());
+        positional.close();
+
+        final FileRange mapped = openRange(true);
+        final long mappedSyscalls = mapped.getSyscalls();
+        assertLoop(mapped);
+        assertLoop(mapped);
+        assertEquals(mappedSyscalls, mapped.getSyscalls());
+        assertEquals(2 * LENGTH, mapped.getBytesCopied());
+        mapped.close();
+    }
+
+    @Test
+    public void memory_stopsStorageReads() throws IOException {
+        final FileRange range = openRange(false);
+        range.publishMemory(range.readIntoMemory());
+        assertTrue(range.isInMemory());
+        final long storageReads = range.getStorageReads();
+        assertLoop(range);
+        assertLoop(range);
+        assertEquals(storageReads, range.getStorageReads());
+        range.dropMemory();
+        assertFalse(range.isInMemory());
+        assertTrue(range.isMemoryDropped());
+        // Back to reading file.
+        assertLoop(range);
+        assertEquals(storageReads + 4, range.getStorageReads());
+        range.close();
+    }
+}
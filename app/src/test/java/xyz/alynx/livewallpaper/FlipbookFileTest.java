@@ -0,0 +1,118 @@
+package xyz.alynx.livewallpaper;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test of FlipbookFile and FlipbookWriter, with small files in a temporary folder.
+ */
+public class FlipbookFileTest {
+    private static final int WIDTH = 8;
+    private static final int HEIGHT = 4;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static int[] solidFrame(final int color) {
+        final int[] argb = new int[WIDTH * HEIGHT];
+        Arrays.fill(argb, color);
+        return argb;
+    }
+
+    private File writeFlipbook(final FlipbookFile.Format format) throws IOException {
+        final File file = folder.newFile("test.flip");
+        final FlipbookWriter writer = new FlipbookWriter(file, format, WIDTH, HEIGHT, 4);
+        writer.addFrame(solidFrame(0xffff0000), 40);
+        writer.addFrame(solidFrame(0xff00ff00), 40);
+        writer.addFrame(solidFrame(0xff0000ff), 20);
+        writer.finish();
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+        return file;
+    }
+
+    @Test
+    public void etc2_roundTrip() throws IOException {
+        final FlipbookFile flipbook = FlipbookFile.open(writeFlipbook(FlipbookFile.Format.ETC2_RGB8));
+        assertEquals(FlipbookFile.Format.ETC2_RGB8, flipbook.getFormat());
+        assertEquals(WIDTH, flipbook.getWidth());
+        assertEquals(HEIGHT, flipbook.getHeight());
+        assertEquals(3, flipbook.getFrameCount());
+        assertEquals(100 * 1000000L, flipbook.getLoopNs());
+        assertEquals(30.0f, flipbook.getFrameRate(), 0.01f);
+        // Mapped frames are the encoder's output as it is.
+        final int[] source = solidFrame(0xff00ff00);
+        final ByteBuffer expected = ByteBuffer.allocate(EtcCodec.getEncodedSize(WIDTH, HEIGHT));
+        EtcCodec.encode(source, WIDTH, HEIGHT, expected);
+        expected.flip();
+        assertEquals(expected, flipbook.getFrame(1));
+        final int[] decoded = new int[WIDTH * HEIGHT];
+        flipbook.decodeFrame(2, decoded);
+        assertTrue((decoded[0] & 0xff) > 240 && (decoded[0] >> 16 & 0xff) < 16);
+    }
+
+    @Test
+    public void rgb565_roundTrip() throws IOException {
+        final FlipbookFile flipbook = FlipbookFile.open(writeFlipbook(FlipbookFile.Format.RGB565));
+        assertEquals(FlipbookFile.Format.RGB565, flipbook.getFormat());
+        assertEquals(WIDTH * HEIGHT * 2, flipbook.getFrame(0).remaining());
+        final int[] decoded = new int[WIDTH * HEIGHT];
+        flipbook.decodeFrame(0, decoded);
+        assertEquals(0xffff0000, decoded[0]);
+        flipbook.decodeFrame(1, decoded);
+        assertEquals(0xff00ff00, decoded[WIDTH * HEIGHT - 1]);
+    }
+
+    @Test
+    public void frameIndex_followsDurations() throws IOException {
+        final FlipbookFile flipbook = FlipbookFile.open(writeFlipbook(FlipbookFile.Format.RGB565));
+        assertEquals(0, flipbook.getFrameIndex(0));
+        assertEquals(0, flipbook.getFrameIndex(39 * 1000000L));
+        assertEquals(1, flipbook.getFrameIndex(40 * 1000000L));
+        assertEquals(2, flipbook.getFrameIndex(99 * 1000000L));
+    }
+
+    @Test
+    public void abort_leavesNothing() throws IOException {
+        final File file = new File(folder.getRoot(), "aborted.flip");
+        final FlipbookWriter writer = new FlipbookWriter(file, FlipbookFile.Format.ETC2_RGB8, WIDTH, HEIGHT, 2);
+        writer.addFrame(solidFrame(0xff000000), 40);
+        writer.abort();
+        assertFalse(file.exists());
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+    }
+
+    @Test(expected = IOException.class)
+    public void tooManyFrames_fails() throws IOException {
+        final File file = new File(folder.getRoot(), "full.flip");
+        final FlipbookWriter writer = new FlipbookWriter(file, FlipbookFile.Format.RGB565, WIDTH, HEIGHT, 1);
+        writer.addFrame(solidFrame(0xff000000), 40);
+        writer.addFrame(solidFrame(0xff000000), 40);
+    }
+
+    @Test(expected = IOException.class)
+    public void badMagic_rejected() throws IOException {
+        final File file = writeFlipbook(FlipbookFile.Format.RGB565);
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        randomAccessFile.writeInt(0x12345678);
+        randomAccessFile.close();
+        FlipbookFile.open(file);
+    }
+
+    @Test(expected = IOException.class)
+    public void truncated_rejected() throws IOException {
+        final File file = writeFlipbook(FlipbookFile.Format.ETC2_RGB8);
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        randomAccessFile.setLength(randomAccessFile.length() - 4);
+        randomAccessFile.close();
+        FlipbookFile.open(file);
+    }
+}
@@ -0,0 +1,181 @@
+package xyz.alynx.livewallpaper;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test of FramePacer, with synthetic decoder and vsync timestamps.
+ */
+public class FramePacerTest {
+    private static final long VSYNC_NS = 16666667;
+    // Decoder queues frames this early, like ExoPlayer does.
+    private static final long LEAD_NS = 40000000;
+
+    /**
+     * Feed pacer for some vsyncs, frame i is queued LEAD_NS before timestamps[i].
+     *
+     * @return List of vsync count each latched frame was shown.
+     */
+    private static List<Integer> run(
+        final FramePacer pacer,
+        final long[] timestamps,
+        final int vsyncs
+    ) {
+        return run(pacer, timestamps, timestamps, vsyncs);
+    }
+
+    /**
+     * Feed pacer for some vsyncs, frame i is queued LEAD_NS before arrivals[i],
+     * and has timestamp timestamps[i].
+     */
+    private static List<Integer> run(
+        final FramePacer pacer,
+        final long[] arrivals,
+        final long[] timestamps,
+        final int vsyncs
+    ) {
+        final List<Integer> holds = new ArrayList<>();
+        int latched = 0;
+        int lastLatchVsync = -1;
+        for (int v = 0; v < vsyncs; ++v) {
+            final long vsyncTimeNs = v * VSYNC_NS;
+            int queued = 0;
+            while (latched + queued < timestamps.length &&
+                arrivals[latched + queued] - LEAD_NS <= vsyncTimeNs) {
+                ++queued;
+            }
+            final int count = pacer.getFramesToLatch(vsyncTimeNs, queued);
+            if (count > 0) {
+                latched += count;
+                pacer.onFramesLatched(vsyncTimeNs, timestamps[latched - 1], count);
+                if (lastLatchVsync >= 0) {
+                    holds.add(v - lastLatchVsync);
+                }
+                lastLatchVsync = v;
+            }
+        }
+        return holds;
+    }
+
+    private static long[] stream(final double fps, final int frames, final long jitterNs) {
+        final Random random = new Random(42);
+        final long[] timestamps = new long[frames];
+        for (int i = 0; i < frames; ++i) {
+            final long jitter = jitterNs == 0 ? 0 :
+                (long)((random.nextDouble() * 2 - 1) * jitterNs);
+            timestamps[i] = 100000000L + (long)(i * 1e9 / fps) + jitter;
+        }
+        return timestamps;
+    }
+
+    @Test
+    public void film_onSixtyHertz_steadyPulldown() {
+        final FramePacer pacer = new FramePacer(VSYNC_NS);
+        final List<Integer> holds = run(pacer, stream(24, 240, 2000000), 600);
+        // Skip the frames used to learn interval.
+        final List<Integer> steady = holds.subList(4, holds.size() - 4);
+        for (int i = 0; i < steady.size(); ++i) {
+            final int hold = steady.get(i);
+            assertTrue("Hold " + hold + " at " + i, hold == 2 || hold == 3);
+            if (i > 0) {
+                assertNotEquals("Broken pulldown at " + i, steady.get(i - 1), steady.get(i));
+            }
+        }
+        assertEquals(41666667, pacer.getFrameIntervalNs(), 100000);
+        assertNotNull(pacer.getStats());
+        assertEquals(0, pacer.getStats().getJudderCount());
+        assertEquals(0, pacer.getStats().getJankCount());
+    }
+
+    @Test
+    public void thirtyFps_onSixtyHertz_everyOtherVsync() {
+        final FramePacer pacer = new FramePacer(VSYNC_NS);
+        final List<Integer> holds = run(pacer, stream(30, 300, 2000000), 600);
+        for (int hold : holds.subList(4, holds.size())) {
+            assertEquals(2, hold);
+        }
+        assertEquals(0, pacer.getStats().getJudderCount());
+    }
+
+    @Test
+    public void sixtyFps_onSixtyHertz_everyVsync() {
+        final FramePacer pacer = new FramePacer(VSYNC_NS);
+        final List<Integer> holds = run(pacer, stream(60, 500, 1000000), 500);
+        for (int hold : holds.subList(4, holds.size())) {
+            assertEquals(1, hold);
+        }
+        assertEquals(0, pacer.getStats().getJudderCount());
+    }
+
+    @Test
+    public void latchingWhenAvailable_hasJudder() {
+        // What renderer did before pacing: latch whenever decoder queued something.
+        final long[] timestamps = stream(24, 240, 6000000);
+        final List<Integer> holds = new ArrayList<>();
+        int latched = 0;
+        int lastLatchVsync = -1;
+        for (int v = 0; v < 600 && latched < timestamps.length; ++v) {
+            // Frames arrive with the jitter, and are shown the first vsync after it.
+            if (timestamps[latched] <= v * VSYNC_NS) {
+                ++latched;
+                if (lastLatchVsync >= 0) {
+                    holds.add(v - lastLatchVsync);
+                }
+                lastLatchVsync = v;
+            }
+        }
+        int irregular = 0;
+        for (int i = 1; i < holds.size(); ++i) {
+            if (holds.get(i).equals(holds.get(i - 1))) {
+                ++irregular;
+            }
+        }
+        assertTrue(irregular > 10);
+    }
+
+    @Test
+    public void missingFrame_countedAsJudder() {
+        final FramePacer pacer = new FramePacer(VSYNC_NS);
+        final long[] timestamps = stream(24, 240, 0);
+        // Decoder delivers frame 100 far too late.
+        timestamps[100] += 60000000;
+        for (int i = 101; i < timestamps.length; ++i) {
+            timestamps[i] = Math.max(timestamps[i], timestamps[100]);
+        }
+        run(pacer, timestamps, 600);
+        assertTrue(pacer.getStats().getJudderCount() > 0);
+    }
+
+    @Test
+    public void timestampJump_relocks() {
+        final FramePacer pacer = new FramePacer(VSYNC_NS);
+        final long[] timestamps = stream(24, 240, 1000000);
+        // Looping or seeking, timestamps jump but vsyncs go on.
+        final long[] jumped = new long[timestamps.length];
+        for (int i = 0; i < timestamps.length; ++i) {
+            jumped[i] = i < 120 ? timestamps[i] : timestamps[i] - 3000000000L;
+        }
+        final List<Integer> holds = run(pacer, timestamps, jumped, 600);
+        assertTrue(holds.size() > 200);
+        final List<Integer> afterJump = holds.subList(130, holds.size() - 4);
+        for (int hold : afterJump) {
+            assertTrue(hold == 2 || hold == 3);
+        }
+    }
+
+    @Test
+    public void reset_forgetsInterval() {
+        final FramePacer pacer = new FramePacer(VSYNC_NS);
+        run(pacer, stream(24, 48, 0), 120);
+        assertTrue(pacer.getFrameIntervalNs() > 0);
+        pacer.reset();
+        assertEquals(0, pacer.getFrameIntervalNs());
+        // Unlocked pacer latches any available frame.
+        assertEquals(1, pacer.getFramesToLatch(0, 3));
+    }
+}
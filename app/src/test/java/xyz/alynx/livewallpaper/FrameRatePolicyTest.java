@@ -0,0 +1,65 @@
+package xyz.alynx.livewallpaper;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test of FrameRatePolicy.
+ */
+public class FrameRatePolicyTest {
+    private static final float[] HIGH_REFRESH = {120, 60, 90};
+
+    @Test
+    public void unknownFrameRate_dontCare() {
+        final FrameRatePolicy.Decision decision = new FrameRatePolicy(HIGH_REFRESH).decide(0);
+        assertEquals(FrameRatePolicy.Mode.DONT_CARE, decision.getMode());
+        assertEquals(0, decision.getFrameRate(), 0);
+        assertEquals(FrameRatePolicy.COMPATIBILITY_DEFAULT, decision.getCompatibility());
+    }
+
+    @Test
+    public void sixtyFps_exactMode() {
+        final FrameRatePolicy.Decision decision = new FrameRatePolicy(HIGH_REFRESH).decide(60);
+        assertEquals(FrameRatePolicy.Mode.EXACT, decision.getMode());
+        assertEquals(60, decision.getTargetRefreshRate(), 0);
+        assertEquals(FrameRatePolicy.COMPATIBILITY_FIXED_SOURCE, decision.getCompatibility());
+    }
+
+    @Test
+    public void ntscRate_matchesExact() {
+        final FrameRatePolicy.Decision decision = new FrameRatePolicy(HIGH_REFRESH).decide(
+            59.94f
+        );
+        assertEquals(FrameRatePolicy.Mode.EXACT, decision.getMode());
+        assertEquals(59.94f, decision.getFrameRate(), 0);
+    }
+
+    @Test
+    public void thirtyFps_lowestMultiple() {
+        final FrameRatePolicy.Decision decision = new FrameRatePolicy(HIGH_REFRESH).decide(30);
+        assertEquals(FrameRatePolicy.Mode.MULTIPLE, decision.getMode());
+        assertEquals(30, decision.getFrameRate(), 0);
+        assertEquals(60, decision.getTargetRefreshRate(), 0);
+    }
+
+    @Test
+    public void filmRate_multipleOnlyOnHundredTwenty() {
+        final FrameRatePolicy.Decision decision = new FrameRatePolicy(HIGH_REFRESH).decide(24);
+        assertEquals(FrameRatePolicy.Mode.MULTIPLE, decision.getMode());
+        assertEquals(120, decision.getTargetRefreshRate(), 0);
+        final FrameRatePolicy.Decision sixtyOnly = new FrameRatePolicy(
+            new float[] {60}
+        ).decide(23.976f);
+        assertEquals(FrameRatePolicy.Mode.DONT_CARE, sixtyOnly.getMode());
+    }
+
+    @Test
+    public void pal_onSixtyAndNinety_dontCare() {
+        final FrameRatePolicy.Decision decision = new FrameRatePolicy(
+            new float[] {60, 90}
+        ).decide(25);
+        assertEquals(FrameRatePolicy.Mode.DONT_CARE, decision.getMode());
+        assertEquals(0, decision.getFrameRate(), 0);
+    }
+}
@@ -0,0 +1,108 @@
+package xyz.alynx.livewallpaper;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test of FrameRing, with synthetic times in ns.
+ */
+public class FrameRingTest {
+    private static final long MS = 1000000L;
+
+    private static void fill(final FrameRing ring, final int durationMs) throws InterruptedException {
+        while (ring.getQueuedCount() + (ring.getShownSlot() >= 0 ? 1 : 0) < ring.getSize()) {
+            ring.queue(ring.dequeueFree(), durationMs);
+        }
+    }
+
+    @Test
+    public void advance_showsFramesForTheirDuration() throws InterruptedException {
+        final FrameRing ring = new FrameRing(3);
+        assertEquals(-1, ring.advance(0));
+        fill(ring, 40);
+        assertEquals(0, ring.advance(1000 * MS));
+        assertEquals(-1, ring.advance(1039 * MS));
+        assertEquals(1, ring.advance(1040 * MS));
+        assertEquals(1, ring.getShownSlot());
+        // A bit late keeps the timeline, next frame is due at 1120 ms.
+        fill(ring, 40);
+        assertEquals(2, ring.advance(1090 * MS));
+        assertEquals(-1, ring.advance(1119 * MS));
+        assertEquals(0, ring.advance(1120 * MS));
+    }
+
+    @Test
+    public void advance_restartsTimelineWhenMuchLater() throws InterruptedException {
+        final FrameRing ring = new FrameRing(3);
+        fill(ring, 40);
+        assertEquals(0, ring.advance(0));
+        // Hidden for a second, frames are not skipped to catch up.
+        assertEquals(1, ring.advance(1000 * MS));
+        assertEquals(-1, ring.advance(1039 * MS));
+        assertEquals(2, ring.advance(1040 * MS));
+    }
+
+    @Test
+    public void advance_keepsFrameWhenDecoderIsSlow() throws InterruptedException {
+        final FrameRing ring = new FrameRing(2);
+        ring.queue(ring.dequeueFree(), 20);
+        assertEquals(0, ring.advance(0));
+        assertEquals(-1, ring.advance(100 * MS));
+        assertEquals(0, ring.getShownSlot());
+    }
+
+    @Test
+    public void dequeueFree_blocksUntilFrameIsShown() throws InterruptedException {
+        final FrameRing ring = new FrameRing(2);
+        fill(ring, 10);
+        final int[] dequeued = {-2};
+        final Thread decoder = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    dequeued[0] = ring.dequeueFree();
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        decoder.start();
+        // Slot 0 is shown, slot 1 is queued, nothing is free before slot 1 is shown.
+        assertEquals(0, ring.advance(0));
+        decoder.join(50);
+        assertTrue(decoder.isAlive());
+        assertEquals(1, ring.advance(10 * MS));
+        decoder.join(1000);
+        assertFalse(decoder.isAlive());
+        assertEquals(0, dequeued[0]);
+    }
+
+    @Test
+    public void close_wakesDecoder() throws InterruptedException {
+        final FrameRing ring = new FrameRing(2);
+        fill(ring, 10);
+        final int[] dequeued = {-2};
+        final Thread decoder = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    dequeued[0] = ring.dequeueFree();
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        decoder.start();
+        ring.close();
+        decoder.join(1000);
+        assertFalse(decoder.isAlive());
+        assertEquals(-1, dequeued[0]);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void queue_rejectsWrongSlot() throws InterruptedException {
+        final FrameRing ring = new FrameRing(3);
+        ring.queue((ring.dequeueFree() + 1) % 3, 10);
+    }
+}
@@ -0,0 +1,317 @@
+package xyz.alynx.livewallpaper;
+
+import android.support.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test of GifDecoder, PngDecoder and FrameSources, with small files built here.
+ */
+public class FrameSourceTest {
+    private static final int RED = 0xffff0000;
+    private static final int GREEN = 0xff00ff00;
+    private static final int BLUE = 0xff0000ff;
+
+    /**
+     * Counts how many times a loop opened the file.
+     */
+    private static class BytesOpener implements FrameSource.Opener {
+        private final byte[] bytes;
+        int openCount = 0;
+
+        BytesOpener(final byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        @NonNull
+        @Override
+        public InputStream open() {
+            ++openCount;
+            return new ByteArrayInputStream(bytes);
+        }
+    }
+
+    private static void writeShort(final ByteArrayOutputStream output, final int value) {
+        output.write(value & 0xff);
+        output.write(value >> 8 & 0xff);
+    }
+
+    private static void writeInt(final ByteArrayOutputStream output, final int value) {
+        output.write(value >>> 24);
+        output.write(value >> 16 & 0xff);
+        output.write(value >> 8 & 0xff);
+        output.write(value & 0xff);
+    }
+
+    /**
+     * LZW data with only literal codes, a clear code every two keeps code size at 3 bits.
+     */
+    private static void writeLzw(final ByteArrayOutputStream output, final int[] indices) {
+        final int clear = 4;
+        final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        int bits = 0;
+        int bitCount = 0;
+        final int[] codes = new int[indices.length + (indices.length + 1) / 2 + 1];
+        int codeCount = 0;
+        for (int i = 0; i < indices.length; ++i) {
+            if (i % 2 == 0) {
+                codes[codeCount++] = clear;
+            }
+            codes[codeCount++] = indices[i];
+        }
+        codes[codeCount++] = clear + 1;
+        for (int i = 0; i < codeCount; ++i) {
+            bits |= codes[i] << bitCount;
+            bitCount += 3;
+            while (bitCount >= 8) {
+                data.write(bits & 0xff);
+                bits >>= 8;
+                bitCount -= 8;
+            }
+        }
+        if (bitCount > 0) {
+            data.write(bits & 0xff);
+        }
+        // Minimum code size, one sub-block and terminator.
+        output.write(2);
+        output.write(data.size());
+        output.write(data.toByteArray(), 0, data.size());
+        output.write(0);
+    }
+
+    private static void writeGifFrame(
+        final ByteArrayOutputStream output,
+        final int x, final int y, final int width, final int height,
+        final int delay, final int transparent, final int[] indices
+    ) {
+        output.write(0x21);
+        output.write(0xf9);
+        output.write(4);
+        output.write(transparent >= 0 ? 0x01 : 0x00);
+        writeShort(output, delay);
+        output.write(Math.max(0, transparent));
+        output.write(0);
+        output.write(0x2c);
+        writeShort(output, x);
+        writeShort(output, y);
+        writeShort(output, width);
+        writeShort(output, height);
+        output.write(0);
+        writeLzw(output, indices);
+    }
+
+    /**
+     * 4x2 red, then green and a transparent pixel at (1, 1).
+     */
+    private static byte[] createGif() {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        output.write('G');
+        output.write('I');
+        output.write('F');
+        output.write('8');
+        output.write('9');
+        output.write('a');
+        writeShort(output, 4);
+        writeShort(output, 2);
+        // Global color table of 4 colors.
+        output.write(0x81);
+        output.write(0);
+        output.write(0);
+        final int[] colors = {0x000000, 0xff0000, 0x00ff00, 0x0000ff};
+        for (int color : colors) {
+            output.write(color >> 16 & 0xff);
+            output.write(color >> 8 & 0xff);
+            output.write(color & 0xff);
+        }
+        writeGifFrame(output, 0, 0, 4, 2, 5, -1, new int[] {1, 1, 1, 1, 1, 1, 1, 1});
+        // 10 ms is too short, shown as browsers do.
+        writeGifFrame(output, 1, 1, 2, 1, 1, 0, new int[] {2, 0});
+        output.write(0x3b);
+        return output.toByteArray();
+    }
+
+    private static void writeChunk(
+        final ByteArrayOutputStream output, final String type, final byte[] data
+    ) {
+        writeInt(output, data.length);
+        final byte[] typeBytes = type.getBytes();
+        output.write(typeBytes, 0, 4);
+        output.write(data, 0, data.length);
+        final CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data);
+        writeInt(output, (int)crc.getValue());
+    }
+
+    private static byte[] deflate(final byte[] data) {
+        final Deflater deflater = new Deflater();
+        deflater.setInput(data);
+        deflater.finish();
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[256];
+        while (!deflater.finished()) {
+            final int count = deflater.deflate(buffer);
+            output.write(buffer, 0, count);
+        }
+        deflater.end();
+        return output.toByteArray();
+    }
+
+    private static byte[] frameControl(
+        final int sequence, final int width, final int height, final int x, final int y,
+        final int delayNumerator, final int delayDenominator, final int blend
+    ) {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        writeInt(output, sequence);
+        writeInt(output, width);
+        writeInt(output, height);
+        writeInt(output, x);
+        writeInt(output, y);
+        output.write(delayNumerator >> 8);
+        output.write(delayNumerator & 0xff);
+        output.write(delayDenominator >> 8);
+        output.write(delayDenominator & 0xff);
+        // Dispose none.
+        output.write(0);
+        output.write(blend);
+        return output.toByteArray();
+    }
+
+    /**
+     * 2x2 RGBA, red row and green row, then half transparent blue blended over (1, 0).
+     */
+    private static byte[] createApng() {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        output.write(new byte[] {(byte)0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'}, 0, 8);
+        final ByteArrayOutputStream header = new ByteArrayOutputStream();
+        writeInt(header, 2);
+        writeInt(header, 2);
+        header.write(8);
+        header.write(6);
+        header.write(0);
+        header.write(0);
+        header.write(0);
+        writeChunk(output, "IHDR", header.toByteArray());
+        final ByteArrayOutputStream animation = new ByteArrayOutputStream();
+        writeInt(animation, 2);
+        writeInt(animation, 0);
+        writeChunk(output, "acTL", animation.toByteArray());
+        writeChunk(output, "fcTL", frameControl(0, 2, 2, 0, 0, 1, 10, 0));
+        // Second row uses Sub filter, second pixel is stored as difference to the first.
+        writeChunk(output, "IDAT", deflate(new byte[] {
+            0, (byte)0xff, 0, 0, (byte)0xff, (byte)0xff, 0, 0, (byte)0xff,
+            1, 0, (byte)0xff, 0, (byte)0xff, 0, 0, 0, 0
+        }));
+        writeChunk(output, "fcTL", frameControl(1, 1, 1, 1, 0, 3, 100, 1));
+        final ByteArrayOutputStream frameData = new ByteArrayOutputStream();
+        writeInt(frameData, 2);
+        final byte[] pixels = deflate(new byte[] {0, 0, 0, (byte)0xff, (byte)0x80});
+        frameData.write(pixels, 0, pixels.length);
+        writeChunk(output, "fdAT", frameData.toByteArray());
+        writeChunk(output, "IEND", new byte[0]);
+        return output.toByteArray();
+    }
+
+    @Test
+    public void sniff_tellsFormats() throws IOException {
+        assertEquals(FrameSources.Format.GIF, FrameSources.sniff(new BytesOpener(createGif())));
+        assertEquals(FrameSources.Format.PNG, FrameSources.sniff(new BytesOpener(createApng())));
+        final byte[] webp = {'R', 'I', 'F', 'F', 0, 0, 0, 0, 'W', 'E', 'B', 'P'};
+        assertEquals(FrameSources.Format.WEBP, FrameSources.sniff(webp, webp.length));
+        final byte[] mp4 = {0, 0, 0, 0x18, 'f', 't', 'y', 'p', 'm', 'p', '4', '2'};
+        assertNull(FrameSources.sniff(mp4, mp4.length));
+        assertNull(FrameSources.sniff(webp, 4));
+    }
+
+    @Test
+    public void isAnimated_looksForAnimationControl() {
+        final byte[] apng = createApng();
+        assertTrue(FrameSources.isAnimated(apng, apng.length));
+        // Header only, animation control is not there yet.
+        assertFalse(FrameSources.isAnimated(apng, 33));
+        final byte[] gif = createGif();
+        assertTrue(FrameSources.isAnimated(gif, gif.length));
+        final byte[] still = createApng();
+        // Rename acTL to an unknown ancillary chunk, making it a still PNG.
+        still[37] = 'x';
+        assertFalse(FrameSources.isAnimated(still, still.length));
+        final byte[] webp = {
+            'R', 'I', 'F', 'F', 0, 0, 0, 0, 'W', 'E', 'B', 'P',
+            'V', 'P', '8', 'X', 10, 0, 0, 0, 0x02, 0, 0, 0
+        };
+        assertTrue(FrameSources.isAnimated(webp, webp.length));
+        webp[20] = 0x10;
+        assertFalse(FrameSources.isAnimated(webp, webp.length));
+    }
+
+    @Test
+    public void gif_composesFramesAndLoops() throws IOException {
+        final BytesOpener opener = new BytesOpener(createGif());
+        final FrameSource source = FrameSources.open(opener, null);
+        assertTrue(source instanceof GifDecoder);
+        assertEquals(4, source.getWidth());
+        assertEquals(2, source.getHeight());
+        assertEquals(0, source.getFrameCount());
+        final int[] canvas = new int[8];
+        assertEquals(50, source.readFrame(canvas));
+        for (int pixel : canvas) {
+            assertEquals(RED, pixel);
+        }
+        assertEquals(FrameSource.DEFAULT_DELAY_MS, source.readFrame(canvas));
+        assertEquals(GREEN, canvas[5]);
+        // Transparent index keeps what was under it.
+        assertEquals(RED, canvas[6]);
+        assertEquals(RED, canvas[0]);
+        final int opens = opener.openCount;
+        assertEquals(50, source.readFrame(canvas));
+        assertEquals(2, source.getFrameCount());
+        assertEquals(opens + 1, opener.openCount);
+        assertEquals(RED, canvas[5]);
+        source.close();
+    }
+
+    @Test
+    public void apng_blendsFramesAndLoops() throws IOException {
+        final FrameSource source = FrameSources.open(new BytesOpener(createApng()), null);
+        assertTrue(source instanceof PngDecoder);
+        assertEquals(2, source.getWidth());
+        assertEquals(2, source.getHeight());
+        final int[] canvas = new int[4];
+        assertEquals(100, source.readFrame(canvas));
+        // Animation control comes before the first frame.
+        assertEquals(2, source.getFrameCount());
+        assertArrayEquals(new int[] {RED, RED, GREEN, GREEN}, canvas);
+        assertEquals(30, source.readFrame(canvas));
+        assertEquals(FrameSources.blendOver(0x800000ff, RED), canvas[1]);
+        assertEquals(RED, canvas[0]);
+        assertEquals(100, source.readFrame(canvas));
+        assertArrayEquals(new int[] {RED, RED, GREEN, GREEN}, canvas);
+        source.close();
+    }
+
+    @Test
+    public void blendOver_mixesByAlpha() {
+        assertEquals(BLUE, FrameSources.blendOver(BLUE, RED));
+        assertEquals(RED, FrameSources.blendOver(0x000000ff, RED));
+        final int mixed = FrameSources.blendOver(0x800000ff, RED);
+        assertEquals(0xff, mixed >>> 24);
+        assertEquals(0x80, mixed & 0xff, 1);
+        assertEquals(0x7f, mixed >> 16 & 0xff, 1);
+        // Over a transparent pixel, color stays and alpha is the source one.
+        assertEquals(0x800000ff, FrameSources.blendOver(0x800000ff, 0));
+    }
+
+    @Test(expected = IOException.class)
+    public void open_rejectsOtherFiles() throws IOException {
+        FrameSources.open(new BytesOpener(new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12}), null);
+    }
+}
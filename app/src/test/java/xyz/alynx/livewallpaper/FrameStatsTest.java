@@ -0,0 +1,82 @@
+package xyz.alynx.livewallpaper;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test of FrameStats.
+ */
+public class FrameStatsTest {
+    private static final long BUDGET_NS = 16666667;
+
+    @Test
+    public void smoothFrames_noJank() {
+        final FrameStats stats = new FrameStats(BUDGET_NS);
+        for (int i = 0; i <= 60; ++i) {
+            stats.addFrame(i * BUDGET_NS);
+        }
+        assertEquals(60, stats.getFrameCount());
+        assertEquals(0, stats.getJankCount());
+        assertEquals(0, stats.getDroppedFrames());
+        assertEquals(BUDGET_NS, stats.getPercentileNs(90));
+    }
+
+    @Test
+    public void jitter_notCountedAsJank() {
+        final FrameStats stats = new FrameStats(BUDGET_NS);
+        stats.addInterval(BUDGET_NS + 2000000);
+        stats.addInterval(BUDGET_NS - 2000000);
+        assertEquals(0, stats.getJankCount());
+    }
+
+    @Test
+    public void longFrames_countDroppedFrames() {
+        final FrameStats stats = new FrameStats(BUDGET_NS);
+        stats.addInterval(BUDGET_NS);
+        // Two vsyncs missed.
+        stats.addInterval(BUDGET_NS * 3);
+        stats.addInterval(BUDGET_NS * 2);
+        assertEquals(2, stats.getJankCount());
+        assertEquals(3, stats.getDroppedFrames());
+        assertEquals(BUDGET_NS * 3, stats.getMaxNs());
+        assertEquals(2.0f / 3, stats.getJankRatio(), 1e-6);
+    }
+
+    @Test
+    public void percentile_nearestRank() {
+        final FrameStats stats = new FrameStats(BUDGET_NS);
+        for (int i = 1; i <= 100; ++i) {
+            stats.addInterval(i);
+        }
+        assertEquals(50, stats.getPercentileNs(50));
+        assertEquals(90, stats.getPercentileNs(90));
+        assertEquals(1, stats.getPercentileNs(0));
+        assertEquals(100, stats.getPercentileNs(100));
+    }
+
+    @Test
+    public void reset_clearsFrames() {
+        final FrameStats stats = new FrameStats(BUDGET_NS);
+        stats.addFrame(0);
+        stats.addFrame(BUDGET_NS * 4);
+        stats.reset();
+        assertEquals(0, stats.getFrameCount());
+        assertEquals(0, stats.getJankCount());
+        assertEquals(0, stats.getPercentileNs(50));
+        // First frame after reset only sets the base.
+        stats.addFrame(BUDGET_NS * 10);
+        assertEquals(0, stats.getFrameCount());
+    }
+
+    @Test
+    public void judder_countedAndReset() {
+        final FrameStats stats = new FrameStats(BUDGET_NS);
+        stats.addJudder();
+        stats.addJudder();
+        assertEquals(2, stats.getJudderCount());
+        assertTrue(stats.toString().contains("2 judder"));
+        stats.reset();
+        assertEquals(0, stats.getJudderCount());
+    }
+}
@@ -0,0 +1,70 @@
+package xyz.alynx.livewallpaper;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test of IdleTracker.
+ */
+public class IdleTrackerTest {
+    private static final long DELAY_MS = 60 * 1000;
+
+    @Test
+    public void disabled_neverFreezes() {
+        final IdleTracker tracker = new IdleTracker(0);
+        tracker.onShown(0);
+        assertEquals(-1, tracker.getRemainingMs(DELAY_MS * 100));
+        assertFalse(tracker.freezeIfIdle(DELAY_MS * 100));
+    }
+
+    @Test
+    public void hidden_neverFreezes() {
+        final IdleTracker tracker = new IdleTracker(DELAY_MS);
+        assertEquals(-1, tracker.getRemainingMs(DELAY_MS * 2));
+        tracker.onShown(0);
+        tracker.onHidden(1000);
+        assertFalse(tracker.freezeIfIdle(DELAY_MS * 2));
+    }
+
+    @Test
+    public void interaction_postponesFreeze() {
+        final IdleTracker tracker = new IdleTracker(DELAY_MS);
+        tracker.onShown(0);
+        assertEquals(DELAY_MS, tracker.getRemainingMs(0));
+        assertFalse(tracker.onActive(30000));
+        assertFalse(tracker.freezeIfIdle(DELAY_MS));
+        assertEquals(30000, tracker.getRemainingMs(DELAY_MS));
+        assertTrue(tracker.freezeIfIdle(DELAY_MS + 30000));
+        assertTrue(tracker.isFrozen());
+        // Frozen tracker has nothing to schedule.
+        assertEquals(-1, tracker.getRemainingMs(DELAY_MS * 10));
+    }
+
+    @Test
+    public void wake_countsFrozenTime() {
+        final IdleTracker tracker = new IdleTracker(DELAY_MS);
+        tracker.onShown(0);
+        assertTrue(tracker.freezeIfIdle(DELAY_MS));
+        assertTrue(tracker.onActive(DELAY_MS * 4));
+        assertFalse(tracker.isFrozen());
+        assertEquals(DELAY_MS * 3, tracker.getFrozenMs(DELAY_MS * 5));
+        assertEquals(DELAY_MS * 5, tracker.getVisibleMs(DELAY_MS * 5));
+        assertEquals(1, tracker.getFreezeCount());
+        assertEquals("frozen 180 s of 300 s visible (60%) in 1 freezes", tracker.getStats(DELAY_MS * 5));
+    }
+
+    @Test
+    public void hide_whileFrozen_stopsCounting() {
+        final IdleTracker tracker = new IdleTracker(DELAY_MS);
+        tracker.onShown(0);
+        assertTrue(tracker.freezeIfIdle(DELAY_MS));
+        assertTrue(tracker.onHidden(DELAY_MS * 2));
+        assertFalse(tracker.isFrozen());
+        assertEquals(DELAY_MS, tracker.getFrozenMs(DELAY_MS * 10));
+        assertEquals(DELAY_MS * 2, tracker.getVisibleMs(DELAY_MS * 10));
+        // Showing again starts a new idle period.
+        tracker.onShown(DELAY_MS * 10);
+        assertEquals(DELAY_MS, tracker.getRemainingMs(DELAY_MS * 10));
+    }
+}
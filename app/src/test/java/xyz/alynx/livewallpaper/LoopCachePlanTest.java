@@ -0,0 +1,62 @@
+package xyz.alynx.livewallpaper;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test of LoopCachePlan.
+ */
+public class LoopCachePlanTest {
+    private static final long BUDGET = 64L * 1024 * 1024;
+
+    @Test
+    public void longOrUnknownVideo_notCached() {
+        assertNull(LoopCachePlan.create(0, 30, 640, 360, 1.0f, BUDGET));
+        assertNull(LoopCachePlan.create(LoopCachePlan.MAX_DURATION_MS + 1, 30, 640, 360, 1.0f, BUDGET));
+        assertNull(LoopCachePlan.create(3000, 30, 0, 0, 1.0f, BUDGET));
+        assertNull(LoopCachePlan.create(3000, 30, 640, 360, 1.0f, 0));
+    }
+
+    @Test
+    public void smallVideo_fullQuality() {
+        final LoopCachePlan plan = LoopCachePlan.create(2000, 30, 640, 360, 1.0f, BUDGET);
+        assertNotNull(plan);
+        assertEquals(LoopCachePlan.Format.RGBA8, plan.getFormat());
+        assertEquals(640, plan.getWidth());
+        assertEquals(360, plan.getHeight());
+        // Room for a few more frames than 2 s at 30 fps.
+        assertEquals(66, plan.getFrameCapacity());
+        assertTrue(plan.getFrameBytes() * plan.getFrameCapacity() <= BUDGET);
+    }
+
+    @Test
+    public void densityScale_shrinksFrames() {
+        final LoopCachePlan plan = LoopCachePlan.create(2000, 30, 640, 360, 0.5f, BUDGET);
+        assertNotNull(plan);
+        assertEquals(320, plan.getWidth());
+        assertEquals(180, plan.getHeight());
+    }
+
+    @Test
+    public void largerVideo_fallsBackToRgb565() {
+        // 1280x720 RGBA8 is 3.5 MB per frame, 33 frames do not fit in 64 MB but fit in RGB565.
+        final LoopCachePlan plan = LoopCachePlan.create(1000, 30, 1280, 720, 1.0f, BUDGET);
+        assertNotNull(plan);
+        assertEquals(LoopCachePlan.Format.RGB565, plan.getFormat());
+        assertEquals(1280, plan.getWidth());
+    }
+
+    @Test
+    public void hugeVideo_scaledToBudget() {
+        final LoopCachePlan plan = LoopCachePlan.create(3000, 30, 1280, 720, 1.0f, BUDGET);
+        assertNotNull(plan);
+        assertEquals(LoopCachePlan.Format.RGB565, plan.getFormat());
+        assertTrue(plan.getWidth() < 1280);
+        assertTrue(plan.getWidth() >= 1280 * LoopCachePlan.MIN_SCALE);
+        assertEquals(0, plan.getWidth() % 2);
+        assertTrue(plan.getFrameBytes() * plan.getFrameCapacity() <= BUDGET);
+        // Even half size would not fit.
+        assertNull(LoopCachePlan.create(6000, 60, 3840, 2160, 1.0f, BUDGET));
+    }
+}
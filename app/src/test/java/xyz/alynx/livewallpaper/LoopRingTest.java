@@ -0,0 +1,100 @@
+package xyz.alynx.livewallpaper;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test of LoopRing, with synthetic frame timestamps.
+ */
+public class LoopRingTest {
+    private static final long FRAME_NS = 1000000000L / 30;
+    private static final long VSYNC_NS = 1000000000L / 60;
+    private static final long START_NS = 5000000000L;
+
+    private static LoopRing createRing(final long durationMs) {
+        final LoopCachePlan plan = LoopCachePlan.create(durationMs, 30, 64, 64, 1.0f, 1 << 20);
+        assertNotNull(plan);
+        return new LoopRing(plan, 30);
+    }
+
+    @Test
+    public void monotonicTimestamps_completeAtDuration() {
+        final LoopRing ring = createRing(1000);
+        for (int i = 0; i < 30; ++i) {
+            assertEquals(i, ring.addFrame(START_NS + i * FRAME_NS));
+        }
+        assertEquals(LoopRing.State.RECORDING, ring.getState());
+        // First frame of next loop is not kept.
+        assertEquals(-1, ring.addFrame(START_NS + 30 * FRAME_NS));
+        assertEquals(LoopRing.State.PLAYING, ring.getState());
+        assertEquals(30, ring.getFrameCount());
+        assertEquals(30 * FRAME_NS, ring.getLoopNs());
+    }
+
+    @Test
+    public void restartedTimestamps_completeLoop() {
+        final LoopRing ring = createRing(1000);
+        for (int i = 0; i < 20; ++i) {
+            ring.addFrame(i * FRAME_NS);
+        }
+        assertEquals(-1, ring.addFrame(0));
+        assertEquals(LoopRing.State.PLAYING, ring.getState());
+        assertEquals(20 * FRAME_NS, ring.getLoopNs());
+    }
+
+    @Test
+    public void droppedFrames_abort() {
+        final LoopRing ring = createRing(1000);
+        ring.addFrame(START_NS);
+        ring.addFrame(START_NS + FRAME_NS);
+        assertEquals(-1, ring.addFrame(START_NS + FRAME_NS * 4));
+        assertEquals(LoopRing.State.ABORTED, ring.getState());
+        assertNotNull(ring.getAbortReason());
+        assertEquals(-1, ring.addFrame(START_NS + FRAME_NS * 5));
+    }
+
+    @Test
+    public void tooFewFrames_abort() {
+        final LoopRing ring = createRing(1000);
+        ring.addFrame(START_NS);
+        ring.addFrame(START_NS);
+        assertEquals(LoopRing.State.ABORTED, ring.getState());
+    }
+
+    @Test
+    public void playback_followsVsyncAndWraps() {
+        final LoopRing ring = createRing(1000);
+        for (int i = 0; i <= 30; ++i) {
+            ring.addFrame(START_NS + i * FRAME_NS);
+        }
+        long vsyncNs = 100 * VSYNC_NS;
+        assertEquals(0, ring.getFrameIndex(vsyncNs, VSYNC_NS));
+        assertTrue(ring.setShownIndex(0));
+        // 30 fps video on 60 Hz display changes frame every other vsync.
+        vsyncNs += VSYNC_NS;
+        assertEquals(0, ring.getFrameIndex(vsyncNs, VSYNC_NS));
+        assertFalse(ring.setShownIndex(0));
+        vsyncNs += VSYNC_NS;
+        assertEquals(1, ring.getFrameIndex(vsyncNs, VSYNC_NS));
+        for (int i = 0; i < 58; ++i) {
+            vsyncNs += VSYNC_NS;
+            ring.getFrameIndex(vsyncNs, VSYNC_NS);
+        }
+        // One second later it is back at loop start.
+        vsyncNs += VSYNC_NS;
+        assertEquals(0, ring.getFrameIndex(vsyncNs, VSYNC_NS));
+    }
+
+    @Test
+    public void playback_continuesAfterPause() {
+        final LoopRing ring = createRing(1000);
+        for (int i = 0; i <= 30; ++i) {
+            ring.addFrame(START_NS + i * FRAME_NS);
+        }
+        ring.getFrameIndex(0, VSYNC_NS);
+        ring.getFrameIndex(VSYNC_NS * 2, VSYNC_NS);
+        // Hidden for a long time, clock only moves two vsyncs.
+        assertEquals(2, ring.getFrameIndex(VSYNC_NS * 100000, VSYNC_NS));
+    }
+}
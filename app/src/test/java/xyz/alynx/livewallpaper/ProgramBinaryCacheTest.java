@@ -0,0 +1,72 @@
+package xyz.alynx.livewallpaper;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test of ProgramBinaryCache, with files in a temporary folder.
+ */
+public class ProgramBinaryCacheTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static ByteBuffer binary(final int size, final int seed) {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+        for (int i = 0; i < size; ++i) {
+            buffer.put((byte)(i + seed));
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    @Test
+    public void store_loadsSameBinary() throws IOException {
+        final ProgramBinaryCache cache = new ProgramBinaryCache(new File(folder.getRoot(), "programs"));
+        assertNull(cache.load("a"));
+        final ByteBuffer binary = binary(100, 3);
+        cache.store("a", 0x8741, binary);
+        assertEquals(0, binary.position());
+        final ProgramBinaryCache.Entry entry = cache.load("a");
+        assertNotNull(entry);
+        assertEquals(0x8741, entry.format);
+        assertTrue(entry.binary.isDirect());
+        assertEquals(binary, entry.binary);
+        cache.remove("a");
+        assertNull(cache.load("a"));
+    }
+
+    @Test
+    public void load_removesBadFile() throws IOException {
+        final File directory = folder.newFolder("programs");
+        final File file = new File(directory, "bad.bin");
+        final FileOutputStream output = new FileOutputStream(file);
+        output.write(new byte[] {1, 2, 3, 4, 5, 6, 7, 8});
+        output.close();
+        assertNull(new ProgramBinaryCache(directory).load("bad"));
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void store_keepsRecentlyUsed() {
+        final File directory = new File(folder.getRoot(), "programs");
+        final ProgramBinaryCache cache = new ProgramBinaryCache(directory);
+        for (int i = 0; i <= ProgramBinaryCache.MAX_ENTRIES; ++i) {
+            cache.store("p" + i, 1, binary(16, i));
+            // File times may be only seconds, so spread them.
+            assertTrue(new File(directory, "p" + i + ".bin").setLastModified(i * 10000L));
+        }
+        cache.store("last", 1, binary(16, 0));
+        assertEquals(ProgramBinaryCache.MAX_ENTRIES, directory.listFiles().length);
+        assertFalse(new File(directory, "p0.bin").exists());
+        assertFalse(new File(directory, "p1.bin").exists());
+        assertTrue(new File(directory, "last.bin").exists());
+    }
+}
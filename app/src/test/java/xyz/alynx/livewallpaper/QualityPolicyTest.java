@@ -0,0 +1,124 @@
+package xyz.alynx.livewallpaper;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test of QualityPolicy, with synthetic battery and thermal state.
+ */
+public class QualityPolicyTest {
+    private static final long HOLD_MS = 60 * 1000;
+
+    private static QualityPolicy.Conditions battery(final int percent) {
+        return new QualityPolicy.Conditions(percent, false, false, QualityPolicy.THERMAL_NONE);
+    }
+
+    private static QualityPolicy.Conditions thermal(final int status) {
+        return new QualityPolicy.Conditions(80, false, false, status);
+    }
+
+    @Test
+    public void goodConditions_fullQuality() {
+        final QualityPolicy policy = new QualityPolicy(new QualityPolicy.Config());
+        assertEquals(QualityPolicy.Tier.FULL, policy.update(battery(80), 0));
+        assertEquals(QualityPolicy.Tier.FULL, policy.update(battery(-1), 1000));
+        assertEquals(QualityPolicy.Tier.FULL, policy.update(thermal(QualityPolicy.THERMAL_LIGHT), 2000));
+    }
+
+    @Test
+    public void batteryThresholds_lowerTiersAtOnce() {
+        final QualityPolicy policy = new QualityPolicy(new QualityPolicy.Config());
+        assertEquals(QualityPolicy.Tier.REDUCED_FPS, policy.update(battery(30), 0));
+        assertEquals(QualityPolicy.Tier.REDUCED_RESOLUTION, policy.update(battery(20), 1));
+        assertEquals(QualityPolicy.Tier.STATIC, policy.update(battery(10), 2));
+    }
+
+    @Test
+    public void charging_ignoresBattery() {
+        final QualityPolicy policy = new QualityPolicy(new QualityPolicy.Config());
+        assertEquals(QualityPolicy.Tier.FULL, policy.update(
+            new QualityPolicy.Conditions(5, true, false, QualityPolicy.THERMAL_NONE), 0
+        ));
+        // Thermal still counts while charging, charging makes heat.
+        assertEquals(QualityPolicy.Tier.REDUCED_RESOLUTION, policy.update(
+            new QualityPolicy.Conditions(5, true, false, QualityPolicy.THERMAL_SEVERE), 1
+        ));
+    }
+
+    @Test
+    public void worstConditionWins() {
+        final QualityPolicy policy = new QualityPolicy(new QualityPolicy.Config());
+        assertEquals(QualityPolicy.Tier.REDUCED_RESOLUTION, policy.update(
+            new QualityPolicy.Conditions(25, false, true, QualityPolicy.THERMAL_MODERATE), 0
+        ));
+        assertEquals(QualityPolicy.Tier.STATIC, policy.update(
+            new QualityPolicy.Conditions(25, false, true, QualityPolicy.THERMAL_CRITICAL), 1
+        ));
+    }
+
+    @Test
+    public void wanderingBattery_doesNotFlap() {
+        final QualityPolicy policy = new QualityPolicy(new QualityPolicy.Config());
+        assertEquals(QualityPolicy.Tier.REDUCED_FPS, policy.update(battery(30), 0));
+        long nowMs = 0;
+        for (int i = 0; i < 100; ++i) {
+            nowMs += HOLD_MS;
+            // Level reading wanders around threshold, inside margin.
+            assertEquals(
+                QualityPolicy.Tier.REDUCED_FPS, policy.update(battery(i % 2 == 0 ? 31 : 30), nowMs)
+            );
+        }
+        // Clearly above threshold with margin.
+        assertEquals(QualityPolicy.Tier.FULL, policy.update(battery(36), nowMs + HOLD_MS));
+    }
+
+    @Test
+    public void recovery_waitsForHoldTime() {
+        final QualityPolicy policy = new QualityPolicy(new QualityPolicy.Config());
+        assertEquals(QualityPolicy.Tier.STATIC, policy.update(thermal(QualityPolicy.THERMAL_CRITICAL), 0));
+        assertEquals(QualityPolicy.Tier.STATIC, policy.update(thermal(QualityPolicy.THERMAL_NONE), HOLD_MS - 1));
+        assertEquals(QualityPolicy.Tier.FULL, policy.update(thermal(QualityPolicy.THERMAL_NONE), HOLD_MS));
+        // Getting worse again does not wait.
+        assertEquals(
+            QualityPolicy.Tier.REDUCED_FPS,
+            policy.update(thermal(QualityPolicy.THERMAL_MODERATE), HOLD_MS + 1)
+        );
+    }
+
+    @Test
+    public void config_changesThresholds() {
+        final QualityPolicy policy = new QualityPolicy(
+            new QualityPolicy.Config()
+                .setBatteryThresholds(50, 40, 0)
+                .setBatteryMargin(0)
+                .setPowerSaveTier(QualityPolicy.Tier.STATIC)
+                .setMinHoldMs(0)
+        );
+        assertEquals(QualityPolicy.Tier.REDUCED_RESOLUTION, policy.update(battery(5), 0));
+        assertEquals(QualityPolicy.Tier.FULL, policy.update(battery(51), 1));
+        assertEquals(QualityPolicy.Tier.STATIC, policy.update(
+            new QualityPolicy.Conditions(90, false, true, QualityPolicy.THERMAL_NONE), 2
+        ));
+    }
+
+    @Test
+    public void tierTimes_recorded() {
+        final QualityPolicy policy = new QualityPolicy(new QualityPolicy.Config().setMinHoldMs(0));
+        policy.update(battery(80), 1000);
+        policy.update(battery(15), 4000);
+        policy.update(battery(80), 10000);
+        long[] times = policy.getTierTimesMs(11000);
+        assertEquals(4000, times[QualityPolicy.Tier.FULL.ordinal()]);
+        assertEquals(0, times[QualityPolicy.Tier.REDUCED_FPS.ordinal()]);
+        assertEquals(6000, times[QualityPolicy.Tier.REDUCED_RESOLUTION.ordinal()]);
+        // Nothing plays between stopClock() and next update().
+        policy.stopClock(11000);
+        policy.update(battery(80), 50000);
+        times = policy.getTierTimesMs(51000);
+        assertEquals(5000, times[QualityPolicy.Tier.FULL.ordinal()]);
+        // Cleared times are saved ones, the running tier keeps counting.
+        policy.clearTierTimes();
+        assertEquals(2000, policy.getTierTimesMs(52000)[QualityPolicy.Tier.FULL.ordinal()]);
+    }
+}
@@ -0,0 +1,113 @@
+package xyz.alynx.livewallpaper;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test of RenderScaleController.
+ */
+public class RenderScaleControllerTest {
+    private static final long BUDGET_NS = 16666667;
+
+    private static boolean feed(final RenderScaleController controller, final long gpuNs) {
+        boolean changed = false;
+        for (int i = 0; i < RenderScaleController.WINDOW_FRAMES; ++i) {
+            changed |= controller.addFrameTime(gpuNs);
+        }
+        return changed;
+    }
+
+    @Test
+    public void squareVideo_onTallScreen_rendersAtSourceDensity() {
+        final RenderScaleController controller = new RenderScaleController(BUDGET_NS);
+        controller.setSizes(1440, 3040, 720, 720);
+        // Video is scaled 3040 / 720 times to cover screen.
+        assertEquals(720.0f / 3040, controller.getMaxScale(), 1e-4);
+        assertTrue(controller.isScaled());
+        assertEquals(720, controller.getRenderHeight());
+        assertEquals(342, controller.getRenderWidth());
+        assertTrue(controller.getFillSaving() > 0.9f);
+    }
+
+    @Test
+    public void largeVideo_rendersAtScreenSize() {
+        final RenderScaleController controller = new RenderScaleController(BUDGET_NS);
+        controller.setSizes(1080, 1920, 2160, 3840);
+        assertEquals(1.0f, controller.getMaxScale(), 0);
+        assertFalse(controller.isScaled());
+        assertEquals(1080, controller.getRenderWidth());
+        assertEquals(1920, controller.getRenderHeight());
+        assertEquals(0, controller.getFillSaving(), 0);
+    }
+
+    @Test
+    public void slowGpu_scalesDownToMinimum() {
+        final RenderScaleController controller = new RenderScaleController(BUDGET_NS);
+        controller.setSizes(1080, 1920, 1080, 1920);
+        assertTrue(feed(controller, BUDGET_NS));
+        assertEquals(0.9f, controller.getScale(), 1e-4);
+        for (int i = 0; i < 10; ++i) {
+            feed(controller, BUDGET_NS);
+        }
+        assertEquals(RenderScaleController.MIN_SCALE, controller.getScale(), 1e-4);
+        assertTrue(controller.isScaled());
+    }
+
+    @Test
+    public void fastGpu_scalesBackButNeverAboveDensity() {
+        final RenderScaleController controller = new RenderScaleController(BUDGET_NS);
+        controller.setSizes(1080, 1920, 720, 1280);
+        final float maxScale = controller.getMaxScale();
+        assertEquals(1280.0f / 1920, maxScale, 1e-4);
+        feed(controller, BUDGET_NS);
+        assertTrue(controller.getScale() < maxScale);
+        for (int i = 0; i < 10; ++i) {
+            feed(controller, BUDGET_NS / 10);
+        }
+        assertEquals(maxScale, controller.getScale(), 1e-4);
+    }
+
+    @Test
+    public void steadyLoad_keepsScale() {
+        final RenderScaleController controller = new RenderScaleController(BUDGET_NS);
+        controller.setSizes(1080, 1920, 1080, 1920);
+        feed(controller, BUDGET_NS);
+        // Between low and high load, nothing changes.
+        assertFalse(feed(controller, BUDGET_NS * 6 / 10));
+        assertEquals(0.9f, controller.getScale(), 1e-4);
+    }
+
+    @Test
+    public void lowDensitySource_notScaledBelowIt() {
+        final RenderScaleController controller = new RenderScaleController(BUDGET_NS);
+        controller.setSizes(1440, 3040, 320, 240);
+        final float maxScale = controller.getMaxScale();
+        assertTrue(maxScale < RenderScaleController.MIN_SCALE);
+        // Already at source density, slow GPU cannot make it worse.
+        assertFalse(feed(controller, BUDGET_NS * 2));
+        assertEquals(maxScale, controller.getScale(), 0);
+    }
+
+    @Test
+    public void newSizes_resetScale() {
+        final RenderScaleController controller = new RenderScaleController(BUDGET_NS);
+        controller.setSizes(1080, 1920, 1080, 1920);
+        feed(controller, BUDGET_NS);
+        assertFalse(controller.setSizes(1080, 1920, 1080, 1920));
+        assertTrue(controller.setSizes(1920, 1080, 1080, 1920));
+        assertEquals(controller.getMaxScale(), controller.getScale(), 0);
+        assertEquals(30, controller.getStats().getFrameCount());
+    }
+
+    @Test
+    public void sampleSize_keepsScreenCovered() {
+        // 12 MP photo on a 1080p screen, half still covers it, quarter does not.
+        assertEquals(2, RenderScaleController.getSampleSize(1080, 1920, 3000, 4000, 8192));
+        assertEquals(1, RenderScaleController.getSampleSize(1080, 1920, 1080, 1920, 8192));
+        assertEquals(1, RenderScaleController.getSampleSize(1080, 1920, 640, 480, 8192));
+        assertEquals(4, RenderScaleController.getSampleSize(540, 960, 3000, 4000, 8192));
+        // Panorama is limited by texture size, even if it gets below screen density.
+        assertEquals(4, RenderScaleController.getSampleSize(1080, 1920, 16000, 2000, 4096));
+    }
+}
@@ -0,0 +1,83 @@
+package xyz.alynx.livewallpaper;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test of RenditionPlan.
+ */
+public class RenditionPlanTest {
+    private static final int SCREEN_WIDTH = 1080;
+    private static final int SCREEN_HEIGHT = 2340;
+
+    @Test
+    public void create_coversScreenHeldTheSameWay() {
+        final RenditionPlan plan = RenditionPlan.create(
+            3840, 2160, 60, "video/hevc", SCREEN_WIDTH, SCREEN_HEIGHT
+        );
+        assertNotNull(plan);
+        // Long edge decides, 3840 * 2340 / 3840, then aligned up.
+        assertEquals(2352, plan.getWidth());
+        assertEquals(1328, plan.getHeight());
+        assertEquals(RenditionPlan.MAX_FRAME_RATE, plan.getFrameRate(), 0.01f);
+        assertEquals(0, plan.getWidth() % RenditionPlan.ALIGNMENT);
+        assertEquals(0, plan.getHeight() % RenditionPlan.ALIGNMENT);
+        assertTrue(RenditionPlan.covers(
+            plan.getWidth(), plan.getHeight(), SCREEN_WIDTH, SCREEN_HEIGHT
+        ));
+        assertTrue(plan.getBitRate() > 0);
+    }
+
+    @Test
+    public void create_skipsCheapVideos() {
+        assertNull(RenditionPlan.create(1920, 1080, 30, "video/avc", 1080, 1920));
+        // Small saving is not worth a transcode.
+        assertNull(RenditionPlan.create(1920, 1080, 30, "video/avc", 1000, 1800));
+        assertNull(RenditionPlan.create(0, 0, 30, "video/avc", 1080, 1920));
+        assertNull(RenditionPlan.create(1920, 1080, 30, "video/avc", 0, 0));
+    }
+
+    @Test
+    public void create_capsFrameRate() {
+        final RenditionPlan plan = RenditionPlan.create(
+            1920, 1080, 60, "video/avc", 1080, 1920
+        );
+        assertNotNull(plan);
+        assertEquals(1920, plan.getWidth());
+        assertEquals(1080, plan.getHeight());
+        assertEquals(30, plan.getFrameRate(), 0.01f);
+        // Unknown frame rate is taken as the cap.
+        final RenditionPlan unknown = RenditionPlan.create(
+            3840, 2160, 0, "video/avc", 1080, 1920
+        );
+        assertNotNull(unknown);
+        assertEquals(RenditionPlan.FALLBACK_FRAME_RATE, unknown.getFrameRate(), 0.01f);
+    }
+
+    @Test
+    public void create_convertsCodecWithoutScaling() {
+        final RenditionPlan plan = RenditionPlan.create(
+            1920, 1080, 30, "video/hevc", 1080, 1920
+        );
+        assertNotNull(plan);
+        assertEquals(1920, plan.getWidth());
+        assertEquals(1080, plan.getHeight());
+        // Never upscaled, even for a larger screen.
+        final RenditionPlan small = RenditionPlan.create(
+            1280, 720, 30, "video/hevc", 1080, 1920
+        );
+        assertNotNull(small);
+        assertEquals(1280, small.getWidth());
+        assertEquals(720, small.getHeight());
+    }
+
+    @Test
+    public void covers_matchesOrientation() {
+        assertTrue(RenditionPlan.covers(1920, 1080, 1080, 1920));
+        assertTrue(RenditionPlan.covers(1080, 1920, 1080, 1920));
+        assertFalse(RenditionPlan.covers(1280, 720, 1080, 1920));
+        // Short edge alone is not enough.
+        assertFalse(RenditionPlan.covers(1440, 1080, 1080, 1920));
+    }
+}
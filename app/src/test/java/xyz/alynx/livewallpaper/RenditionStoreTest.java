@@ -0,0 +1,140 @@
+package xyz.alynx.livewallpaper;
+
+import android.support.annotation.NonNull;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test of RenditionStore, with a fake encoder writing bytes.
+ */
+public class RenditionStoreTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static class FakeEncoder implements RenditionEncoder {
+        private final int length;
+        private final boolean fail;
+        int calls = 0;
+
+        FakeEncoder(final int length, final boolean fail) {
+            this.length = length;
+            this.fail = fail;
+        }
+
+        @Override
+        public void encode(
+            @NonNull final RenditionPlan plan,
+            @NonNull final File output
+        ) throws IOException {
+            ++calls;
+            final FileOutputStream stream = new FileOutputStream(output);
+            stream.write(new byte[length]);
+            stream.close();
+            if (fail) {
+                throw new IOException("Fake failure");
+            }
+        }
+    }
+
+    private RenditionStore createStore() {
+        return new RenditionStore(new File(folder.getRoot(), "renditions"));
+    }
+
+    @Test
+    public void create_encodesOnce() throws IOException {
+        final RenditionStore store = createStore();
+        final FakeEncoder encoder = new FakeEncoder(100, false);
+        final RenditionStore.Rendition rendition = store.create(
+            "card", new RenditionPlan(1088, 1920, 30), encoder
+        );
+        assertTrue(rendition.file.isFile());
+        assertEquals(1, encoder.calls);
+        store.create("card", new RenditionPlan(1088, 1920, 30), encoder);
+        assertEquals(1, encoder.calls);
+        final List<RenditionStore.Rendition> renditions = store.list("card");
+        assertEquals(1, renditions.size());
+        assertEquals(1088, renditions.get(0).width);
+        assertEquals(1920, renditions.get(0).height);
+        assertEquals(30, renditions.get(0).frameRate, 0.01f);
+        assertTrue(store.list("other").isEmpty());
+    }
+
+    @Test
+    public void create_leavesNothingOnFailure() {
+        final RenditionStore store = createStore();
+        try {
+            store.create("card", new RenditionPlan(1088, 1920, 30), new FakeEncoder(100, true));
+            fail("Failure not reported");
+        } catch (IOException e) {
+            // Expected.
+        }
+        try {
+            store.create("card", new RenditionPlan(1088, 1920, 30), new FakeEncoder(0, false));
+            fail("Empty output not reported");
+        } catch (IOException e) {
+            // Expected.
+        }
+        assertTrue(store.list("card").isEmpty());
+        final String[] names = new File(folder.getRoot(), "renditions").list();
+        assertNotNull(names);
+        assertEquals(0, names.length);
+    }
+
+    @Test
+    public void choose_takesCheapestCovering() throws IOException {
+        final RenditionStore store = createStore();
+        final FakeEncoder encoder = new FakeEncoder(100, false);
+        store.create("card", new RenditionPlan(1920, 1088, 30), encoder);
+        store.create("card", new RenditionPlan(1280, 720, 30), encoder);
+        store.create("card", new RenditionPlan(2560, 1440, 30), encoder);
+        final RenditionStore.Rendition rendition = store.choose(
+            "card", 3840, 2160, 60, 1080, 1920
+        );
+        assertNotNull(rendition);
+        assertEquals(1920, rendition.width);
+        // Larger screen only fits the largest one.
+        final RenditionStore.Rendition large = store.choose(
+            "card", 3840, 2160, 60, 1440, 2560
+        );
+        assertNotNull(large);
+        assertEquals(2560, large.width);
+        // Source is cheaper than any rendition which covers.
+        assertNull(store.choose("card", 1920, 1080, 24, 1080, 1920));
+        assertNull(store.choose("other", 3840, 2160, 60, 1080, 1920));
+    }
+
+    @Test
+    public void remove_deletesOnlyItsCard() throws IOException {
+        final RenditionStore store = createStore();
+        final FakeEncoder encoder = new FakeEncoder(100, false);
+        store.create("card", new RenditionPlan(1920, 1088, 30), encoder);
+        store.create("card", new RenditionPlan(1280, 720, 30), encoder);
+        store.create("other", new RenditionPlan(1280, 720, 30), encoder);
+        store.markNotNeeded("card");
+        store.remove("card");
+        assertTrue(store.list("card").isEmpty());
+        assertFalse(store.isNotNeeded("card"));
+        assertEquals(1, store.list("other").size());
+    }
+
+    @Test
+    public void markNotNeeded_isNotARendition() throws IOException {
+        final RenditionStore store = createStore();
+        assertFalse(store.isNotNeeded("card"));
+        store.markNotNeeded("card");
+        store.markNotNeeded("card");
+        assertTrue(store.isNotNeeded("card"));
+        assertFalse(store.isNotNeeded("other"));
+        assertTrue(store.list("card").isEmpty());
+        assertNull(store.choose("card", 3840, 2160, 60, 1080, 1920));
+    }
+}
@@ -0,0 +1,81 @@
+package xyz.alynx.livewallpaper;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test of ShaderSource.
+ */
+public class ShaderSourceTest {
+    private static final String SHADER = "void main() {\n" +
+        "    gl_FragColor = vec4(tex_coord, sin(u_time), 1.0);\n" +
+        "}\n";
+
+    @Test
+    public void wrap_movesDirectivesAndKeepsLineNumbers() {
+        final String source = "#version 100\n" +
+            "#extension GL_OES_standard_derivatives : enable\n" +
+            SHADER;
+        final String wrapped = ShaderSource.wrap(source);
+        assertTrue(wrapped.startsWith("#version 100\n#extension GL_OES_standard_derivatives"));
+        assertEquals(wrapped.indexOf("#version"), wrapped.lastIndexOf("#version"));
+        assertTrue(wrapped.indexOf("uniform float u_time;") > wrapped.indexOf("#extension"));
+        // Main is at line 3 of user's file, so it is 2 lines after #line 1.
+        final String body = wrapped.substring(wrapped.indexOf("#line 1\n") + 8);
+        assertEquals(Arrays.asList("", "", "void main() {"),
+            Arrays.asList(body.split("\n")).subList(0, 3));
+    }
+
+    @Test
+    public void check_rejectsWhatGpuWouldNotExplain() {
+        assertNull(ShaderSource.check(SHADER));
+        assertNull(ShaderSource.check("#version 100\n" + SHADER));
+        assertNotNull(ShaderSource.check("#version 300 es\n" + SHADER));
+        assertNotNull(ShaderSource.check("gl_FragColor = vec4(1.0);\n"));
+        final char[] large = new char[ShaderSource.MAX_SOURCE_BYTES + 1];
+        Arrays.fill(large, ' ');
+        assertNotNull(ShaderSource.check(SHADER + new String(large)));
+    }
+
+    @Test
+    public void isText_tellsSourceFromMedia() {
+        final byte[] text = SHADER.getBytes();
+        assertTrue(ShaderSource.isText(text, text.length));
+        final byte[] mp4 = {0, 0, 0, 0x18, 'f', 't', 'y', 'p', 'm', 'p', '4', '2'};
+        assertFalse(ShaderSource.isText(mp4, mp4.length));
+        assertFalse(ShaderSource.isText(text, 0));
+    }
+
+    @Test
+    public void read_limitsSize() throws IOException {
+        assertEquals(SHADER, ShaderSource.read(new ByteArrayInputStream(SHADER.getBytes())));
+        try {
+            ShaderSource.read(new ByteArrayInputStream(new byte[ShaderSource.MAX_SOURCE_BYTES + 1]));
+            fail();
+        } catch (IOException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void getFrameDivider_capsFrameRate() {
+        assertEquals(2, ShaderSource.getFrameDivider(60.0f, 30));
+        assertEquals(2, ShaderSource.getFrameDivider(60.0001f, 30));
+        assertEquals(3, ShaderSource.getFrameDivider(60.0f, 24));
+        assertEquals(4, ShaderSource.getFrameDivider(120.0f, 30));
+        assertEquals(1, ShaderSource.getFrameDivider(60.0f, 60));
+        assertEquals(1, ShaderSource.getFrameDivider(60.0f, 0));
+        assertEquals(1, ShaderSource.getFrameDivider(0.0f, 30));
+    }
+
+    @Test
+    public void getTime_wraps() {
+        assertEquals(1.5f, ShaderSource.getTime(1500000000L), 1e-6f);
+        assertEquals(2.0f, ShaderSource.getTime((long)((ShaderSource.TIME_WRAP_S + 2) * 1e9)), 1e-3f);
+    }
+}
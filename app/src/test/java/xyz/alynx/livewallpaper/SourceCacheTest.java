@@ -0,0 +1,106 @@
+package xyz.alynx.livewallpaper;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test of SourceCache, with temporary files as videos.
+ */
+public class SourceCacheTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FileRange openRange(final int length) throws IOException {
+        final File file = folder.newFile();
+        final FileOutputStream output = new FileOutputStream(file);
+        output.write(new byte[length]);
+        output.close();
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        return new FileRange(randomAccessFile.getChannel(), 0, length, randomAccessFile, false);
+    }
+
+    @Test
+    public void load_followsLimits() throws IOException {
+        final SourceCache cache = new SourceCache(1000);
+        assertFalse(cache.load(openRange(600), 500));
+        assertFalse(cache.load(openRange(1200), 2000));
+        assertFalse(cache.load(openRange(600), 0));
+        final FileRange range = openRange(400);
+        assertTrue(cache.load(range, 500));
+        assertTrue(range.isInMemory());
+        assertEquals(400, cache.getUsedBytes());
+        // Loading again costs nothing.
+        assertTrue(cache.load(range, 500));
+        assertEquals(400, cache.getUsedBytes());
+    }
+
+    @Test
+    public void load_evictsFirstLoaded() throws IOException {
+        final SourceCache cache = new SourceCache(1000);
+        final FileRange first = openRange(400);
+        final FileRange second = openRange(400);
+        final FileRange third = openRange(400);
+        assertTrue(cache.load(first, 500));
+        assertTrue(cache.load(second, 500));
+        assertTrue(cache.load(third, 500));
+        assertFalse(first.isInMemory());
+        assertTrue(second.isInMemory());
+        assertEquals(800, cache.getUsedBytes());
+        // Evicted file stays on storage, loading it again would thrash.
+        assertFalse(cache.load(first, 500));
+    }
+
+    @Test
+    public void trimAndRelease_freeBudget() throws IOException {
+        final SourceCache cache = new SourceCache(1000);
+        final FileRange first = openRange(300);
+        final FileRange second = openRange(300);
+        cache.load(first, 500);
+        cache.load(second, 500);
+        cache.trim(300);
+        assertFalse(first.isInMemory());
+        assertTrue(second.isInMemory());
+        cache.release(second);
+        assertEquals(0, cache.getUsedBytes());
+        // Released range is not loaded again by a late loader.
+        assertFalse(cache.load(second, 500));
+        final FileRange third = openRange(300);
+        cache.release(third);
+        assertFalse(cache.load(third, 500));
+        assertEquals(0, cache.getUsedBytes());
+    }
+
+    @Test
+    public void load_readsOutsideLockAndDropsReleased() throws IOException {
+        final SourceCache cache = new SourceCache(1000);
+        final File file = folder.newFile();
+        final FileOutputStream output = new FileOutputStream(file);
+        output.write(new byte[300]);
+        output.close();
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        // Player is released while its loader reads the file.
+        final FileRange range = new FileRange(
+            randomAccessFile.getChannel(), 0, 300, randomAccessFile, false
+        ) {
+            @Override
+            ByteBuffer readIntoMemory() throws IOException {
+                assertFalse(Thread.holdsLock(cache));
+                assertEquals(300, cache.getUsedBytes());
+                cache.release(this);
+                return super.readIntoMemory();
+            }
+        };
+        assertFalse(cache.load(range, 500));
+        assertFalse(range.isInMemory());
+        assertEquals(0, cache.getUsedBytes());
+    }
+}
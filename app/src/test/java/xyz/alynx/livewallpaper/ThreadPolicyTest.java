@@ -0,0 +1,50 @@
+package xyz.alynx.livewallpaper;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test of ThreadPolicy.
+ */
+public class ThreadPolicyTest {
+    @Test
+    public void classify_matchesCutNames() {
+        assertEquals(ThreadPolicy.Role.RENDER, ThreadPolicy.classify("LWRenderThread"));
+        // System keeps 15 characters of names.
+        assertEquals(ThreadPolicy.Role.PLAYBACK, ThreadPolicy.classify("ExoPlayerImplIn"));
+        assertEquals(
+            ThreadPolicy.Role.PLAYBACK, ThreadPolicy.classify("ExoPlayerImplInternal:Handler")
+        );
+        assertEquals(ThreadPolicy.Role.PLAYBACK, ThreadPolicy.classify("LWFrameDecoder"));
+        assertEquals(ThreadPolicy.Role.CODEC, ThreadPolicy.classify("MediaCodec_loop"));
+        assertEquals(ThreadPolicy.Role.IMPORT, ThreadPolicy.classify("LWImport-2"));
+        assertEquals(ThreadPolicy.Role.IMPORT, ThreadPolicy.classify("LWRendition-1"));
+        assertNull(ThreadPolicy.classify("main"));
+        assertNull(ThreadPolicy.classify("RenderThread"));
+    }
+
+    @Test
+    public void getPriority_yieldsToApps() {
+        final ThreadPolicy smooth = new ThreadPolicy(ThreadPolicy.Mode.SMOOTH);
+        final ThreadPolicy yield = new ThreadPolicy(ThreadPolicy.Mode.YIELD);
+        for (ThreadPolicy.Role role : ThreadPolicy.Role.values()) {
+            // Nice values, larger runs later.
+            assertTrue(yield.getPriority(role) > ThreadPolicy.PRIORITY_DEFAULT);
+            assertTrue(smooth.getPriority(role) < yield.getPriority(role));
+        }
+        assertEquals(
+            ThreadPolicy.PRIORITY_DISPLAY, smooth.getPriority(ThreadPolicy.Role.RENDER)
+        );
+        assertEquals(
+            ThreadPolicy.PRIORITY_BACKGROUND, smooth.getPriority(ThreadPolicy.Role.IMPORT)
+        );
+    }
+
+    @Test
+    public void parseMode_fallsBackToSmooth() {
+        assertEquals(ThreadPolicy.Mode.YIELD, ThreadPolicy.parseMode(1));
+        assertEquals(ThreadPolicy.Mode.SMOOTH, ThreadPolicy.parseMode(-1));
+        assertEquals(ThreadPolicy.Mode.SMOOTH, ThreadPolicy.parseMode(7));
+    }
+}
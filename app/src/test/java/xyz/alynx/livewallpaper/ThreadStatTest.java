@@ -0,0 +1,43 @@
+package xyz.alynx.livewallpaper;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test of ThreadStat, with lines like a device gives.
+ */
+public class ThreadStatTest {
+    @Test
+    public void parse_readsCpuAndNice() {
+        final ThreadStat stat = ThreadStat.parse(
+            "4321 (LWRenderThread) S 1200 1200 0 0 -1 1077952576 3207 0 0 0 " +
+            "150 50 0 0 16 -4 40 0 12345 2000000000 20000 18446744073709551615"
+        );
+        assertNotNull(stat);
+        assertEquals(4321, stat.tid);
+        assertEquals("LWRenderThread", stat.name);
+        assertEquals(200, stat.cpuTicks);
+        assertEquals(2000, stat.getCpuMs());
+        assertEquals(-4, stat.nice);
+    }
+
+    @Test
+    public void parse_keepsOddNames() {
+        final ThreadStat stat = ThreadStat.parse(
+            "77 (a (b) c) R 1 1 0 0 -1 0 0 0 0 0 3 4 0 0 20 0 1 0 0 0 0"
+        );
+        assertNotNull(stat);
+        assertEquals("a (b) c", stat.name);
+        assertEquals(7, stat.cpuTicks);
+        assertEquals(0, stat.nice);
+    }
+
+    @Test
+    public void parse_rejectsOtherLines() {
+        assertNull(ThreadStat.parse(""));
+        assertNull(ThreadStat.parse("(name) S 1 2 3"));
+        assertNull(ThreadStat.parse("12 (short) S 1 2 3"));
+        assertNull(ThreadStat.parse("x (name) S 1 1 0 0 -1 0 0 0 0 0 3 4 0 0 20 0 1 0 0 0 0"));
+    }
+}